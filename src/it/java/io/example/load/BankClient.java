@@ -0,0 +1,61 @@
+package io.example.load;
+
+import java.math.BigDecimal;
+
+import org.springframework.web.reactive.function.client.WebClient;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import io.example.Money;
+import io.example.bank.AccountEntity;
+import io.example.bank.DepositEntity;
+import io.example.bank.WithdrawalEntity;
+import reactor.core.publisher.Mono;
+
+// Calls the HTTP endpoints of the account, deposit and withdrawal entities.
+class BankClient {
+  private final WebClient webClient;
+
+  BankClient(WebClient webClient) {
+    this.webClient = webClient;
+  }
+
+  Mono<String> createAccount(String accountId) {
+    var command = new AccountEntity.CreateAccountCommand(accountId, "Load " + accountId, "1 Load St");
+    return post("/account/%s/create".formatted(accountId), command);
+  }
+
+  Mono<String> deposit(String accountId, String depositId, Money amount) {
+    var command = new DepositEntity.DepositCommand(new DepositEntity.DepositId(accountId, depositId), amount);
+    return post("/deposit/%s_%s/create".formatted(accountId, depositId), command);
+  }
+
+  Mono<String> withdraw(String accountId, String withdrawalId, Money amount) {
+    var command = new WithdrawalEntity.WithdrawalCreateCommand(new WithdrawalEntity.WithdrawalId(accountId, withdrawalId), amount);
+    return post("/withdrawal/%s_%s/create".formatted(accountId, withdrawalId), command);
+  }
+
+  // The withdrawal state once it has been approved or rejected for insufficient funds, empty while it is pending.
+  Mono<WithdrawalResult> withdrawalResult(String accountId, String withdrawalId) {
+    return get("/withdrawal/%s_%s".formatted(accountId, withdrawalId))
+        .filter(state -> state.path("approved").asBoolean() || state.path("insufficientFunds").asBoolean())
+        .map(state -> state.path("approved").asBoolean() ? WithdrawalResult.approved : WithdrawalResult.insufficientFunds);
+  }
+
+  Mono<Money> balance(String accountId) {
+    return get("/account/%s".formatted(accountId))
+        .map(state -> Money.of(new BigDecimal(state.path("balance").asText("0"))));
+  }
+
+  private Mono<String> post(String uri, Object command) {
+    return webClient.post().uri(uri).bodyValue(command).retrieve().bodyToMono(String.class);
+  }
+
+  private Mono<JsonNode> get(String uri) {
+    return webClient.get().uri(uri).retrieve().bodyToMono(JsonNode.class);
+  }
+
+  enum WithdrawalResult {
+    approved, insufficientFunds
+  }
+}
@@ -0,0 +1,42 @@
+package io.example.load;
+
+import java.time.Duration;
+import java.util.Arrays;
+
+// The latency samples of one measurement, percentiles are taken from the sorted samples.
+class Latencies {
+  private final String name;
+  private long[] samples = new long[1024];
+  private int count;
+
+  Latencies(String name) {
+    this.name = name;
+  }
+
+  synchronized void record(Duration latency) {
+    if (count == samples.length) {
+      samples = Arrays.copyOf(samples, count * 2);
+    }
+    samples[count++] = latency.toMillis();
+  }
+
+  synchronized int count() {
+    return count;
+  }
+
+  synchronized long percentile(double percentile) {
+    if (count == 0) {
+      return 0;
+    }
+    var sorted = Arrays.copyOf(samples, count);
+    Arrays.sort(sorted);
+    var index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+    return sorted[Math.max(0, Math.min(count - 1, index))];
+  }
+
+  @Override
+  public String toString() {
+    return "%-28s count %7d, p50 %6dms, p99 %6dms, p999 %6dms, max %6dms"
+        .formatted(name, count(), percentile(50), percentile(99), percentile(99.9), percentile(100));
+  }
+}
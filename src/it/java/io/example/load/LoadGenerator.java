@@ -0,0 +1,167 @@
+package io.example.load;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+import io.example.Metrics;
+import io.example.Money;
+import io.example.load.BankClient.WithdrawalResult;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+// Drives a LoadScenario against the bank endpoints. Deposits and withdrawals are started at the target rates
+// whether or not earlier ones have completed, so a slow system builds a backlog instead of lowering the rate.
+// The time to approval of a withdrawal runs from its create request to the first poll that sees it approved or
+// rejected. The balance of an account under load mixes many transactions, so the time to balance update is measured
+// on a probe account that makes one deposit or withdrawal at a time while the other accounts are under load.
+// Both times are rounded up to the poll interval.
+public class LoadGenerator {
+  private final BankClient bank;
+  private final LoadScenario scenario;
+  private final String runId = Long.toString(System.currentTimeMillis(), 36);
+  private final Latencies approvals = new Latencies("withdrawal approval");
+  private final Latencies hotApprovals = new Latencies("hot account approval");
+  private final Latencies depositBalances = new Latencies("deposit to balance");
+  private final Latencies withdrawalBalances = new Latencies("withdrawal to balance");
+  private final AtomicLong deposits = new AtomicLong();
+  private final AtomicLong withdrawals = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  private final AtomicInteger sequence = new AtomicInteger();
+
+  public LoadGenerator(BankClient bank, LoadScenario scenario) {
+    this.bank = bank;
+    this.scenario = scenario;
+  }
+
+  public LoadReport run() {
+    var accounts = IntStream.range(0, scenario.accounts()).mapToObj(i -> "load-%s-%d".formatted(runId, i)).toList();
+    var hotAccount = "load-%s-hot".formatted(runId);
+    var probeAccount = "load-%s-probe".formatted(runId);
+    var commandsBefore = commandCounts();
+
+    var allAccounts = Flux.concat(Flux.fromIterable(accounts), Flux.just(hotAccount, probeAccount));
+    allAccounts
+        .flatMap(accountId -> bank.createAccount(accountId)
+            .then(bank.deposit(accountId, nextId("deposit"), scenario.initialDeposit()))
+            .then(awaitBalance(accountId, scenario.initialDeposit())), scenario.maxConcurrency())
+        .blockLast(scenario.timeout());
+
+    var start = System.nanoTime();
+    var ticks = (long) (scenario.duration().toNanos() / 1e9 * scenario.withdrawalsPerSecond());
+    var withdrawalLoad = Flux.interval(periodOf(scenario.withdrawalsPerSecond()))
+        .take(ticks)
+        .flatMap(__ -> withdrawal(randomOf(accounts), scenario.withdrawalAmount(), approvals), scenario.maxConcurrency());
+    var depositLoad = Flux.interval(periodOf(scenario.depositsPerSecond()))
+        .take((long) (scenario.duration().toNanos() / 1e9 * scenario.depositsPerSecond()))
+        .flatMap(__ -> deposit(randomOf(accounts)), scenario.maxConcurrency());
+    var hotAccountLoad = Flux.range(0, scenario.hotAccountWithdrawals())
+        .flatMap(__ -> withdrawal(hotAccount, scenario.hotAccountWithdrawalAmount(), hotApprovals), scenario.maxConcurrency());
+    var probeLoad = probe(probeAccount, scenario.initialDeposit())
+        .repeat()
+        .takeUntilOther(Mono.delay(scenario.duration()));
+
+    Flux.merge(withdrawalLoad, depositLoad, hotAccountLoad, probeLoad)
+        .blockLast(scenario.duration().plus(scenario.timeout()));
+    var elapsed = Duration.ofNanos(System.nanoTime() - start);
+
+    return new LoadReport(scenario, elapsed, deposits.get(), withdrawals.get(), rejected.get(), errors.get(),
+        List.of(approvals, hotApprovals, depositBalances, withdrawalBalances),
+        difference(commandCounts(), commandsBefore));
+  }
+
+  private Mono<Void> deposit(String accountId) {
+    return bank.deposit(accountId, nextId("deposit"), scenario.depositAmount())
+        .doOnNext(__ -> deposits.incrementAndGet())
+        .onErrorResume(error -> countError())
+        .then();
+  }
+
+  private Mono<WithdrawalResult> withdrawal(String accountId, Money amount, Latencies latencies) {
+    var withdrawalId = nextId("withdrawal");
+    var start = System.nanoTime();
+    return bank.withdraw(accountId, withdrawalId, amount)
+        .then(poll(bank.withdrawalResult(accountId, withdrawalId)))
+        .doOnNext(result -> {
+          latencies.record(Duration.ofNanos(System.nanoTime() - start));
+          (result == WithdrawalResult.approved ? withdrawals : rejected).incrementAndGet();
+        })
+        .onErrorResume(error -> countError());
+  }
+
+  // One deposit then one withdrawal of the same amount on the probe account, each waits for the balance.
+  private Mono<Void> probe(String accountId, Money balance) {
+    return Mono.defer(() -> probeOnce(accountId, balance));
+  }
+
+  private Mono<Void> probeOnce(String accountId, Money balance) {
+    var amount = scenario.depositAmount();
+    var depositStart = System.nanoTime();
+    return bank.deposit(accountId, nextId("deposit"), amount)
+        .then(awaitBalance(accountId, balance.plus(amount)))
+        .doOnSuccess(__ -> depositBalances.record(Duration.ofNanos(System.nanoTime() - depositStart)))
+        .then(Mono.defer(() -> {
+          var withdrawalStart = System.nanoTime();
+          var withdrawalId = nextId("withdrawal");
+          return bank.withdraw(accountId, withdrawalId, amount)
+              .then(poll(bank.withdrawalResult(accountId, withdrawalId)))
+              .then(awaitBalance(accountId, balance))
+              .doOnSuccess(__ -> withdrawalBalances.record(Duration.ofNanos(System.nanoTime() - withdrawalStart)));
+        }))
+        .onErrorResume(error -> countError())
+        .then();
+  }
+
+  private Mono<Money> awaitBalance(String accountId, Money expected) {
+    return poll(bank.balance(accountId).filter(balance -> balance.compareTo(expected) == 0));
+  }
+
+  // Repeats a call every poll interval until it has a value, not found errors of entities that have not yet been
+  // created by the actions are retried as well.
+  private <T> Mono<T> poll(Mono<T> call) {
+    return Flux.interval(Duration.ZERO, scenario.pollInterval())
+        .concatMap(__ -> call.onErrorResume(error -> Mono.empty()))
+        .next()
+        .timeout(scenario.timeout());
+  }
+
+  private <T> Mono<T> countError() {
+    errors.incrementAndGet();
+    return Mono.empty();
+  }
+
+  private String nextId(String prefix) {
+    return "%s-%s-%d".formatted(prefix, runId, sequence.incrementAndGet());
+  }
+
+  private static String randomOf(List<String> accounts) {
+    return accounts.get(ThreadLocalRandom.current().nextInt(accounts.size()));
+  }
+
+  private static Duration periodOf(double perSecond) {
+    return Duration.ofNanos((long) (1e9 / Math.max(perSecond, 1e-3)));
+  }
+
+  // Commands counted by the components of this service, the harness runs in the same process.
+  private static Map<String, Long> commandCounts() {
+    var counts = new TreeMap<String, Long>();
+    Metrics.registry.find("bank.commands").counters().forEach(counter -> counts.merge(
+        counter.getId().getTag("component") + " " + counter.getId().getTag("command"),
+        (long) counter.count(),
+        Long::sum));
+    return counts;
+  }
+
+  private static Map<String, Long> difference(Map<String, Long> after, Map<String, Long> before) {
+    var counts = new TreeMap<String, Long>();
+    after.forEach((key, count) -> counts.put(key, count - before.getOrDefault(key, 0L)));
+    counts.values().removeIf(count -> count == 0);
+    return counts;
+  }
+}
@@ -0,0 +1,40 @@
+package io.example.load;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.web.reactive.function.client.WebClient;
+
+import io.example.Main;
+import kalix.spring.testkit.KalixIntegrationTestKitSupport;
+
+/**
+ * Drives the deposit and withdrawal mix of a LoadScenario through a Kalix Proxy started with testcontainers and
+ * writes the throughput, the time to approval and to balance update percentiles and the commands of each component to
+ * target/load-report.txt.
+ *
+ * Run with `mvn verify -Pit -Dload=true -Dit.test=LoadIntegrationTest`, the scenario is set with -Dload.* properties,
+ * see LoadScenario.
+ */
+@SpringBootTest(classes = Main.class)
+@EnabledIfSystemProperty(named = "load", matches = "true")
+public class LoadIntegrationTest extends KalixIntegrationTestKitSupport {
+
+  @Autowired
+  private WebClient webClient;
+
+  @Test
+  public void load() throws IOException {
+    var report = new LoadGenerator(new BankClient(webClient), LoadScenario.fromSystemProperties()).run();
+    Files.writeString(Path.of("target", "load-report.txt"), report.toString());
+
+    assertEquals(0, report.errors());
+  }
+}
@@ -0,0 +1,33 @@
+package io.example.load;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+// The outcome of a LoadScenario run. Commands are the commands received by each component during the run, the
+// create commands of the withdrawal tree, leaf and deposit unit entities count the entities created.
+public record LoadReport(
+    LoadScenario scenario,
+    Duration elapsed,
+    long deposits,
+    long withdrawalsApproved,
+    long withdrawalsRejected,
+    long errors,
+    List<Latencies> latencies,
+    Map<String, Long> commands) {
+
+  double throughput() {
+    return (deposits + withdrawalsApproved + withdrawalsRejected) / (elapsed.toMillis() / 1000.0);
+  }
+
+  @Override
+  public String toString() {
+    var report = new StringBuilder();
+    report.append("%s%n".formatted(scenario));
+    report.append("elapsed %ds, throughput %.1f/s, deposits %d, withdrawals approved %d, rejected %d, errors %d%n"
+        .formatted(elapsed.toSeconds(), throughput(), deposits, withdrawalsApproved, withdrawalsRejected, errors));
+    latencies.forEach(latency -> report.append("%s%n".formatted(latency)));
+    commands.forEach((command, count) -> report.append("%-60s %8d%n".formatted(command, count)));
+    return report.toString();
+  }
+}
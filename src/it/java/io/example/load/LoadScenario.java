@@ -0,0 +1,58 @@
+package io.example.load;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+
+import io.example.Money;
+
+// A mix of deposits and withdrawals driven at target rates, read from system properties prefixed with "load.",
+// for example -Dload.withdrawals-per-second=50 -Dload.duration=2m. The accounts are created and funded before the
+// rates start, the hot account receives its withdrawals all at once while the other accounts are under load.
+public record LoadScenario(
+    int accounts,
+    Money initialDeposit,
+    double depositsPerSecond,
+    Money depositAmount,
+    double withdrawalsPerSecond,
+    Money withdrawalAmount,
+    int hotAccountWithdrawals,
+    Money hotAccountWithdrawalAmount,
+    Duration duration,
+    Duration pollInterval,
+    Duration timeout,
+    int maxConcurrency) {
+
+  public static LoadScenario fromSystemProperties() {
+    return new LoadScenario(
+        Integer.getInteger("load.accounts", 10),
+        money("load.initial-deposit", "10000.00"),
+        Double.parseDouble(System.getProperty("load.deposits-per-second", "5")),
+        money("load.deposit-amount", "100.00"),
+        Double.parseDouble(System.getProperty("load.withdrawals-per-second", "10")),
+        money("load.withdrawal-amount", "75.00"),
+        Integer.getInteger("load.hot-account-withdrawals", 100),
+        money("load.hot-account-withdrawal-amount", "40.00"),
+        duration("load.duration", "30s"),
+        duration("load.poll-interval", "50ms"),
+        duration("load.timeout", "60s"),
+        Integer.getInteger("load.max-concurrency", 256));
+  }
+
+  private static Money money(String name, String defaultValue) {
+    return Money.of(new BigDecimal(System.getProperty(name, defaultValue)));
+  }
+
+  // Durations such as 500ms, 30s or 2m.
+  static Duration duration(String name, String defaultValue) {
+    var value = System.getProperty(name, defaultValue).trim();
+    if (value.endsWith("ms")) {
+      return Duration.ofMillis(Long.parseLong(value.substring(0, value.length() - 2)));
+    }
+    var amount = Long.parseLong(value.substring(0, value.length() - 1));
+    return switch (value.charAt(value.length() - 1)) {
+      case 's' -> Duration.ofSeconds(amount);
+      case 'm' -> Duration.ofMinutes(amount);
+      default -> throw new IllegalArgumentException("Unknown duration %s=%s".formatted(name, value));
+    };
+  }
+}
@@ -0,0 +1,61 @@
+package io.example;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Compares the base 62 ids with the UUID strings they replaced, and the entity id strings built by concatenation
+// with the String.formatted entity ids of every routing decision of the actions.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class IdsBenchmark {
+  String accountId;
+  String withdrawalId;
+  String branchId;
+
+  @Setup
+  public void setup() {
+    accountId = "account-1";
+    withdrawalId = UUID.randomUUID().toString();
+    branchId = Ids.random();
+  }
+
+  @Benchmark
+  public String randomUuidString() {
+    return UUID.randomUUID().toString();
+  }
+
+  @Benchmark
+  public String randomBase62() {
+    return Ids.random();
+  }
+
+  @Benchmark
+  public String entityIdFormatted() {
+    return "%s_%s_%s".formatted(accountId, withdrawalId, branchId);
+  }
+
+  @Benchmark
+  public String entityIdConcatenated() {
+    return accountId + "_" + withdrawalId + "_" + branchId;
+  }
+
+  @Benchmark
+  public String intern() {
+    return Ids.intern(accountId);
+  }
+}
@@ -0,0 +1,66 @@
+package io.example;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Compares replacing one subbranch amount and totalling the branch, as an AccountRedTreeEntity branch does on every
+// UpdatedSubbranchEvent, between the filter, concat and sum of a list and the KeyedAggregate put.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class KeyedAggregateBenchmark {
+  @Param({ "10", "100" })
+  int size;
+
+  List<Item> list;
+  KeyedAggregate<String, Item> aggregate;
+  Item update;
+
+  @Setup
+  public void setup() {
+    list = IntStream.range(0, size).mapToObj(i -> new Item("subbranch-" + i, Money.ofCents(100 + i))).toList();
+    aggregate = KeyedAggregate.of(list);
+    update = new Item("subbranch-" + size / 2, Money.of(12.34));
+  }
+
+  @Benchmark
+  public Money replaceInList() {
+    var filtered = list.stream().filter(item -> !item.id().equals(update.id()));
+    var newList = Stream.concat(filtered, Stream.of(update)).toList();
+    return newList.stream().map(Item::amount).reduce(Money.zero, Money::plus);
+  }
+
+  @Benchmark
+  public Money replaceInAggregate() {
+    return aggregate.put(update).total();
+  }
+
+  record Item(String id, Money amount) implements KeyedAggregate.Entry<String> {
+    @Override
+    public String aggregateKey() {
+      return id;
+    }
+
+    @Override
+    public Money aggregateAmount() {
+      return amount;
+    }
+  }
+}
@@ -0,0 +1,91 @@
+package io.example;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Compares the Money arithmetic of the entity event handlers with the BigDecimal arithmetic it replaced, summing
+// the amounts of a list of subbranches or deposit units the way the on(...) handlers do on every event.
+// Run with `mvn test-compile exec:exec -Pbench -Djmh.args="MoneyBenchmark"`.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MoneyBenchmark {
+  @Param({ "25", "100" })
+  int size;
+
+  List<BigDecimal> bigDecimals;
+  List<Money> moneys;
+
+  @Setup
+  public void setup() {
+    bigDecimals = IntStream.range(0, size).mapToObj(i -> BigDecimal.valueOf(1.23 + i)).toList();
+    moneys = bigDecimals.stream().map(Money::of).toList();
+  }
+
+  @Benchmark
+  public BigDecimal sumBigDecimal() {
+    return bigDecimals.stream().reduce(BigDecimal.ZERO, BigDecimal::add);
+  }
+
+  @Benchmark
+  public Money sumMoney() {
+    return moneys.stream().reduce(Money.zero, Money::plus);
+  }
+
+  @Benchmark
+  public BigDecimal balanceBigDecimal() {
+    var balance = BigDecimal.valueOf(25.00);
+    for (var amount : bigDecimals) {
+      balance = balance.subtract(amount.min(balance));
+    }
+    return balance;
+  }
+
+  @Benchmark
+  public Money balanceMoney() {
+    var balance = Money.of(25.00);
+    for (var amount : moneys) {
+      balance = balance.minus(amount.min(balance));
+    }
+    return balance;
+  }
+
+  @Benchmark
+  public List<BigDecimal> distributeBigDecimal() {
+    var total = BigDecimal.valueOf(123.45);
+    var cents = total.multiply(BigDecimal.valueOf(100)).longValue();
+    var centsPerChild = cents / size;
+    var remainder = cents % size;
+    var dollarsPerChild = new BigDecimal(centsPerChild).divide(new BigDecimal(100));
+    return IntStream.range(0, size)
+        .mapToObj(i -> dollarsPerChild.add(i < remainder ? new BigDecimal(".01") : new BigDecimal("0")))
+        .toList();
+  }
+
+  @Benchmark
+  public List<Money> distributeMoney() {
+    var total = Money.of(123.45);
+    var centsPerChild = total.cents() / size;
+    var remainder = total.cents() % size;
+    return IntStream.range(0, size)
+        .mapToObj(i -> Money.ofCents(centsPerChild + (i < remainder ? 1 : 0)))
+        .toList();
+  }
+}
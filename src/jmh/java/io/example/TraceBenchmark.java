@@ -0,0 +1,86 @@
+package io.example;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.AppenderBase;
+import io.example.bank.AccountRedTreeEntity;
+import io.example.bank.AccountRedTreeEntity.BranchId;
+import io.example.bank.AccountRedTreeEntity.Subbranch;
+
+// Compares tracing an UpdatedSubbranchEvent of an AccountRedTreeEntity branch with 100 subbranches, between the full
+// state log.info of every event and the sampled Trace at INFO. The appender formats each message, as the JSON
+// layout does, and drops it. Run with -prof gc to compare the allocation rates.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class TraceBenchmark {
+  ch.qos.logback.classic.Logger log;
+  Trace sampled;
+  Trace summarized;
+  AccountRedTreeEntity.State state;
+  AccountRedTreeEntity.UpdatedSubbranchEvent event;
+
+  @Setup
+  public void setup() {
+    var context = new LoggerContext();
+    var appender = new FormattingAppender();
+    appender.setContext(context);
+    appender.start();
+    log = context.getLogger(AccountRedTreeEntity.class);
+    log.setLevel(Level.INFO);
+    log.addAppender(appender);
+
+    sampled = new Trace("AccountRedTreeEntity", log, 0.01);
+    summarized = new Trace("AccountRedTreeEntity", log, 1.0);
+
+    var branchId = new BranchId("account-1", 3, 12, null);
+    var subbranches = IntStream.range(0, 100)
+        .mapToObj(i -> new Subbranch(new BranchId("account-1", 4, 1200 + i, null), Money.ofCents(100 + i)))
+        .toList();
+    state = new AccountRedTreeEntity.State(branchId, LocalDateTime.now(), true, 10, KeyedAggregate.of(subbranches), KeyedAggregate.empty());
+    event = new AccountRedTreeEntity.UpdatedSubbranchEvent(branchId, subbranches.get(50).subbranchId(), Money.of(12.34), null);
+  }
+
+  @Benchmark
+  public void fullStateLog() {
+    log.info("EntityId: {}\n_State: {}\n_Event: {}", "account-1_3_12", state, event);
+  }
+
+  @Benchmark
+  public void summaryTrace() {
+    summarized.event("account-1_3_12", state, event);
+  }
+
+  @Benchmark
+  public void sampledTrace() {
+    sampled.event("account-1_3_12", state, event);
+  }
+
+  static class FormattingAppender extends AppenderBase<ILoggingEvent> {
+    long chars;
+
+    @Override
+    protected void append(ILoggingEvent event) {
+      chars += event.getFormattedMessage().length();
+    }
+  }
+}
@@ -0,0 +1,54 @@
+package io.example;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The Validator chain of a withdrawal create command, for a valid command and for a command that fails every check.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ValidatorBenchmark {
+  Command valid;
+  Command invalid;
+
+  @Setup
+  public void setup() {
+    valid = new Command("account-1", "withdrawal-1", Money.of(123.45));
+    invalid = new Command("", "", Money.zero);
+  }
+
+  @Benchmark
+  public String validChain() {
+    return validate(valid);
+  }
+
+  @Benchmark
+  public String invalidChain() {
+    return validate(invalid);
+  }
+
+  private static String validate(Command command) {
+    return Validator.<String>start()
+        .isNull(command.amount(), "Cannot withdraw without amount")
+        .isEmpty(command.accountId(), "Cannot withdraw without accountId")
+        .isEmpty(command.withdrawalId(), "Cannot withdraw without withdrawalId")
+        .isPositive(command.amount(), "Withdraw amount must be positive")
+        .onError(errorMessage -> errorMessage)
+        .onSuccess(() -> "OK");
+  }
+
+  record Command(String accountId, String withdrawalId, Money amount) {}
+}
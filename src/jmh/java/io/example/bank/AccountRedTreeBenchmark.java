@@ -0,0 +1,90 @@
+package io.example.bank;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.example.KeyedAggregate;
+import io.example.Money;
+import io.example.bank.AccountRedTreeEntity.BranchId;
+import io.example.bank.AccountRedTreeEntity.ReleaseBranchCommand;
+import io.example.bank.AccountRedTreeEntity.Subbranch;
+import io.example.bank.AccountRedTreeEntity.UpdateSubbranchCommand;
+import io.example.bank.AccountRedTreeEntity.UpdatedSubbranchEvent;
+
+// The AccountRedTreeEntity state transitions of a branch with 100 subbranches, for subbranch updates from the level
+// below and for transaction updates of a leaf branch that holds the given number of transactions.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class AccountRedTreeBenchmark {
+  @Param({ "0", "500" })
+  int transactions;
+
+  AccountRedTreeEntity.State state;
+  UpdateSubbranchCommand subbranchCommand;
+  UpdatedSubbranchEvent subbranchEvent;
+  UpdateSubbranchCommand transactionCommand;
+  UpdatedSubbranchEvent transactionEvent;
+  ReleaseBranchCommand releaseCommand;
+
+  @Setup
+  public void setup() {
+    var branchId = new BranchId("account-1", 3, 12, null);
+    var subbranches = IntStream.range(0, 100)
+        .mapToObj(i -> new Subbranch(new BranchId("account-1", 4, 1200 + i, null), Money.ofCents(100 + i)))
+        .toList();
+    var applied = IntStream.range(0, transactions)
+        .mapToObj(i -> new AccountEntity.AppliedTransaction("deposit_account-1_deposit-" + i, Money.ofCents(100 + i)))
+        .toList();
+    state = new AccountRedTreeEntity.State(branchId, LocalDateTime.now(), true, 10, KeyedAggregate.of(subbranches), KeyedAggregate.of(applied));
+
+    var subbranchId = subbranches.get(50).subbranchId();
+    subbranchCommand = new UpdateSubbranchCommand(branchId, subbranchId, Money.of(12.34), null);
+    subbranchEvent = new UpdatedSubbranchEvent(branchId, subbranchId, Money.of(12.34), null);
+    transactionCommand = new UpdateSubbranchCommand(branchId, subbranchId, Money.of(12.34), "deposit_account-1_deposit-new");
+    transactionEvent = new UpdatedSubbranchEvent(branchId, subbranchId, Money.of(12.34), "deposit_account-1_deposit-new");
+    releaseCommand = new ReleaseBranchCommand(branchId);
+  }
+
+  @Benchmark
+  public List<?> eventsForSubbranchUpdate() {
+    return state.eventsFor(subbranchCommand);
+  }
+
+  @Benchmark
+  public Object onSubbranchUpdated() {
+    return state.on(subbranchEvent);
+  }
+
+  @Benchmark
+  public List<?> eventsForTransactionUpdate() {
+    return state.eventsFor(transactionCommand);
+  }
+
+  @Benchmark
+  public Object onTransactionUpdated() {
+    return state.on(transactionEvent);
+  }
+
+  @Benchmark
+  public Object eventForReleaseBranch() {
+    return state.eventFor(releaseCommand);
+  }
+}
@@ -0,0 +1,91 @@
+package io.example.bank;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.example.Money;
+import io.example.bank.DepositUnitEntity.DepositUnitId;
+import io.example.bank.DepositUnitEntity.ModifiedAmountEvent;
+import io.example.bank.DepositUnitEntity.ModifyAmountCommand;
+import io.example.bank.DepositUnitEntity.WithdrawCommand;
+import io.example.bank.DepositUnitEntity.WithdrawalCancelCommand;
+import io.example.bank.DepositUnitEntity.WithdrawalCancelledEvent;
+import io.example.bank.DepositUnitEntity.WithdrawnEvent;
+import io.example.bank.WithdrawalRedLeafEntity.WithdrawalRedLeafId;
+
+// The DepositUnitEntity state transitions of a deposit unit that has funded the given number of withdrawal leaves,
+// with the split of a deposit into units as distributeAmount does for a ModifyAmountCommand.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DepositUnitBenchmark {
+  @Param({ "1", "100", "1000" })
+  int withdrawals;
+
+  DepositUnitEntity.State state;
+  ModifyAmountCommand modifyCommand;
+  WithdrawCommand withdrawCommand;
+  WithdrawnEvent withdrawnEvent;
+  WithdrawalCancelCommand cancelCommand;
+  WithdrawalCancelledEvent cancelledEvent;
+
+  @Setup
+  public void setup() {
+    var depositUnitId = new DepositUnitId("account-1", "deposit-1", "unit-1");
+    var created = new ModifiedAmountEvent(depositUnitId, Money.ofCents(withdrawals * 2_000L + 2_000), List.of());
+    state = IntStream.range(0, withdrawals)
+        .mapToObj(i -> new WithdrawalRedLeafId("account-1", "withdrawal-" + i, "leaf-" + i))
+        .reduce(DepositUnitEntity.State.emptyState().on(created),
+            (s, leafId) -> s.on((WithdrawnEvent) s.eventFor(new WithdrawCommand(leafId, Money.ofCents(2_000)))),
+            (a, b) -> b);
+
+    modifyCommand = new ModifyAmountCommand(depositUnitId, Money.of(1_234_567.89));
+    var newLeafId = new WithdrawalRedLeafId("account-1", "withdrawal-new", "leaf-new");
+    withdrawCommand = new WithdrawCommand(newLeafId, Money.ofCents(1_500));
+    withdrawnEvent = (WithdrawnEvent) state.eventFor(withdrawCommand);
+    var cancelLeafId = new WithdrawalRedLeafId("account-1", "withdrawal-0", "leaf-0");
+    cancelCommand = new WithdrawalCancelCommand(depositUnitId, cancelLeafId);
+    cancelledEvent = (WithdrawalCancelledEvent) state.eventFor(cancelCommand);
+  }
+
+  @Benchmark
+  public Object eventForModifyAmount() {
+    return DepositUnitEntity.State.emptyState().eventFor(modifyCommand);
+  }
+
+  @Benchmark
+  public Object eventForWithdraw() {
+    return state.eventFor(withdrawCommand);
+  }
+
+  @Benchmark
+  public Object onWithdrawn() {
+    return state.on(withdrawnEvent);
+  }
+
+  @Benchmark
+  public Object eventForWithdrawalCancel() {
+    return state.eventFor(cancelCommand);
+  }
+
+  @Benchmark
+  public Object onWithdrawalCancelled() {
+    return state.on(cancelledEvent);
+  }
+}
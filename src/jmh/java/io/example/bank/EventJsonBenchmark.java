@@ -0,0 +1,112 @@
+package io.example.bank;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.introspect.Annotated;
+import com.fasterxml.jackson.databind.introspect.JacksonAnnotationIntrospector;
+
+import io.example.CompactJson;
+import io.example.Money;
+import kalix.javasdk.JsonSupport;
+
+// Jackson serialization of the events with the most ids, in the positional form of the compacted records and in
+// the named field form they were written in before. The legacy mapper ignores the CompactJson serializers, it
+// writes the events as they were written before, readLegacy reads those with the current records.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class EventJsonBenchmark {
+  @Param({ "BranchCreatedEvent", "DepositFoundEvent", "ModifiedAmountEvent", "WithdrawnEvent", "UpdatedSubbranchEvent" })
+  String eventType;
+
+  ObjectMapper objectMapper;
+  ObjectMapper legacyMapper;
+  Object event;
+  byte[] json;
+  byte[] legacyJson;
+
+  @Setup
+  public void setup() throws Exception {
+    objectMapper = JsonSupport.getObjectMapper();
+    legacyMapper = objectMapper.copy().setAnnotationIntrospector(new JacksonAnnotationIntrospector() {
+      @Override
+      public Object findSerializer(Annotated annotated) {
+        var serializer = super.findSerializer(annotated);
+        return serializer == CompactJson.Serializer.class ? null : serializer;
+      }
+    });
+    event = event(eventType);
+    json = objectMapper.writeValueAsBytes(event);
+    legacyJson = legacyMapper.writeValueAsBytes(event);
+  }
+
+  @Benchmark
+  public Object write() throws Exception {
+    return objectMapper.writeValueAsBytes(event);
+  }
+
+  @Benchmark
+  public Object writeLegacy() throws Exception {
+    return legacyMapper.writeValueAsBytes(event);
+  }
+
+  @Benchmark
+  public Object read() throws Exception {
+    return objectMapper.readValue(json, event.getClass());
+  }
+
+  @Benchmark
+  public Object readLegacy() throws Exception {
+    return objectMapper.readValue(legacyJson, event.getClass());
+  }
+
+  static Object event(String eventType) {
+    var accountId = "account-1";
+    var withdrawalId = UUID.randomUUID().toString();
+    var leafId = new WithdrawalRedLeafEntity.WithdrawalRedLeafId(accountId, withdrawalId, UUID.randomUUID().toString());
+    var unitId = new DepositUnitEntity.DepositUnitId(accountId, UUID.randomUUID().toString(), UUID.randomUUID().toString());
+
+    return switch (eventType) {
+      case "BranchCreatedEvent" -> {
+        var trunkId = new WithdrawalRedTreeEntity.WithdrawalRedTreeId(accountId, withdrawalId, UUID.randomUUID().toString());
+        var subbranches = IntStream.range(0, 25)
+            .mapToObj(i -> new WithdrawalRedTreeEntity.Subbranch(trunkId.childId(), Money.of(24.99), Money.zero))
+            .toList();
+        yield new WithdrawalRedTreeEntity.BranchCreatedEvent(trunkId, null, Money.of(624.75), subbranches);
+      }
+      case "DepositFoundEvent" -> new WithdrawalRedLeafEntity.DepositFoundEvent(leafId,
+          new WithdrawalRedLeafEntity.DepositUnit(unitId, Money.of(2.50)), Money.of(25.00), Money.of(25.00), Money.of(2.50), null);
+      case "ModifiedAmountEvent" -> {
+        var modifyAmounts = IntStream.range(0, 25)
+            .mapToObj(i -> new DepositUnitEntity.ModifyAmount(unitId.childId(), Money.of(40.00)))
+            .toList();
+        yield new DepositUnitEntity.ModifiedAmountEvent(unitId, Money.of(1_000.00), modifyAmounts);
+      }
+      case "WithdrawnEvent" -> new DepositUnitEntity.WithdrawnEvent(leafId,
+          new DepositUnitEntity.DepositUnit(unitId, Money.of(25.00), Money.of(5.00), Money.of(20.00)), Money.of(20.00));
+      case "UpdatedSubbranchEvent" -> {
+        var branchId = new AccountRedTreeEntity.BranchId(accountId, 2, 17, new AccountRedTreeEntity.TreeShape(2, 100));
+        yield new AccountRedTreeEntity.UpdatedSubbranchEvent(branchId.levelUp(), branchId, Money.of(100.00), withdrawalId);
+      }
+      default -> throw new IllegalArgumentException(eventType);
+    };
+  }
+}
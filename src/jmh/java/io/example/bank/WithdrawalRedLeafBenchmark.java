@@ -0,0 +1,84 @@
+package io.example.bank;
+
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.example.Money;
+import io.example.bank.DepositUnitEntity.DepositUnitId;
+import io.example.bank.WithdrawalRedLeafEntity.CancelWithdrawalCommand;
+import io.example.bank.WithdrawalRedLeafEntity.DepositFoundCommand;
+import io.example.bank.WithdrawalRedLeafEntity.DepositFoundEvent;
+import io.example.bank.WithdrawalRedLeafEntity.DepositUnit;
+import io.example.bank.WithdrawalRedLeafEntity.LeafCreateCommand;
+import io.example.bank.WithdrawalRedLeafEntity.LeafCreatedEvent;
+import io.example.bank.WithdrawalRedLeafEntity.WithdrawalRedLeafId;
+import io.example.bank.WithdrawalRedTreeEntity.WithdrawalRedTreeId;
+
+// The WithdrawalRedLeafEntity state transitions of a leaf that has been funded by the given number of deposit
+// units, as a leaf is when each seek finds a deposit unit with a small balance.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class WithdrawalRedLeafBenchmark {
+  @Param({ "1", "10", "100" })
+  int depositUnits;
+
+  WithdrawalRedLeafEntity.State state;
+  LeafCreateCommand createCommand;
+  DepositFoundCommand foundCommand;
+  DepositFoundEvent foundEvent;
+  CancelWithdrawalCommand cancelCommand;
+
+  @Setup
+  public void setup() {
+    var leafId = new WithdrawalRedLeafId("account-1", "withdrawal-1", "leaf-1");
+    var parentId = new WithdrawalRedTreeId("account-1", "withdrawal-1", "branch-1");
+    createCommand = new LeafCreateCommand(leafId, parentId, Money.ofCents(2_500L * (depositUnits + 1)));
+    var created = WithdrawalRedLeafEntity.State.emptyState().on(new LeafCreatedEvent(leafId, parentId, createCommand.amount()));
+    state = IntStream.range(0, depositUnits)
+        .mapToObj(i -> new DepositUnit(new DepositUnitId("account-1", "deposit-" + i, "unit-" + i), Money.ofCents(2_500)))
+        .reduce(created,
+            (s, unit) -> s.on(new DepositFoundEvent(leafId, unit, s.amountToWithdraw(), null, null, null)),
+            (a, b) -> b);
+
+    var unit = new DepositUnit(new DepositUnitId("account-1", "deposit-new", "unit-new"), Money.ofCents(1_000));
+    foundCommand = new DepositFoundCommand(leafId, unit);
+    foundEvent = (DepositFoundEvent) state.eventsFor(foundCommand).get(0);
+    cancelCommand = new CancelWithdrawalCommand(leafId);
+  }
+
+  @Benchmark
+  public Object eventsForLeafCreate() {
+    return WithdrawalRedLeafEntity.State.emptyState().eventsFor(createCommand);
+  }
+
+  @Benchmark
+  public Object eventsForDepositFound() {
+    return state.eventsFor(foundCommand);
+  }
+
+  @Benchmark
+  public Object onDepositFound() {
+    return state.on(foundEvent);
+  }
+
+  @Benchmark
+  public Object eventForCancelWithdrawal() {
+    return state.eventFor(cancelCommand);
+  }
+}
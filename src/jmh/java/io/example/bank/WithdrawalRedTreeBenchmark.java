@@ -0,0 +1,95 @@
+package io.example.bank;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.example.Money;
+import io.example.bank.WithdrawalRedTreeEntity.BranchCreateCommand;
+import io.example.bank.WithdrawalRedTreeEntity.BranchCreatedEvent;
+import io.example.bank.WithdrawalRedTreeEntity.Subbranch;
+import io.example.bank.WithdrawalRedTreeEntity.UpdateAmountWithdrawnCommand;
+import io.example.bank.WithdrawalRedTreeEntity.UpdatedAmountWithdrawnEvent;
+import io.example.bank.WithdrawalRedTreeEntity.WithdrawalRedTreeId;
+
+// The WithdrawalRedTreeEntity state transitions of a branch, from splitting the amount of the branch to the update
+// of one subbranch of a full branch. The amounts cover a branch of leaves only, a branch of branches and a branch
+// at the top of a four level tree. The subbranch ids of a created branch are random UUIDs.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class WithdrawalRedTreeBenchmark {
+  @Param({ "500.00", "12345.67", "1000000.00" })
+  String amount;
+
+  Money total;
+  WithdrawalRedTreeEntity.State state;
+  BranchCreateCommand createCommand;
+  BranchCreatedEvent createdEvent;
+  UpdateAmountWithdrawnCommand updateCommand;
+  UpdatedAmountWithdrawnEvent updatedEvent;
+
+  @Setup
+  public void setup() {
+    total = Money.of(Double.parseDouble(amount));
+    var branchId = new WithdrawalRedTreeId("account-1", "withdrawal-1", "branch-1");
+    var parentId = new WithdrawalRedTreeId("account-1", "withdrawal-1", "trunk");
+    createCommand = new BranchCreateCommand(branchId, parentId, total);
+    createdEvent = (BranchCreatedEvent) WithdrawalRedTreeEntity.State.emptyState().eventFor(createCommand);
+    state = WithdrawalRedTreeEntity.State.emptyState().on(createdEvent);
+
+    var subbranch = createdEvent.subbranches().get(createdEvent.subbranches().size() / 2);
+    var funded = new Subbranch(subbranch.withdrawalRedTreeId(), subbranch.amountToWithdraw(), subbranch.amountToWithdraw());
+    updateCommand = new UpdateAmountWithdrawnCommand(state.withdrawalRedTreeId(), funded);
+    updatedEvent = new UpdatedAmountWithdrawnEvent(state.withdrawalRedTreeId(), funded);
+  }
+
+  @Benchmark
+  public Object distributeAmount() {
+    return WithdrawalRedTreeEntity.distributeAmount(total);
+  }
+
+  @Benchmark
+  public Object eventForBranchCreate() {
+    return WithdrawalRedTreeEntity.State.emptyState().eventFor(createCommand);
+  }
+
+  @Benchmark
+  public Object onBranchCreated() {
+    return WithdrawalRedTreeEntity.State.emptyState().on(createdEvent);
+  }
+
+  @Benchmark
+  public Object eventsForUpdateAmountWithdrawn() {
+    return state.eventsFor(updateCommand);
+  }
+
+  @Benchmark
+  public Object onUpdatedAmountWithdrawn() {
+    return state.on(updatedEvent);
+  }
+
+  // The replay of a branch, its creation and the update of every subbranch.
+  @Benchmark
+  public Object replayBranch() {
+    var replayed = WithdrawalRedTreeEntity.State.emptyState().on(createdEvent);
+    for (var subbranch : createdEvent.subbranches()) {
+      var funded = new Subbranch(subbranch.withdrawalRedTreeId(), subbranch.amountToWithdraw(), subbranch.amountToWithdraw());
+      replayed = replayed.on(new UpdatedAmountWithdrawnEvent(replayed.withdrawalRedTreeId(), funded));
+    }
+    return replayed;
+  }
+}
@@ -0,0 +1,54 @@
+package io.example;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+// Component calls with at most maxInFlight of them running, no more are started after a failure.
+public final class Calls {
+  private Calls() {}
+
+  public static <T> CompletionStage<Void> bounded(List<T> items, int maxInFlight, Function<T, CompletionStage<?>> call) {
+    var next = new AtomicInteger();
+    var lanes = IntStream.range(0, Math.min(maxInFlight, items.size()))
+        .mapToObj(__ -> lane(items, next, call))
+        .toArray(CompletableFuture[]::new);
+    return CompletableFuture.allOf(lanes);
+  }
+
+  // Exponential backoff with full jitter.
+  public static Duration backoff(int attempt, Duration min, Duration max) {
+    var ceiling = min.toNanos() << Math.min(attempt, 30);
+    var bound = ceiling <= 0 || ceiling > max.toNanos() ? max.toNanos() : ceiling;
+    return Duration.ofNanos(ThreadLocalRandom.current().nextLong(bound + 1));
+  }
+
+  public static <T> CompletionStage<T> after(Duration delay, Supplier<CompletionStage<T>> call) {
+    var executor = CompletableFuture.delayedExecutor(delay.toNanos(), TimeUnit.NANOSECONDS);
+    return CompletableFuture.runAsync(() -> {}, executor).thenCompose(__ -> call.get());
+  }
+
+  // Calls that complete immediately are looped over rather than chained, the stack does not grow with the items.
+  private static <T> CompletableFuture<Void> lane(List<T> items, AtomicInteger next, Function<T, CompletionStage<?>> call) {
+    for (var i = next.getAndIncrement(); i < items.size(); i = next.getAndIncrement()) {
+      var result = call.apply(items.get(i)).toCompletableFuture();
+      if (!result.isDone() || result.isCompletedExceptionally()) {
+        return result
+            .whenComplete((__, error) -> {
+              if (error != null) {
+                next.set(items.size());
+              }
+            })
+            .thenCompose(__ -> lane(items, next, call));
+      }
+    }
+    return CompletableFuture.completedFuture(null);
+  }
+}
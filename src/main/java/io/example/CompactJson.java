@@ -0,0 +1,186 @@
+package io.example;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.RecordComponent;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.BeanProperty;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.deser.ContextualDeserializer;
+
+// Records written as JSON arrays of their components, new components are only added at the end.
+public final class CompactJson {
+  private static final ClassValue<Layout> layouts = new ClassValue<>() {
+    @Override
+    protected Layout computeValue(Class<?> type) {
+      return new Layout(type);
+    }
+  };
+
+  private CompactJson() {}
+
+  public static final class Serializer extends JsonSerializer<Record> {
+    @Override
+    public void serialize(Record value, JsonGenerator generator, SerializerProvider provider) throws IOException {
+      var layout = layouts.get(value.getClass());
+      var components = new Object[layout.accessors.length];
+      var length = 0;
+      for (var i = 0; i < components.length; i++) {
+        components[i] = layout.get(layout.accessors[i], value);
+        length = components[i] != null ? i + 1 : length;
+      }
+      // trailing nulls are left out, they read back as null
+      generator.writeStartArray(value, length);
+      for (var i = 0; i < length; i++) {
+        write(components[i], generator, provider);
+      }
+      generator.writeEndArray();
+    }
+
+    // Strings and amounts are most of the components, they are written without a serializer lookup.
+    private static void write(Object component, JsonGenerator generator, SerializerProvider provider) throws IOException {
+      if (component instanceof String text) {
+        generator.writeString(text);
+      } else if (component instanceof Money money) {
+        generator.writeNumber(money.toBigDecimal());
+      } else if (component instanceof Integer number) {
+        generator.writeNumber(number);
+      } else {
+        provider.defaultSerializeValue(component, generator);
+      }
+    }
+  }
+
+  public static final class Deserializer extends JsonDeserializer<Record> implements ContextualDeserializer {
+    private final Layout layout;
+    private final JsonDeserializer<?>[] deserializers;
+
+    public Deserializer() {
+      this(null, null);
+    }
+
+    private Deserializer(Layout layout, JsonDeserializer<?>[] deserializers) {
+      this.layout = layout;
+      this.deserializers = deserializers;
+    }
+
+    @Override
+    public JsonDeserializer<?> createContextual(DeserializationContext context, BeanProperty property) throws JsonMappingException {
+      var layout = layouts.get(context.getContextualType().getRawClass());
+      var deserializers = new JsonDeserializer<?>[layout.types.length];
+      for (var i = 0; i < deserializers.length; i++) {
+        deserializers[i] = context.findRootValueDeserializer(context.getTypeFactory().constructType(layout.types[i]));
+      }
+      return new Deserializer(layout, deserializers);
+    }
+
+    @Override
+    public Record deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+      var components = new Object[deserializers.length];
+      if (parser.isExpectedStartArrayToken()) {
+        var i = 0;
+        for (var token = parser.nextToken(); token != JsonToken.END_ARRAY; token = parser.nextToken(), i++) {
+          if (i < components.length) {
+            components[i] = value(parser, context, i);
+          } else {
+            parser.skipChildren();
+          }
+        }
+      } else if (parser.hasToken(JsonToken.START_OBJECT) || parser.hasToken(JsonToken.FIELD_NAME)) {
+        var token = parser.hasToken(JsonToken.START_OBJECT) ? parser.nextToken() : parser.currentToken();
+        for (; token == JsonToken.FIELD_NAME; token = parser.nextToken()) {
+          var i = layout.positions.get(parser.currentName());
+          parser.nextToken();
+          if (i != null) {
+            components[i] = value(parser, context, i);
+          } else {
+            parser.skipChildren();
+          }
+        }
+      } else {
+        return (Record) context.handleUnexpectedToken(layout.type, parser);
+      }
+      return layout.create(components);
+    }
+
+    private Object value(JsonParser parser, DeserializationContext context, int i) throws IOException {
+      return parser.hasToken(JsonToken.VALUE_NULL)
+          ? deserializers[i].getNullValue(context)
+          : deserializers[i].deserialize(parser, context);
+    }
+  }
+
+  private static final class Layout {
+    private final Class<?> type;
+    private final java.lang.reflect.Type[] types;
+    private final MethodHandle[] accessors;
+    private final MethodHandle constructor;
+    private final Object[] defaults;
+    private final Map<String, Integer> positions = new HashMap<>();
+
+    private Layout(Class<?> type) {
+      if (!type.isRecord()) {
+        throw new IllegalArgumentException("%s is not a record".formatted(type.getName()));
+      }
+      try {
+        var lookup = MethodHandles.privateLookupIn(type, MethodHandles.lookup());
+        var recordComponents = type.getRecordComponents();
+        this.type = type;
+        this.types = Arrays.stream(recordComponents).map(RecordComponent::getGenericType).toArray(java.lang.reflect.Type[]::new);
+        this.accessors = new MethodHandle[recordComponents.length];
+        this.defaults = new Object[recordComponents.length];
+        for (var i = 0; i < recordComponents.length; i++) {
+          accessors[i] = lookup.unreflect(recordComponents[i].getAccessor()).asType(MethodType.methodType(Object.class, Object.class));
+          defaults[i] = defaultValue(recordComponents[i].getType());
+          positions.put(recordComponents[i].getName(), i);
+        }
+        var rawTypes = Arrays.stream(recordComponents).map(RecordComponent::getType).toArray(Class<?>[]::new);
+        this.constructor = lookup.unreflectConstructor(type.getDeclaredConstructor(rawTypes))
+            .asSpreader(Object[].class, rawTypes.length)
+            .asType(MethodType.methodType(Object.class, Object[].class));
+      } catch (ReflectiveOperationException e) {
+        throw new IllegalArgumentException("%s has no accessible canonical constructor".formatted(type.getName()), e);
+      }
+    }
+
+    private Object get(MethodHandle accessor, Record value) {
+      try {
+        return (Object) accessor.invokeExact((Object) value);
+      } catch (Throwable e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    private Record create(Object[] components) throws IOException {
+      for (var i = 0; i < components.length; i++) {
+        if (components[i] == null) {
+          components[i] = defaults[i];
+        }
+      }
+      try {
+        return (Record) (Object) constructor.invokeExact(components);
+      } catch (RuntimeException e) {
+        throw e;
+      } catch (Throwable e) {
+        throw new IOException("Cannot create %s".formatted(type.getName()), e);
+      }
+    }
+
+    private static Object defaultValue(Class<?> type) {
+      return type.isPrimitive() ? Array.get(Array.newInstance(type, 1), 0) : null;
+    }
+  }
+}
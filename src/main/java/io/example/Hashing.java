@@ -0,0 +1,48 @@
+package io.example;
+
+// 64 bit hashes that spread ids differing only in their last characters over unrelated slots.
+public final class Hashing {
+  private static final long c1 = 0x87c37b91114253d5L;
+  private static final long c2 = 0x4cf5ad432745937fL;
+
+  private Hashing() {}
+
+  // murmur3 x64 style hash of the UTF-16 chars, four chars per 64 bit block.
+  public static long murmur3(CharSequence chars) {
+    var length = chars.length();
+    var hash = 0L;
+    var i = 0;
+    for (; i + 4 <= length; i += 4) {
+      var block = chars.charAt(i)
+          | (long) chars.charAt(i + 1) << 16
+          | (long) chars.charAt(i + 2) << 32
+          | (long) chars.charAt(i + 3) << 48;
+      hash ^= mixBlock(block);
+      hash = Long.rotateLeft(hash, 27) * 5 + 0x52dce729;
+    }
+    if (i < length) {
+      var block = 0L;
+      for (var shift = 0; i < length; i++, shift += 16) {
+        block |= (long) chars.charAt(i) << shift;
+      }
+      hash ^= mixBlock(block);
+    }
+    return mix64(hash ^ length);
+  }
+
+  // murmur3 64 bit finalizer, every input bit affects every output bit.
+  public static long mix64(long hash) {
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  private static long mixBlock(long block) {
+    block *= c1;
+    block = Long.rotateLeft(block, 31);
+    return block * c2;
+  }
+}
@@ -0,0 +1,323 @@
+package io.example;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+
+import kalix.javasdk.DeferredCall;
+import kalix.javasdk.Metadata;
+
+// Records the hops of a sample of requests through the components, see MetricsServer.
+public final class Hops {
+  static final String correlationKey = "x-correlation-id";
+  static final String parentKey = "x-hop-parent";
+  static final String componentKey = "x-hop-component";
+  static final String callKey = "x-hop-call";
+  static final String sentKey = "x-hop-sent";
+
+  public static final Hops shared = new Hops(
+      Settings.config().getInt("hops.max-trails"),
+      Settings.config().getDouble("hops.sample-rate"),
+      Clock.systemUTC());
+
+  private final double sampleRate;
+  private final Clock clock;
+  private final Map<String, Trail> trails;
+
+  Hops(int maxTrails, double sampleRate, Clock clock) {
+    this.sampleRate = sampleRate;
+    this.clock = clock;
+    this.trails = new LinkedHashMap<>(16, 0.75f, false) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Trail> eldest) {
+        return size() > maxTrails;
+      }
+    };
+  }
+
+  // Adds the hop metadata to a call that is forwarded by the action, the hop ends when the entity receives it.
+  public <I, O> DeferredCall<I, O> forward(String correlationId, String parentId, Class<?> component, String childId, String call, DeferredCall<I, O> deferredCall) {
+    var sent = now();
+    if (isSampled(correlationId)) {
+      trail(correlationId).hop(parentId, component.getSimpleName(), childId, call).sent(sent);
+    }
+    return deferredCall.withMetadata(deferredCall.metadata()
+        .set(correlationKey, correlationId)
+        .set(parentKey, parentId)
+        .set(componentKey, component.getSimpleName())
+        .set(callKey, call)
+        .set(sentKey, Long.toString(sent)));
+  }
+
+  // Executes a call with the hop metadata, the hop ends when the call completes.
+  public <I, O> CompletionStage<O> execute(String correlationId, String parentId, Class<?> component, String childId, String call, DeferredCall<I, O> deferredCall) {
+    var result = forward(correlationId, parentId, component, childId, call, deferredCall).execute();
+    if (!isSampled(correlationId)) {
+      return result;
+    }
+    var hop = trail(correlationId).hop(parentId, component.getSimpleName(), childId, call);
+    return result.whenComplete((__, error) -> hop.completed(now()));
+  }
+
+  // Records that an entity received a command, calls without hop metadata are ignored.
+  public void received(Metadata metadata, String entityId) {
+    var correlationId = metadata.get(correlationKey);
+    if (correlationId.isEmpty() || !isSampled(correlationId.get())) {
+      return;
+    }
+    var hop = trail(correlationId.get()).hop(
+        metadata.get(parentKey).orElse(""),
+        metadata.get(componentKey).orElse(""),
+        entityId,
+        metadata.get(callKey).orElse(""));
+    metadata.get(sentKey).ifPresent(sent -> hop.sent(Long.parseLong(sent)));
+    hop.received(now());
+  }
+
+  private synchronized Optional<Trail> trail(String correlationId, boolean create) {
+    var trail = trails.get(correlationId);
+    if (trail == null && create) {
+      trail = new Trail(correlationId);
+      trails.put(correlationId, trail);
+    }
+    return Optional.ofNullable(trail);
+  }
+
+  public Optional<Trail> find(String correlationId) {
+    return trail(correlationId, false);
+  }
+
+  boolean isSampled(String correlationId) {
+    return sampleRate >= 1.0
+        || sampleRate > 0.0 && Long.remainderUnsigned(Hashing.murmur3(correlationId), 1_000_000) < sampleRate * 1_000_000;
+  }
+
+  private Trail trail(String correlationId) {
+    return trail(correlationId, true).get();
+  }
+
+  private long now() {
+    return ChronoUnit.MICROS.between(Instant.EPOCH, clock.instant());
+  }
+
+  // The hops of one correlation id, in microseconds since the epoch, zero when not seen here.
+  public static final class Trail {
+    private final String correlationId;
+    private final Map<String, Hop> hops = new ConcurrentHashMap<>();
+
+    Trail(String correlationId) {
+      this.correlationId = correlationId;
+    }
+
+    Hop hop(String parentId, String component, String childId, String call) {
+      return hops.computeIfAbsent(parentId + " " + childId + " " + call, __ -> new Hop(parentId, component, childId, call));
+    }
+
+    public String correlationId() {
+      return correlationId;
+    }
+
+    public List<Hop> hops() {
+      return hops.values().stream().sorted(Comparator.comparingLong(Hop::start)).toList();
+    }
+
+    public int hopCount() {
+      return hops.size();
+    }
+
+    // The chain of hops that caused the hop that ended last.
+    public List<Hop> criticalPath() {
+      var causes = causes();
+      var path = new ArrayList<Hop>();
+      var seen = new HashSet<Hop>();
+      var hop = hops.values().stream().max(Comparator.comparingLong(Hop::end)).orElse(null);
+      while (hop != null && seen.add(hop)) {
+        path.add(0, hop);
+        hop = causes.get(hop);
+      }
+      return path;
+    }
+
+    // The entity of a component with the longest time from the first hop to it to the last hop from it.
+    public Optional<Span> slowest(String component) {
+      var first = new HashMap<String, Long>();
+      var last = new HashMap<String, Long>();
+      for (var hop : hops.values()) {
+        if (hop.component.equals(component)) {
+          first.merge(hop.childId, hop.start(), Math::min);
+          last.merge(hop.childId, hop.end(), Math::max);
+        }
+      }
+      for (var hop : hops.values()) {
+        if (first.containsKey(hop.parentId)) {
+          last.merge(hop.parentId, hop.end(), Math::max);
+        }
+      }
+      return first.entrySet().stream()
+          .map(entry -> new Span(entry.getKey(), component, entry.getValue(), last.get(entry.getKey())))
+          .max(Comparator.comparingLong(Span::micros));
+    }
+
+    // Each hop with the hops it caused, the roots are the hops from entities that did not receive a recorded hop.
+    public String toJson() {
+      var causes = causes();
+      var caused = new HashMap<Hop, List<Hop>>();
+      var roots = new ArrayList<Hop>();
+      hops().forEach(hop -> {
+        var cause = causes.get(hop);
+        if (cause == null) {
+          roots.add(hop);
+        } else {
+          caused.computeIfAbsent(cause, __ -> new ArrayList<>()).add(hop);
+        }
+      });
+
+      var json = new StringBuilder();
+      json.append("{\"correlationId\":").append(quote(correlationId))
+          .append(",\"hopCount\":").append(hopCount())
+          .append(",\"criticalPathMicros\":").append(micros(criticalPath()))
+          .append(",\"spans\":");
+      appendSpans(json, roots, caused);
+      return json.append('}').toString();
+    }
+
+    // The critical path is drawn in red.
+    public String toDot() {
+      var critical = new HashSet<>(criticalPath());
+      var dot = new StringBuilder();
+      dot.append("digraph ").append(quote(correlationId)).append(" {\n");
+      for (var hop : hops()) {
+        dot.append("  ").append(quote(hop.parentId)).append(" -> ").append(quote(hop.childId))
+            .append(" [label=").append(quote("%s %.1fms".formatted(hop.call, hop.micros() / 1000.0)))
+            .append(critical.contains(hop) ? ", color=red" : "")
+            .append("];\n");
+      }
+      return dot.append("}\n").toString();
+    }
+
+    // The cause of a hop is the latest hop into its parent entity that was received before the hop was sent.
+    private Map<Hop, Hop> causes() {
+      var into = new HashMap<String, List<Hop>>();
+      hops.values().forEach(hop -> into.computeIfAbsent(hop.childId, __ -> new ArrayList<>()).add(hop));
+
+      var causes = new HashMap<Hop, Hop>();
+      for (var hop : hops.values()) {
+        into.getOrDefault(hop.parentId, List.of()).stream()
+            .filter(cause -> cause != hop && cause.arrived() <= hop.start())
+            .max(Comparator.comparingLong(Hop::arrived))
+            .ifPresent(cause -> causes.put(hop, cause));
+      }
+      return causes;
+    }
+
+    private static void appendSpans(StringBuilder json, List<Hop> spans, Map<Hop, List<Hop>> caused) {
+      json.append('[');
+      for (var i = 0; i < spans.size(); i++) {
+        var hop = spans.get(i);
+        json.append(i == 0 ? "" : ",")
+            .append("{\"from\":").append(quote(hop.parentId))
+            .append(",\"to\":").append(quote(hop.childId))
+            .append(",\"component\":").append(quote(hop.component))
+            .append(",\"call\":").append(quote(hop.call))
+            .append(",\"sent\":").append(hop.sent)
+            .append(",\"received\":").append(hop.received)
+            .append(",\"completed\":").append(hop.completed)
+            .append(",\"children\":");
+        appendSpans(json, caused.getOrDefault(hop, List.of()), caused);
+        json.append('}');
+      }
+      json.append(']');
+    }
+
+    private static long micros(List<Hop> path) {
+      return path.isEmpty() ? 0 : path.get(path.size() - 1).end() - path.get(0).start();
+    }
+
+    private static String quote(String value) {
+      return '"' + value.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+  }
+
+  public static final class Hop {
+    private final String parentId;
+    private final String component;
+    private final String childId;
+    private final String call;
+    private volatile long sent;
+    private volatile long received;
+    private volatile long completed;
+
+    Hop(String parentId, String component, String childId, String call) {
+      this.parentId = parentId;
+      this.component = component;
+      this.childId = childId;
+      this.call = call;
+    }
+
+    public String parentId() {
+      return parentId;
+    }
+
+    public String component() {
+      return component;
+    }
+
+    public String childId() {
+      return childId;
+    }
+
+    public String call() {
+      return call;
+    }
+
+    public long micros() {
+      return end() - start();
+    }
+
+    Hop sent(long sent) {
+      this.sent = sent;
+      return this;
+    }
+
+    void received(long received) {
+      this.received = received;
+    }
+
+    void completed(long completed) {
+      this.completed = completed;
+    }
+
+    long start() {
+      return sent > 0 ? sent : received;
+    }
+
+    long arrived() {
+      return received > 0 ? received : start();
+    }
+
+    long end() {
+      return Math.max(completed, arrived());
+    }
+
+    @Override
+    public String toString() {
+      return "%s -> %s %s %dus".formatted(parentId, childId, call, micros());
+    }
+  }
+
+  public record Span(String entityId, String component, long start, long end) {
+    public long micros() {
+      return end - start;
+    }
+  }
+}
@@ -0,0 +1,52 @@
+package io.example;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Short random ids in base 62, and interned account ids.
+public final class Ids {
+  private static final char[] digits = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz".toCharArray();
+  private static final int digitsPerLong = 11;
+  private static final int maxInterned = 100_000;
+  private static final ConcurrentHashMap<String, String> interned = new ConcurrentHashMap<>();
+
+  private Ids() {}
+
+  public static String random() {
+    var uuid = UUID.randomUUID();
+    return base62(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+  }
+
+  // Fixed width, 11 digits per unsigned long, so ids of the same length sort in the order of their bits.
+  public static String base62(long high, long low) {
+    var chars = new char[2 * digitsPerLong];
+    write(high, chars, 0);
+    write(low, chars, digitsPerLong);
+    return new String(chars);
+  }
+
+  // One unsigned division for the last digit, the quotient is positive and the other digits use signed division.
+  private static void write(long value, char[] chars, int offset) {
+    var quotient = Long.divideUnsigned(value, digits.length);
+    chars[offset + digitsPerLong - 1] = digits[(int) (value - quotient * digits.length)];
+    for (var i = offset + digitsPerLong - 2; i >= offset; i--) {
+      chars[i] = digits[(int) (quotient % digits.length)];
+      quotient /= digits.length;
+    }
+  }
+
+  // The interned ids are dropped above maxInterned.
+  public static String intern(String id) {
+    if (id == null) {
+      return null;
+    }
+    var existing = interned.putIfAbsent(id, id);
+    if (existing != null) {
+      return existing;
+    }
+    if (interned.size() > maxInterned) {
+      interned.clear();
+    }
+    return id;
+  }
+}
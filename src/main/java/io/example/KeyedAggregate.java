@@ -0,0 +1,365 @@
+package io.example;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+
+// Persistent map of entries by key with a running total of their amounts, written to JSON as a list of entries.
+public final class KeyedAggregate<K, V extends KeyedAggregate.Entry<K>> {
+  private static final KeyedAggregate<?, ?> empty = new KeyedAggregate<>(null, 0, 0, Money.zero);
+  private static final int bits = 5;
+  private static final int mask = (1 << bits) - 1;
+
+  public interface Entry<K> {
+    K aggregateKey();
+
+    Money aggregateAmount();
+  }
+
+  private final Node root;
+  private final int size;
+  private final long nextSeq;
+  private final Money total;
+  private List<V> entries;
+
+  private KeyedAggregate(Node root, int size, long nextSeq, Money total) {
+    this.root = root;
+    this.size = size;
+    this.nextSeq = nextSeq;
+    this.total = total;
+  }
+
+  // A delegating constructor rather than a factory method, so that Jackson binds V from the declared type.
+  @JsonCreator(mode = JsonCreator.Mode.DELEGATING)
+  private KeyedAggregate(List<V> entries) {
+    KeyedAggregate<K, V> aggregate = empty();
+    for (var entry : entries) {
+      aggregate = aggregate.put(entry);
+    }
+    this.root = aggregate.root;
+    this.size = aggregate.size;
+    this.nextSeq = aggregate.nextSeq;
+    this.total = aggregate.total;
+  }
+
+  @SuppressWarnings("unchecked")
+  public static <K, V extends Entry<K>> KeyedAggregate<K, V> empty() {
+    return (KeyedAggregate<K, V>) empty;
+  }
+
+  public static <K, V extends Entry<K>> KeyedAggregate<K, V> of(List<V> entries) {
+    return entries.isEmpty() ? empty() : new KeyedAggregate<>(entries);
+  }
+
+  // Adds the entry, or replaces the entry with the same key keeping its position in the insertion order.
+  public KeyedAggregate<K, V> put(V entry) {
+    var key = entry.aggregateKey();
+    var hash = hash(key);
+    var replaced = new Leaf[1];
+    var leaf = new Leaf(hash, key, entry, nextSeq);
+    var newRoot = root == null ? leaf : root.put(leaf, 0, replaced);
+    if (replaced[0] == null) {
+      return new KeyedAggregate<>(newRoot, size + 1, nextSeq + 1, total.plus(entry.aggregateAmount()));
+    }
+    var oldAmount = ((Entry<?>) replaced[0].value).aggregateAmount();
+    return new KeyedAggregate<>(newRoot, size, nextSeq, total.minus(oldAmount).plus(entry.aggregateAmount()));
+  }
+
+  public KeyedAggregate<K, V> remove(K key) {
+    if (root == null) {
+      return this;
+    }
+    var removed = new Leaf[1];
+    var newRoot = root.remove(key, hash(key), 0, removed);
+    if (removed[0] == null) {
+      return this;
+    }
+    var oldAmount = ((Entry<?>) removed[0].value).aggregateAmount();
+    return new KeyedAggregate<>(newRoot, size - 1, nextSeq, total.minus(oldAmount));
+  }
+
+  @SuppressWarnings("unchecked")
+  public Optional<V> get(K key) {
+    var leaf = root == null ? null : root.find(key, hash(key), 0);
+    return leaf == null ? Optional.empty() : Optional.of((V) leaf.value);
+  }
+
+  public boolean contains(K key) {
+    return root != null && root.find(key, hash(key), 0) != null;
+  }
+
+  public Money total() {
+    return total;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public Stream<V> stream() {
+    return entries().stream();
+  }
+
+  @JsonValue
+  @SuppressWarnings("unchecked")
+  public List<V> entries() {
+    if (entries == null) {
+      var leaves = new ArrayList<Leaf>(size);
+      if (root != null) {
+        root.collect(leaves);
+      }
+      entries = leaves.stream()
+          .sorted(Comparator.comparingLong(leaf -> leaf.seq))
+          .map(leaf -> (V) leaf.value)
+          .toList();
+    }
+    return entries;
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    return other instanceof KeyedAggregate<?, ?> aggregate && entries().equals(aggregate.entries());
+  }
+
+  @Override
+  public int hashCode() {
+    return entries().hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return entries().toString();
+  }
+
+  private static int hash(Object key) {
+    var hash = Objects.hashCode(key);
+    return hash ^ (hash >>> 16);
+  }
+
+  private static int index(int hash, int shift) {
+    return (hash >>> shift) & mask;
+  }
+
+  private abstract static class Node {
+    abstract Leaf find(Object key, int hash, int shift);
+
+    abstract Node put(Leaf leaf, int shift, Leaf[] replaced);
+
+    abstract Node remove(Object key, int hash, int shift, Leaf[] removed);
+
+    abstract void collect(List<Leaf> leaves);
+  }
+
+  private static final class Leaf extends Node {
+    final int hash;
+    final Object key;
+    final Object value;
+    final long seq;
+
+    Leaf(int hash, Object key, Object value, long seq) {
+      this.hash = hash;
+      this.key = key;
+      this.value = value;
+      this.seq = seq;
+    }
+
+    @Override
+    Leaf find(Object key, int hash, int shift) {
+      return this.hash == hash && Objects.equals(this.key, key) ? this : null;
+    }
+
+    @Override
+    Node put(Leaf leaf, int shift, Leaf[] replaced) {
+      if (hash != leaf.hash) {
+        return Branch.of(this, leaf, shift);
+      }
+      if (Objects.equals(key, leaf.key)) {
+        replaced[0] = this;
+        return new Leaf(hash, key, leaf.value, seq);
+      }
+      return new Collision(hash, new Leaf[] { this, leaf });
+    }
+
+    @Override
+    Node remove(Object key, int hash, int shift, Leaf[] removed) {
+      if (find(key, hash, shift) == null) {
+        return this;
+      }
+      removed[0] = this;
+      return null;
+    }
+
+    @Override
+    void collect(List<Leaf> leaves) {
+      leaves.add(this);
+    }
+  }
+
+  // Leaves with equal hashes and different keys.
+  private static final class Collision extends Node {
+    final int hash;
+    final Leaf[] leaves;
+
+    Collision(int hash, Leaf[] leaves) {
+      this.hash = hash;
+      this.leaves = leaves;
+    }
+
+    @Override
+    Leaf find(Object key, int hash, int shift) {
+      for (var leaf : leaves) {
+        if (leaf.find(key, hash, shift) != null) {
+          return leaf;
+        }
+      }
+      return null;
+    }
+
+    @Override
+    Node put(Leaf leaf, int shift, Leaf[] replaced) {
+      if (hash != leaf.hash) {
+        return Branch.of(this, leaf, shift);
+      }
+      for (var i = 0; i < leaves.length; i++) {
+        if (Objects.equals(leaves[i].key, leaf.key)) {
+          replaced[0] = leaves[i];
+          var newLeaves = leaves.clone();
+          newLeaves[i] = new Leaf(hash, leaf.key, leaf.value, leaves[i].seq);
+          return new Collision(hash, newLeaves);
+        }
+      }
+      var newLeaves = new Leaf[leaves.length + 1];
+      System.arraycopy(leaves, 0, newLeaves, 0, leaves.length);
+      newLeaves[leaves.length] = leaf;
+      return new Collision(hash, newLeaves);
+    }
+
+    @Override
+    Node remove(Object key, int hash, int shift, Leaf[] removed) {
+      for (var i = 0; i < leaves.length; i++) {
+        if (leaves[i].find(key, hash, shift) != null) {
+          removed[0] = leaves[i];
+          if (leaves.length == 2) {
+            return leaves[1 - i];
+          }
+          var newLeaves = new Leaf[leaves.length - 1];
+          System.arraycopy(leaves, 0, newLeaves, 0, i);
+          System.arraycopy(leaves, i + 1, newLeaves, i, leaves.length - i - 1);
+          return new Collision(hash, newLeaves);
+        }
+      }
+      return this;
+    }
+
+    @Override
+    void collect(List<Leaf> leaves) {
+      leaves.addAll(List.of(this.leaves));
+    }
+  }
+
+  // Up to 32 children indexed by 5 bits of the hash, only the children present are allocated.
+  private static final class Branch extends Node {
+    final int bitmap;
+    final Node[] children;
+
+    Branch(int bitmap, Node[] children) {
+      this.bitmap = bitmap;
+      this.children = children;
+    }
+
+    // Branch holding two nodes with different hashes, a leaf or collision each.
+    static Node of(Node a, Node b, int shift) {
+      var hashA = hashOf(a);
+      var hashB = hashOf(b);
+      var indexA = index(hashA, shift);
+      var indexB = index(hashB, shift);
+      if (indexA == indexB) {
+        return new Branch(1 << indexA, new Node[] { of(a, b, shift + bits) });
+      }
+      var children = indexA < indexB ? new Node[] { a, b } : new Node[] { b, a };
+      return new Branch((1 << indexA) | (1 << indexB), children);
+    }
+
+    private static int hashOf(Node node) {
+      return node instanceof Leaf leaf ? leaf.hash : ((Collision) node).hash;
+    }
+
+    private int position(int bit) {
+      return Integer.bitCount(bitmap & (bit - 1));
+    }
+
+    @Override
+    Leaf find(Object key, int hash, int shift) {
+      var bit = 1 << index(hash, shift);
+      if ((bitmap & bit) == 0) {
+        return null;
+      }
+      return children[position(bit)].find(key, hash, shift + bits);
+    }
+
+    @Override
+    Node put(Leaf leaf, int shift, Leaf[] replaced) {
+      var bit = 1 << index(leaf.hash, shift);
+      var position = position(bit);
+      if ((bitmap & bit) == 0) {
+        var newChildren = new Node[children.length + 1];
+        System.arraycopy(children, 0, newChildren, 0, position);
+        newChildren[position] = leaf;
+        System.arraycopy(children, position, newChildren, position + 1, children.length - position);
+        return new Branch(bitmap | bit, newChildren);
+      }
+      var newChildren = children.clone();
+      newChildren[position] = children[position].put(leaf, shift + bits, replaced);
+      return new Branch(bitmap, newChildren);
+    }
+
+    @Override
+    Node remove(Object key, int hash, int shift, Leaf[] removed) {
+      var bit = 1 << index(hash, shift);
+      if ((bitmap & bit) == 0) {
+        return this;
+      }
+      var position = position(bit);
+      var child = children[position];
+      var newChild = child.remove(key, hash, shift + bits, removed);
+      if (newChild == child) {
+        return this;
+      }
+      if (newChild != null) {
+        if (children.length == 1 && !(newChild instanceof Branch)) {
+          return newChild;
+        }
+        var newChildren = children.clone();
+        newChildren[position] = newChild;
+        return new Branch(bitmap, newChildren);
+      }
+      if (children.length == 1) {
+        return null;
+      }
+      if (children.length == 2 && !(children[1 - position] instanceof Branch)) {
+        return children[1 - position];
+      }
+      var newChildren = new Node[children.length - 1];
+      System.arraycopy(children, 0, newChildren, 0, position);
+      System.arraycopy(children, position + 1, newChildren, position, children.length - position - 1);
+      return new Branch(bitmap & ~bit, newChildren);
+    }
+
+    @Override
+    void collect(List<Leaf> leaves) {
+      for (var child : children) {
+        child.collect(leaves);
+      }
+    }
+  }
+}
@@ -1,5 +1,7 @@
 package io.example;
 
+import java.io.IOException;
+
 import kalix.javasdk.annotations.Acl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,8 +18,14 @@ public class Main {
 
   private static final Logger logger = LoggerFactory.getLogger(Main.class);
 
-  public static void main(String[] args) {
+  public static void main(String[] args) throws IOException {
     logger.info("Starting Kalix Application");
+    var metricsHost = Settings.config().getString("metrics.host");
+    var metricsPort = Settings.config().getInt("metrics.port");
+    if (metricsPort > 0) {
+      MetricsServer.start(metricsHost, metricsPort);
+      logger.info("Serving metrics on {}:{}", metricsHost, metricsPort);
+    }
     SpringApplication.run(Main.class, args);
   }
 }
\ No newline at end of file
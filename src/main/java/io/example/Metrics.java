@@ -0,0 +1,60 @@
+package io.example;
+
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+
+// Prometheus metrics of the component commands, calls and events.
+public final class Metrics {
+  public static final PrometheusMeterRegistry registry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+
+  private Metrics() {}
+
+  public static void command(String component, Object command) {
+    registry.counter("bank.commands", "component", component, "command", typeOf(command)).increment();
+  }
+
+  public static void event(String component, Object event) {
+    registry.counter("bank.events", "component", component, "event", typeOf(event)).increment();
+  }
+
+  // Latency of a call of an entity command or a view query made by an action.
+  public static <T> CompletionStage<T> timed(Class<?> component, String call, Supplier<CompletionStage<T>> result) {
+    var start = System.nanoTime();
+    return result.get().whenComplete((__, error) -> Timer.builder("bank.call.latency")
+        .tags("component", component.getSimpleName(), "call", call, "outcome", error == null ? "ok" : "error")
+        .publishPercentileHistogram()
+        .register(registry)
+        .record(System.nanoTime() - start, TimeUnit.NANOSECONDS));
+  }
+
+  // Number of concurrent calls made by an action for one event.
+  public static void fanOut(Class<?> component, int width) {
+    DistributionSummary.builder("bank.fanout.width")
+        .tags("component", component.getSimpleName())
+        .publishPercentileHistogram()
+        .register(registry)
+        .record(width);
+  }
+
+  public static void count(String name, String... tags) {
+    registry.counter(name, tags).increment();
+  }
+
+  public static void record(String name, double amount, String... tags) {
+    DistributionSummary.builder(name)
+        .tags(tags)
+        .publishPercentileHistogram()
+        .register(registry)
+        .record(amount);
+  }
+
+  private static String typeOf(Object commandOrEvent) {
+    return commandOrEvent instanceof String name ? name : commandOrEvent.getClass().getSimpleName();
+  }
+}
@@ -0,0 +1,40 @@
+package io.example;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpServer;
+
+// Serves the metrics and the recorded hops, on the loopback address unless metrics.host is set.
+public final class MetricsServer {
+  private static final String contentType = "text/plain; version=0.0.4; charset=utf-8";
+
+  private MetricsServer() {}
+
+  public static HttpServer start(String host, int port) throws IOException {
+    var server = HttpServer.create(new InetSocketAddress(host, port), 0);
+    server.createContext("/metrics", exchange -> {
+      var body = Metrics.registry.scrape().getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", contentType);
+      exchange.sendResponseHeaders(200, body.length);
+      try (var out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    });
+    server.createContext("/hops/", exchange -> {
+      var path = exchange.getRequestURI().getPath().substring("/hops/".length());
+      var dot = path.endsWith(".dot");
+      var trail = Hops.shared.find(dot ? path.substring(0, path.length() - ".dot".length()) : path);
+      var body = trail.map(t -> dot ? t.toDot() : t.toJson()).orElse("").getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", dot ? "text/vnd.graphviz; charset=utf-8" : "application/json");
+      exchange.sendResponseHeaders(trail.isPresent() ? 200 : 404, trail.isPresent() ? body.length : -1);
+      try (var out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    });
+    server.setExecutor(null);
+    server.start();
+    return server;
+  }
+}
@@ -0,0 +1,72 @@
+package io.example;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+
+// An amount as whole cents, written to JSON as decimal dollars like the BigDecimal amounts it replaced.
+public record Money(long cents) implements Comparable<Money> {
+  public static final Money zero = new Money(0);
+
+  public static Money ofCents(long cents) {
+    return cents == 0 ? zero : new Money(cents);
+  }
+
+  @JsonCreator(mode = JsonCreator.Mode.DELEGATING)
+  public static Money of(BigDecimal dollars) {
+    return ofCents(dollars.setScale(2, RoundingMode.HALF_EVEN).unscaledValue().longValueExact());
+  }
+
+  public static Money of(double dollars) {
+    return of(BigDecimal.valueOf(dollars));
+  }
+
+  @JsonValue
+  public BigDecimal toBigDecimal() {
+    return BigDecimal.valueOf(cents, 2);
+  }
+
+  public Money plus(Money other) {
+    return ofCents(Math.addExact(cents, other.cents));
+  }
+
+  public Money minus(Money other) {
+    return ofCents(Math.subtractExact(cents, other.cents));
+  }
+
+  public Money negate() {
+    return ofCents(Math.negateExact(cents));
+  }
+
+  public Money min(Money other) {
+    return cents <= other.cents ? this : other;
+  }
+
+  public Money max(Money other) {
+    return cents >= other.cents ? this : other;
+  }
+
+  public boolean isZero() {
+    return cents == 0;
+  }
+
+  public boolean isPositive() {
+    return cents > 0;
+  }
+
+  public int signum() {
+    return Long.signum(cents);
+  }
+
+  @Override
+  public int compareTo(Money other) {
+    return Long.compare(cents, other.cents);
+  }
+
+  @Override
+  public String toString() {
+    return toBigDecimal().toPlainString();
+  }
+}
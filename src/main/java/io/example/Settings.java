@@ -0,0 +1,15 @@
+package io.example;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+// Tuning values for the money stream components, read from the "money-stream" section of application.conf.
+public final class Settings {
+  private static final Config config = ConfigFactory.load().getConfig("money-stream");
+
+  private Settings() {}
+
+  public static Config config() {
+    return config;
+  }
+}
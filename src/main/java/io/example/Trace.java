@@ -0,0 +1,102 @@
+package io.example;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Logs every call at DEBUG and a sample with state summaries at INFO, and counts them all in Metrics.
+public final class Trace {
+  private final String component;
+  private final Logger log;
+  private final double sampleRate;
+
+  Trace(String component, Logger log, double sampleRate) {
+    this.component = component;
+    this.log = log;
+    this.sampleRate = sampleRate;
+  }
+
+  public static Trace of(Class<?> component) {
+    var name = component.getSimpleName();
+    var config = Settings.config();
+    var sampleRate = config.hasPath("trace.sample-rates." + name)
+        ? config.getDouble("trace.sample-rates." + name)
+        : config.getDouble("trace.sample-rate");
+    return new Trace(name, LoggerFactory.getLogger(component), sampleRate);
+  }
+
+  // State that is logged as a summary at INFO.
+  public interface Summary {
+    String summary();
+  }
+
+  public void command(String entityId, Object state, Object command) {
+    Metrics.command(component, command);
+    if (log.isDebugEnabled()) {
+      log.debug("EntityId: {}\n_State: {}\n_Command: {}", entityId, state, command);
+    } else if (isSampled()) {
+      log.info("EntityId: {}\n_State: {}\n_Command: {}", entityId, summary(state), command);
+    }
+  }
+
+  public void query(String entityId, Object state, String query) {
+    Metrics.command(component, query);
+    if (log.isDebugEnabled()) {
+      log.debug("EntityId: {}\n_State: {}\n_{}", entityId, state, query);
+    } else if (isSampled()) {
+      log.info("EntityId: {}\n_State: {}\n_{}", entityId, summary(state), query);
+    }
+  }
+
+  public void event(String entityId, Object state, Object event) {
+    if (log.isDebugEnabled()) {
+      log.debug("EntityId: {}\n_State: {}\n_Event: {}", entityId, state, event);
+    } else if (isSampled()) {
+      log.info("EntityId: {}\n_State: {}\n_Event: {}", entityId, summary(state), event);
+    }
+  }
+
+  public void event(Object state, Object event) {
+    Metrics.event(component, event);
+    if (log.isDebugEnabled()) {
+      log.debug("State: {}\n_Event: {}", state, event);
+    } else if (isSampled()) {
+      log.info("State: {}\n_Event: {}", summary(state), event);
+    }
+  }
+
+  public void event(Object event) {
+    Metrics.event(component, event);
+    if (log.isDebugEnabled()) {
+      log.debug("Event: {}", event);
+    } else if (isSampled()) {
+      log.info("Event: {}", event);
+    }
+  }
+
+  public void info(String format, Object... args) {
+    if (log.isDebugEnabled()) {
+      log.debug(format, args);
+    } else if (isSampled()) {
+      log.info(format, args);
+    }
+  }
+
+  private boolean isSampled() {
+    return log.isInfoEnabled()
+        && (sampleRate >= 1.0 || sampleRate > 0.0 && ThreadLocalRandom.current().nextDouble() < sampleRate);
+  }
+
+  // Formatted by the appender only when the message is written.
+  private static Object summary(Object state) {
+    return state instanceof Summary summary
+        ? new Object() {
+          @Override
+          public String toString() {
+            return summary.summary();
+          }
+        }
+        : state;
+  }
+}
@@ -48,6 +48,10 @@ public record Validator<T>(List<String> reasons, Function<String, T> error) {
     return test.compareTo(BigDecimal.ZERO) <= 0 ? addError(reason) : this;
   }
 
+  public Validator<T> isLtEqZero(Money test, String reason) {
+    return test.cents() <= 0 ? addError(reason) : this;
+  }
+
   // create is less than or equal to zero methods for all other numeric types
   public Validator<T> isPositive(int test, String reason) {
     return test > 0 ? addError(reason) : this;
@@ -57,6 +61,10 @@ public record Validator<T>(List<String> reasons, Function<String, T> error) {
     return test.compareTo(BigDecimal.ZERO) <= 0 ? addError(reason) : this;
   }
 
+  public Validator<T> isPositive(Money test, String reason) {
+    return test.cents() <= 0 ? addError(reason) : this;
+  }
+
   public Validator<T> isPositive(double test, String reason) {
     return test > 0 ? addError(reason) : this;
   }
@@ -1,16 +1,22 @@
 package io.example.bank;
 
-import java.math.BigDecimal;
 import java.time.LocalDateTime;
+import java.util.List;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PatchMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+import io.example.CompactJson;
+import io.example.Hops;
+import io.example.KeyedAggregate;
+import io.example.Money;
+import io.example.Trace;
 import io.example.Validator;
 import io.grpc.Status;
 import kalix.javasdk.annotations.EventHandler;
@@ -23,7 +29,7 @@ import kalix.javasdk.eventsourcedentity.EventSourcedEntityContext;
 @TypeId("account")
 @RequestMapping("/account/{accountId}")
 public class AccountEntity extends EventSourcedEntity<AccountEntity.State, AccountEntity.Event> {
-  private final Logger log = LoggerFactory.getLogger(getClass());
+  private static final Trace trace = Trace.of(AccountEntity.class);
   private final String entityId;
 
   public AccountEntity(EventSourcedEntityContext context) {
@@ -37,7 +43,7 @@ public class AccountEntity extends EventSourcedEntity<AccountEntity.State, Accou
 
   @PostMapping("/create")
   public Effect<String> create(@RequestBody CreateAccountCommand command) {
-    log.info("EntityId: {}\n_State: {}\n_Command: {}", entityId, currentState(), command);
+    trace.command(entityId, currentState(), command);
 
     if (currentState().accountId() != null) {
       return effects().reply("OK");
@@ -55,7 +61,22 @@ public class AccountEntity extends EventSourcedEntity<AccountEntity.State, Accou
 
   @PatchMapping("/updateBalance")
   public Effect<String> updateBalance(@RequestBody UpdateAccountBalanceCommand command) {
-    log.info("EntityId: {}\n_State: {}\n_Command: {}", entityId, currentState(), command);
+    trace.command(entityId, currentState(), command);
+    return effects()
+        .emitEvent(currentState().eventFor(command))
+        .thenReply(__ -> "OK");
+  }
+
+  // Deposits and withdrawals of accounts without an account tree.
+  @PatchMapping("/applyBalanceDelta")
+  public Effect<String> applyBalanceDelta(@RequestBody ApplyBalanceDeltaCommand command) {
+    trace.command(entityId, currentState(), command);
+    Hops.shared.received(commandContext().metadata(), entityId);
+
+    if (currentState().transactions().contains(command.transactionId())) {
+      return effects().reply("OK");
+    }
+
     return effects()
         .emitEvent(currentState().eventFor(command))
         .thenReply(__ -> "OK");
@@ -63,7 +84,7 @@ public class AccountEntity extends EventSourcedEntity<AccountEntity.State, Accou
 
   @GetMapping
   public Effect<State> get() {
-    log.info("EntityId: {}\n_State: {}\n_GetAccount", entityId, currentState());
+    trace.query(entityId, currentState(), "GetAccount");
     return Validator.<Effect<State>>start()
         .isTrue(currentState().isEmpty(), "Account not found")
         .onError(errorMessage -> effects().error(errorMessage, Status.Code.NOT_FOUND))
@@ -72,13 +93,19 @@ public class AccountEntity extends EventSourcedEntity<AccountEntity.State, Accou
 
   @EventHandler
   public State on(CreatedAccountEvent event) {
-    log.info("EntityId: {}\n_State: {}\n_Event: {}", entityId, currentState(), event);
+    trace.event(entityId, currentState(), event);
     return currentState().on(event);
   }
 
   @EventHandler
   public State on(UpdatedAccountBalanceEvent event) {
-    log.info("EntityId: {}\n_State: {}\n_Event: {}", entityId, currentState(), event);
+    trace.event(entityId, currentState(), event);
+    return currentState().on(event);
+  }
+
+  @EventHandler
+  public State on(AppliedBalanceDeltaEvent event) {
+    trace.event(entityId, currentState(), event);
     return currentState().on(event);
   }
 
@@ -87,10 +114,25 @@ public class AccountEntity extends EventSourcedEntity<AccountEntity.State, Accou
       String fullName,
       String address,
       LocalDateTime lastUpdated,
-      BigDecimal balance) {
+      Money balance,
+      KeyedAggregate<String, TreeBalance> treeBalances,
+      KeyedAggregate<String, AppliedTransaction> transactions) implements Trace.Summary {
+
+    // The balance of accounts updated before account trees were shaped per account is the legacy tree balance.
+    public State {
+      treeBalances = treeBalances == null
+          ? KeyedAggregate.of(List.of(new TreeBalance(legacyTreeId, balance)))
+          : treeBalances;
+      transactions = transactions == null ? KeyedAggregate.empty() : transactions;
+    }
 
     static State emptyState() {
-      return new State(null, null, null, LocalDateTime.of(0, 1, 1, 0, 0), new BigDecimal(0));
+      return new State(null, null, null, LocalDateTime.of(0, 1, 1, 0, 0), Money.zero, KeyedAggregate.empty(), KeyedAggregate.empty());
+    }
+
+    @Override
+    public String summary() {
+      return "State[accountId=%s, balance=%s, trees=%d]".formatted(accountId, balance, treeBalances.size());
     }
 
     boolean isEmpty() {
@@ -102,15 +144,61 @@ public class AccountEntity extends EventSourcedEntity<AccountEntity.State, Accou
     }
 
     Event eventFor(UpdateAccountBalanceCommand command) {
-      return new UpdatedAccountBalanceEvent(command.accountId(), command.balance());
+      return new UpdatedAccountBalanceEvent(command.accountId(), command.balance(), command.treeId());
+    }
+
+    Event eventFor(ApplyBalanceDeltaCommand command) {
+      return new AppliedBalanceDeltaEvent(command.accountId(), command.transactionId(), command.amount());
     }
 
     State on(CreatedAccountEvent event) {
-      return new State(event.accountId(), event.fullName(), event.address(), LocalDateTime.now(), BigDecimal.valueOf(0));
+      return new State(event.accountId(), event.fullName(), event.address(), LocalDateTime.now(), Money.zero, KeyedAggregate.empty(), KeyedAggregate.empty());
     }
 
+    // Each account tree releases the balance of the amounts it holds, the account balance is the sum over its trees.
     State on(UpdatedAccountBalanceEvent event) {
-      return new State(accountId, fullName, address, LocalDateTime.now(), event.balance());
+      var treeId = event.treeId() == null ? legacyTreeId : event.treeId();
+      var newTreeBalances = treeBalances.put(new TreeBalance(treeId, event.balance()));
+      return new State(accountId, fullName, address, LocalDateTime.now(), newTreeBalances.total(), newTreeBalances, transactions);
+    }
+
+    // The direct balance is the total of the deltas applied, in a tree entry apart from the balances of account trees.
+    State on(AppliedBalanceDeltaEvent event) {
+      if (transactions.contains(event.transactionId())) {
+        return this;
+      }
+      var newTransactions = transactions.put(new AppliedTransaction(event.transactionId(), event.amount()));
+      var newTreeBalances = treeBalances.put(new TreeBalance(directTreeId, newTransactions.total()));
+      return new State(accountId, fullName, address, LocalDateTime.now(), newTreeBalances.total(), newTreeBalances, newTransactions);
+    }
+  }
+
+  static final String legacyTreeId = "4x100";
+  static final String directTreeId = "direct";
+
+  public record TreeBalance(String treeId, Money balance) implements KeyedAggregate.Entry<String> {
+    @Override
+    public String aggregateKey() {
+      return treeId;
+    }
+
+    @Override
+    public Money aggregateAmount() {
+      return balance;
+    }
+  }
+
+  @JsonSerialize(using = CompactJson.Serializer.class)
+  @JsonDeserialize(using = CompactJson.Deserializer.class)
+  public record AppliedTransaction(String transactionId, Money amount) implements KeyedAggregate.Entry<String> {
+    @Override
+    public String aggregateKey() {
+      return transactionId;
+    }
+
+    @Override
+    public Money aggregateAmount() {
+      return amount;
     }
   }
 
@@ -120,7 +208,11 @@ public class AccountEntity extends EventSourcedEntity<AccountEntity.State, Accou
 
   public record CreatedAccountEvent(String accountId, String fullName, String address) implements Event {}
 
-  public record UpdateAccountBalanceCommand(String accountId, BigDecimal balance) {}
+  public record UpdateAccountBalanceCommand(String accountId, Money balance, String treeId) {}
+
+  public record UpdatedAccountBalanceEvent(String accountId, Money balance, String treeId) implements Event {}
+
+  public record ApplyBalanceDeltaCommand(String accountId, String transactionId, Money amount) {}
 
-  public record UpdatedAccountBalanceEvent(String accountId, BigDecimal balance) implements Event {}
+  public record AppliedBalanceDeltaEvent(String accountId, String transactionId, Money amount) implements Event {}
 }
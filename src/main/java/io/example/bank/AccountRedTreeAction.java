@@ -1,23 +1,46 @@
 package io.example.bank;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import java.time.Duration;
 
+import io.example.Settings;
+import io.example.Trace;
 import kalix.javasdk.action.Action;
 import kalix.javasdk.annotations.Subscribe;
 import kalix.javasdk.client.ComponentClient;
 
 @Subscribe.EventSourcedEntity(value = AccountRedTreeEntity.class, ignoreUnknown = true)
 public class AccountRedTreeAction extends Action {
-  private static final Logger log = LoggerFactory.getLogger(AccountRedTreeAction.class);
+  private static final Trace trace = Trace.of(AccountRedTreeAction.class);
+  static final Duration releaseWindow = Settings.config().getDuration("account-red-tree.release-window");
   private final ComponentClient componentClient;
 
   public AccountRedTreeAction(ComponentClient componentClient) {
     this.componentClient = componentClient;
   }
 
+  // The first update after a release starts the coalescing window timer.
   public Effect<String> on(AccountRedTreeEntity.UpdatedBranchEvent event) {
-    log.info("Event: {}", event);
+    trace.event(event);
+
+    var branchId = event.branchId();
+
+    var command = new AccountRedTreeEntity.ReleaseBranchCommand(event.branchId());
+    var deferredCall = componentClient.forEventSourcedEntity(branchId.toEntityId())
+        .call(AccountRedTreeEntity::releaseBranch)
+        .params(command);
+
+    if (releaseWindow.isZero()) {
+      return effects().forward(deferredCall);
+    }
+
+    var timerName = "releaseBranch-" + branchId.toEntityId();
+    return effects().asyncReply(timers().startSingleTimer(timerName, releaseWindow, deferredCall)
+        .thenApply(__ -> "OK"));
+  }
+
+  // The update limit was reached within the window, release now.
+  public Effect<String> on(AccountRedTreeEntity.BranchReleaseDueEvent event) {
+    trace.event(event);
 
     var branchId = event.branchId();
 
@@ -29,12 +52,12 @@ public class AccountRedTreeAction extends Action {
   }
 
   public Effect<String> on(AccountRedTreeEntity.ReleasedBranchEvent event) {
-    log.info("Event: {}", event);
+    trace.event(event);
 
     var branchId = event.branchId();
 
     if (branchId.level() == 0) {
-      var command = new AccountEntity.UpdateAccountBalanceCommand(branchId.accountId(), event.subbranch().amount());
+      var command = new AccountEntity.UpdateAccountBalanceCommand(branchId.accountId(), event.subbranch().amount(), branchId.treeId());
       return effects()
           .forward(componentClient.forEventSourcedEntity(branchId.accountId())
               .call(AccountEntity::updateBalance)
@@ -42,7 +65,7 @@ public class AccountRedTreeAction extends Action {
     }
 
     var upperBranchId = branchId.levelUp();
-    var command = new AccountRedTreeEntity.UpdateSubbranchCommand(upperBranchId, event.subbranch().subbranchId(), event.subbranch().amount());
+    var command = new AccountRedTreeEntity.UpdateSubbranchCommand(upperBranchId, event.subbranch().subbranchId(), event.subbranch().amount(), null);
     return effects()
         .forward(componentClient.forEventSourcedEntity(upperBranchId.toEntityId())
             .call(AccountRedTreeEntity::updateSubbranch)
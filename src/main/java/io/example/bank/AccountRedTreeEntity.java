@@ -1,17 +1,24 @@
 package io.example.bank;
 
-import java.math.BigDecimal;
 import java.time.LocalDateTime;
 import java.util.List;
-import java.util.stream.Stream;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import org.springframework.web.bind.annotation.PatchMapping;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+import io.example.CompactJson;
+import io.example.Hashing;
+import io.example.Hops;
+import io.example.Ids;
+import io.example.KeyedAggregate;
+import io.example.Money;
+import io.example.Settings;
+import io.example.Trace;
 import kalix.javasdk.annotations.EventHandler;
 import kalix.javasdk.annotations.Id;
 import kalix.javasdk.annotations.TypeId;
@@ -22,7 +29,9 @@ import kalix.javasdk.eventsourcedentity.EventSourcedEntityContext;
 @TypeId("accountRedTree")
 @RequestMapping("/accountRedTree/{branchId}")
 public class AccountRedTreeEntity extends EventSourcedEntity<AccountRedTreeEntity.State, AccountRedTreeEntity.Event> {
-  private static final Logger log = LoggerFactory.getLogger(AccountRedTreeEntity.class);
+  private static final Trace trace = Trace.of(AccountRedTreeEntity.class);
+  static final int releaseMaxUpdates = Settings.config().getInt("account-red-tree.release-max-updates");
+  static final LeafHash leafHash = LeafHash.valueOf(Settings.config().getString("account-red-tree.leaf-hash").toUpperCase());
   private final String entityId;
 
   public AccountRedTreeEntity(EventSourcedEntityContext context) {
@@ -36,15 +45,28 @@ public class AccountRedTreeEntity extends EventSourcedEntity<AccountRedTreeEntit
 
   @PutMapping("/updateSubbranch")
   public Effect<String> updateSubbranch(@RequestBody UpdateSubbranchCommand command) {
-    log.info("EntityId: {}\n_State: {}\n_Command: {}", entityId, currentState(), command);
+    trace.command(entityId, currentState(), command);
+    Hops.shared.received(commandContext().metadata(), entityId);
+
+    var events = currentState().eventsFor(command);
+    if (events.isEmpty()) {
+      return effects().reply("OK");
+    }
+
     return effects()
-        .emitEvents(currentState().eventsFor(command))
+        .emitEvents(events)
         .thenReply(__ -> "OK");
   }
 
+  // Requested by the window timer and at the update limit, the second request finds nothing changed.
   @PatchMapping("/releaseBranch")
   public Effect<String> releaseBranch(@RequestBody ReleaseBranchCommand command) {
-    log.info("EntityId: {}\n_State: {}\n_Command: {}", entityId, currentState(), command);
+    trace.command(entityId, currentState(), command);
+
+    if (!currentState().hasChanged()) {
+      return effects().reply("OK");
+    }
+
     return effects()
         .emitEvent(currentState().eventFor(command))
         .thenReply(__ -> "OK");
@@ -52,19 +74,25 @@ public class AccountRedTreeEntity extends EventSourcedEntity<AccountRedTreeEntit
 
   @EventHandler
   public State on(UpdatedSubbranchEvent event) {
-    log.info("EntityId: {}\n_State: {}\n_Event: {}", entityId, currentState(), event);
+    trace.event(entityId, currentState(), event);
     return currentState().on(event);
   }
 
   @EventHandler
   public State on(UpdatedBranchEvent event) {
-    log.info("EntityId: {}\n_State: {}\n_Event: {}", entityId, currentState(), event);
+    trace.event(entityId, currentState(), event);
+    return currentState().on(event);
+  }
+
+  @EventHandler
+  public State on(BranchReleaseDueEvent event) {
+    trace.event(entityId, currentState(), event);
     return currentState().on(event);
   }
 
   @EventHandler
   public State on(ReleasedBranchEvent event) {
-    log.info("EntityId: {}\n_State: {}\n_Event: {}", entityId, currentState(), event);
+    trace.event(entityId, currentState(), event);
     return currentState().on(event);
   }
 
@@ -72,86 +100,230 @@ public class AccountRedTreeEntity extends EventSourcedEntity<AccountRedTreeEntit
       BranchId branchId,
       LocalDateTime lastUpdated,
       boolean hasChanged,
-      List<Subbranch> subbranches) {
+      int updatesSinceRelease,
+      KeyedAggregate<BranchId, Subbranch> subbranches,
+      KeyedAggregate<String, AccountEntity.AppliedTransaction> transactions) implements Trace.Summary {
+
+    public State {
+      transactions = transactions == null ? KeyedAggregate.empty() : transactions;
+    }
 
     static State emptyState() {
-      return new State(null, null, false, List.of());
+      return new State(null, null, false, 0, KeyedAggregate.empty(), KeyedAggregate.empty());
     }
 
+    @Override
+    public String summary() {
+      return "State[branchId=%s, hasChanged=%s, updatesSinceRelease=%d, subbranches=%d, total=%s]"
+          .formatted(branchId, hasChanged, updatesSinceRelease, subbranches.size(), subbranches.total());
+    }
+
+    // The first update after a release opens the window, the update limit makes the release due.
     List<? extends Event> eventsFor(UpdateSubbranchCommand command) {
-      if (hasChanged) {
-        return List.of(new UpdatedSubbranchEvent(command.branchId(), command.subbranchId(), command.amount()));
+      if (command.transactionId() != null && transactions.contains(command.transactionId())) {
+        return List.of();
+      }
+      var updatedEvent = new UpdatedSubbranchEvent(command.branchId(), command.subbranchId(), command.amount(), command.transactionId());
+      if (!hasChanged) {
+        return List.of(updatedEvent, new UpdatedBranchEvent(command.branchId()));
+      }
+      if (updatesSinceRelease + 1 == releaseMaxUpdates) {
+        return List.of(updatedEvent, new BranchReleaseDueEvent(command.branchId()));
       }
-      return List.of(
-          new UpdatedSubbranchEvent(command.branchId(), command.subbranchId(), command.amount()),
-          new UpdatedBranchEvent(command.branchId()));
+      return List.of(updatedEvent);
     }
 
     Event eventFor(ReleaseBranchCommand command) {
-      var zeroSubbranch = new Subbranch(command.branchId(), BigDecimal.ZERO);
-      var branch = subbranches.stream()
-          .reduce(zeroSubbranch, (a, c) -> new Subbranch(a.subbranchId(), a.amount().add(c.amount())));
+      var branch = new Subbranch(command.branchId(), subbranches.total());
       return new ReleasedBranchEvent(command.branchId(), branch);
     }
 
+    // Subbranch updates replace the slot amount, transaction updates add to it.
     State on(UpdatedSubbranchEvent event) {
-      var filteredSubbranches = subbranches.stream()
-          .filter(subbranch -> !subbranch.subbranchId().equals(event.subbranchId()));
-      var newSubbranch = Stream.of(new Subbranch(event.subbranchId(), event.amount()));
-      var newSubbranches = Stream.concat(filteredSubbranches, newSubbranch).toList();
+      if (event.transactionId() == null) {
+        return new State(
+            event.branchId().levelUp(),
+            LocalDateTime.now(),
+            true,
+            updatesSinceRelease + 1,
+            subbranches.put(new Subbranch(event.subbranchId(), event.amount())),
+            transactions);
+      }
 
+      var amount = subbranches.get(event.subbranchId())
+          .map(subbranch -> subbranch.amount().plus(event.amount()))
+          .orElse(event.amount());
       return new State(
           event.branchId().levelUp(),
           LocalDateTime.now(),
           true,
-          newSubbranches);
+          updatesSinceRelease + 1,
+          subbranches.put(new Subbranch(event.subbranchId(), amount)),
+          transactions.put(new AccountEntity.AppliedTransaction(event.transactionId(), event.amount())));
     }
 
     State on(UpdatedBranchEvent event) {
       return this;
     }
 
+    State on(BranchReleaseDueEvent event) {
+      return this;
+    }
+
     State on(ReleasedBranchEvent event) {
       return new State(
           branchId,
           LocalDateTime.now(),
           false,
-          subbranches);
+          0,
+          subbranches,
+          transactions);
     }
   }
 
   public interface Event {}
 
-  public record Subbranch(BranchId subbranchId, BigDecimal amount) {}
+  @JsonSerialize(using = CompactJson.Serializer.class)
+  @JsonDeserialize(using = CompactJson.Deserializer.class)
+  public record Subbranch(BranchId subbranchId, Money amount) implements KeyedAggregate.Entry<BranchId> {
+    @Override
+    public BranchId aggregateKey() {
+      return subbranchId;
+    }
 
-  public record UpdateSubbranchCommand(BranchId branchId, BranchId subbranchId, BigDecimal amount) {}
+    @Override
+    public Money aggregateAmount() {
+      return amount;
+    }
+  }
 
-  public record UpdatedSubbranchEvent(BranchId branchId, BranchId subbranchId, BigDecimal amount) implements Event {}
+  // The transactionId is null for the updates from a subbranch.
+  public record UpdateSubbranchCommand(BranchId branchId, BranchId subbranchId, Money amount, String transactionId) {
+    static UpdateSubbranchCommand forTransaction(BranchId leafId, String transactionId, Money amount) {
+      return new UpdateSubbranchCommand(leafId.levelUp(), leafId, amount, transactionId);
+    }
+  }
+
+  public record UpdatedSubbranchEvent(BranchId branchId, BranchId subbranchId, Money amount, String transactionId) implements Event {}
 
   public record UpdatedBranchEvent(BranchId branchId) implements Event {}
 
+  public record BranchReleaseDueEvent(BranchId branchId) implements Event {}
+
   public record ReleaseBranchCommand(BranchId branchId) {}
 
   public record ReleasedBranchEvent(BranchId branchId, Subbranch subbranch) implements Event {}
 
-  public record BranchId(String accountId, int level, int branch) {
+  // Zero levels applies updates directly to the account, a shape without a leafHash uses murmur3.
+  @JsonSerialize(using = CompactJson.Serializer.class)
+  @JsonDeserialize(using = CompactJson.Deserializer.class)
+  public record TreeShape(int levels, int branchFactor, LeafHash leafHash) {
+    static final TreeShape legacy = new TreeShape(4, 100);
+
+    public TreeShape(int levels, int branchFactor) {
+      this(levels, branchFactor, null);
+    }
+
+    boolean isDirect() {
+      return levels == 0;
+    }
+
+    static TreeShape fromTreeId(String treeId) {
+      var parts = treeId.split("x");
+      return new TreeShape(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+    }
+
+    String toTreeId() {
+      return levels + "x" + branchFactor;
+    }
+
+    TreeShape withLeafHash(LeafHash leafHash) {
+      return new TreeShape(levels, branchFactor, leafHash);
+    }
+
+    LeafHash leafHashOrMurmur3() {
+      return leafHash == null ? LeafHash.MURMUR3 : leafHash;
+    }
+
+    long leavesMax() {
+      var leaves = 1L;
+      for (var i = 0; i < levels; i++) {
+        leaves *= branchFactor;
+      }
+      return leaves;
+    }
+  }
+
+  // Hash of the leaf entity ids that picks the leaf slots of transaction updates.
+  public enum LeafHash {
+    STRING {
+      @Override
+      long hash(String leafEntityId) {
+        return leafEntityId.hashCode();
+      }
+    },
+    MURMUR3 {
+      @Override
+      long hash(String leafEntityId) {
+        return Hashing.murmur3(leafEntityId);
+      }
+    };
 
-    static final int treeLevels = 4;
-    static final int treeBranchFactor = 100;
-    static final int treeLeavesMax = (int) Math.pow(treeBranchFactor, treeLevels);
+    abstract long hash(String leafEntityId);
+  }
+
+  // The entity ids of shaped trees end with the tree id, the legacy tree has no shape.
+  @JsonSerialize(using = CompactJson.Serializer.class)
+  @JsonDeserialize(using = CompactJson.Deserializer.class)
+  public record BranchId(String accountId, int level, int branch, TreeShape shape) {
+
+    public BranchId {
+      accountId = Ids.intern(accountId);
+    }
 
     static BranchId fromEntityId(String entityId) {
       var parts = entityId.split("_");
-      return new BranchId(parts[0], Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+      var shape = parts.length > 3 ? TreeShape.fromTreeId(parts[3]) : null;
+      return new BranchId(parts[0], Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), shape);
     }
 
+    // Legacy slots must not move, floorMod only fixes the negative slot of an Integer.MIN_VALUE hash.
     public static BranchId forLeaf(String accountId, String leafEntityId) {
-      var leafNo = Math.abs(leafEntityId.hashCode()) % treeLeavesMax;
-      return new BranchId(accountId, treeLevels, leafNo);
+      var leafNo = (int) Math.floorMod(Math.abs(leafEntityId.hashCode()), TreeShape.legacy.leavesMax());
+      return new BranchId(accountId, TreeShape.legacy.levels(), leafNo, null);
+    }
+
+    public static BranchId forLeaf(String accountId, String leafEntityId, TreeShape shape) {
+      return forLeaf(accountId, leafEntityId, shape, shape.leafHashOrMurmur3());
+    }
+
+    // The hash is not part of the branch ids, it only picks the slot.
+    static BranchId forLeaf(String accountId, String leafEntityId, TreeShape shape, LeafHash leafHash) {
+      var leafNo = (int) Math.floorMod(leafHash.hash(leafEntityId), shape.leavesMax());
+      return new BranchId(accountId, shape.levels(), leafNo, shape.withLeafHash(null));
+    }
+
+    boolean isLegacy() {
+      return shape == null;
+    }
+
+    TreeShape treeShape() {
+      return isLegacy() ? TreeShape.legacy : shape;
     }
 
     String toEntityId() {
-      return "%s_%d_%d".formatted(accountId, level, branch);
+      if (isLegacy()) {
+        return accountId + "_" + level + "_" + branch;
+      }
+      return accountId + "_" + level + "_" + branch + "_" + shape.toTreeId();
+    }
+
+    // The legacy tree keeps the id of its shape, a shaped tree of the same shape has its own.
+    String treeId() {
+      if (isLegacy()) {
+        return AccountEntity.legacyTreeId;
+      }
+      return shape.equals(TreeShape.legacy) ? shape.toTreeId() + "-shaped" : shape.toTreeId();
     }
 
     BranchId levelUp() {
@@ -160,8 +332,8 @@ public class AccountRedTreeEntity extends EventSourcedEntity<AccountRedTreeEntit
       }
 
       var newLevel = level - 1;
-      var newBranch = branch / treeBranchFactor;
-      return new BranchId(accountId, newLevel, newBranch);
+      var newBranch = branch / treeShape().branchFactor();
+      return new BranchId(accountId, newLevel, newBranch, shape);
     }
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,74 @@
+package io.example.bank;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+import io.example.Settings;
+import io.example.bank.AccountRedTreeEntity.TreeShape;
+
+// Picks the tree shape of an account from its averaged update rate, moving back only at half the limit.
+class AccountTreeShapes {
+  static final AccountTreeShapes shared = new AccountTreeShapes(
+      Settings.config().getInt("account-red-tree.rate-max-accounts"),
+      Settings.config().getDuration("account-red-tree.rate-window"),
+      Settings.config().getConfigList("account-red-tree.shapes").stream()
+          .map(shape -> new Limit(
+              shape.hasPath("max-updates-per-second") ? shape.getDouble("max-updates-per-second") : Double.MAX_VALUE,
+              new TreeShape(shape.getInt("levels"), shape.getInt("branch-factor"), AccountRedTreeEntity.leafHash)))
+          .toList(),
+      System::nanoTime);
+
+  private final double windowSeconds;
+  private final List<Limit> limits;
+  private final LongSupplier nanoTime;
+  private final Map<String, AccountRate> accounts;
+
+  AccountTreeShapes(int maxAccounts, Duration rateWindow, List<Limit> limits, LongSupplier nanoTime) {
+    this.windowSeconds = rateWindow.toNanos() / 1e9;
+    this.limits = limits;
+    this.nanoTime = nanoTime;
+    this.accounts = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, AccountRate> eldest) {
+        return size() > maxAccounts;
+      }
+    };
+  }
+
+  // Counts an update of the account and returns the tree shape for it.
+  synchronized TreeShape shapeFor(String accountId) {
+    var now = nanoTime.getAsLong();
+    var accountRate = accounts.get(accountId);
+    if (accountRate == null) {
+      accountRate = new AccountRate(now);
+      accounts.put(accountId, accountRate);
+    }
+
+    var elapsedSeconds = (now - accountRate.updatedAt) / 1e9;
+    accountRate.rate = accountRate.rate * Math.exp(-elapsedSeconds / windowSeconds) + 1 / windowSeconds;
+    accountRate.updatedAt = now;
+
+    while (accountRate.limit < limits.size() - 1 && accountRate.rate > limits.get(accountRate.limit).maxUpdatesPerSecond()) {
+      accountRate.limit++;
+    }
+    while (accountRate.limit > 0 && accountRate.rate < limits.get(accountRate.limit - 1).maxUpdatesPerSecond() / 2) {
+      accountRate.limit--;
+    }
+    return limits.get(accountRate.limit).shape();
+  }
+
+  record Limit(double maxUpdatesPerSecond, TreeShape shape) {}
+
+  private static class AccountRate {
+    long updatedAt;
+    double rate;
+    int limit;
+
+    AccountRate(long updatedAt) {
+      this.updatedAt = updatedAt;
+    }
+  }
+}
@@ -1,15 +1,14 @@
 package io.example.bank;
 
-import java.math.BigDecimal;
 import java.time.LocalDateTime;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 
+import io.example.Money;
+import io.example.Trace;
 import io.example.Validator;
 import io.grpc.Status;
 import kalix.javasdk.annotations.EventHandler;
@@ -22,7 +21,7 @@ import kalix.javasdk.eventsourcedentity.EventSourcedEntityContext;
 @TypeId("deposit")
 @RequestMapping("/deposit/{depositId}")
 public class DepositEntity extends EventSourcedEntity<DepositEntity.State, DepositEntity.Event> {
-  private static final Logger log = LoggerFactory.getLogger(DepositEntity.class);
+  private static final Trace trace = Trace.of(DepositEntity.class);
   private final String entityId;
 
   public DepositEntity(EventSourcedEntityContext context) {
@@ -36,7 +35,12 @@ public class DepositEntity extends EventSourcedEntity<DepositEntity.State, Depos
 
   @PostMapping("/create")
   public Effect<String> create(@RequestBody DepositCommand command) {
-    log.info("EntityId: {}\n_State: {}\n_Command: {}", entityId, currentState(), command);
+    trace.command(entityId, currentState(), command);
+
+    // A repeated deposit must not pick another account tree for the same amount.
+    if (!currentState().isEmpty()) {
+      return effects().reply("OK");
+    }
 
     return Validator.<Effect<String>>start()
         .isEmpty(command.depositId().accountId, "Cannot deposit without accountId")
@@ -44,13 +48,13 @@ public class DepositEntity extends EventSourcedEntity<DepositEntity.State, Depos
         .isPositive(command.amount(), "Deposit amount must be positive")
         .onError(errorMessage -> effects().error(errorMessage, Status.Code.INVALID_ARGUMENT))
         .onSuccess(() -> effects()
-            .emitEvent(currentState().eventFor(command))
+            .emitEvent(currentState().eventFor(command, AccountTreeShapes.shared.shapeFor(command.depositId().accountId())))
             .thenReply(__ -> "OK"));
   }
 
   @GetMapping
   public Effect<State> get() {
-    log.info("EntityId: {}\n_State: {}\n_GetDeposit", entityId, currentState());
+    trace.query(entityId, currentState(), "GetDeposit");
     return Validator.<Effect<State>>start()
         .isTrue(currentState().isEmpty(), "Deposit not found")
         .onError(errorMessage -> effects().error(errorMessage, Status.Code.NOT_FOUND))
@@ -59,7 +63,7 @@ public class DepositEntity extends EventSourcedEntity<DepositEntity.State, Depos
 
   @EventHandler
   public State on(DepositedEvent event) {
-    log.info("EntityId: {}\n_State: {}\n_Event: {}", entityId, currentState(), event);
+    trace.event(entityId, currentState(), event);
     return currentState().on(event);
   }
 
@@ -70,25 +74,25 @@ public class DepositEntity extends EventSourcedEntity<DepositEntity.State, Depos
     }
 
     String toEntityId() {
-      return "%s_%s".formatted(accountId, depositId);
+      return accountId + "_" + depositId;
     }
   }
 
   public record State(
       DepositId depositId,
       LocalDateTime lastUpdated,
-      BigDecimal amount) {
+      Money amount) {
 
     static State emptyState() {
-      return new State(null, LocalDateTime.of(0, 1, 1, 0, 0), BigDecimal.ZERO);
+      return new State(null, LocalDateTime.of(0, 1, 1, 0, 0), Money.zero);
     }
 
     boolean isEmpty() {
       return depositId == null || depositId.isEmpty();
     }
 
-    Event eventFor(DepositCommand command) {
-      return new DepositedEvent(command.depositId(), command.amount());
+    Event eventFor(DepositCommand command, AccountRedTreeEntity.TreeShape accountTreeShape) {
+      return new DepositedEvent(command.depositId(), command.amount(), accountTreeShape);
     }
 
     State on(DepositedEvent event) {
@@ -98,7 +102,8 @@ public class DepositEntity extends EventSourcedEntity<DepositEntity.State, Depos
 
   public interface Event {}
 
-  public record DepositCommand(DepositId depositId, BigDecimal amount) {}
+  public record DepositCommand(DepositId depositId, Money amount) {}
 
-  public record DepositedEvent(DepositId depositId, BigDecimal amount) implements Event {}
+  // The accountTreeShape is null in the events of deposits made before account trees were shaped per account.
+  public record DepositedEvent(DepositId depositId, Money amount, AccountRedTreeEntity.TreeShape accountTreeShape) implements Event {}
 }
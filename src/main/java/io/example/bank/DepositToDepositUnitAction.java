@@ -1,17 +1,21 @@
 package io.example.bank;
 
-import java.util.UUID;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
+import io.example.Calls;
+import io.example.Metrics;
+import io.example.Settings;
+import io.example.Trace;
 import kalix.javasdk.action.Action;
 import kalix.javasdk.annotations.Subscribe;
 import kalix.javasdk.client.ComponentClient;
 
+// The one subscriber to the deposit events.
 @Subscribe.EventSourcedEntity(value = DepositEntity.class, ignoreUnknown = true)
 public class DepositToDepositUnitAction extends Action {
-  private static final Logger log = LoggerFactory.getLogger(DepositToDepositUnitAction.class);
+  private static final Trace trace = Trace.of(DepositToDepositUnitAction.class);
+  static final int maxConcurrentUnitCalls = Settings.config().getInt("deposit.max-concurrent-unit-calls");
   private final ComponentClient componentClient;
 
   public DepositToDepositUnitAction(ComponentClient componentClient) {
@@ -19,15 +23,57 @@ public class DepositToDepositUnitAction extends Action {
   }
 
   public Effect<String> on(DepositEntity.DepositedEvent event) {
-    log.info("Event: {}", event);
+    trace.event(event);
+
+    var depositUnitResult = toDepositUnit(event);
+    var accountRedTreeResult = toAccountRedTree(event);
+
+    return effects().asyncReply(CompletableFuture.allOf(depositUnitResult.toCompletableFuture(), accountRedTreeResult.toCompletableFuture())
+        .thenApply(__ -> "OK"));
+  }
 
-    var unitId = UUID.randomUUID().toString();
-    var depositUnitId = new DepositUnitEntity.DepositUnitId(event.depositId().accountId(), event.depositId().depositId(), unitId);
-    var command = new DepositUnitEntity.ModifyAmountCommand(depositUnitId, event.amount());
+  // The units are created directly from the plan of the deposit, at most maxConcurrentUnitCalls at a time.
+  private CompletionStage<String> toDepositUnit(DepositEntity.DepositedEvent event) {
+    var commands = DepositUnitEntity.unitsFor(event.depositId(), event.amount());
+    Metrics.fanOut(DepositToDepositUnitAction.class, commands.size());
 
-    return effects()
-        .forward(componentClient.forEventSourcedEntity(depositUnitId.toEntityId())
+    return Calls.bounded(commands, maxConcurrentUnitCalls, command -> Metrics.timed(DepositUnitEntity.class, "modifyAmount",
+        () -> componentClient.forEventSourcedEntity(command.depositUnitId().toEntityId())
             .call(DepositUnitEntity::modifyAmount)
-            .params(command));
+            .params(command)
+            .execute()))
+        .thenApply(__ -> "OK");
+  }
+
+  private CompletionStage<String> toAccountRedTree(DepositEntity.DepositedEvent event) {
+    var accountId = event.depositId().accountId();
+    var transactionId = "deposit_" + event.depositId().toEntityId();
+
+    if (event.accountTreeShape() != null && event.accountTreeShape().isDirect()) {
+      var command = new AccountEntity.ApplyBalanceDeltaCommand(accountId, transactionId, event.amount());
+      return componentClient.forEventSourcedEntity(accountId)
+          .call(AccountEntity::applyBalanceDelta)
+          .params(command)
+          .execute();
+    }
+
+    var command = event.accountTreeShape() == null
+        ? legacyCommand(event)
+        : AccountRedTreeEntity.UpdateSubbranchCommand.forTransaction(
+            AccountRedTreeEntity.BranchId.forLeaf(accountId, event.depositId().depositId(), event.accountTreeShape()),
+            transactionId,
+            event.amount());
+    var branchId = command.branchId();
+
+    return componentClient.forEventSourcedEntity(branchId.toEntityId())
+        .call(AccountRedTreeEntity::updateSubbranch)
+        .params(command)
+        .execute();
+  }
+
+  // Deposits made before account trees were shaped per account replace the amount of their leaf slot.
+  private static AccountRedTreeEntity.UpdateSubbranchCommand legacyCommand(DepositEntity.DepositedEvent event) {
+    var subbranchId = AccountRedTreeEntity.BranchId.forLeaf(event.depositId().accountId(), event.depositId().depositId());
+    return new AccountRedTreeEntity.UpdateSubbranchCommand(subbranchId.levelUp(), subbranchId, event.amount(), null);
   }
 }
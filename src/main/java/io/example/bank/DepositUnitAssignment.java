@@ -0,0 +1,103 @@
+package io.example.bank;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+
+import io.example.Hashing;
+import io.example.Money;
+import io.example.bank.DepositUnitsAvailableView.DepositUnitRow;
+import io.example.bank.WithdrawalRedLeafEntity.WithdrawalRedLeafId;
+
+// Spreads the leaves of a withdrawal over the available units by partition, and over larger units by capacity.
+class DepositUnitAssignment {
+  static final int unitsPerPartition = 4;
+  // Entity id order without building the entity ids.
+  private static final Comparator<DepositUnitRow> byId = Comparator.comparing(DepositUnitRow::accountId)
+      .thenComparing(DepositUnitRow::depositId)
+      .thenComparing(DepositUnitRow::unitId);
+
+  static Optional<DepositUnitRow> assign(List<DepositUnitRow> depositUnits, WithdrawalRedLeafId withdrawalRedLeafId, Money amountNeeded) {
+    if (depositUnits.isEmpty()) {
+      return Optional.empty();
+    }
+
+    var needed = amountNeeded.toBigDecimal();
+    var pool = depositUnits.stream()
+        .sorted(byId)
+        .toList();
+    var count = pool.size();
+    var partitions = Math.max(1, count / unitsPerPartition);
+    var hash = Hashing.mix64(withdrawalRedLeafId.toEntityId().hashCode());
+    var partition = (int) Math.floorMod(hash, (long) partitions);
+    var offset = (int) Math.floorMod(hash >>> 32, (long) count);
+
+    DepositUnitRow largest = null;
+    for (var p = 0; p < partitions; p++) {
+      var slice = (partition + p) % partitions;
+      var sliceSize = (count - slice + partitions - 1) / partitions;
+      var slots = 0L;
+      for (var u = 0; u < sliceSize; u++) {
+        var row = pool.get(slice + ((offset + u) % sliceSize) * partitions);
+        var fit = row.balance().compareTo(needed);
+        if (fit == 0) {
+          return Optional.of(row);
+        }
+        if (fit > 0) {
+          slots += slots(row, amountNeeded);
+        }
+        if (largest == null || row.balance().compareTo(largest.balance()) > 0) {
+          largest = row;
+        }
+      }
+      if (slots > 0) {
+        var slot = Math.floorMod(Hashing.mix64(hash), slots);
+        for (var u = 0; u < sliceSize; u++) {
+          var row = pool.get(slice + ((offset + u) % sliceSize) * partitions);
+          if (row.balance().compareTo(needed) > 0) {
+            slot -= slots(row, amountNeeded);
+            if (slot < 0) {
+              return Optional.of(row);
+            }
+          }
+        }
+      }
+    }
+    return Optional.of(largest);
+  }
+
+  // At most maxUnits units, the last one is asked for all that is left of the amount needed.
+  static List<Withdrawal> plan(List<DepositUnitRow> depositUnits, WithdrawalRedLeafId withdrawalRedLeafId, Money amountNeeded, int maxUnits) {
+    var withdrawals = new ArrayList<Withdrawal>();
+    var pool = new ArrayList<>(depositUnits);
+    var remaining = amountNeeded;
+    while (remaining.isPositive() && withdrawals.size() < maxUnits) {
+      var assigned = assign(pool, withdrawalRedLeafId, remaining);
+      if (assigned.isEmpty()) {
+        break;
+      }
+      var row = assigned.get();
+      pool.remove(row);
+      var amount = pool.isEmpty() || withdrawals.size() == maxUnits - 1 ? remaining : remaining.min(Money.of(row.balance()));
+      withdrawals.add(new Withdrawal(row, amount));
+      remaining = remaining.minus(amount);
+    }
+    return withdrawals;
+  }
+
+  static boolean covers(List<Withdrawal> withdrawals) {
+    return !withdrawals.isEmpty() && withdrawals.stream().allMatch(withdrawal -> covers(withdrawal.depositUnit(), withdrawal.amount()));
+  }
+
+  static boolean covers(DepositUnitRow row, Money amountNeeded) {
+    return row.balance().compareTo(amountNeeded.toBigDecimal()) >= 0;
+  }
+
+  // The number of times a unit covers the amount needed.
+  private static long slots(DepositUnitRow row, Money amountNeeded) {
+    return Money.of(row.balance()).cents() / Math.max(1, amountNeeded.cents());
+  }
+
+  record Withdrawal(DepositUnitRow depositUnit, Money amount) {}
+}
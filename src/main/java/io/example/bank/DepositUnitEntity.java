@@ -1,20 +1,30 @@
 package io.example.bank;
 
-import java.math.BigDecimal;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
-import java.util.UUID;
+import java.util.function.Supplier;
 import java.util.stream.IntStream;
+import java.util.stream.LongStream;
 import java.util.stream.Stream;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PatchMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+import io.example.CompactJson;
+import io.example.Hops;
+import io.example.Ids;
+import io.example.KeyedAggregate;
+import io.example.Money;
+import io.example.Settings;
+import io.example.Trace;
 import io.example.Validator;
 import io.example.bank.WithdrawalRedLeafEntity.WithdrawalRedLeafId;
 import kalix.javasdk.annotations.EventHandler;
@@ -27,8 +37,15 @@ import kalix.javasdk.eventsourcedentity.EventSourcedEntityContext;
 @TypeId("depositUnit")
 @RequestMapping("/depositUnit/{depositUnitId}")
 public class DepositUnitEntity extends EventSourcedEntity<DepositUnitEntity.State, DepositUnitEntity.Event> {
-  private static final Logger log = LoggerFactory.getLogger(DepositUnitEntity.class);
-  private static final BigDecimal maxUnitAmount = BigDecimal.valueOf(25.00);
+  private static final Trace trace = Trace.of(DepositUnitEntity.class);
+  // The reply to a withdrawal that gives the leaf nothing more, see State.isNack.
+  static final String nack = "NACK";
+  static final List<Money> denominations = Settings.config().getDoubleList("deposit.denominations").stream()
+      .map(Money::of)
+      .sorted(Comparator.reverseOrder())
+      .toList();
+  // The split threshold of the units created before deposits were planned with unitsFor.
+  private static final Money legacyUnitAmount = Money.of(25.00);
   private final String entityId;
 
   public DepositUnitEntity(EventSourcedEntityContext context) {
@@ -42,7 +59,7 @@ public class DepositUnitEntity extends EventSourcedEntity<DepositUnitEntity.Stat
 
   @PostMapping("/modifyAmount")
   public Effect<String> modifyAmount(@RequestBody ModifyAmountCommand command) {
-    log.info("EntityId: {}\n_State: {}\n_Command: {}", entityId, currentState(), command);
+    trace.command(entityId, currentState(), command);
 
     if (currentState().isDuplicateCommand(command)) {
       return effects().reply("OK");
@@ -55,7 +72,15 @@ public class DepositUnitEntity extends EventSourcedEntity<DepositUnitEntity.Stat
 
   @PatchMapping("/withdraw")
   public Effect<String> withdraw(@RequestBody WithdrawCommand command) {
-    log.info("EntityId: {}\n_State: {}\n_Command: {}", entityId, currentState(), command);
+    trace.command(entityId, currentState(), command);
+    Hops.shared.received(commandContext().metadata(), entityId);
+
+    if (currentState().isDuplicateCommand(command)) {
+      return effects().reply("OK");
+    }
+    if (currentState().isNack(command)) {
+      return effects().reply(nack);
+    }
 
     return effects()
         .emitEvent(currentState().eventFor(command))
@@ -64,7 +89,8 @@ public class DepositUnitEntity extends EventSourcedEntity<DepositUnitEntity.Stat
 
   @PatchMapping("/cancelWithdrawal")
   public Effect<String> cancelWithdrawal(@RequestBody WithdrawalCancelCommand command) {
-    log.info("EntityId: {}\n_State: {}\n_Command: {}", entityId, currentState(), command);
+    trace.command(entityId, currentState(), command);
+    Hops.shared.received(commandContext().metadata(), entityId);
 
     return effects()
         .emitEvent(currentState().eventFor(command))
@@ -81,23 +107,29 @@ public class DepositUnitEntity extends EventSourcedEntity<DepositUnitEntity.Stat
 
   @EventHandler
   public State on(ModifiedAmountEvent event) {
-    log.info("EntityId: {}\n_State: {}\n_Event: {}", entityId, currentState(), event);
+    trace.event(entityId, currentState(), event);
     return currentState().on(event);
   }
 
   @EventHandler
   public State on(WithdrawnEvent event) {
-    log.info("EntityId: {}\n_State: {}\n_Event: {}", entityId, currentState(), event);
+    trace.event(entityId, currentState(), event);
     return currentState().on(event);
   }
 
   @EventHandler
   public State on(WithdrawalCancelledEvent event) {
-    log.info("EntityId: {}\n_State: {}\n_Event: {}", entityId, currentState(), event);
+    trace.event(entityId, currentState(), event);
     return currentState().on(event);
   }
 
+  @JsonSerialize(using = CompactJson.Serializer.class)
+  @JsonDeserialize(using = CompactJson.Deserializer.class)
   public record DepositUnitId(String accountId, String depositId, String unitId) {
+    public DepositUnitId {
+      accountId = Ids.intern(accountId);
+    }
+
     boolean isEmpty() {
       return accountId == null || accountId.isEmpty()
           || depositId == null || depositId.isEmpty()
@@ -105,23 +137,33 @@ public class DepositUnitEntity extends EventSourcedEntity<DepositUnitEntity.Stat
     }
 
     DepositUnitId childId() {
-      return new DepositUnitId(accountId, depositId, UUID.randomUUID().toString());
+      return childId(Ids.random());
+    }
+
+    DepositUnitId childId(String unitId) {
+      return new DepositUnitId(accountId, depositId, unitId);
     }
 
     String toEntityId() {
-      return "%s_%s_%s".formatted(accountId, depositId, unitId);
+      return accountId + "_" + depositId + "_" + unitId;
     }
   }
 
   public record State(
       DepositUnitId depositUnitId,
-      BigDecimal amount,
-      BigDecimal balance,
+      Money amount,
+      Money balance,
       LocalDateTime lastUpdated,
-      List<WithdrawLeaf> withdrawals) {
+      KeyedAggregate<WithdrawalRedLeafId, WithdrawLeaf> withdrawals) implements Trace.Summary {
 
     static State emptyState() {
-      return new State(null, null, null, null, List.of());
+      return new State(null, null, null, null, KeyedAggregate.empty());
+    }
+
+    @Override
+    public String summary() {
+      return "State[depositUnitId=%s, amount=%s, balance=%s, withdrawals=%d]"
+          .formatted(depositUnitId, amount, balance, withdrawals.size());
     }
 
     boolean isEmpty() {
@@ -132,34 +174,66 @@ public class DepositUnitEntity extends EventSourcedEntity<DepositUnitEntity.Stat
       return amount != null && amount.compareTo(command.amount()) <= 0;
     }
 
-    boolean isAvailableForWithdrawal() {
-      return amount != null && amount.compareTo(maxUnitAmount) < 0;
+    Event eventFor(ModifyAmountCommand command) {
+      return eventFor(command, command.maxAmount() == null ? legacyUnitAmount : command.maxAmount(), Ids::random);
     }
 
-    Event eventFor(ModifyAmountCommand command) {
-      if (isAmountAdjustmentCompleted(command.amount)) {
+    // The unit amount and the ids of the split units are parameters for the simulator.
+    Event eventFor(ModifyAmountCommand command, Money unitAmount, Supplier<String> unitIds) {
+      if (isAmountAdjustmentCompleted(command.amount, unitAmount)) {
         return new ModifiedAmountEvent(command.depositUnitId, command.amount, List.of());
       }
-      var modifyAmounts = distributeAmount(command.amount())
-          .stream().map(amount -> new ModifyAmount(command.depositUnitId.childId(), amount)).toList();
+      var modifyAmounts = distributeAmount(command.amount(), unitAmount)
+          .stream().map(amount -> new ModifyAmount(command.depositUnitId.childId(unitIds.get()), amount)).toList();
       var firstModifyAmount = new ModifyAmount(command.depositUnitId, modifyAmounts.get(0).amount());
       modifyAmounts = Stream.concat(Stream.of(firstModifyAmount), modifyAmounts.stream().skip(1)).toList();
 
       return new ModifiedAmountEvent(command.depositUnitId, command.amount, modifyAmounts);
     }
 
+    // A redelivered withdrawal has the request id of the last withdrawal of the leaf from this unit.
+    boolean isDuplicateCommand(WithdrawCommand command) {
+      return command.requestId() != null && withdrawals.get(command.withdrawalRedLeafId)
+          .map(WithdrawLeaf::requestId)
+          .filter(command.requestId()::equals)
+          .isPresent();
+    }
+
+    // A drained unit gives nothing, no event is written and the seek tries other units.
+    boolean isNack(WithdrawCommand command) {
+      return increment(command).isZero();
+    }
+
+    // The requested amount is added to what the leaf already holds from the unit.
     Event eventFor(WithdrawCommand command) {
-      var currentBalance = amount.subtract(sum(withdrawals));
-      var withdrawalAmount = command.withDrawalRequestAmount().min(currentBalance);
-      var newBalance = currentBalance.subtract(withdrawalAmount);
+      var withdrawalAmount = held(command.withdrawalRedLeafId).plus(increment(command));
+      var newBalance = amount.minus(withdrawals.put(new WithdrawLeaf(command.withdrawalRedLeafId, withdrawalAmount, command.requestId())).total());
       var depositUnit = new DepositUnit(depositUnitId, amount, newBalance, withdrawalAmount);
-      return new WithdrawnEvent(command.withdrawalRedLeafId, depositUnit);
+      return new WithdrawnEvent(command.withdrawalRedLeafId, depositUnit, command.withDrawalRequestAmount(), command.requestId());
+    }
+
+    private Money increment(WithdrawCommand command) {
+      var currentBalance = amount.minus(withdrawals.total()).max(Money.zero);
+      return command.withDrawalRequestAmount().min(currentBalance);
+    }
+
+    private Money held(WithdrawalRedLeafId withdrawalRedLeafId) {
+      return withdrawals.get(withdrawalRedLeafId).map(WithdrawLeaf::amount).orElse(Money.zero);
     }
 
     Event eventFor(WithdrawalCancelCommand command) {
-      var filtered = withdrawals.stream().filter(w -> !w.withdrawalRedLeafId().equals(command.withdrawalRedLeafId())).toList();
-      var newBalance = amount.subtract(sum(filtered));
-      return new WithdrawalCancelledEvent(depositUnitId, command.withdrawalRedLeafId(), amount, newBalance);
+      var newBalance = amount.minus(withdrawalsKeeping(command.withdrawalRedLeafId(), command.amountKept()).total());
+      return new WithdrawalCancelledEvent(depositUnitId, command.withdrawalRedLeafId(), amount, newBalance, command.amountKept());
+    }
+
+    // A cancel keeps nothing of the withdrawal of the leaf, a release keeps the amount the leaf still holds.
+    private KeyedAggregate<WithdrawalRedLeafId, WithdrawLeaf> withdrawalsKeeping(WithdrawalRedLeafId withdrawalRedLeafId, Money amountKept) {
+      if (amountKept == null || !amountKept.isPositive()) {
+        return withdrawals.remove(withdrawalRedLeafId);
+      }
+      return withdrawals.get(withdrawalRedLeafId)
+          .map(withdrawal -> withdrawals.put(new WithdrawLeaf(withdrawalRedLeafId, withdrawal.amount().min(amountKept), withdrawal.requestId())))
+          .orElse(withdrawals);
     }
 
     State on(ModifiedAmountEvent event) {
@@ -168,58 +242,114 @@ public class DepositUnitEntity extends EventSourcedEntity<DepositUnitEntity.Stat
 
     State on(WithdrawnEvent event) {
       var withdrawalAmount = event.depositUnit.amountWithdrawn();
-      var withdrawal = new WithdrawLeaf(event.withdrawalRedLeafId(), withdrawalAmount);
-      var filtered = withdrawals.stream().filter(w -> !w.withdrawalRedLeafId().equals(event.withdrawalRedLeafId())).toList();
-      var newWithdrawals = Stream.concat(filtered.stream(), Stream.of(withdrawal)).toList();
-      var newBalance = amount.subtract(sum(newWithdrawals));
+      var withdrawal = new WithdrawLeaf(event.withdrawalRedLeafId(), withdrawalAmount, event.requestId());
+      var newWithdrawals = withdrawals.put(withdrawal);
+      var newBalance = amount.minus(newWithdrawals.total());
 
       return new State(depositUnitId, amount, newBalance, LocalDateTime.now(), newWithdrawals);
     }
 
     State on(WithdrawalCancelledEvent event) {
-      var filtered = withdrawals.stream().filter(w -> !w.withdrawalRedLeafId().equals(event.withdrawalRedLeafId())).toList();
-      var newBalance = amount.subtract(sum(filtered));
-      return new State(depositUnitId, amount, newBalance, LocalDateTime.now(), filtered);
+      var newWithdrawals = withdrawalsKeeping(event.withdrawalRedLeafId(), event.amountKept());
+      var newBalance = amount.minus(newWithdrawals.total());
+      return new State(depositUnitId, amount, newBalance, LocalDateTime.now(), newWithdrawals);
     }
   }
 
-  static boolean isAmountAdjustmentCompleted(BigDecimal amount) {
-    return amount.compareTo(maxUnitAmount) <= 0;
+  static boolean isAmountAdjustmentCompleted(Money amount, Money unitAmount) {
+    return amount.compareTo(unitAmount) <= 0;
   }
 
-  private static List<BigDecimal> distributeAmount(BigDecimal amount) {
-    var cents = amount.multiply(BigDecimal.valueOf(100)).longValue();
-    var centsPerChild = cents / maxUnitAmount.longValue();
-    var remainder = cents % maxUnitAmount.longValue();
-
-    BigDecimal dollarsPerChild = new BigDecimal(centsPerChild).divide(new BigDecimal(100));
+  // Largest denominations first, the unit ids are the positions so a redelivered deposit finds its units.
+  static List<ModifyAmountCommand> unitsFor(DepositEntity.DepositId depositId, Money amount) {
+    return unitsFor(depositId, amount, denominations);
+  }
 
-    return IntStream.range(0, maxUnitAmount.intValue())
-        .mapToObj(i -> dollarsPerChild.add(i < remainder ? BigDecimal.valueOf(0.01) : BigDecimal.valueOf(0.00)))
+  static List<ModifyAmountCommand> unitsFor(DepositEntity.DepositId depositId, Money amount, List<Money> denominations) {
+    var amounts = new ArrayList<Money>();
+    var remaining = amount.cents();
+    for (var denomination : denominations) {
+      for (; remaining >= denomination.cents(); remaining -= denomination.cents()) {
+        amounts.add(denomination);
+      }
+    }
+    if (remaining > 0) {
+      amounts.add(Money.ofCents(remaining));
+    }
+    return IntStream.range(0, amounts.size())
+        .mapToObj(i -> new ModifyAmountCommand(
+            new DepositUnitId(depositId.accountId(), depositId.depositId(), Integer.toString(i)),
+            amounts.get(i),
+            denominations.get(0)))
         .toList();
   }
 
-  private static BigDecimal sum(List<WithdrawLeaf> withdrawals) {
-    return withdrawals.stream().map(withdrawal -> withdrawal.amount()).reduce(BigDecimal.ZERO, BigDecimal::add);
+  // Splits a legacy unit into at most 25 and at least two smaller units.
+  private static List<Money> distributeAmount(Money amount, Money unitAmount) {
+    var children = Math.max(2, Math.min(25, unitAmount.cents() / 100));
+    var centsPerChild = amount.cents() / children;
+    var remainder = amount.cents() % children;
+
+    return LongStream.range(0, children)
+        .mapToObj(i -> Money.ofCents(centsPerChild + (i < remainder ? 1 : 0)))
+        .toList();
   }
 
   public interface Event {}
 
-  public record ModifyAmountCommand(DepositUnitId depositUnitId, BigDecimal amount) {}
+  // The maxAmount is null for the splits of units created before deposits were planned with unitsFor.
+  public record ModifyAmountCommand(DepositUnitId depositUnitId, Money amount, Money maxAmount) {
+    public ModifyAmountCommand(DepositUnitId depositUnitId, Money amount) {
+      this(depositUnitId, amount, null);
+    }
+  }
 
-  public record ModifyAmount(DepositUnitId depositUnitId, BigDecimal amount) {}
+  @JsonSerialize(using = CompactJson.Serializer.class)
+  @JsonDeserialize(using = CompactJson.Deserializer.class)
+  public record ModifyAmount(DepositUnitId depositUnitId, Money amount) {}
 
-  public record ModifiedAmountEvent(DepositUnitId depositUnitId, BigDecimal amount, List<ModifyAmount> modifyAmounts) implements Event {}
+  public record ModifiedAmountEvent(DepositUnitId depositUnitId, Money amount, List<ModifyAmount> modifyAmounts) implements Event {}
 
-  public record DepositUnit(DepositUnitId depositUnitId, BigDecimal amount, BigDecimal balance, BigDecimal amountWithdrawn) {}
+  public record DepositUnit(DepositUnitId depositUnitId, Money amount, Money balance, Money amountWithdrawn) {}
 
-  public record WithdrawLeaf(WithdrawalRedLeafId withdrawalRedLeafId, BigDecimal amount) {}
+  @JsonSerialize(using = CompactJson.Serializer.class)
+  @JsonDeserialize(using = CompactJson.Deserializer.class)
+  public record WithdrawLeaf(WithdrawalRedLeafId withdrawalRedLeafId, Money amount, String requestId) implements KeyedAggregate.Entry<WithdrawalRedLeafId> {
+    @Override
+    public WithdrawalRedLeafId aggregateKey() {
+      return withdrawalRedLeafId;
+    }
 
-  public record WithdrawCommand(WithdrawalRedLeafId withdrawalRedLeafId, BigDecimal withDrawalRequestAmount) {}
+    @Override
+    public Money aggregateAmount() {
+      return amount;
+    }
+  }
 
-  public record WithdrawnEvent(WithdrawalRedLeafId withdrawalRedLeafId, DepositUnit depositUnit) implements Event {}
+  // The request id is the seek of the leaf and the position of the withdrawal in it, see WithdrawalRedLeafToDepositUnitAction.
+  public record WithdrawCommand(WithdrawalRedLeafId withdrawalRedLeafId, Money withDrawalRequestAmount, String requestId) {
+    public WithdrawCommand(WithdrawalRedLeafId withdrawalRedLeafId, Money withDrawalRequestAmount) {
+      this(withdrawalRedLeafId, withDrawalRequestAmount, null);
+    }
+  }
 
-  public record WithdrawalCancelCommand(DepositUnitId depositUnitId, WithdrawalRedLeafId withdrawalRedLeafId) {}
+  // Events written before seeks withdrew from several units have no amountRequested or requestId.
+  public record WithdrawnEvent(WithdrawalRedLeafId withdrawalRedLeafId, DepositUnit depositUnit, Money amountRequested, String requestId) implements Event {
+    public WithdrawnEvent(WithdrawalRedLeafId withdrawalRedLeafId, DepositUnit depositUnit, Money amountRequested) {
+      this(withdrawalRedLeafId, depositUnit, amountRequested, null);
+    }
+  }
 
-  public record WithdrawalCancelledEvent(DepositUnitId depositUnitId, WithdrawalRedLeafId withdrawalRedLeafId, BigDecimal amount, BigDecimal balance) implements Event {}
+  // The amountKept is what the leaf keeps of its withdrawal from the unit, null when it keeps none of it.
+  public record WithdrawalCancelCommand(DepositUnitId depositUnitId, WithdrawalRedLeafId withdrawalRedLeafId, Money amountKept) {
+    public WithdrawalCancelCommand(DepositUnitId depositUnitId, WithdrawalRedLeafId withdrawalRedLeafId) {
+      this(depositUnitId, withdrawalRedLeafId, null);
+    }
+  }
+
+  public record WithdrawalCancelledEvent(DepositUnitId depositUnitId, WithdrawalRedLeafId withdrawalRedLeafId, Money amount, Money balance, Money amountKept) implements Event {
+    public WithdrawalCancelledEvent(DepositUnitId depositUnitId, WithdrawalRedLeafId withdrawalRedLeafId, Money amount, Money balance) {
+      this(depositUnitId, withdrawalRedLeafId, amount, balance, null);
+    }
+  }
 }
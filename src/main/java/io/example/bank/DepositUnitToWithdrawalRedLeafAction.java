@@ -1,32 +1,76 @@
 package io.example.bank;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
+import io.example.Hops;
+import io.example.Metrics;
+import io.example.Trace;
 import kalix.javasdk.action.Action;
 import kalix.javasdk.annotations.Subscribe;
 import kalix.javasdk.client.ComponentClient;
 
+// The one subscriber to the deposit unit events, the index is updated before the calls are made.
 @Subscribe.EventSourcedEntity(value = DepositUnitEntity.class, ignoreUnknown = true)
 public class DepositUnitToWithdrawalRedLeafAction extends Action {
-  private static final Logger log = LoggerFactory.getLogger(DepositUnitToWithdrawalRedLeafAction.class);
+  private static final Trace trace = Trace.of(DepositUnitToWithdrawalRedLeafAction.class);
+  private final DepositUnitsAvailableIndex index = DepositUnitsAvailableIndex.shared;
+  private final Hops hops = Hops.shared;
   private final ComponentClient componentClient;
 
   public DepositUnitToWithdrawalRedLeafAction(ComponentClient componentClient) {
     this.componentClient = componentClient;
   }
 
+  public Effect<String> on(DepositUnitEntity.ModifiedAmountEvent event) {
+    trace.event(event);
+    index.on(event);
+
+    if (event.modifyAmounts().isEmpty()) {
+      return effects().reply("OK");
+    }
+
+    var results = event.modifyAmounts().stream()
+        .map(modifyAmount -> new DepositUnitEntity.ModifyAmountCommand(modifyAmount.depositUnitId(), modifyAmount.amount()))
+        .map(command -> componentClient.forEventSourcedEntity(command.depositUnitId().toEntityId())
+            .call(DepositUnitEntity::modifyAmount)
+            .params(command))
+        .map(deferredCall -> Metrics.timed(DepositUnitEntity.class, "modifyAmount", () -> deferredCall.execute()))
+        .toList();
+    Metrics.fanOut(DepositUnitToWithdrawalRedLeafAction.class, results.size());
+
+    return effects().asyncReply(waitForCallsToComplete(results));
+  }
+
   public Effect<String> on(DepositUnitEntity.WithdrawnEvent event) {
-    log.info("Event: {}", event);
+    trace.event(event);
+    index.on(event);
 
     var depositUnit = event.depositUnit();
+    if (depositUnit.amountWithdrawn().isZero()) {
+      Metrics.count("bank.seek.zero.withdrawals");
+    }
     var depositUnitId = depositUnit.depositUnitId();
-    var leafDepositUnit = new WithdrawalRedLeafEntity.DepositUnit(depositUnitId, depositUnit.amountWithdrawn());
-    var command = new WithdrawalRedLeafEntity.DepositFoundCommand(event.withdrawalRedLeafId(), leafDepositUnit);
+    var leafDepositUnit = new WithdrawalRedLeafEntity.DepositUnit(depositUnitId, depositUnit.amountWithdrawn(), event.requestId());
+    var command = new WithdrawalRedLeafEntity.DepositFoundCommand(event.withdrawalRedLeafId(), leafDepositUnit, event.amountRequested());
 
     return effects()
-        .forward(componentClient.forEventSourcedEntity(event.withdrawalRedLeafId().toEntityId())
-            .call(WithdrawalRedLeafEntity::depositFound)
-            .params(command));
+        .forward(hops.forward(event.withdrawalRedLeafId().correlationId(), depositUnitId.toEntityId(),
+            WithdrawalRedLeafEntity.class, event.withdrawalRedLeafId().toEntityId(), "depositFound",
+            componentClient.forEventSourcedEntity(event.withdrawalRedLeafId().toEntityId())
+                .call(WithdrawalRedLeafEntity::depositFound)
+                .params(command)));
+  }
+
+  public Effect<String> on(DepositUnitEntity.WithdrawalCancelledEvent event) {
+    trace.event(event);
+    index.on(event);
+    return effects().reply("OK");
+  }
+
+  private CompletableFuture<String> waitForCallsToComplete(List<CompletionStage<String>> results) {
+    return CompletableFuture.allOf(results.toArray(CompletableFuture[]::new))
+        .thenApply(__ -> "OK");
   }
 }
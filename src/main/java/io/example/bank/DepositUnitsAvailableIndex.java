@@ -0,0 +1,131 @@
+package io.example.bank;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.LongSupplier;
+
+import io.example.Money;
+import io.example.Settings;
+import io.example.bank.DepositUnitsAvailableView.DepositUnitRow;
+
+// Available deposit units per account, loaded from the view and kept current from the deposit unit events.
+class DepositUnitsAvailableIndex {
+  static final DepositUnitsAvailableIndex shared = new DepositUnitsAvailableIndex(
+      Settings.config().getInt("deposit-units-available-index.max-accounts"),
+      Settings.config().getInt("deposit-units-available-index.max-units-per-account"),
+      Settings.config().getDuration("deposit-units-available-index.time-to-live"),
+      System::nanoTime);
+
+  private final int maxUnitsPerAccount;
+  private final long timeToLiveNanos;
+  private final LongSupplier nanoTime;
+  private final Map<String, AccountUnits> accounts;
+
+  DepositUnitsAvailableIndex(int maxAccounts, int maxUnitsPerAccount, Duration timeToLive, LongSupplier nanoTime) {
+    this.maxUnitsPerAccount = maxUnitsPerAccount;
+    this.timeToLiveNanos = timeToLive.toNanos();
+    this.nanoTime = nanoTime;
+    this.accounts = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, AccountUnits> eldest) {
+        return size() > maxAccounts;
+      }
+    };
+  }
+
+  synchronized Optional<List<DepositUnitRow>> depositUnitsAvailable(String accountId) {
+    var accountUnits = accounts.get(accountId);
+    if (accountUnits == null) {
+      return Optional.empty();
+    }
+    if (nanoTime.getAsLong() - accountUnits.loadedAt > timeToLiveNanos || accountUnits.units.isEmpty()) {
+      accounts.remove(accountId);
+      return Optional.empty();
+    }
+    return Optional.of(List.copyOf(accountUnits.units.values()));
+  }
+
+  synchronized void rebuild(String accountId, List<DepositUnitRow> depositUnits) {
+    var accountUnits = new AccountUnits(nanoTime.getAsLong());
+    depositUnits.stream()
+        .filter(DepositUnitsAvailableIndex::isAvailable)
+        .limit(maxUnitsPerAccount)
+        .forEach(row -> accountUnits.units.put(row.toEntityId(), row));
+    accounts.put(accountId, accountUnits);
+  }
+
+  // Reservations spread the concurrent seeks of this instance over the other available units.
+  synchronized void reserve(DepositUnitRow depositUnit, Money amount) {
+    var accountUnits = accounts.get(depositUnit.accountId());
+    if (accountUnits == null) {
+      return;
+    }
+    var entityId = depositUnit.toEntityId();
+    var row = accountUnits.units.get(entityId);
+    if (row != null) {
+      var balance = row.balance().subtract(amount.toBigDecimal()).max(BigDecimal.ZERO);
+      update(accountUnits, new DepositUnitRow(row.accountId(), row.depositId(), row.unitId(), row.amount(), balance));
+    }
+  }
+
+  // The unit as this instance knows it, or the given row when it is not in the index.
+  synchronized DepositUnitRow current(DepositUnitRow depositUnit) {
+    var accountUnits = accounts.get(depositUnit.accountId());
+    if (accountUnits == null) {
+      return depositUnit;
+    }
+    return accountUnits.units.getOrDefault(depositUnit.toEntityId(), depositUnit);
+  }
+
+  void on(DepositUnitEntity.ModifiedAmountEvent event) {
+    var depositUnitId = event.depositUnitId();
+    // A unit that is being split into smaller units is not available until its amount has been adjusted.
+    var balance = event.modifyAmounts().isEmpty() ? event.amount() : Money.zero;
+    update(new DepositUnitRow(depositUnitId.accountId(), depositUnitId.depositId(), depositUnitId.unitId(), event.amount().toBigDecimal(), balance.toBigDecimal()));
+  }
+
+  void on(DepositUnitEntity.WithdrawnEvent event) {
+    var depositUnit = event.depositUnit();
+    var depositUnitId = depositUnit.depositUnitId();
+    update(new DepositUnitRow(depositUnitId.accountId(), depositUnitId.depositId(), depositUnitId.unitId(), depositUnit.amount().toBigDecimal(), depositUnit.balance().toBigDecimal()));
+  }
+
+  void on(DepositUnitEntity.WithdrawalCancelledEvent event) {
+    var depositUnitId = event.depositUnitId();
+    update(new DepositUnitRow(depositUnitId.accountId(), depositUnitId.depositId(), depositUnitId.unitId(), event.amount().toBigDecimal(), event.balance().toBigDecimal()));
+  }
+
+  // Only loaded accounts are kept current, a partially known account would hide the units of the view.
+  private synchronized void update(DepositUnitRow row) {
+    var accountUnits = accounts.get(row.accountId());
+    if (accountUnits != null) {
+      update(accountUnits, row);
+    }
+  }
+
+  private void update(AccountUnits accountUnits, DepositUnitRow row) {
+    var entityId = row.toEntityId();
+    if (!isAvailable(row)) {
+      accountUnits.units.remove(entityId);
+    } else if (accountUnits.units.containsKey(entityId) || accountUnits.units.size() < maxUnitsPerAccount) {
+      accountUnits.units.put(entityId, row);
+    }
+  }
+
+  private static boolean isAvailable(DepositUnitRow row) {
+    return row.balance() != null && row.balance().compareTo(BigDecimal.ZERO) > 0;
+  }
+
+  private static class AccountUnits {
+    final long loadedAt;
+    final Map<String, DepositUnitRow> units = new LinkedHashMap<>();
+
+    AccountUnits(long loadedAt) {
+      this.loadedAt = loadedAt;
+    }
+  }
+}
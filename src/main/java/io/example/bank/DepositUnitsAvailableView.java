@@ -3,11 +3,12 @@ package io.example.bank;
 import java.math.BigDecimal;
 import java.util.List;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 
+import io.example.Trace;
 import kalix.javasdk.annotations.Query;
 import kalix.javasdk.annotations.Subscribe;
 import kalix.javasdk.annotations.Table;
@@ -18,45 +19,69 @@ import kalix.javasdk.view.View;
 @Table("deposit_units_available")
 @Subscribe.EventSourcedEntity(value = DepositUnitEntity.class, ignoreUnknown = true)
 public class DepositUnitsAvailableView extends View<DepositUnitsAvailableView.DepositUnitRow> {
-  private static final Logger log = LoggerFactory.getLogger(DepositUnitsAvailableView.class);
+  private static final Trace trace = Trace.of(DepositUnitsAvailableView.class);
+  // The LIMIT of getDepositUnitsAvailable, fewer rows are all the available units of the account.
+  static final int maxDepositUnitsAvailable = 100;
 
+  // The largest units first, they are the ones most likely to cover the amounts of the seeks served from the index.
   @GetMapping("/depositUnitsAvailable/{accountId}")
   @Query("""
       SELECT * AS depositUnits
         FROM deposit_units_available
        WHERE accountId = :accountId
          AND balance > 0
+       ORDER BY balance DESC
        Limit 100
       """)
   public DepositUnits getDepositUnitsAvailable(@PathVariable String accountId) {
     return null;
   }
 
+  // The units that cover the amount needed, closest fit first, a page at a time.
+  @PostMapping("/depositUnitsBestFit")
+  @Query("""
+      SELECT * AS depositUnits, next_page_token() AS nextPageToken, has_more() AS hasMore
+        FROM deposit_units_available
+       WHERE accountId = :accountId
+         AND balance >= :amountNeeded
+       ORDER BY balance ASC
+      OFFSET page_token_offset(:pageToken)
+       LIMIT 25
+      """)
+  public DepositUnitsPage getDepositUnitsBestFit(@RequestBody BestFitQuery query) {
+    return null;
+  }
+
   @Override
   public DepositUnitRow emptyState() {
     return DepositUnitRow.emptyState();
   }
 
   public UpdateEffect<DepositUnitRow> on(DepositUnitEntity.ModifiedAmountEvent event) {
-    log.info("State: {}\n_Event: {}", viewState(), event);
+    trace.event(viewState(), event);
     return effects()
         .updateState(viewState().on(event));
   }
 
   public UpdateEffect<DepositUnitRow> on(DepositUnitEntity.WithdrawnEvent event) {
-    log.info("State: {}\n_Event: {}", viewState(), event);
+    trace.event(viewState(), event);
     return effects()
         .updateState(viewState().on(event));
   }
 
   public UpdateEffect<DepositUnitRow> on(DepositUnitEntity.WithdrawalCancelledEvent event) {
-    log.info("State: {}\n_Event: {}", viewState(), event);
+    trace.event(viewState(), event);
     return effects()
         .updateState(viewState().on(event));
   }
 
   public record DepositUnits(List<DepositUnitRow> depositUnits) {}
 
+  public record BestFitQuery(String accountId, BigDecimal amountNeeded, String pageToken) {}
+
+  public record DepositUnitsPage(List<DepositUnitRow> depositUnits, String nextPageToken, boolean hasMore) {}
+
+  // The view schema is derived from the row type, the query compares the balance as a number.
   public record DepositUnitRow(String accountId, String depositId, String unitId, BigDecimal amount, BigDecimal balance) {
 
     public static DepositUnitRow emptyState() {
@@ -64,19 +89,19 @@ public class DepositUnitsAvailableView extends View<DepositUnitsAvailableView.De
     }
 
     public DepositUnitRow on(DepositUnitEntity.ModifiedAmountEvent event) {
-      return new DepositUnitRow(event.depositUnitId().accountId(), event.depositUnitId().depositId(), event.depositUnitId().unitId(), event.amount(), event.amount());
+      return new DepositUnitRow(event.depositUnitId().accountId(), event.depositUnitId().depositId(), event.depositUnitId().unitId(), event.amount().toBigDecimal(), event.amount().toBigDecimal());
     }
 
     public DepositUnitRow on(DepositUnitEntity.WithdrawalCancelledEvent event) {
-      return new DepositUnitRow(accountId, depositId, unitId, amount, event.balance());
+      return new DepositUnitRow(accountId, depositId, unitId, amount, event.balance().toBigDecimal());
     }
 
     public DepositUnitRow on(DepositUnitEntity.WithdrawnEvent event) {
-      return new DepositUnitRow(accountId, depositId, unitId, amount, event.depositUnit().balance());
+      return new DepositUnitRow(accountId, depositId, unitId, amount, event.depositUnit().balance().toBigDecimal());
     }
 
     String toEntityId() {
-      return "%s_%s_%s".formatted(accountId, depositId, unitId);
+      return accountId + "_" + depositId + "_" + unitId;
     }
   }
 }
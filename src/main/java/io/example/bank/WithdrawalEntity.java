@@ -1,16 +1,16 @@
 package io.example.bank;
 
-import java.math.BigDecimal;
 import java.time.LocalDateTime;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PatchMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 
+import io.example.Hops;
+import io.example.Money;
+import io.example.Trace;
 import io.example.Validator;
 import io.grpc.Status;
 import kalix.javasdk.annotations.EventHandler;
@@ -23,7 +23,7 @@ import kalix.javasdk.eventsourcedentity.EventSourcedEntityContext;
 @TypeId("withdrawal")
 @RequestMapping("/withdrawal/{withdrawalId}")
 public class WithdrawalEntity extends EventSourcedEntity<WithdrawalEntity.State, WithdrawalEntity.Event> {
-  private static final Logger log = LoggerFactory.getLogger(WithdrawalEntity.class);
+  private static final Trace trace = Trace.of(WithdrawalEntity.class);
   private final String entityId;
 
   public WithdrawalEntity(EventSourcedEntityContext context) {
@@ -37,7 +37,7 @@ public class WithdrawalEntity extends EventSourcedEntity<WithdrawalEntity.State,
 
   @PostMapping("/create")
   public Effect<String> create(@RequestBody WithdrawalCreateCommand command) {
-    log.info("EntityId: {}\n_State: {}\n_Command: {}", entityId, currentState(), command);
+    trace.command(entityId, currentState(), command);
 
     if (!currentState().isEmpty()) {
       return effects().error("Withdrawal already exists", Status.Code.ALREADY_EXISTS);
@@ -57,16 +57,24 @@ public class WithdrawalEntity extends EventSourcedEntity<WithdrawalEntity.State,
 
   @PatchMapping("/approve")
   public Effect<String> approve(@RequestBody WithdrawalApproveCommand command) {
-    log.info("EntityId: {}\n_State: {}\n_Command: {}", entityId, currentState(), command);
+    trace.command(entityId, currentState(), command);
+    Hops.shared.received(commandContext().metadata(), entityId);
 
+    // A repeated approval must not pick another account tree for the same amount.
+    if (currentState().approved()) {
+      return effects().reply("OK");
+    }
+
+    var accountTreeShape = AccountTreeShapes.shared.shapeFor(command.withdrawalId().accountId());
     return effects()
-        .emitEvent(currentState().eventFor(command))
+        .emitEvent(currentState().eventFor(command, accountTreeShape))
         .thenReply(__ -> "OK");
   }
 
   @PatchMapping("/reject")
   public Effect<String> insufficientFunds(@RequestBody WithdrawalInsufficientFundsCommand command) {
-    log.info("EntityId: {}\n_State: {}\n_Command: {}", entityId, currentState(), command);
+    trace.command(entityId, currentState(), command);
+    Hops.shared.received(commandContext().metadata(), entityId);
 
     return effects()
         .emitEvent(currentState().eventFor(command))
@@ -75,7 +83,7 @@ public class WithdrawalEntity extends EventSourcedEntity<WithdrawalEntity.State,
 
   @GetMapping
   public Effect<State> get() {
-    log.info("EntityId: {}\n_State: {}\n_GetWithdrawal", entityId, currentState());
+    trace.query(entityId, currentState(), "GetWithdrawal");
     return Validator.<Effect<State>>start()
         .isTrue(currentState().isEmpty(), "Withdrawal not found")
         .onError(errorMessage -> effects().error(errorMessage, Status.Code.NOT_FOUND))
@@ -84,19 +92,19 @@ public class WithdrawalEntity extends EventSourcedEntity<WithdrawalEntity.State,
 
   @EventHandler
   public State on(WithdrawalCreatedEvent event) {
-    log.info("EntityId: {}\n_State: {}\n_Event: {}", entityId, currentState(), event);
+    trace.event(entityId, currentState(), event);
     return currentState().on(event);
   }
 
   @EventHandler
   public State on(WithdrawalApprovedEvent event) {
-    log.info("EntityId: {}\n_State: {}\n_Event: {}", entityId, currentState(), event);
+    trace.event(entityId, currentState(), event);
     return currentState().on(event);
   }
 
   @EventHandler
   public State on(WithdrawalInsufficientFundsEvent event) {
-    log.info("EntityId: {}\n_State: {}\n_Event: {}", entityId, currentState(), event);
+    trace.event(entityId, currentState(), event);
     return currentState().on(event);
   }
 
@@ -107,7 +115,12 @@ public class WithdrawalEntity extends EventSourcedEntity<WithdrawalEntity.State,
     }
 
     String toEntityId() {
-      return String.format("%s_%s", accountId, withdrawalId);
+      return accountId + "_" + withdrawalId;
+    }
+
+    // Ties the hops of the withdrawal through its tree, leaves and deposit units together.
+    String correlationId() {
+      return toEntityId();
     }
   }
 
@@ -116,10 +129,10 @@ public class WithdrawalEntity extends EventSourcedEntity<WithdrawalEntity.State,
       boolean approved,
       boolean insufficientFunds,
       LocalDateTime lastUpdated,
-      BigDecimal amount) {
+      Money amount) {
 
     static State emptyState() {
-      return new State(null, false, false, LocalDateTime.of(0, 1, 1, 0, 0), BigDecimal.ZERO);
+      return new State(null, false, false, LocalDateTime.of(0, 1, 1, 0, 0), Money.zero);
     }
 
     boolean isEmpty() {
@@ -130,8 +143,8 @@ public class WithdrawalEntity extends EventSourcedEntity<WithdrawalEntity.State,
       return new WithdrawalCreatedEvent(command.withdrawalId(), command.amount());
     }
 
-    Event eventFor(WithdrawalApproveCommand command) {
-      return new WithdrawalApprovedEvent(command.withdrawalId(), amount);
+    Event eventFor(WithdrawalApproveCommand command, AccountRedTreeEntity.TreeShape accountTreeShape) {
+      return new WithdrawalApprovedEvent(command.withdrawalId(), amount, accountTreeShape);
     }
 
     Event eventFor(WithdrawalInsufficientFundsCommand command) {
@@ -153,13 +166,14 @@ public class WithdrawalEntity extends EventSourcedEntity<WithdrawalEntity.State,
 
   public interface Event {}
 
-  public record WithdrawalCreateCommand(WithdrawalId withdrawalId, BigDecimal amount) {}
+  public record WithdrawalCreateCommand(WithdrawalId withdrawalId, Money amount) {}
 
-  public record WithdrawalCreatedEvent(WithdrawalId withdrawalId, BigDecimal amount) implements Event {}
+  public record WithdrawalCreatedEvent(WithdrawalId withdrawalId, Money amount) implements Event {}
 
   public record WithdrawalApproveCommand(WithdrawalId withdrawalId) {}
 
-  public record WithdrawalApprovedEvent(WithdrawalId withdrawalId, BigDecimal amount) implements Event {}
+  // The accountTreeShape is null in the events of withdrawals approved before account trees were shaped per account.
+  public record WithdrawalApprovedEvent(WithdrawalId withdrawalId, Money amount, AccountRedTreeEntity.TreeShape accountTreeShape) implements Event {}
 
   public record WithdrawalInsufficientFundsCommand(WithdrawalId withdrawalId) {}
 
@@ -1,18 +1,27 @@
 package io.example.bank;
 
-import java.math.BigDecimal;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.stream.Stream;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PatchMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+import io.example.CompactJson;
+import io.example.Hops;
+import io.example.Ids;
+import io.example.KeyedAggregate;
+import io.example.Metrics;
+import io.example.Money;
+import io.example.Settings;
+import io.example.Trace;
 import io.example.Validator;
 import io.example.bank.DepositUnitEntity.DepositUnitId;
 import io.example.bank.WithdrawalRedTreeEntity.WithdrawalRedTreeId;
@@ -27,7 +36,8 @@ import kalix.javasdk.eventsourcedentity.EventSourcedEntityContext;
 @TypeId("withdrawalRedLeaf")
 @RequestMapping("/withdrawalRedLeaf/{withdrawalRedLeafId}")
 public class WithdrawalRedLeafEntity extends EventSourcedEntity<WithdrawalRedLeafEntity.State, WithdrawalRedLeafEntity.Event> {
-  private static final Logger log = LoggerFactory.getLogger(WithdrawalRedLeafEntity.class);
+  private static final Trace trace = Trace.of(WithdrawalRedLeafEntity.class);
+  static final int maxSeeksPerLeaf = Settings.config().getInt("withdrawal-red-leaf.max-seeks-per-leaf");
   private final String entityId;
 
   public WithdrawalRedLeafEntity(EventSourcedEntityContext context) {
@@ -41,7 +51,8 @@ public class WithdrawalRedLeafEntity extends EventSourcedEntity<WithdrawalRedLea
 
   @PostMapping("/create")
   public Effect<String> create(@RequestBody LeafCreateCommand command) {
-    log.info("EntityId: {}\n_State: {}\n_Command: {}", entityId, currentState(), command);
+    trace.command(entityId, currentState(), command);
+    Hops.shared.received(commandContext().metadata(), entityId);
 
     if (!currentState().isEmpty()) {
       return effects().reply("OK");
@@ -54,25 +65,41 @@ public class WithdrawalRedLeafEntity extends EventSourcedEntity<WithdrawalRedLea
 
   @PatchMapping("/depositFound")
   public Effect<String> depositFound(@RequestBody DepositFoundCommand command) {
-    log.info("EntityId: {}\n_State: {}\n_Command: {}", entityId, currentState(), command);
+    trace.command(entityId, currentState(), command);
+    Hops.shared.received(commandContext().metadata(), entityId);
+
+    var events = currentState().eventsFor(command);
+    for (var event : events) {
+      if (event instanceof DepositSeekEvent) {
+        Metrics.count("bank.leaf.seek.retries");
+      } else if (event instanceof FullyFundedEvent) {
+        Metrics.record("bank.leaf.deposit.units", currentState().depositUnits().size() + 1);
+      } else if (event instanceof DepositReleasedEvent) {
+        Metrics.count("bank.leaf.overshoot.released");
+      } else if (event instanceof InsufficientFundsEvent) {
+        Metrics.count("bank.leaf.seek.budget.exhausted");
+      }
+    }
 
     return effects()
-        .emitEvents(currentState().eventsFor(command))
+        .emitEvents(events)
         .thenReply(__ -> "OK");
   }
 
   @PatchMapping("/depositNotFound")
   public Effect<String> noDepositsAvailable(@RequestBody NoDepositsAvailableCommand command) {
-    log.info("EntityId: {}\n_State: {}\n_Command: {}", entityId, currentState(), command);
+    trace.command(entityId, currentState(), command);
+    Hops.shared.received(commandContext().metadata(), entityId);
 
     return effects()
-        .emitEvent(currentState().eventFor(command))
+        .emitEvents(currentState().eventsFor(command))
         .thenReply(__ -> "OK");
   }
 
   @PatchMapping("/cancelWithdrawal")
   public Effect<String> cancelWithdrawal(@RequestBody CancelWithdrawalCommand command) {
-    log.info("EntityId: {}\n_State: {}\n_Command: {}", entityId, currentState(), command);
+    trace.command(entityId, currentState(), command);
+    Hops.shared.received(commandContext().metadata(), entityId);
 
     return effects()
         .emitEvent(currentState().eventFor(command))
@@ -81,7 +108,7 @@ public class WithdrawalRedLeafEntity extends EventSourcedEntity<WithdrawalRedLea
 
   @GetMapping
   public Effect<State> get() {
-    log.info("EntityId: {}\n_State: {}\n_GetWithdrawal", entityId, currentState());
+    trace.query(entityId, currentState(), "GetWithdrawal");
 
     return Validator.<Effect<State>>start()
         .isTrue(currentState().isEmpty(), "WithdrawalRedLeaf not found")
@@ -91,49 +118,65 @@ public class WithdrawalRedLeafEntity extends EventSourcedEntity<WithdrawalRedLea
 
   @EventHandler
   public State on(LeafCreatedEvent event) {
-    log.info("EntityId: {}\n_State: {}\n_Event: {}", entityId, currentState(), event);
+    trace.event(entityId, currentState(), event);
     return currentState().on(event);
   }
 
   @EventHandler
   public State on(DepositSeekEvent event) {
-    log.info("EntityId: {}\n_State: {}\n_Event: {}", entityId, currentState(), event);
+    trace.event(entityId, currentState(), event);
     return currentState().on(event);
   }
 
   @EventHandler
   public State on(DepositFoundEvent event) {
-    log.info("EntityId: {}\n_State: {}\n_Event: {}", entityId, currentState(), event);
+    trace.event(entityId, currentState(), event);
+    return currentState().on(event);
+  }
+
+  @EventHandler
+  public State on(DepositReleasedEvent event) {
+    trace.event(entityId, currentState(), event);
     return currentState().on(event);
   }
 
   @EventHandler
   public State on(FullyFundedEvent event) {
-    log.info("EntityId: {}\n_State: {}\n_Event: {}", entityId, currentState(), event);
+    trace.event(entityId, currentState(), event);
     return currentState().on(event);
   }
 
   @EventHandler
   public State on(InsufficientFundsEvent event) {
-    log.info("EntityId: {}\n_State: {}\n_Event: {}", entityId, currentState(), event);
+    trace.event(entityId, currentState(), event);
     return currentState().on(event);
   }
 
   @EventHandler
   public State on(CanceledWithdrawalEvent event) {
-    log.info("EntityId: {}\n_State: {}\n_Event: {}", entityId, currentState(), event);
+    trace.event(entityId, currentState(), event);
     return currentState().on(event);
   }
 
+  @JsonSerialize(using = CompactJson.Serializer.class)
+  @JsonDeserialize(using = CompactJson.Deserializer.class)
   public record WithdrawalRedLeafId(String accountId, String withdrawalId, String leafId) {
+    public WithdrawalRedLeafId {
+      accountId = Ids.intern(accountId);
+    }
+
     boolean isEmpty() {
       return accountId == null || accountId.isEmpty()
           || withdrawalId == null || withdrawalId.isEmpty()
           || leafId == null || leafId.isEmpty();
     }
 
+    String correlationId() {
+      return new WithdrawalEntity.WithdrawalId(accountId, withdrawalId).correlationId();
+    }
+
     String toEntityId() {
-      return "%s_%s_%s".formatted(accountId, withdrawalId, leafId);
+      return accountId + "_" + withdrawalId + "_" + leafId;
     }
 
     static WithdrawalRedLeafId from(WithdrawalRedTreeEntity.WithdrawalRedTreeId withdrawalRedTreeId) {
@@ -145,44 +188,111 @@ public class WithdrawalRedLeafEntity extends EventSourcedEntity<WithdrawalRedLea
       WithdrawalRedLeafId withdrawalRedLeafId,
       WithdrawalRedTreeId parentBranchId,
       LocalDateTime lastUpdated,
-      BigDecimal amountToWithdraw,
-      BigDecimal amountWithdrawn,
-      List<DepositUnit> depositUnits) {
+      Money amountToWithdraw,
+      Money amountWithdrawn,
+      KeyedAggregate<DepositUnitId, DepositUnit> depositUnits,
+      Money amountSeeking,
+      int seeks,
+      boolean insufficientFunds,
+      boolean canceled) implements Trace.Summary {
+
+    // The amountSeeking is null in the snapshots taken before seeks withdrew from several units.
+    public State {
+      amountSeeking = amountSeeking == null ? Money.zero : amountSeeking;
+    }
 
     static State emptyState() {
-      return new State(null, null, LocalDateTime.of(0, 1, 1, 0, 0), BigDecimal.ZERO, BigDecimal.ZERO, List.of());
+      return new State(null, null, LocalDateTime.of(0, 1, 1, 0, 0), Money.zero, Money.zero, KeyedAggregate.empty(), Money.zero, 0, false, false);
+    }
+
+    @Override
+    public String summary() {
+      return "State[withdrawalRedLeafId=%s, amountToWithdraw=%s, amountWithdrawn=%s, amountSeeking=%s, seeks=%d, insufficientFunds=%s, canceled=%s, depositUnits=%d]"
+          .formatted(withdrawalRedLeafId, amountToWithdraw, amountWithdrawn, amountSeeking, seeks, insufficientFunds, canceled, depositUnits.size());
     }
 
     boolean isEmpty() {
       return withdrawalRedLeafId == null || withdrawalRedLeafId.isEmpty();
     }
 
+    boolean isFunded() {
+      return !isEmpty() && !isTerminal() && amountWithdrawn.compareTo(amountToWithdraw) >= 0;
+    }
+
+    // A leaf that has insufficient funds or is canceled neither seeks nor is funded again.
+    boolean isTerminal() {
+      return insufficientFunds || canceled;
+    }
+
     List<Event> eventsFor(LeafCreateCommand command) {
       if (isEmpty()) {
         return List.of(
             new LeafCreatedEvent(command.withdrawalRedLeafId(), command.parentBranchId(), command.amount()),
-            new DepositSeekEvent(command.withdrawalRedLeafId(), command.amount()));
+            new DepositSeekEvent(command.withdrawalRedLeafId(), command.amount(), 1));
       }
       return List.of();
     }
 
+    // Units found beyond the amount or after the leaf is done are released.
     List<Event> eventsFor(DepositFoundCommand command) {
-      var newState = on(new DepositFoundEvent(command.withdrawalRedLeafId(), command.depositUnit(), BigDecimal.ZERO, List.of()));
-      var foundEvent = new DepositFoundEvent(command.withdrawalRedLeafId(), command.depositUnit(), amountToWithdraw, newState.depositUnits);
-      if (newState.amountWithdrawn().compareTo(newState.amountToWithdraw()) >= 0) {
-        var fullyFundedEvent = new FullyFundedEvent(command.withdrawalRedLeafId(), parentBranchId, newState.amountWithdrawn());
-        return List.of(foundEvent, fullyFundedEvent);
+      return eventsFor(command, maxSeeksPerLeaf);
+    }
+
+    List<Event> eventsFor(DepositFoundCommand command, int maxSeeks) {
+      var depositUnit = command.depositUnit();
+      if (isDuplicate(depositUnit)) {
+        return List.of();
+      }
+      if (isTerminal() || isFunded() && !depositUnits.contains(depositUnit.depositUnitId())) {
+        return depositUnit.amount().isZero()
+            ? List.of()
+            : List.of(new DepositReleasedEvent(command.withdrawalRedLeafId(), depositUnit));
       }
-      var seekEvent = new DepositSeekEvent(command.withdrawalRedLeafId(), newState.amountToWithdraw().subtract(newState.amountWithdrawn()));
-      return List.of(foundEvent, seekEvent);
+      // The leaf keeps no more of the unit than it needs, the rest is released back to the unit.
+      var held = depositUnits.get(depositUnit.depositUnitId()).map(DepositUnit::amount).orElse(Money.zero);
+      var excess = amountWithdrawn.minus(held).plus(depositUnit.amount()).minus(amountToWithdraw).max(Money.zero);
+      var kept = excess.isPositive()
+          ? new DepositUnit(depositUnit.depositUnitId(), depositUnit.amount().minus(excess).max(Money.zero), depositUnit.requestId())
+          : depositUnit;
+      var newState = on(new DepositFoundEvent(command.withdrawalRedLeafId(), kept, amountToWithdraw, null, command.amountRequested(), null));
+      var events = new ArrayList<Event>();
+      events.add(new DepositFoundEvent(command.withdrawalRedLeafId(), kept, amountToWithdraw, newState.amountWithdrawn, command.amountRequested(), null));
+      if (excess.isPositive()) {
+        events.add(new DepositReleasedEvent(command.withdrawalRedLeafId(), depositUnit, kept.amount()));
+      }
+      if (newState.isFunded()) {
+        events.add(new FullyFundedEvent(command.withdrawalRedLeafId(), parentBranchId, newState.amountWithdrawn()));
+        return events;
+      }
+      if (newState.amountSeeking().isPositive()) {
+        return events;
+      }
+      if (newState.seeks() >= maxSeeks) {
+        events.add(new InsufficientFundsEvent(command.withdrawalRedLeafId(), parentBranchId));
+        return events;
+      }
+      events.add(new DepositSeekEvent(command.withdrawalRedLeafId(), newState.amountToWithdraw().minus(newState.amountWithdrawn()), newState.seeks() + 1));
+      return events;
     }
 
-    Event eventFor(NoDepositsAvailableCommand command) {
-      return new InsufficientFundsEvent(command.withdrawalRedLeafId(), parentBranchId);
+    // A redelivered withdrawal of a unit has the request id the leaf last applied for it.
+    private boolean isDuplicate(DepositUnit depositUnit) {
+      return depositUnit.requestId() != null && depositUnits.get(depositUnit.depositUnitId())
+          .map(DepositUnit::requestId)
+          .filter(depositUnit.requestId()::equals)
+          .isPresent();
+    }
+
+    // Ignored when the other withdrawals of the seek funded the leaf or it is done.
+    List<Event> eventsFor(NoDepositsAvailableCommand command) {
+      if (isTerminal() || isFunded()) {
+        return List.of();
+      }
+      return List.of(new InsufficientFundsEvent(command.withdrawalRedLeafId(), parentBranchId));
     }
 
     Event eventFor(CancelWithdrawalCommand command) {
-      return new CanceledWithdrawalEvent(command.withdrawalRedLeafId(), depositUnits);
+      return new CanceledWithdrawalEvent(command.withdrawalRedLeafId(), depositUnits.entries());
     }
 
     State on(LeafCreatedEvent event) {
@@ -192,24 +302,37 @@ public class WithdrawalRedLeafEntity extends EventSourcedEntity<WithdrawalRedLea
             event.parentBranchId(),
             LocalDateTime.now(),
             event.amount(),
-            BigDecimal.ZERO,
-            List.of());
+            Money.zero,
+            KeyedAggregate.empty(),
+            Money.zero,
+            0,
+            false,
+            false);
       }
       return this;
     }
 
     State on(DepositSeekEvent event) {
-      return this;
+      return new State(
+          withdrawalRedLeafId,
+          parentBranchId,
+          lastUpdated,
+          amountToWithdraw,
+          amountWithdrawn,
+          depositUnits,
+          amountSeeking.plus(event.amountNeeded()),
+          seeks + 1,
+          insufficientFunds,
+          canceled);
     }
 
+    // A found event without the amount requested was written when a seek withdrew from one unit, it ends the seek.
     State on(DepositFoundEvent event) {
-      var filteredDepositUnits = depositUnits.stream()
-          .filter(depositUnit -> !depositUnit.depositUnitId().equals(event.depositUnit().depositUnitId()))
-          .toList();
-      var newDepositUnits = Stream.concat(filteredDepositUnits.stream(), Stream.of(event.depositUnit())).toList();
-      var newAmountWithdrawn = newDepositUnits.stream()
-          .map(DepositUnit::amount)
-          .reduce(BigDecimal.ZERO, BigDecimal::add);
+      var newDepositUnits = depositUnits.put(event.depositUnit());
+      var newAmountWithdrawn = newDepositUnits.total();
+      var newAmountSeeking = event.amountRequested() == null
+          ? Money.zero
+          : amountSeeking.minus(event.amountRequested()).max(Money.zero);
 
       return new State(
           withdrawalRedLeafId,
@@ -217,7 +340,15 @@ public class WithdrawalRedLeafEntity extends EventSourcedEntity<WithdrawalRedLea
           LocalDateTime.now(),
           amountToWithdraw,
           newAmountWithdrawn,
-          newDepositUnits);
+          newDepositUnits,
+          newAmountSeeking,
+          seeks,
+          insufficientFunds,
+          canceled);
+    }
+
+    State on(DepositReleasedEvent event) {
+      return this;
     }
 
     State on(FullyFundedEvent event) {
@@ -225,7 +356,17 @@ public class WithdrawalRedLeafEntity extends EventSourcedEntity<WithdrawalRedLea
     }
 
     State on(InsufficientFundsEvent event) {
-      return this;
+      return new State(
+          withdrawalRedLeafId,
+          parentBranchId,
+          lastUpdated,
+          amountToWithdraw,
+          amountWithdrawn,
+          depositUnits,
+          Money.zero,
+          seeks,
+          true,
+          canceled);
     }
 
     State on(CanceledWithdrawalEvent event) {
@@ -234,26 +375,77 @@ public class WithdrawalRedLeafEntity extends EventSourcedEntity<WithdrawalRedLea
           parentBranchId,
           LocalDateTime.now(),
           amountToWithdraw,
-          BigDecimal.ZERO,
-          List.of());
+          Money.zero,
+          KeyedAggregate.empty(),
+          Money.zero,
+          seeks,
+          insufficientFunds,
+          true);
     }
   }
 
   public interface Event {}
 
-  public record LeafCreateCommand(WithdrawalRedLeafId withdrawalRedLeafId, WithdrawalRedTreeId parentBranchId, BigDecimal amount) {}
+  public record LeafCreateCommand(WithdrawalRedLeafId withdrawalRedLeafId, WithdrawalRedTreeId parentBranchId, Money amount) {}
+
+  public record LeafCreatedEvent(WithdrawalRedLeafId withdrawalRedLeafId, WithdrawalRedTreeId parentBranchId, Money amount) implements Event {}
 
-  public record LeafCreatedEvent(WithdrawalRedLeafId withdrawalRedLeafId, WithdrawalRedTreeId parentBranchId, BigDecimal amount) implements Event {}
+  // The seek is the number of the seek of the leaf, it is 0 in the events written before it was counted.
+  public record DepositSeekEvent(WithdrawalRedLeafId withdrawalRedLeafId, Money amountNeeded, int seek) implements Event {}
 
-  public record DepositSeekEvent(WithdrawalRedLeafId withdrawalRedLeafId, BigDecimal amountNeeded) implements Event {}
+  @JsonSerialize(using = CompactJson.Serializer.class)
+  @JsonDeserialize(using = CompactJson.Deserializer.class)
+  // The requestId is the withdrawal of the unit the leaf last applied, null in the units found before it was added.
+  public record DepositUnit(DepositUnitId depositUnitId, Money amount, String requestId) implements KeyedAggregate.Entry<DepositUnitId> {
+    public DepositUnit(DepositUnitId depositUnitId, Money amount) {
+      this(depositUnitId, amount, null);
+    }
+
+    @Override
+    public DepositUnitId aggregateKey() {
+      return depositUnitId;
+    }
 
-  public record DepositUnit(DepositUnitId depositUnitId, BigDecimal amount) {}
+    @Override
+    public Money aggregateAmount() {
+      return amount;
+    }
+  }
 
-  public record DepositFoundCommand(WithdrawalRedLeafId withdrawalRedLeafId, DepositUnit depositUnit) {}
+  // The amountRequested is the part of the seek that was asked of the deposit unit.
+  public record DepositFoundCommand(WithdrawalRedLeafId withdrawalRedLeafId, DepositUnit depositUnit, Money amountRequested) {
+    public DepositFoundCommand(WithdrawalRedLeafId withdrawalRedLeafId, DepositUnit depositUnit) {
+      this(withdrawalRedLeafId, depositUnit, null);
+    }
+  }
 
-  public record DepositFoundEvent(WithdrawalRedLeafId withdrawalRedLeafId, DepositUnit depositUnit, BigDecimal amountToWithdraw, List<DepositUnit> depositUnits) implements Event {}
+  // Events written before amountWithdrawn carry the full list of deposit units instead.
+  public record DepositFoundEvent(
+      WithdrawalRedLeafId withdrawalRedLeafId,
+      DepositUnit depositUnit,
+      Money amountToWithdraw,
+      Money amountWithdrawn,
+      @JsonInclude(JsonInclude.Include.NON_NULL) Money amountRequested,
+      @JsonInclude(JsonInclude.Include.NON_NULL) List<DepositUnit> depositUnits) implements Event {
+
+    Money leafAmountWithdrawn() {
+      if (amountWithdrawn != null) {
+        return amountWithdrawn;
+      }
+      return depositUnits.stream()
+          .map(DepositUnit::amount)
+          .reduce(Money.zero, Money::plus);
+    }
+  }
+
+  // The amountKept is what the leaf keeps of the unit, null when it keeps none of it.
+  public record DepositReleasedEvent(WithdrawalRedLeafId withdrawalRedLeafId, DepositUnit depositUnit, Money amountKept) implements Event {
+    public DepositReleasedEvent(WithdrawalRedLeafId withdrawalRedLeafId, DepositUnit depositUnit) {
+      this(withdrawalRedLeafId, depositUnit, null);
+    }
+  }
 
-  public record FullyFundedEvent(WithdrawalRedLeafId withdrawalRedLeafId, WithdrawalRedTreeId parentBranchId, BigDecimal amount) implements Event {}
+  public record FullyFundedEvent(WithdrawalRedLeafId withdrawalRedLeafId, WithdrawalRedTreeId parentBranchId, Money amount) implements Event {}
 
   public record NoDepositsAvailableCommand(WithdrawalRedLeafId withdrawalRedLeafId) {}
 
@@ -1,25 +1,39 @@
 package io.example.bank;
 
+import java.time.Duration;
 import java.util.List;
-import java.util.Random;
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
+import java.util.stream.IntStream;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
+import io.example.Calls;
+import io.example.Hops;
+import io.example.Metrics;
+import io.example.Money;
+import io.example.Settings;
+import io.example.Trace;
+import io.example.bank.DepositUnitAssignment.Withdrawal;
 import io.example.bank.DepositUnitEntity.WithdrawalCancelCommand;
-import io.example.bank.WithdrawalRedLeafEntity.CanceledWithdrawalEvent;
+import io.example.bank.DepositUnitsAvailableView.DepositUnitRow;
 import io.example.bank.WithdrawalRedLeafEntity.DepositSeekEvent;
 import io.example.bank.WithdrawalRedLeafEntity.DepositUnit;
+import io.example.bank.WithdrawalRedLeafEntity.WithdrawalRedLeafId;
 import kalix.javasdk.action.Action;
 import kalix.javasdk.annotations.Subscribe;
 import kalix.javasdk.client.ComponentClient;
 
+// The one subscriber to the withdrawal leaf events.
 @Subscribe.EventSourcedEntity(value = WithdrawalRedLeafEntity.class, ignoreUnknown = true)
 public class WithdrawalRedLeafToDepositUnitAction extends Action {
-  private static final Logger log = LoggerFactory.getLogger(WithdrawalRedLeafToDepositUnitAction.class);
-  private static final Random random = new Random();
+  private static final Trace trace = Trace.of(WithdrawalRedLeafToDepositUnitAction.class);
+  static final int bestFitMaxPages = Settings.config().getInt("withdrawal-red-leaf.best-fit-max-pages");
+  static final int maxUnitsPerSeek = Settings.config().getInt("withdrawal-red-leaf.max-units-per-seek");
+  static final int nackRetries = Settings.config().getInt("withdrawal-red-leaf.nack-retries");
+  static final Duration backoffMin = Settings.config().getDuration("withdrawal-red-leaf.backoff-min");
+  static final Duration backoffMax = Settings.config().getDuration("withdrawal-red-leaf.backoff-max");
+  private final DepositUnitsAvailableIndex index = DepositUnitsAvailableIndex.shared;
+  private final Hops hops = Hops.shared;
   private final ComponentClient componentClient;
 
   public WithdrawalRedLeafToDepositUnitAction(ComponentClient componentClient) {
@@ -27,71 +41,248 @@ public class WithdrawalRedLeafToDepositUnitAction extends Action {
   }
 
   public Effect<String> on(WithdrawalRedLeafEntity.DepositSeekEvent event) {
-    log.info("Event: {}", event);
-    return effects().asyncReply(queryView(event));
+    trace.event(event);
+    var seek = Seek.of(event);
+    return effects().asyncReply(seek(seek)
+        .thenCompose(withdrawn -> withdrawn ? CompletableFuture.completedFuture("OK") : callFor(seek)));
   }
 
   public Effect<String> on(WithdrawalRedLeafEntity.CanceledWithdrawalEvent event) {
-    log.info("Event: {}", event);
+    trace.event(event);
 
     var results = event.depositUnits().stream()
-        .map(depositUnit -> toCommand(event, depositUnit))
-        .map(command -> callFor(command))
+        .map(depositUnit -> toCommand(event.withdrawalRedLeafId(), depositUnit))
+        .map(command -> callFor(event.withdrawalRedLeafId(), command))
         .toList();
+    Metrics.fanOut(WithdrawalRedLeafToDepositUnitAction.class, results.size());
 
     return effects().asyncReply(waitForCallsToComplete(results));
   }
 
-  private CompletionStage<String> queryView(DepositSeekEvent event) {
-    return componentClient.forView()
+  // A deposit unit found after the leaf was funded, or the part of one beyond its amount, is released.
+  public Effect<String> on(WithdrawalRedLeafEntity.DepositReleasedEvent event) {
+    trace.event(event);
+
+    var command = new DepositUnitEntity.WithdrawalCancelCommand(event.depositUnit().depositUnitId(), event.withdrawalRedLeafId(), event.amountKept());
+    return effects().asyncReply(callFor(event.withdrawalRedLeafId(), command));
+  }
+
+  public Effect<String> on(WithdrawalRedLeafEntity.FullyFundedEvent event) {
+    trace.event(event);
+
+    if (event.parentBranchId() == null) {
+      return approveWithdrawal(event);
+    }
+
+    var withdrawalRedLeafId = event.withdrawalRedLeafId();
+    var subbranchId = new WithdrawalRedTreeEntity.WithdrawalRedTreeId(withdrawalRedLeafId.accountId(), withdrawalRedLeafId.withdrawalId(), withdrawalRedLeafId.leafId());
+    var subbranch = new WithdrawalRedTreeEntity.Subbranch(subbranchId, event.amount(), event.amount());
+    var command = new WithdrawalRedTreeEntity.UpdateAmountWithdrawnCommand(event.parentBranchId(), subbranch);
+
+    return effects()
+        .forward(hops.forward(withdrawalRedLeafId.correlationId(), withdrawalRedLeafId.toEntityId(),
+            WithdrawalRedTreeEntity.class, command.withdrawalRedTreeId().toEntityId(), "updateAmountWithdrawn",
+            componentClient.forEventSourcedEntity(command.withdrawalRedTreeId().toEntityId())
+                .call(WithdrawalRedTreeEntity::updateAmountWithdrawn)
+                .params(command)));
+  }
+
+  public Effect<String> on(WithdrawalRedLeafEntity.InsufficientFundsEvent event) {
+    trace.event(event);
+    Metrics.count("bank.insufficient.funds", "level", "leaf");
+
+    if (event.parentBranchId() == null) {
+      return rejectWithdrawal(event);
+    }
+
+    var withdrawalRedLeafId = event.withdrawalRedLeafId();
+    var command = new WithdrawalRedTreeEntity.InsufficientFundsCommand(event.parentBranchId());
+
+    return effects()
+        .forward(hops.forward(withdrawalRedLeafId.correlationId(), withdrawalRedLeafId.toEntityId(),
+            WithdrawalRedTreeEntity.class, command.withdrawalRedTreeId().toEntityId(), "insufficientFunds",
+            componentClient.forEventSourcedEntity(command.withdrawalRedTreeId().toEntityId())
+                .call(WithdrawalRedTreeEntity::insufficientFunds)
+                .params(command)));
+  }
+
+  // False when a part was not withdrawn, the leaf hears of it once all withdrawals replied.
+  private CompletionStage<Boolean> seek(Seek seek) {
+    var depositUnits = index.depositUnitsAvailable(seek.withdrawalRedLeafId().accountId());
+    Metrics.count("bank.seek.index", "result", depositUnits.isPresent() ? "hit" : "miss");
+    if (depositUnits.isPresent()) {
+      return seek(seek, depositUnits.get(), false);
+    }
+    return queryView(seek);
+  }
+
+  private CompletionStage<Boolean> queryView(Seek seek) {
+    return Metrics.timed(DepositUnitsAvailableView.class, "getDepositUnitsAvailable", () -> componentClient.forView()
         .call(DepositUnitsAvailableView::getDepositUnitsAvailable)
-        .params(event.withdrawalRedLeafId().accountId())
-        .execute()
-        .thenCompose(queryResults -> processQueryResults(event, queryResults));
+        .params(seek.withdrawalRedLeafId().accountId())
+        .execute())
+        .thenCompose(queryResults -> {
+          index.rebuild(seek.withdrawalRedLeafId().accountId(), queryResults.depositUnits());
+          var complete = queryResults.depositUnits().size() < DepositUnitsAvailableView.maxDepositUnitsAvailable;
+          return seek(seek, queryResults.depositUnits(), complete);
+        });
+  }
+
+  // Units that cover the amount together are withdrawn from concurrently, else the best fit unit alone.
+  private CompletionStage<Boolean> seek(Seek seek, List<DepositUnitRow> depositUnits, boolean complete) {
+    var withdrawals = DepositUnitAssignment.plan(depositUnits, seek.withdrawalRedLeafId(), seek.amountNeeded(), maxUnitsPerSeek);
+    if (withdrawals.isEmpty() || complete || DepositUnitAssignment.covers(withdrawals)) {
+      return processAssigned(seek, depositUnits.size(), withdrawals);
+    }
+
+    return queryBestFit(seek, "", 1)
+        .thenCompose(bestFit -> {
+          Metrics.count("bank.seek.best.fit", "result", bestFit.isPresent() ? "found" : "none");
+          return processAssigned(seek, depositUnits.size(), bestFit
+              .map(row -> List.of(new Withdrawal(row, seek.amountNeeded())))
+              .orElse(withdrawals));
+        });
+  }
+
+  // Skips units known here to be reserved or drained, up to bestFitMaxPages pages.
+  private CompletionStage<Optional<DepositUnitRow>> queryBestFit(Seek seek, String pageToken, int page) {
+    var leafId = seek.withdrawalRedLeafId();
+    var query = new DepositUnitsAvailableView.BestFitQuery(leafId.accountId(), seek.amountNeeded().toBigDecimal(), pageToken);
+    return Metrics.timed(DepositUnitsAvailableView.class, "getDepositUnitsBestFit", () -> componentClient.forView()
+        .call(DepositUnitsAvailableView::getDepositUnitsBestFit)
+        .params(query)
+        .execute())
+        .thenCompose(queryResults -> {
+          var depositUnits = queryResults.depositUnits().stream()
+              .map(index::current)
+              .filter(row -> DepositUnitAssignment.covers(row, seek.amountNeeded()))
+              .toList();
+          if (!depositUnits.isEmpty()) {
+            return CompletableFuture.completedFuture(DepositUnitAssignment.assign(depositUnits, leafId, seek.amountNeeded()));
+          }
+          if (queryResults.hasMore() && page < bestFitMaxPages) {
+            return queryBestFit(seek, queryResults.nextPageToken(), page + 1);
+          }
+          return CompletableFuture.completedFuture(Optional.<DepositUnitRow>empty());
+        });
   }
 
-  private CompletionStage<String> processQueryResults(DepositSeekEvent event, DepositUnitsAvailableView.DepositUnits queryReply) {
-    var count = queryReply.depositUnits().size();
+  private CompletionStage<Boolean> processAssigned(Seek seek, int count, List<Withdrawal> withdrawals) {
+    if (!withdrawals.isEmpty()) {
+      trace.info("Found {} deposit units\n_seek {}\n_attempt to withdraw from {}", count, seek, withdrawals);
+      withdrawals.forEach(withdrawal -> index.reserve(withdrawal.depositUnit(), withdrawal.amount()));
+      var results = IntStream.range(0, withdrawals.size())
+          .mapToObj(i -> callFor(seek, withdrawals.get(i), seek.requestId(i))
+              .thenCompose(reply -> DepositUnitEntity.nack.equals(reply) ? retry(seek, withdrawals.get(i), i) : CompletableFuture.completedFuture(true)))
+          .map(CompletionStage::toCompletableFuture)
+          .toList();
+      Metrics.fanOut(WithdrawalRedLeafToDepositUnitAction.class, results.size());
+      return CompletableFuture.allOf(results.toArray(CompletableFuture[]::new))
+          .thenApply(__ -> results.stream().allMatch(CompletableFuture::join));
+    }
+
+    trace.info("No deposit units found\n_seek {}", seek);
+    return CompletableFuture.completedFuture(false);
+  }
 
-    if (count > 0) {
-      var depositUnitRow = queryReply.depositUnits().get(random.nextInt(count));
-      log.info("Found {} deposit units\n_event {}\n_attempt to withdraw from {}", count, event, depositUnitRow);
-      return callFor(event, depositUnitRow);
+  // A unit that gave nothing is sought again on other units after a backoff, up to the retry limit.
+  private CompletionStage<Boolean> retry(Seek seek, Withdrawal withdrawal, int i) {
+    Metrics.count("bank.seek.wasted.calls", "reply", "nack");
+    index.reserve(withdrawal.depositUnit(), Money.of(withdrawal.depositUnit().balance()));
+    if (seek.attempt() >= nackRetries) {
+      Metrics.count("bank.seek.retries.exhausted");
+      return CompletableFuture.completedFuture(false);
     }
 
-    log.info("No deposit units found\n_event {}", event);
-    return callFor(event);
+    var delay = Calls.backoff(seek.attempt(), backoffMin, backoffMax);
+    Metrics.count("bank.seek.backoff.retries", "attempt", Integer.toString(seek.attempt() + 1));
+    Metrics.record("bank.seek.backoff.millis", delay.toMillis());
+    var retrySeek = new Seek(seek.withdrawalRedLeafId(), withdrawal.amount(), seek.requestId(i), seek.attempt() + 1);
+    return Calls.after(delay, () -> seek(retrySeek));
+  }
+
+  private CompletionStage<String> callFor(Seek seek, Withdrawal withdrawal, String requestId) {
+    var command = new DepositUnitEntity.WithdrawCommand(seek.withdrawalRedLeafId(), withdrawal.amount(), requestId);
+    var leafId = seek.withdrawalRedLeafId();
+    var row = withdrawal.depositUnit();
+    return Metrics.timed(DepositUnitEntity.class, "withdraw", () -> hops.execute(leafId.correlationId(), leafId.toEntityId(),
+        DepositUnitEntity.class, row.toEntityId(), "withdraw",
+        componentClient.forEventSourcedEntity(row.toEntityId())
+            .call(DepositUnitEntity::withdraw)
+            .params(command)));
   }
 
-  private CompletionStage<String> callFor(DepositSeekEvent event, DepositUnitsAvailableView.DepositUnitRow row) {
-    var command = new DepositUnitEntity.WithdrawCommand(event.withdrawalRedLeafId(), event.amountNeeded());
-    return componentClient.forEventSourcedEntity(row.toEntityId())
-        .call(DepositUnitEntity::withdraw)
-        .params(command)
-        .execute();
+  private CompletionStage<String> callFor(Seek seek) {
+    var command = new WithdrawalRedLeafEntity.NoDepositsAvailableCommand(seek.withdrawalRedLeafId());
+    var leafId = seek.withdrawalRedLeafId();
+    return Metrics.timed(WithdrawalRedLeafEntity.class, "noDepositsAvailable", () -> hops.execute(leafId.correlationId(), leafId.toEntityId(),
+        WithdrawalRedLeafEntity.class, leafId.toEntityId(), "noDepositsAvailable",
+        componentClient.forEventSourcedEntity(leafId.toEntityId())
+            .call(WithdrawalRedLeafEntity::noDepositsAvailable)
+            .params(command)));
   }
 
-  private CompletionStage<String> callFor(DepositSeekEvent event) {
-    var command = new WithdrawalRedLeafEntity.NoDepositsAvailableCommand(event.withdrawalRedLeafId());
-    return componentClient.forEventSourcedEntity(event.withdrawalRedLeafId().toEntityId())
-        .call(WithdrawalRedLeafEntity::noDepositsAvailable)
-        .params(command)
-        .execute();
+  private WithdrawalCancelCommand toCommand(WithdrawalRedLeafId leafId, DepositUnit depositUnit) {
+    return new DepositUnitEntity.WithdrawalCancelCommand(depositUnit.depositUnitId(), leafId);
   }
 
-  private WithdrawalCancelCommand toCommand(CanceledWithdrawalEvent event, DepositUnit depositUnit) {
-    return new DepositUnitEntity.WithdrawalCancelCommand(depositUnit.depositUnitId(), event.withdrawalRedLeafId());
+  private CompletionStage<String> callFor(WithdrawalRedLeafId leafId, WithdrawalCancelCommand command) {
+    return hops.execute(leafId.correlationId(), leafId.toEntityId(),
+        DepositUnitEntity.class, command.depositUnitId().toEntityId(), "cancelWithdrawal",
+        componentClient.forEventSourcedEntity(command.depositUnitId().toEntityId())
+            .call(DepositUnitEntity::cancelWithdrawal)
+            .params(command));
   }
 
-  private CompletionStage<String> callFor(WithdrawalCancelCommand command) {
-    return componentClient.forEventSourcedEntity(command.depositUnitId().toEntityId())
-        .call(DepositUnitEntity::cancelWithdrawal)
-        .params(command)
-        .execute();
+  // A leaf without a parent branch funds a direct withdrawal and reports to the withdrawal itself.
+  private Effect<String> approveWithdrawal(WithdrawalRedLeafEntity.FullyFundedEvent event) {
+    var withdrawalRedLeafId = event.withdrawalRedLeafId();
+    var withdrawalId = new WithdrawalEntity.WithdrawalId(withdrawalRedLeafId.accountId(), withdrawalRedLeafId.withdrawalId());
+    var command = new WithdrawalEntity.WithdrawalApproveCommand(withdrawalId);
+
+    return effects()
+        .forward(hops.forward(withdrawalId.correlationId(), withdrawalRedLeafId.toEntityId(),
+            WithdrawalEntity.class, withdrawalId.toEntityId(), "approve",
+            componentClient.forEventSourcedEntity(withdrawalId.toEntityId())
+                .call(WithdrawalEntity::approve)
+                .params(command)));
+  }
+
+  // Without a trunk to cascade the cancel, the leaf is canceled here to release the deposit units it holds.
+  private Effect<String> rejectWithdrawal(WithdrawalRedLeafEntity.InsufficientFundsEvent event) {
+    var withdrawalRedLeafId = event.withdrawalRedLeafId();
+    var withdrawalId = new WithdrawalEntity.WithdrawalId(withdrawalRedLeafId.accountId(), withdrawalRedLeafId.withdrawalId());
+    var rejectCommand = new WithdrawalEntity.WithdrawalInsufficientFundsCommand(withdrawalId);
+    var cancelCommand = new WithdrawalRedLeafEntity.CancelWithdrawalCommand(withdrawalRedLeafId);
+
+    var rejectResult = hops.execute(withdrawalId.correlationId(), withdrawalRedLeafId.toEntityId(),
+        WithdrawalEntity.class, withdrawalId.toEntityId(), "insufficientFunds",
+        componentClient.forEventSourcedEntity(withdrawalId.toEntityId())
+            .call(WithdrawalEntity::insufficientFunds)
+            .params(rejectCommand));
+    var cancelResult = hops.execute(withdrawalId.correlationId(), withdrawalRedLeafId.toEntityId(),
+        WithdrawalRedLeafEntity.class, withdrawalRedLeafId.toEntityId(), "cancelWithdrawal",
+        componentClient.forEventSourcedEntity(withdrawalRedLeafId.toEntityId())
+            .call(WithdrawalRedLeafEntity::cancelWithdrawal)
+            .params(cancelCommand));
+
+    return effects().asyncReply(CompletableFuture.allOf(rejectResult.toCompletableFuture(), cancelResult.toCompletableFuture())
+        .thenApply(__ -> "OK"));
   }
 
   private CompletableFuture<String> waitForCallsToComplete(List<CompletionStage<String>> results) {
     return CompletableFuture.allOf(results.toArray(CompletableFuture[]::new))
         .thenApply(__ -> "OK");
   }
+
+  // The request ids are the seek number and the positions of the withdrawal, "3.1.0".
+  private record Seek(WithdrawalRedLeafId withdrawalRedLeafId, Money amountNeeded, String requestId, int attempt) {
+    static Seek of(DepositSeekEvent event) {
+      return new Seek(event.withdrawalRedLeafId(), event.amountNeeded(), event.seek() == 0 ? null : Integer.toString(event.seek()), 0);
+    }
+
+    String requestId(int i) {
+      return requestId == null ? null : requestId + "." + i;
+    }
+  }
 }
@@ -3,11 +3,10 @@ package io.example.bank;
 import java.math.BigDecimal;
 import java.util.List;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 
+import io.example.Trace;
 import kalix.javasdk.annotations.Query;
 import kalix.javasdk.annotations.Subscribe;
 import kalix.javasdk.annotations.Table;
@@ -18,7 +17,7 @@ import kalix.javasdk.view.View;
 @Table("withdrawal_Red_leaf")
 @Subscribe.EventSourcedEntity(value = WithdrawalRedLeafEntity.class, ignoreUnknown = true)
 public class WithdrawalRedLeafView extends View<WithdrawalRedLeafView.LeafRow> {
-  private static final Logger log = LoggerFactory.getLogger(WithdrawalRedLeafView.class);
+  private static final Trace trace = Trace.of(WithdrawalRedLeafView.class);
 
   @GetMapping("/withdrawalRedLeaves/{withdrawalId}")
   @Query("""
@@ -36,13 +35,13 @@ public class WithdrawalRedLeafView extends View<WithdrawalRedLeafView.LeafRow> {
   }
 
   public UpdateEffect<LeafRow> on(WithdrawalRedLeafEntity.LeafCreatedEvent event) {
-    log.info("State: {}\n_Event: {}", viewState(), event);
+    trace.event(viewState(), event);
     return effects()
         .updateState(viewState().on(event));
   }
 
   public UpdateEffect<LeafRow> on(WithdrawalRedLeafEntity.DepositFoundEvent event) {
-    log.info("State: {}\n_Event: {}", viewState(), event);
+    trace.event(viewState(), event);
     return effects()
         .updateState(viewState().on(event));
   }
@@ -59,14 +58,11 @@ public class WithdrawalRedLeafView extends View<WithdrawalRedLeafView.LeafRow> {
       var accountId = event.withdrawalRedLeafId().accountId();
       var withdrawalId = event.withdrawalRedLeafId().withdrawalId();
       var leafId = event.withdrawalRedLeafId().leafId();
-      return new LeafRow(accountId, withdrawalId, leafId, event.amount(), amountWithdrawn);
+      return new LeafRow(accountId, withdrawalId, leafId, event.amount().toBigDecimal(), amountWithdrawn);
     }
 
     public LeafRow on(WithdrawalRedLeafEntity.DepositFoundEvent event) {
-      var newAmountWithdrawn = event.depositUnits().stream()
-          .map(WithdrawalRedLeafEntity.DepositUnit::amount)
-          .reduce(BigDecimal.ZERO, BigDecimal::add);
-      return new LeafRow(accountId, withdrawalId, leafId, amountToWithdraw, newAmountWithdrawn);
+      return new LeafRow(accountId, withdrawalId, leafId, amountToWithdraw, event.leafAmountWithdrawn().toBigDecimal());
     }
   }
 }
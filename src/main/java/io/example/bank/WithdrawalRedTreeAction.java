@@ -5,21 +5,24 @@ import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 import java.util.stream.Stream;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
+import io.example.Hops;
+import io.example.Metrics;
+import io.example.Trace;
 import io.example.bank.WithdrawalRedLeafEntity.LeafCreateCommand;
 import io.example.bank.WithdrawalRedLeafEntity.WithdrawalRedLeafId;
 import io.example.bank.WithdrawalRedTreeEntity.BranchCreateCommand;
 import io.example.bank.WithdrawalRedTreeEntity.CancelWithdrawalCommand;
 import io.example.bank.WithdrawalRedTreeEntity.Subbranch;
+import io.example.bank.WithdrawalRedTreeEntity.WithdrawalRedTreeId;
 import kalix.javasdk.action.Action;
 import kalix.javasdk.annotations.Subscribe;
 import kalix.javasdk.client.ComponentClient;
 
+// The one subscriber to the withdrawal tree events.
 @Subscribe.EventSourcedEntity(value = WithdrawalRedTreeEntity.class, ignoreUnknown = true)
 public class WithdrawalRedTreeAction extends Action {
-  private static final Logger log = LoggerFactory.getLogger(WithdrawalRedTreeAction.class);
+  private static final Trace trace = Trace.of(WithdrawalRedTreeAction.class);
+  private final Hops hops = Hops.shared;
   private final ComponentClient componentClient;
 
   public WithdrawalRedTreeAction(ComponentClient componentClient) {
@@ -27,7 +30,7 @@ public class WithdrawalRedTreeAction extends Action {
   }
 
   public Effect<String> on(WithdrawalRedTreeEntity.BranchCreatedEvent event) {
-    log.info("Event: {}", event);
+    trace.event(event);
 
     if (event.subbranches().isEmpty()) {
       return effects().reply("OK");
@@ -46,42 +49,73 @@ public class WithdrawalRedTreeAction extends Action {
         .toList();
 
     var results = Stream.concat(resultsBranches.stream(), resultsLeaves.stream()).toList();
+    Metrics.fanOut(WithdrawalRedTreeAction.class, results.size());
 
     return effects().asyncReply(waitForCallsToComplete(results));
   }
 
+  // A fully funded branch below the trunk reports its amount to its parent, as the leaves do.
+  public Effect<String> on(WithdrawalRedTreeEntity.FullyFundedEvent event) {
+    trace.event(event);
+    var subbranch = new Subbranch(event.withdrawalRedTreeId(), event.amount(), event.amount());
+    var command = new WithdrawalRedTreeEntity.UpdateAmountWithdrawnCommand(event.withdrawalRedTreeParentId(), subbranch);
+
+    return effects()
+        .forward(hops.forward(event.withdrawalRedTreeId().correlationId(), event.withdrawalRedTreeId().toEntityId(),
+            WithdrawalRedTreeEntity.class, command.withdrawalRedTreeId().toEntityId(), "updateAmountWithdrawn",
+            componentClient.forEventSourcedEntity(command.withdrawalRedTreeId().toEntityId())
+                .call(WithdrawalRedTreeEntity::updateAmountWithdrawn)
+                .params(command)));
+  }
+
   public Effect<String> on(WithdrawalRedTreeEntity.InsufficientFundsEvent event) {
-    log.info("Event: {}", event);
+    trace.event(event);
+    Metrics.count("bank.insufficient.funds", "level", "branch");
     var command = new WithdrawalRedTreeEntity.InsufficientFundsCommand(event.withdrawalRedTreeParentId());
 
     return effects()
-        .forward(componentClient.forEventSourcedEntity(command.withdrawalRedTreeId().toEntityId())
-            .call(WithdrawalRedTreeEntity::insufficientFunds)
-            .params(command));
+        .forward(hops.forward(event.withdrawalRedTreeId().correlationId(), event.withdrawalRedTreeId().toEntityId(),
+            WithdrawalRedTreeEntity.class, command.withdrawalRedTreeId().toEntityId(), "insufficientFunds",
+            componentClient.forEventSourcedEntity(command.withdrawalRedTreeId().toEntityId())
+                .call(WithdrawalRedTreeEntity::insufficientFunds)
+                .params(command)));
   }
 
-  public Effect<String> on(WithdrawalRedTreeEntity.CanceledWithdrawalEvent event) {
-    log.info("Event: {}", event);
+  public Effect<String> on(WithdrawalRedTreeEntity.WithdrawalApprovedEvent event) {
+    trace.event(event);
 
-    if (event.subbranches().isEmpty()) {
-      return effects().reply("OK");
-    }
+    var withdrawalId = new WithdrawalEntity.WithdrawalId(event.withdrawalRedTreeId().accountId(), event.withdrawalRedTreeId().withdrawalId());
+    var command = new WithdrawalEntity.WithdrawalApproveCommand(withdrawalId);
+
+    return effects().forward(hops.forward(withdrawalId.correlationId(), event.withdrawalRedTreeId().toEntityId(),
+        WithdrawalEntity.class, withdrawalId.toEntityId(), "approve",
+        componentClient.forEventSourcedEntity(withdrawalId.toEntityId())
+            .call(WithdrawalEntity::approve)
+            .params(command)));
+  }
+
+  // The cancel cascades to the subbranches and leaves while the withdrawal is rejected, concurrently.
+  public Effect<String> on(WithdrawalRedTreeEntity.CanceledWithdrawalEvent event) {
+    trace.event(event);
+    Metrics.count("bank.insufficient.funds", "level", "withdrawal");
 
     var resultsBranches = event.subbranches().stream()
         .filter(subbranch -> isBranchAmount(subbranch))
         .map(subbranch -> toCommandBranch(subbranch))
-        .map(command -> toCallBranch(command))
+        .map(command -> toCallBranch(event.withdrawalRedTreeId(), command))
         .toList();
 
     var resultsLeaves = event.subbranches().stream()
         .filter(subbranch -> isLeafAmount(subbranch))
         .map(subbranch -> toCommandLeaf(subbranch))
-        .map(command -> toCallLeaf(command))
+        .map(command -> toCallLeaf(event.withdrawalRedTreeId(), command))
         .toList();
 
     var results = Stream.concat(resultsBranches.stream(), resultsLeaves.stream()).toList();
+    Metrics.fanOut(WithdrawalRedTreeAction.class, results.size());
 
-    return effects().asyncReply(waitForCallsToComplete(results));
+    var withdrawalResult = toCallWithdrawal(event.withdrawalRedTreeId());
+    return effects().asyncReply(waitForCallsToComplete(Stream.concat(results.stream(), Stream.of(withdrawalResult)).toList()));
   }
 
   private static boolean isBranchAmount(Subbranch subbranch) {
@@ -97,10 +131,12 @@ public class WithdrawalRedTreeAction extends Action {
   }
 
   private CompletionStage<String> toCallBranch(BranchCreateCommand command) {
-    return componentClient.forEventSourcedEntity(command.withdrawalRedTreeId().toEntityId())
-        .call(WithdrawalRedTreeEntity::createBranch)
-        .params(command)
-        .execute();
+    var parentId = command.withdrawalRedTreeParentId();
+    return Metrics.timed(WithdrawalRedTreeEntity.class, "createBranch", () -> hops.execute(parentId.correlationId(), parentId.toEntityId(),
+        WithdrawalRedTreeEntity.class, command.withdrawalRedTreeId().toEntityId(), "createBranch",
+        componentClient.forEventSourcedEntity(command.withdrawalRedTreeId().toEntityId())
+            .call(WithdrawalRedTreeEntity::createBranch)
+            .params(command)));
   }
 
   private static LeafCreateCommand toCommandLeaf(WithdrawalRedTreeEntity.BranchCreatedEvent event, Subbranch subbranch) {
@@ -109,21 +145,24 @@ public class WithdrawalRedTreeAction extends Action {
   }
 
   private CompletionStage<String> toCallLeaf(LeafCreateCommand command) {
-    return componentClient.forEventSourcedEntity(command.withdrawalRedLeafId().toEntityId())
-        .call(WithdrawalRedLeafEntity::create)
-        .params(command)
-        .execute();
+    var parentId = command.parentBranchId();
+    return Metrics.timed(WithdrawalRedLeafEntity.class, "create", () -> hops.execute(parentId.correlationId(), parentId.toEntityId(),
+        WithdrawalRedLeafEntity.class, command.withdrawalRedLeafId().toEntityId(), "create",
+        componentClient.forEventSourcedEntity(command.withdrawalRedLeafId().toEntityId())
+            .call(WithdrawalRedLeafEntity::create)
+            .params(command)));
   }
 
   private static CancelWithdrawalCommand toCommandBranch(WithdrawalRedTreeEntity.Subbranch subbranch) {
     return new WithdrawalRedTreeEntity.CancelWithdrawalCommand(subbranch.withdrawalRedTreeId());
   }
 
-  private CompletionStage<String> toCallBranch(CancelWithdrawalCommand command) {
-    return componentClient.forEventSourcedEntity(command.withdrawalRedTreeId().toEntityId())
-        .call(WithdrawalRedTreeEntity::cancelWithdrawal)
-        .params(command)
-        .execute();
+  private CompletionStage<String> toCallBranch(WithdrawalRedTreeId parentId, CancelWithdrawalCommand command) {
+    return hops.execute(parentId.correlationId(), parentId.toEntityId(),
+        WithdrawalRedTreeEntity.class, command.withdrawalRedTreeId().toEntityId(), "cancelWithdrawal",
+        componentClient.forEventSourcedEntity(command.withdrawalRedTreeId().toEntityId())
+            .call(WithdrawalRedTreeEntity::cancelWithdrawal)
+            .params(command));
   }
 
   private static WithdrawalRedLeafEntity.CancelWithdrawalCommand toCommandLeaf(WithdrawalRedTreeEntity.Subbranch subbranch) {
@@ -131,11 +170,22 @@ public class WithdrawalRedTreeAction extends Action {
     return new WithdrawalRedLeafEntity.CancelWithdrawalCommand(withdrawalRedLeafId);
   }
 
-  private CompletionStage<String> toCallLeaf(WithdrawalRedLeafEntity.CancelWithdrawalCommand command) {
-    return componentClient.forEventSourcedEntity(command.withdrawalRedLeafId().toEntityId())
-        .call(WithdrawalRedLeafEntity::cancelWithdrawal)
-        .params(command)
-        .execute();
+  private CompletionStage<String> toCallLeaf(WithdrawalRedTreeId parentId, WithdrawalRedLeafEntity.CancelWithdrawalCommand command) {
+    return hops.execute(parentId.correlationId(), parentId.toEntityId(),
+        WithdrawalRedLeafEntity.class, command.withdrawalRedLeafId().toEntityId(), "cancelWithdrawal",
+        componentClient.forEventSourcedEntity(command.withdrawalRedLeafId().toEntityId())
+            .call(WithdrawalRedLeafEntity::cancelWithdrawal)
+            .params(command));
+  }
+
+  private CompletionStage<String> toCallWithdrawal(WithdrawalRedTreeId withdrawalRedTreeId) {
+    var withdrawalId = new WithdrawalEntity.WithdrawalId(withdrawalRedTreeId.accountId(), withdrawalRedTreeId.withdrawalId());
+    var command = new WithdrawalEntity.WithdrawalInsufficientFundsCommand(withdrawalId);
+    return hops.execute(withdrawalId.correlationId(), withdrawalRedTreeId.toEntityId(),
+        WithdrawalEntity.class, withdrawalId.toEntityId(), "insufficientFunds",
+        componentClient.forEventSourcedEntity(withdrawalId.toEntityId())
+            .call(WithdrawalEntity::insufficientFunds)
+            .params(command));
   }
 
   private static CompletionStage<String> waitForCallsToComplete(List<CompletionStage<String>> results) {
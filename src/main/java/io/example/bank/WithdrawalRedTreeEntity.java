@@ -1,19 +1,26 @@
 package io.example.bank;
 
-import java.math.BigDecimal;
 import java.time.LocalDateTime;
 import java.util.List;
-import java.util.UUID;
-import java.util.stream.IntStream;
+import java.util.function.Supplier;
+import java.util.stream.LongStream;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PatchMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+import io.example.CompactJson;
+import io.example.Hops;
+import io.example.Ids;
+import io.example.KeyedAggregate;
+import io.example.Money;
+import io.example.Settings;
+import io.example.Trace;
 import io.example.Validator;
 import io.grpc.Status;
 import kalix.javasdk.annotations.EventHandler;
@@ -26,8 +33,9 @@ import kalix.javasdk.eventsourcedentity.EventSourcedEntityContext;
 @TypeId("withdrawalRedTree")
 @RequestMapping("/withdrawalRedTree/{withdrawalRedTreeId}")
 public class WithdrawalRedTreeEntity extends EventSourcedEntity<WithdrawalRedTreeEntity.State, WithdrawalRedTreeEntity.Event> {
-  private static final Logger log = LoggerFactory.getLogger(WithdrawalRedTreeEntity.class);
-  static final BigDecimal maxLeafAmount = BigDecimal.valueOf(25.00);
+  private static final Trace trace = Trace.of(WithdrawalRedTreeEntity.class);
+  static final Money maxLeafAmount = Money.of(25.00);
+  static final int maxBranchFactor = Settings.config().getInt("withdrawal-red-tree.max-branch-factor");
   private final String entityId;
 
   public WithdrawalRedTreeEntity(EventSourcedEntityContext context) {
@@ -41,7 +49,8 @@ public class WithdrawalRedTreeEntity extends EventSourcedEntity<WithdrawalRedTre
 
   @PostMapping("/createTrunk")
   public Effect<String> createTrunk(@RequestBody TrunkCreateCommand command) {
-    log.info("EntityId: {}\n_State: {}\n_Command: {}", entityId, currentState(), command);
+    trace.command(entityId, currentState(), command);
+    Hops.shared.received(commandContext().metadata(), entityId);
 
     return effects()
         .emitEvent(currentState().eventFor(command))
@@ -50,7 +59,8 @@ public class WithdrawalRedTreeEntity extends EventSourcedEntity<WithdrawalRedTre
 
   @PostMapping("/createBranch")
   public Effect<String> createBranch(@RequestBody BranchCreateCommand command) {
-    log.info("EntityId: {}\n_State: {}\n_Command: {}", entityId, currentState(), command);
+    trace.command(entityId, currentState(), command);
+    Hops.shared.received(commandContext().metadata(), entityId);
 
     return effects()
         .emitEvent(currentState().eventFor(command))
@@ -59,7 +69,8 @@ public class WithdrawalRedTreeEntity extends EventSourcedEntity<WithdrawalRedTre
 
   @PatchMapping("/updateAmountWithdrawn")
   public Effect<String> updateAmountWithdrawn(@RequestBody UpdateAmountWithdrawnCommand command) {
-    log.info("EntityId: {}\n_State: {}\n_Command: {}", entityId, currentState(), command);
+    trace.command(entityId, currentState(), command);
+    Hops.shared.received(commandContext().metadata(), entityId);
 
     return effects()
         .emitEvents(currentState().eventsFor(command))
@@ -69,7 +80,8 @@ public class WithdrawalRedTreeEntity extends EventSourcedEntity<WithdrawalRedTre
   // Insufficient funds messaging works from the top of the tree down to the truck.
   @PatchMapping("/insufficientFunds")
   public Effect<String> insufficientFunds(@RequestBody InsufficientFundsCommand command) {
-    log.info("EntityId: {}\n_State: {}\n_Command: {}", entityId, currentState(), command);
+    trace.command(entityId, currentState(), command);
+    Hops.shared.received(commandContext().metadata(), entityId);
 
     if (currentState().insufficientFunds) {
       return effects().reply("OK");
@@ -84,7 +96,8 @@ public class WithdrawalRedTreeEntity extends EventSourcedEntity<WithdrawalRedTre
   // that cascades up to the top of the tree to the leaves.
   @PatchMapping("/cancelWithdrawal")
   public Effect<String> cancelWithdrawal(@RequestBody CancelWithdrawalCommand command) {
-    log.info("EntityId: {}\n_State: {}\n_Command: {}", entityId, currentState(), command);
+    trace.command(entityId, currentState(), command);
+    Hops.shared.received(commandContext().metadata(), entityId);
 
     if (currentState().insufficientFunds) {
       return effects().reply("OK");
@@ -97,7 +110,7 @@ public class WithdrawalRedTreeEntity extends EventSourcedEntity<WithdrawalRedTre
 
   @GetMapping
   public Effect<State> get() {
-    log.info("EntityId: {}\n_State: {}\n_GetWithdrawal", entityId, currentState());
+    trace.query(entityId, currentState(), "GetWithdrawal");
     return Validator.<Effect<State>>start()
         .isTrue(currentState().isEmpty(), "Withdrawal not found")
         .onError(errorMessage -> effects().error(errorMessage, Status.Code.NOT_FOUND))
@@ -106,47 +119,67 @@ public class WithdrawalRedTreeEntity extends EventSourcedEntity<WithdrawalRedTre
 
   @EventHandler
   public State on(BranchCreatedEvent event) {
-    log.info("EntityId: {}\n_State: {}\n_Event: {}", entityId, currentState(), event);
+    trace.event(entityId, currentState(), event);
     return currentState().on(event);
   }
 
   @EventHandler
   public State on(UpdatedAmountWithdrawnEvent event) {
-    log.info("EntityId: {}\n_State: {}\n_Event: {}", entityId, currentState(), event);
+    trace.event(entityId, currentState(), event);
+    return currentState().on(event);
+  }
+
+  @EventHandler
+  public State on(FullyFundedEvent event) {
+    trace.event(entityId, currentState(), event);
     return currentState().on(event);
   }
 
   @EventHandler
   public State on(WithdrawalApprovedEvent event) {
-    log.info("EntityId: {}\n_State: {}\n_Event: {}", entityId, currentState(), event);
+    trace.event(entityId, currentState(), event);
     return currentState().on(event);
   }
 
   @EventHandler
   public State on(InsufficientFundsEvent event) {
-    log.info("EntityId: {}\n_State: {}\n_Event: {}", entityId, currentState(), event);
+    trace.event(entityId, currentState(), event);
     return currentState().on(event);
   }
 
   @EventHandler
   public State on(CanceledWithdrawalEvent event) {
-    log.info("EntityId: {}\n_State: {}\n_Event: {}", entityId, currentState(), event);
+    trace.event(entityId, currentState(), event);
     return currentState().on(event);
   }
 
+  @JsonSerialize(using = CompactJson.Serializer.class)
+  @JsonDeserialize(using = CompactJson.Deserializer.class)
   public record WithdrawalRedTreeId(String accountId, String withdrawalId, String branchId) {
+    public WithdrawalRedTreeId {
+      accountId = Ids.intern(accountId);
+    }
+
     boolean isEmpty() {
       return accountId == null || accountId.isEmpty()
           || withdrawalId == null || withdrawalId.isEmpty()
           || branchId == null || branchId.isEmpty();
     }
 
+    String correlationId() {
+      return new WithdrawalEntity.WithdrawalId(accountId, withdrawalId).correlationId();
+    }
+
     String toEntityId() {
-      return "%s_%s_%s".formatted(accountId, withdrawalId, branchId);
+      return accountId + "_" + withdrawalId + "_" + branchId;
     }
 
     WithdrawalRedTreeId childId() {
-      return new WithdrawalRedTreeId(accountId, withdrawalId, UUID.randomUUID().toString());
+      return childId(Ids.random());
+    }
+
+    WithdrawalRedTreeId childId(String branchId) {
+      return new WithdrawalRedTreeId(accountId, withdrawalId, branchId);
     }
 
     static WithdrawalRedTreeId fromEntityId(WithdrawalRedLeafEntity.WithdrawalRedLeafId withdrawalRedLeafId) {
@@ -158,14 +191,20 @@ public class WithdrawalRedTreeEntity extends EventSourcedEntity<WithdrawalRedTre
       WithdrawalRedTreeId withdrawalRedTreeId,
       WithdrawalRedTreeId withdrawalRedTreeParentId,
       LocalDateTime lastUpdated,
-      BigDecimal amountToWithdraw,
-      BigDecimal amountWithdrawn,
+      Money amountToWithdraw,
+      Money amountWithdrawn,
       boolean approved,
       boolean insufficientFunds,
-      List<Subbranch> subbranches) {
+      KeyedAggregate<WithdrawalRedTreeId, Subbranch> subbranches) implements Trace.Summary {
 
     static State emptyState() {
-      return new State(null, null, LocalDateTime.of(0, 1, 1, 0, 0), BigDecimal.ZERO, BigDecimal.ZERO, false, false, List.of());
+      return new State(null, null, LocalDateTime.of(0, 1, 1, 0, 0), Money.zero, Money.zero, false, false, KeyedAggregate.empty());
+    }
+
+    @Override
+    public String summary() {
+      return "State[withdrawalRedTreeId=%s, amountToWithdraw=%s, amountWithdrawn=%s, approved=%s, insufficientFunds=%s, subbranches=%d]"
+          .formatted(withdrawalRedTreeId, amountToWithdraw, amountWithdrawn, approved, insufficientFunds, subbranches.size());
     }
 
     boolean isEmpty() {
@@ -173,20 +212,30 @@ public class WithdrawalRedTreeEntity extends EventSourcedEntity<WithdrawalRedTre
     }
 
     Event eventFor(TrunkCreateCommand command) {
+      return eventFor(command, maxLeafAmount, maxBranchFactor, Ids::random);
+    }
+
+    // Parameters for the simulator, the entity uses the configured shape and random ids.
+    Event eventFor(TrunkCreateCommand command, Money leafAmount, int branchFactor, Supplier<String> branchIds) {
       WithdrawalRedTreeId parentId = null;
-      var subbranches = distributeAmount(command.amount()).stream()
-          .map(amount -> new Subbranch(command.withdrawalRedTreeId().childId(), amount, BigDecimal.ZERO))
+      var subbranches = distributeAmount(command.amount(), leafAmount, branchFactor).stream()
+          .map(amount -> new Subbranch(command.withdrawalRedTreeId().childId(branchIds.get()), amount, Money.zero))
           .toList();
       return new BranchCreatedEvent(command.withdrawalRedTreeId(), parentId, command.amount(), subbranches);
     }
 
     Event eventFor(BranchCreateCommand command) {
-      var subbranches = distributeAmount(command.amount()).stream()
-          .map(amount -> new Subbranch(command.withdrawalRedTreeId().childId(), amount, BigDecimal.ZERO))
+      return eventFor(command, maxLeafAmount, maxBranchFactor, Ids::random);
+    }
+
+    Event eventFor(BranchCreateCommand command, Money leafAmount, int branchFactor, Supplier<String> branchIds) {
+      var subbranches = distributeAmount(command.amount(), leafAmount, branchFactor).stream()
+          .map(amount -> new Subbranch(command.withdrawalRedTreeId().childId(branchIds.get()), amount, Money.zero))
           .toList();
-      return new BranchCreatedEvent(command.withdrawalRedTreeId().childId(), command.withdrawalRedTreeParentId(), command.amount(), subbranches);
+      return new BranchCreatedEvent(command.withdrawalRedTreeId(), command.withdrawalRedTreeParentId(), command.amount(), subbranches);
     }
 
+    // A fully funded trunk approves the withdrawal, a fully funded branch reports its amount to its parent branch.
     List<Event> eventsFor(UpdateAmountWithdrawnCommand command) {
       var updateEvent = new UpdatedAmountWithdrawnEvent(withdrawalRedTreeId, command.subbranch());
       var newState = on(updateEvent);
@@ -194,18 +243,22 @@ public class WithdrawalRedTreeEntity extends EventSourcedEntity<WithdrawalRedTre
         var approvedEvent = new WithdrawalApprovedEvent(command.withdrawalRedTreeId());
         return List.of(updateEvent, approvedEvent);
       }
+      if (newState.approved) {
+        var fullyFundedEvent = new FullyFundedEvent(withdrawalRedTreeId, withdrawalRedTreeParentId, newState.amountWithdrawn);
+        return List.of(updateEvent, fullyFundedEvent);
+      }
       return List.of(updateEvent);
     }
 
     Event eventFor(InsufficientFundsCommand command) {
       if (withdrawalRedTreeParentId == null || withdrawalRedTreeParentId.isEmpty()) {
-        return new CanceledWithdrawalEvent(withdrawalRedTreeId, subbranches);
+        return new CanceledWithdrawalEvent(withdrawalRedTreeId, subbranches.entries());
       }
       return new InsufficientFundsEvent(withdrawalRedTreeId, withdrawalRedTreeParentId);
     }
 
     Event eventFor(CancelWithdrawalCommand command) {
-      return new CanceledWithdrawalEvent(withdrawalRedTreeParentId, subbranches);
+      return new CanceledWithdrawalEvent(withdrawalRedTreeParentId, subbranches.entries());
     }
 
     State on(BranchCreatedEvent event) {
@@ -217,17 +270,14 @@ public class WithdrawalRedTreeEntity extends EventSourcedEntity<WithdrawalRedTre
           amountWithdrawn,
           approved,
           insufficientFunds,
-          event.subbranches());
+          KeyedAggregate.of(event.subbranches()));
     }
 
     State on(UpdatedAmountWithdrawnEvent event) {
-      var newSubbranches = subbranches.stream()
-          .map(subbranch -> subbranch.withdrawalRedTreeId().equals(event.subbranch.withdrawalRedTreeId()) ? event.subbranch() : subbranch)
-          .toList();
-
-      var newAmountWithdrawn = newSubbranches.stream()
-          .map(Subbranch::amountWithdrawn)
-          .reduce(BigDecimal.ZERO, BigDecimal::add);
+      var newSubbranches = subbranches.contains(event.subbranch().withdrawalRedTreeId())
+          ? subbranches.put(event.subbranch())
+          : subbranches;
+      var newAmountWithdrawn = newSubbranches.total();
 
       return new State(
           withdrawalRedTreeId,
@@ -240,6 +290,10 @@ public class WithdrawalRedTreeEntity extends EventSourcedEntity<WithdrawalRedTre
           newSubbranches);
     }
 
+    State on(FullyFundedEvent event) {
+      return this;
+    }
+
     State on(WithdrawalApprovedEvent event) {
       return this;
     }
@@ -273,36 +327,62 @@ public class WithdrawalRedTreeEntity extends EventSourcedEntity<WithdrawalRedTre
     }
   }
 
-  static boolean isTopBranch(BigDecimal amount) {
+  static boolean isTopBranch(Money amount) {
     return amount.compareTo(maxLeafAmount) <= 0;
   }
 
-  public static List<BigDecimal> distributeAmount(BigDecimal total) {
-    var cents = total.multiply(BigDecimal.valueOf(100)).longValue();
-    var centsPerChild = cents / maxLeafAmount.longValue();
-    var remainder = cents % maxLeafAmount.longValue();
+  // The fewest subbranches that cover ceil(amount / maxLeafAmount) leaves with subtrees of maxBranchFactor width.
+  public static List<Money> distributeAmount(Money total) {
+    return distributeAmount(total, maxLeafAmount, maxBranchFactor);
+  }
+
+  static List<Money> distributeAmount(Money total, Money leafAmount, int branchFactor) {
+    var cents = total.cents();
+    var leafCents = leafAmount.cents();
+    var leaves = Math.max(1, (cents + leafCents - 1) / leafCents);
+
+    var leavesPerChild = 1L;
+    while (leavesPerChild * branchFactor < leaves) {
+      leavesPerChild *= branchFactor;
+    }
+    var children = (leaves + leavesPerChild - 1) / leavesPerChild;
 
-    BigDecimal dollarsPerChild = new BigDecimal(centsPerChild).divide(new BigDecimal(100));
+    var centsPerChild = cents / children;
+    var remainder = cents % children;
 
-    return IntStream.range(0, maxLeafAmount.intValue())
-        .mapToObj(i -> dollarsPerChild.add(i < remainder ? new BigDecimal(".01") : new BigDecimal("0")))
+    return LongStream.range(0, children)
+        .mapToObj(i -> Money.ofCents(centsPerChild + (i < remainder ? 1 : 0)))
         .toList();
   }
 
   public interface Event {}
 
-  public record TrunkCreateCommand(WithdrawalRedTreeId withdrawalRedTreeId, BigDecimal amount) {}
+  public record TrunkCreateCommand(WithdrawalRedTreeId withdrawalRedTreeId, Money amount) {}
+
+  public record BranchCreateCommand(WithdrawalRedTreeId withdrawalRedTreeId, WithdrawalRedTreeId withdrawalRedTreeParentId, Money amount) {}
 
-  public record BranchCreateCommand(WithdrawalRedTreeId withdrawalRedTreeId, WithdrawalRedTreeId withdrawalRedTreeParentId, BigDecimal amount) {}
+  @JsonSerialize(using = CompactJson.Serializer.class)
+  @JsonDeserialize(using = CompactJson.Deserializer.class)
+  public record Subbranch(WithdrawalRedTreeId withdrawalRedTreeId, Money amountToWithdraw, Money amountWithdrawn) implements KeyedAggregate.Entry<WithdrawalRedTreeId> {
+    @Override
+    public WithdrawalRedTreeId aggregateKey() {
+      return withdrawalRedTreeId;
+    }
 
-  public record Subbranch(WithdrawalRedTreeId withdrawalRedTreeId, BigDecimal amountToWithdraw, BigDecimal amountWithdrawn) {}
+    @Override
+    public Money aggregateAmount() {
+      return amountWithdrawn;
+    }
+  }
 
-  public record BranchCreatedEvent(WithdrawalRedTreeId withdrawalRedTreeId, WithdrawalRedTreeId withdrawalRedTreeParentId, BigDecimal amount, List<Subbranch> subbranches) implements Event {}
+  public record BranchCreatedEvent(WithdrawalRedTreeId withdrawalRedTreeId, WithdrawalRedTreeId withdrawalRedTreeParentId, Money amount, List<Subbranch> subbranches) implements Event {}
 
   public record UpdateAmountWithdrawnCommand(WithdrawalRedTreeId withdrawalRedTreeId, Subbranch subbranch) {}
 
   public record UpdatedAmountWithdrawnEvent(WithdrawalRedTreeId withdrawalRedTreeId, Subbranch subbranch) implements Event {}
 
+  public record FullyFundedEvent(WithdrawalRedTreeId withdrawalRedTreeId, WithdrawalRedTreeId withdrawalRedTreeParentId, Money amount) implements Event {}
+
   public record WithdrawalApprovedEvent(WithdrawalRedTreeId withdrawalRedTreeId) implements Event {}
 
   public record InsufficientFundsCommand(WithdrawalRedTreeId withdrawalRedTreeId) {}
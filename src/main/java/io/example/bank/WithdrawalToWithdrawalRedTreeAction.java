@@ -1,17 +1,18 @@
 package io.example.bank;
 
-import java.util.UUID;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
+import io.example.Hops;
+import io.example.Ids;
+import io.example.Money;
+import io.example.Trace;
 import kalix.javasdk.action.Action;
 import kalix.javasdk.annotations.Subscribe;
 import kalix.javasdk.client.ComponentClient;
 
+// The one subscriber to the withdrawal events.
 @Subscribe.EventSourcedEntity(value = WithdrawalEntity.class, ignoreUnknown = true)
 public class WithdrawalToWithdrawalRedTreeAction extends Action {
-  private static final Logger log = LoggerFactory.getLogger(WithdrawalToWithdrawalRedTreeAction.class);
+  private static final Trace trace = Trace.of(WithdrawalToWithdrawalRedTreeAction.class);
+  private final Hops hops = Hops.shared;
   private final ComponentClient componentClient;
 
   public WithdrawalToWithdrawalRedTreeAction(ComponentClient componentClient) {
@@ -19,15 +20,83 @@ public class WithdrawalToWithdrawalRedTreeAction extends Action {
   }
 
   public Effect<String> on(WithdrawalEntity.WithdrawalCreatedEvent event) {
-    log.info("Event: {}", event);
+    trace.event(event);
+
+    if (isDirectAmount(event.amount())) {
+      return direct(event);
+    }
 
-    var branchId = UUID.randomUUID().toString();
+    var branchId = Ids.random();
     var withdrawalRedTreeId = new WithdrawalRedTreeEntity.WithdrawalRedTreeId(event.withdrawalId().accountId(), event.withdrawalId().withdrawalId(), branchId);
     var command = new WithdrawalRedTreeEntity.TrunkCreateCommand(withdrawalRedTreeId, event.amount());
 
     return effects()
-        .forward(componentClient.forEventSourcedEntity(withdrawalRedTreeId.toEntityId())
-            .call(WithdrawalRedTreeEntity::createTrunk)
-            .params(command));
+        .forward(hops.forward(event.withdrawalId().correlationId(), event.withdrawalId().toEntityId(),
+            WithdrawalRedTreeEntity.class, withdrawalRedTreeId.toEntityId(), "createTrunk",
+            componentClient.forEventSourcedEntity(withdrawalRedTreeId.toEntityId())
+                .call(WithdrawalRedTreeEntity::createTrunk)
+                .params(command)));
+  }
+
+  public Effect<String> on(WithdrawalEntity.WithdrawalApprovedEvent event) {
+    trace.event(event);
+
+    var accountId = event.withdrawalId().accountId();
+    var withdrawalAmount = event.amount().negate();
+    var transactionId = "withdrawal_" + event.withdrawalId().toEntityId();
+
+    if (event.accountTreeShape() != null && event.accountTreeShape().isDirect()) {
+      var command = new AccountEntity.ApplyBalanceDeltaCommand(accountId, transactionId, withdrawalAmount);
+      return effects()
+          .forward(hops.forward(event.withdrawalId().correlationId(), event.withdrawalId().toEntityId(),
+              AccountEntity.class, accountId, "applyBalanceDelta",
+              componentClient.forEventSourcedEntity(accountId)
+                  .call(AccountEntity::applyBalanceDelta)
+                  .params(command)));
+    }
+
+    var command = event.accountTreeShape() == null
+        ? legacyCommand(event)
+        : AccountRedTreeEntity.UpdateSubbranchCommand.forTransaction(
+            AccountRedTreeEntity.BranchId.forLeaf(accountId, event.withdrawalId().toEntityId(), event.accountTreeShape()),
+            transactionId,
+            withdrawalAmount);
+    var branchId = command.branchId();
+
+    return effects()
+        .forward(hops.forward(event.withdrawalId().correlationId(), event.withdrawalId().toEntityId(),
+            AccountRedTreeEntity.class, branchId.toEntityId(), "updateSubbranch",
+            componentClient.forEventSourcedEntity(branchId.toEntityId())
+                .call(AccountRedTreeEntity::updateSubbranch)
+                .params(command)));
+  }
+
+  // A single leaf funds a small withdrawal, its id is derived from the withdrawal id.
+  private Effect<String> direct(WithdrawalEntity.WithdrawalCreatedEvent event) {
+    var withdrawalId = event.withdrawalId();
+    var withdrawalRedLeafId = new WithdrawalRedLeafEntity.WithdrawalRedLeafId(withdrawalId.accountId(), withdrawalId.withdrawalId(), withdrawalId.withdrawalId());
+    var command = new WithdrawalRedLeafEntity.LeafCreateCommand(withdrawalRedLeafId, null, event.amount());
+
+    return effects()
+        .forward(hops.forward(withdrawalId.correlationId(), withdrawalId.toEntityId(),
+            WithdrawalRedLeafEntity.class, withdrawalRedLeafId.toEntityId(), "create",
+            componentClient.forEventSourcedEntity(withdrawalRedLeafId.toEntityId())
+                .call(WithdrawalRedLeafEntity::create)
+                .params(command)));
+  }
+
+  // Withdrawals approved before account trees were shaped per account replace the amount of their leaf slot.
+  private static AccountRedTreeEntity.UpdateSubbranchCommand legacyCommand(WithdrawalEntity.WithdrawalApprovedEvent event) {
+    var subbranchId = AccountRedTreeEntity.BranchId.forLeaf(event.withdrawalId().accountId(), event.withdrawalId().toEntityId());
+    return new AccountRedTreeEntity.UpdateSubbranchCommand(subbranchId.levelUp(), subbranchId, event.amount().negate(), null);
+  }
+
+  static boolean isDirectAmount(Money amount) {
+    return isDirectAmount(amount, WithdrawalRedTreeEntity.maxLeafAmount, WithdrawalRedLeafToDepositUnitAction.maxUnitsPerSeek);
+  }
+
+  // Amounts a single seek can fund, up to maxUnitsPerSeek units of a leaf amount.
+  static boolean isDirectAmount(Money amount, Money maxLeafAmount, int maxUnitsPerSeek) {
+    return amount.cents() <= maxLeafAmount.cents() * maxUnitsPerSeek;
   }
 }
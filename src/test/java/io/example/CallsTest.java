@@ -0,0 +1,100 @@
+package io.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+
+public class CallsTest {
+  @Test
+  public void maxInFlightTest() {
+    var pending = new ArrayList<CompletableFuture<String>>();
+    var started = new ArrayList<Integer>();
+    var items = IntStream.range(0, 10).boxed().toList();
+
+    var result = Calls.bounded(items, 3, item -> {
+      started.add(item);
+      var call = new CompletableFuture<String>();
+      pending.add(call);
+      return call;
+    }).toCompletableFuture();
+
+    assertEquals(List.of(0, 1, 2), started);
+    pending.get(1).complete("OK");
+    assertEquals(List.of(0, 1, 2, 3), started);
+
+    for (var i = 0; i < pending.size(); i++) {
+      pending.get(i).complete("OK");
+    }
+    assertEquals(items, started);
+    assertTrue(result.isDone());
+    assertTrue(!result.isCompletedExceptionally());
+  }
+
+  @Test
+  public void completedCallsTest() {
+    var count = new int[1];
+    var result = Calls.bounded(IntStream.range(0, 100_000).boxed().toList(), 2, item -> {
+      count[0]++;
+      return CompletableFuture.completedFuture("OK");
+    }).toCompletableFuture();
+
+    assertTrue(result.isDone());
+    assertEquals(100_000, count[0]);
+  }
+
+  @Test
+  public void failedCallStopsTest() {
+    var started = new ArrayList<Integer>();
+    var result = Calls.bounded(IntStream.range(0, 10).boxed().toList(), 2, item -> {
+      started.add(item);
+      return item == 3
+          ? CompletableFuture.failedFuture(new IllegalStateException("unit 3"))
+          : CompletableFuture.completedFuture("OK");
+    }).toCompletableFuture();
+
+    assertTrue(result.isCompletedExceptionally());
+    assertEquals(List.of(0, 1, 2, 3), started);
+    try {
+      result.join();
+    } catch (CompletionException e) {
+      assertEquals("unit 3", e.getCause().getMessage());
+    }
+  }
+
+  @Test
+  public void backoffTest() {
+    var min = Duration.ofMillis(10);
+    var max = Duration.ofMillis(500);
+    for (var attempt = 0; attempt < 40; attempt++) {
+      var ceiling = Duration.ofMillis(Math.min(500, 10L << Math.min(attempt, 20)));
+      for (var i = 0; i < 100; i++) {
+        var delay = Calls.backoff(attempt, min, max);
+        assertTrue(!delay.isNegative() && delay.compareTo(ceiling) <= 0);
+      }
+    }
+    var delays = IntStream.range(0, 100).mapToObj(i -> Calls.backoff(3, min, max)).distinct().count();
+    assertTrue(delays > 50);
+  }
+
+  @Test
+  public void afterDelayTest() {
+    var start = System.nanoTime();
+    var result = Calls.after(Duration.ofMillis(20), () -> CompletableFuture.completedFuture("OK")).toCompletableFuture().join();
+
+    assertEquals("OK", result);
+    assertTrue(System.nanoTime() - start >= Duration.ofMillis(20).toNanos());
+  }
+
+  @Test
+  public void noItemsTest() {
+    assertTrue(Calls.bounded(List.of(), 5, item -> CompletableFuture.completedFuture("OK")).toCompletableFuture().isDone());
+  }
+}
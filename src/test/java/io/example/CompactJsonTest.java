@@ -0,0 +1,59 @@
+package io.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+import kalix.javasdk.JsonSupport;
+
+public class CompactJsonTest {
+  @Test
+  public void arrayRoundTripTest() throws Exception {
+    var objectMapper = JsonSupport.getObjectMapper();
+    var event = new Event(new Id("account-1", "unit-1"), List.of(new Entry(new Id("account-1", "unit-2"), Money.of(2.50), 3)));
+
+    var json = objectMapper.writeValueAsString(event);
+    assertEquals("{\"id\":[\"account-1\",\"unit-1\"],\"entries\":[[[\"account-1\",\"unit-2\"],2.50,3]]}", json);
+    assertEquals(event, objectMapper.readValue(json, Event.class));
+  }
+
+  @Test
+  public void legacyObjectReadTest() throws Exception {
+    var objectMapper = JsonSupport.getObjectMapper();
+
+    // written with named fields before the records were compacted, in any field order and with fields since removed
+    var legacyJson = """
+        {"id":{"accountId":"account-1","unitId":"unit-1"},
+         "entries":[{"count":3,"amount":2.5,"removed":{"a":[1]},"id":{"unitId":"unit-2","accountId":"account-1"}}]}
+        """;
+    var expected = new Event(new Id("account-1", "unit-1"), List.of(new Entry(new Id("account-1", "unit-2"), Money.of(2.50), 3)));
+    assertEquals(expected, objectMapper.readValue(legacyJson, Event.class));
+  }
+
+  @Test
+  public void missingAndExtraComponentsTest() throws Exception {
+    var objectMapper = JsonSupport.getObjectMapper();
+
+    // components added to a newer record are skipped, components missing from an older one read as null or zero
+    assertEquals(new Entry(new Id("a", "u"), Money.of(1.00), 2), objectMapper.readValue("[[\"a\",\"u\",\"x\"],1.00,2,{\"new\":1}]", Entry.class));
+    assertEquals(new Entry(new Id("a", null), null, 0), objectMapper.readValue("[[\"a\"]]", Entry.class));
+    assertEquals(new Entry(null, Money.zero, 0), objectMapper.readValue("[null,0,null]", Entry.class));
+    assertNull(objectMapper.readValue("{\"id\":null,\"entries\":[]}", Event.class).id());
+  }
+
+  @JsonSerialize(using = CompactJson.Serializer.class)
+  @JsonDeserialize(using = CompactJson.Deserializer.class)
+  record Id(String accountId, String unitId) {}
+
+  @JsonSerialize(using = CompactJson.Serializer.class)
+  @JsonDeserialize(using = CompactJson.Deserializer.class)
+  record Entry(Id id, Money amount, int count) {}
+
+  record Event(Id id, List<Entry> entries) {}
+}
@@ -0,0 +1,34 @@
+package io.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+
+public class HashingTest {
+  @Test
+  public void murmur3IsStableTest() {
+    assertEquals(Hashing.murmur3("account-1_withdrawal-6"), Hashing.murmur3(new StringBuilder("account-1_withdrawal-6")));
+    assertTrue(Hashing.murmur3("a") != Hashing.murmur3("a\0"));
+    assertTrue(Hashing.murmur3("") != Hashing.murmur3("\0"));
+  }
+
+  @Test
+  public void murmur3SpreadsSimilarIdsTest() {
+    var buckets = new int[16];
+    var hashes = new HashSet<Long>();
+    IntStream.range(0, 16_000).forEach(i -> {
+      var hash = Hashing.murmur3("account-1_withdrawal-" + i);
+      hashes.add(hash);
+      buckets[(int) Math.floorMod(hash, 16L)]++;
+    });
+
+    assertEquals(16_000, hashes.size());
+    for (var bucket : buckets) {
+      assertTrue(bucket > 900 && bucket < 1100);
+    }
+  }
+}
@@ -0,0 +1,163 @@
+package io.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import org.junit.jupiter.api.Test;
+
+import kalix.javasdk.DeferredCall;
+import kalix.javasdk.Metadata;
+
+public class HopsTest {
+  @Test
+  public void withdrawalTrailTest() {
+    var clock = new StepClock();
+    var hops = new Hops(10, 1.0, clock);
+
+    var trunk = hops.forward("w", "w", Tree.class, "t", "createTrunk", new Call());
+    clock.step(2_000);
+    hops.received(trunk.metadata(), "t");
+
+    var leaf1 = new Call();
+    var leaf2 = new Call();
+    hops.execute("w", "t", Leaf.class, "l1", "create", leaf1);
+    hops.execute("w", "t", Leaf.class, "l2", "create", leaf2);
+    clock.step(1_000);
+    hops.received(leaf1.sent.metadata(), "l1");
+    leaf1.result.complete("OK");
+
+    var withdraw = hops.forward("w", "l1", Unit.class, "u1", "withdraw", new Call());
+    clock.step(1_000);
+    hops.received(withdraw.metadata(), "u1");
+    clock.step(10_000);
+    hops.received(leaf2.sent.metadata(), "l2");
+    leaf2.result.complete("OK");
+
+    var approve = hops.forward("w", "l2", Withdrawal.class, "w", "approve", new Call());
+    clock.step(3_000);
+    hops.received(approve.metadata(), "w");
+
+    var trail = hops.find("w").get();
+    assertEquals(5, trail.hopCount());
+
+    var path = trail.criticalPath().stream().map(hop -> hop.call() + " " + hop.childId()).toList();
+    assertEquals(List.of("createTrunk t", "create l2", "approve w"), path);
+
+    var slowest = trail.slowest("Leaf").get();
+    assertEquals("l2", slowest.entityId());
+    assertEquals(15_000_000, slowest.micros());
+
+    var dot = trail.toDot();
+    assertTrue(dot.startsWith("digraph \"w\" {"));
+    assertTrue(dot.contains("\"l2\" -> \"w\" [label=\"approve 3000.0ms\", color=red];"));
+    assertTrue(dot.contains("\"l1\" -> \"u1\" [label=\"withdraw 1000.0ms\"];"));
+
+    var json = trail.toJson();
+    assertTrue(json.startsWith("{\"correlationId\":\"w\",\"hopCount\":5,\"criticalPathMicros\":17000000,\"spans\":[{\"from\":\"w\",\"to\":\"t\""));
+    assertTrue(json.contains("\"call\":\"withdraw\""));
+  }
+
+  @Test
+  public void sampledByCorrelationIdTest() {
+    var hops = new Hops(1_000, 0.5, Clock.systemUTC());
+    var sampled = 0;
+    for (var i = 0; i < 1_000; i++) {
+      var correlationId = "account-1_withdrawal-" + i;
+      var call = hops.forward(correlationId, "w", Tree.class, "t", "createTrunk", new Call());
+      hops.received(call.metadata(), "t");
+      assertEquals(correlationId, call.metadata().get(Hops.correlationKey).get());
+      assertEquals(hops.isSampled(correlationId), hops.find(correlationId).isPresent());
+      sampled += hops.isSampled(correlationId) ? 1 : 0;
+    }
+    assertTrue(sampled > 400 && sampled < 600);
+  }
+
+  @Test
+  public void oldestTrailsEvictedTest() {
+    var hops = new Hops(2, 1.0, Clock.systemUTC());
+    hops.received(Metadata.EMPTY.set(Hops.correlationKey, "a"), "x");
+    hops.received(Metadata.EMPTY.set(Hops.correlationKey, "b"), "x");
+    hops.received(Metadata.EMPTY.set(Hops.correlationKey, "c"), "x");
+    hops.received(Metadata.EMPTY, "x");
+
+    assertFalse(hops.find("a").isPresent());
+    assertTrue(hops.find("b").isPresent());
+    assertTrue(hops.find("c").isPresent());
+  }
+
+  static class Tree {}
+
+  static class Leaf {}
+
+  static class Unit {}
+
+  static class Withdrawal {}
+
+  static class Call implements DeferredCall<String, String> {
+    final Metadata metadata;
+    final CompletableFuture<String> result;
+    Call sent;
+
+    Call() {
+      this(Metadata.EMPTY, new CompletableFuture<>());
+    }
+
+    Call(Metadata metadata, CompletableFuture<String> result) {
+      this.metadata = metadata;
+      this.result = result;
+    }
+
+    @Override
+    public String message() {
+      return "";
+    }
+
+    @Override
+    public Metadata metadata() {
+      return metadata;
+    }
+
+    @Override
+    public CompletionStage<String> execute() {
+      return result;
+    }
+
+    @Override
+    public DeferredCall<String, String> withMetadata(Metadata metadata) {
+      sent = new Call(metadata, result);
+      return sent;
+    }
+  }
+
+  static class StepClock extends Clock {
+    Instant instant = Instant.parse("2023-06-01T00:00:00Z");
+
+    void step(long millis) {
+      instant = instant.plusMillis(millis);
+    }
+
+    @Override
+    public ZoneId getZone() {
+      return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+      return this;
+    }
+
+    @Override
+    public Instant instant() {
+      return instant;
+    }
+  }
+}
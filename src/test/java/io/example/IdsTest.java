@@ -0,0 +1,42 @@
+package io.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+
+public class IdsTest {
+  @Test
+  public void base62Test() {
+    assertEquals("0000000000000000000000", Ids.base62(0, 0));
+    assertEquals("0000000000000000000010", Ids.base62(0, 62));
+    assertEquals("LygHa16AHYF", Ids.base62(-1, 0).substring(0, 11));
+    assertEquals("00000000001LygHa16AHYF", Ids.base62(1, -1));
+    assertTrue(Ids.base62(1, 0).compareTo(Ids.base62(2, 0)) < 0);
+    assertTrue(Ids.base62(Long.MAX_VALUE, 0).compareTo(Ids.base62(Long.MIN_VALUE, 0)) < 0);
+  }
+
+  @Test
+  public void randomIdsTest() {
+    var ids = new HashSet<String>();
+    IntStream.range(0, 10_000).forEach(i -> {
+      var id = Ids.random();
+      assertEquals(22, id.length());
+      assertTrue(id.chars().allMatch(Character::isLetterOrDigit));
+      ids.add(id);
+    });
+    assertEquals(10_000, ids.size());
+  }
+
+  @Test
+  public void internTest() {
+    var accountId = Ids.intern(new String("account-intern-1"));
+    assertSame(accountId, Ids.intern(new String("account-intern-1")));
+    assertNull(Ids.intern(null));
+  }
+}
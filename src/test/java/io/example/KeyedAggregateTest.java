@@ -0,0 +1,124 @@
+package io.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import kalix.javasdk.JsonSupport;
+
+public class KeyedAggregateTest {
+  @Test
+  public void putReplaceRemoveTest() {
+    KeyedAggregate<String, Item> aggregate = KeyedAggregate.empty();
+
+    aggregate = aggregate.put(new Item("a", Money.of(1.00)));
+    aggregate = aggregate.put(new Item("b", Money.of(2.00)));
+    aggregate = aggregate.put(new Item("c", Money.of(3.00)));
+    assertEquals(3, aggregate.size());
+    assertEquals(Money.of(6.00), aggregate.total());
+
+    var replaced = aggregate.put(new Item("a", Money.of(10.00)));
+    assertEquals(3, replaced.size());
+    assertEquals(Money.of(15.00), replaced.total());
+    assertEquals(List.of("a", "b", "c"), replaced.stream().map(Item::id).toList());
+    assertEquals(Money.of(1.00), aggregate.get("a").get().amount());
+
+    var removed = replaced.remove("b");
+    assertEquals(2, removed.size());
+    assertEquals(Money.of(13.00), removed.total());
+    assertFalse(removed.contains("b"));
+    assertSame(removed, removed.remove("b"));
+  }
+
+  @Test
+  public void sameHashKeysTest() {
+    KeyedAggregate<SameHash, SameHashItem> aggregate = KeyedAggregate.empty();
+
+    aggregate = aggregate.put(new SameHashItem(new SameHash("a"), Money.of(1.00)));
+    aggregate = aggregate.put(new SameHashItem(new SameHash("b"), Money.of(2.00)));
+    aggregate = aggregate.put(new SameHashItem(new SameHash("a"), Money.of(3.00)));
+    assertEquals(2, aggregate.size());
+    assertEquals(Money.of(5.00), aggregate.total());
+
+    aggregate = aggregate.remove(new SameHash("a"));
+    assertEquals(1, aggregate.size());
+    assertEquals(Money.of(2.00), aggregate.total());
+    assertTrue(aggregate.contains(new SameHash("b")));
+  }
+
+  @Test
+  public void matchesLinkedHashMapTest() {
+    var random = new Random(7);
+    var expected = new LinkedHashMap<String, Item>();
+    KeyedAggregate<String, Item> aggregate = KeyedAggregate.empty();
+
+    for (var i = 0; i < 20_000; i++) {
+      var key = "key-" + random.nextInt(500);
+      if (random.nextInt(4) == 0) {
+        expected.remove(key);
+        aggregate = aggregate.remove(key);
+      } else {
+        var item = new Item(key, Money.ofCents(random.nextInt(10_000)));
+        expected.merge(key, item, (oldItem, newItem) -> newItem);
+        aggregate = aggregate.put(item);
+      }
+      assertEquals(expected.size(), aggregate.size());
+    }
+
+    assertEquals(List.copyOf(expected.values()), aggregate.entries());
+    assertEquals(expected.values().stream().map(Item::amount).reduce(Money.zero, Money::plus), aggregate.total());
+  }
+
+  @Test
+  public void jsonAsListTest() throws Exception {
+    var objectMapper = JsonSupport.getObjectMapper();
+    var holder = new Holder(KeyedAggregate.of(List.of(new Item("a", Money.of(1.00)), new Item("b", Money.of(2.00)))));
+
+    var json = objectMapper.writeValueAsString(holder);
+    assertEquals("{\"items\":[{\"id\":\"a\",\"amount\":1.00},{\"id\":\"b\",\"amount\":2.00}]}", json);
+
+    var read = objectMapper.readValue(json, Holder.class);
+    assertEquals(holder.items(), read.items());
+    assertEquals(Money.of(3.00), read.items().total());
+  }
+
+  record Item(String id, Money amount) implements KeyedAggregate.Entry<String> {
+    @Override
+    public String aggregateKey() {
+      return id;
+    }
+
+    @Override
+    public Money aggregateAmount() {
+      return amount;
+    }
+  }
+
+  record SameHash(String id) {
+    @Override
+    public int hashCode() {
+      return 42;
+    }
+  }
+
+  record SameHashItem(SameHash id, Money amount) implements KeyedAggregate.Entry<SameHash> {
+    @Override
+    public SameHash aggregateKey() {
+      return id;
+    }
+
+    @Override
+    public Money aggregateAmount() {
+      return amount;
+    }
+  }
+
+  record Holder(KeyedAggregate<String, Item> items) {}
+}
@@ -0,0 +1,47 @@
+package io.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigDecimal;
+
+import org.junit.jupiter.api.Test;
+
+import kalix.javasdk.JsonSupport;
+
+public class MoneyTest {
+  @Test
+  public void arithmeticTest() {
+    var amount = Money.of(123.45);
+    assertEquals(12345, amount.cents());
+    assertEquals(Money.of(123.46), amount.plus(Money.ofCents(1)));
+    assertEquals(Money.of(100.00), amount.minus(Money.of(23.45)));
+    assertEquals(Money.of(-123.45), amount.negate());
+    assertEquals(Money.of(25.00), amount.min(Money.of(25.00)));
+    assertTrue(amount.minus(amount).isZero());
+    assertEquals("123.45", amount.toString());
+
+    assertThrows(ArithmeticException.class, () -> Money.ofCents(Long.MAX_VALUE).plus(Money.ofCents(1)));
+  }
+
+  @Test
+  public void jsonCompatibleWithBigDecimalTest() throws Exception {
+    var objectMapper = JsonSupport.getObjectMapper();
+
+    var json = objectMapper.writeValueAsString(new Amount("id-1", Money.of(25.00)));
+    assertEquals("{\"id\":\"id-1\",\"amount\":25.00}", json);
+
+    // amounts written as BigDecimal before Money was introduced
+    var legacyJson = objectMapper.writeValueAsString(new LegacyAmount("id-1", BigDecimal.valueOf(1.2)));
+    assertEquals(Money.of(1.20), objectMapper.readValue(legacyJson, Amount.class).amount());
+    assertEquals(Money.of(3.00), objectMapper.readValue("{\"id\":\"id-1\",\"amount\":3}", Amount.class).amount());
+    assertEquals(Money.of(1.00), objectMapper.readValue("{\"id\":\"id-1\",\"amount\":1.005}", Amount.class).amount());
+
+    assertEquals(0, objectMapper.readValue(json, LegacyAmount.class).amount().compareTo(BigDecimal.valueOf(25.00)));
+  }
+
+  record Amount(String id, Money amount) {}
+
+  record LegacyAmount(String id, BigDecimal amount) {}
+}
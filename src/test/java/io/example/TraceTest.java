@@ -0,0 +1,80 @@
+package io.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+
+public class TraceTest {
+  record State(String id, String details) implements Trace.Summary {
+    @Override
+    public String summary() {
+      return "State[id=%s]".formatted(id);
+    }
+  }
+
+  @Test
+  public void sampledSummaryAtInfoTest() {
+    var appender = new ListAppender<ILoggingEvent>();
+    var trace = new Trace("TraceTest", logger(Level.INFO, appender), 1.0);
+
+    trace.event("entity-1", new State("state-1", "details"), "event-1");
+
+    assertEquals(1, appender.list.size());
+    var message = appender.list.get(0).getFormattedMessage();
+    assertTrue(message.contains("State[id=state-1]"));
+    assertFalse(message.contains("details"));
+    assertEquals(Level.INFO, appender.list.get(0).getLevel());
+  }
+
+  @Test
+  public void notSampledAtInfoTest() {
+    var appender = new ListAppender<ILoggingEvent>();
+    var trace = new Trace("TraceTest", logger(Level.INFO, appender), 0.0);
+
+    for (var i = 0; i < 100; i++) {
+      trace.command("entity-1", new State("state-1", "details"), "command-1");
+      trace.event("event-1");
+    }
+
+    assertEquals(0, appender.list.size());
+  }
+
+  @Test
+  public void fullStateAtDebugTest() {
+    var appender = new ListAppender<ILoggingEvent>();
+    var trace = new Trace("TraceTest", logger(Level.DEBUG, appender), 0.0);
+
+    trace.command("entity-1", new State("state-1", "details"), "command-1");
+
+    assertEquals(1, appender.list.size());
+    assertTrue(appender.list.get(0).getFormattedMessage().contains("details"));
+    assertEquals(Level.DEBUG, appender.list.get(0).getLevel());
+  }
+
+  @Test
+  public void silentAboveInfoTest() {
+    var appender = new ListAppender<ILoggingEvent>();
+    var trace = new Trace("TraceTest", logger(Level.WARN, appender), 1.0);
+
+    trace.event("entity-1", new State("state-1", "details"), "event-1");
+
+    assertEquals(0, appender.list.size());
+  }
+
+  private static ch.qos.logback.classic.Logger logger(Level level, ListAppender<ILoggingEvent> appender) {
+    var context = new LoggerContext();
+    appender.setContext(context);
+    appender.start();
+    var logger = context.getLogger("trace-test");
+    logger.setLevel(level);
+    logger.addAppender(appender);
+    return logger;
+  }
+}
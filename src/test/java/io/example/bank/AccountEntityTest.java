@@ -3,11 +3,11 @@ package io.example.bank;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
-import java.math.BigDecimal;
 import java.time.LocalDateTime;
 
 import org.junit.jupiter.api.Test;
 
+import io.example.Money;
 import kalix.javasdk.testkit.EventSourcedTestKit;
 
 public class AccountEntityTest {
@@ -32,7 +32,7 @@ public class AccountEntityTest {
       assertEquals("accountId", state.accountId());
       assertEquals("fullName", state.fullName());
       assertEquals("address", state.address());
-      assertEquals(0, state.balance().compareTo(BigDecimal.ZERO));
+      assertEquals(0, state.balance().compareTo(Money.zero));
       assertTrue(startTime.isBefore(state.lastUpdated()));
     }
   }
@@ -71,19 +71,19 @@ public class AccountEntityTest {
     }
 
     {
-      var result = testKit.call(e -> e.updateBalance(new AccountEntity.UpdateAccountBalanceCommand("accountId", BigDecimal.TEN)));
+      var result = testKit.call(e -> e.updateBalance(new AccountEntity.UpdateAccountBalanceCommand("accountId", Money.of(10), "4x100")));
       assertTrue(result.isReply());
       assertEquals("OK", result.getReply());
 
       var event = result.getNextEventOfType(AccountEntity.UpdatedAccountBalanceEvent.class);
       assertEquals("accountId", event.accountId());
-      assertEquals(0, event.balance().compareTo(BigDecimal.TEN));
+      assertEquals(0, event.balance().compareTo(Money.of(10)));
 
       var state = testKit.getState();
       assertEquals("accountId", state.accountId());
       assertEquals("fullName", state.fullName());
       assertEquals("address", state.address());
-      assertEquals(0, state.balance().compareTo(BigDecimal.TEN));
+      assertEquals(0, state.balance().compareTo(Money.of(10)));
       assertTrue(startTime.isBefore(state.lastUpdated()));
     }
   }
@@ -109,12 +109,12 @@ public class AccountEntityTest {
       assertEquals("accountId", reply.accountId());
       assertEquals("fullName", reply.fullName());
       assertEquals("address", reply.address());
-      assertEquals(0, reply.balance().compareTo(BigDecimal.ZERO));
+      assertEquals(0, reply.balance().compareTo(Money.zero));
       assertTrue(startTime.isBefore(reply.lastUpdated()));
     }
 
     {
-      var command = new AccountEntity.UpdateAccountBalanceCommand("accountId", BigDecimal.TEN);
+      var command = new AccountEntity.UpdateAccountBalanceCommand("accountId", Money.of(10), "4x100");
       var result = testKit.call(e -> e.updateBalance(command));
       assertTrue(result.isReply());
       assertEquals("OK", result.getReply());
@@ -128,8 +128,99 @@ public class AccountEntityTest {
       assertEquals("accountId", reply.accountId());
       assertEquals("fullName", reply.fullName());
       assertEquals("address", reply.address());
-      assertEquals(0, reply.balance().compareTo(BigDecimal.TEN));
+      assertEquals(0, reply.balance().compareTo(Money.of(10)));
       assertTrue(startTime.isBefore(reply.lastUpdated()));
     }
   }
+
+  @Test
+  public void balanceIsSumOfTreeBalancesTest() {
+    var testKit = EventSourcedTestKit.of(AccountEntity::new);
+
+    {
+      var command = new AccountEntity.CreateAccountCommand("accountId", "fullName", "address");
+      testKit.call(e -> e.create(command));
+    }
+
+    {
+      var command = new AccountEntity.UpdateAccountBalanceCommand("accountId", Money.of(10), "4x100");
+      testKit.call(e -> e.updateBalance(command));
+    }
+
+    {
+      var command = new AccountEntity.UpdateAccountBalanceCommand("accountId", Money.of(5), "1x100");
+      testKit.call(e -> e.updateBalance(command));
+      assertEquals(Money.of(15), testKit.getState().balance());
+    }
+
+    {
+      var command = new AccountEntity.UpdateAccountBalanceCommand("accountId", Money.of(-3), "1x100");
+      testKit.call(e -> e.updateBalance(command));
+      assertEquals(Money.of(7), testKit.getState().balance());
+      assertEquals(2, testKit.getState().treeBalances().size());
+    }
+
+    {
+      var command = new AccountEntity.UpdateAccountBalanceCommand("accountId", Money.of(12), null);
+      testKit.call(e -> e.updateBalance(command));
+      assertEquals(Money.of(9), testKit.getState().balance());
+    }
+  }
+
+  @Test
+  public void applyBalanceDeltaTest() {
+    var testKit = EventSourcedTestKit.of(AccountEntity::new);
+
+    {
+      var command = new AccountEntity.CreateAccountCommand("accountId", "fullName", "address");
+      testKit.call(e -> e.create(command));
+    }
+
+    {
+      var command = new AccountEntity.ApplyBalanceDeltaCommand("accountId", "deposit_accountId_deposit-1", Money.of(10));
+      var result = testKit.call(e -> e.applyBalanceDelta(command));
+      assertTrue(result.isReply());
+      assertEquals("OK", result.getReply());
+
+      var event = result.getNextEventOfType(AccountEntity.AppliedBalanceDeltaEvent.class);
+      assertEquals("deposit_accountId_deposit-1", event.transactionId());
+      assertEquals(Money.of(10), event.amount());
+      assertEquals(Money.of(10), testKit.getState().balance());
+    }
+
+    {
+      var command = new AccountEntity.ApplyBalanceDeltaCommand("accountId", "withdrawal_accountId_withdrawal-1", Money.of(-4));
+      testKit.call(e -> e.applyBalanceDelta(command));
+      assertEquals(Money.of(6), testKit.getState().balance());
+    }
+
+    {
+      var command = new AccountEntity.ApplyBalanceDeltaCommand("accountId", "deposit_accountId_deposit-1", Money.of(10));
+      var result = testKit.call(e -> e.applyBalanceDelta(command));
+      assertEquals("OK", result.getReply());
+      assertEquals(0, result.getAllEvents().size());
+      assertEquals(Money.of(6), testKit.getState().balance());
+    }
+
+    {
+      var command = new AccountEntity.UpdateAccountBalanceCommand("accountId", Money.of(20), "1x100");
+      testKit.call(e -> e.updateBalance(command));
+      assertEquals(Money.of(26), testKit.getState().balance());
+    }
+  }
+
+  @Test
+  public void balanceDeltaRedeliveredAfterManyTransactionsTest() {
+    var state = AccountEntity.State.emptyState()
+        .on(new AccountEntity.CreatedAccountEvent("accountId", "fullName", "address"))
+        .on(new AccountEntity.AppliedBalanceDeltaEvent("accountId", "deposit_accountId_deposit-0", Money.of(10)));
+    for (var i = 1; i <= 1_000; i++) {
+      state = state.on(new AccountEntity.AppliedBalanceDeltaEvent("accountId", "deposit_accountId_deposit-" + i, Money.of(1)));
+    }
+
+    // the first deposit is redelivered after a thousand newer transactions
+    var command = new AccountEntity.ApplyBalanceDeltaCommand("accountId", "deposit_accountId_deposit-0", Money.of(10));
+    assertTrue(state.transactions().contains(command.transactionId()));
+    assertEquals(Money.of(1_010), state.on((AccountEntity.AppliedBalanceDeltaEvent) state.eventFor(command)).balance());
+  }
 }
@@ -4,11 +4,20 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
-import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
 
 import org.junit.jupiter.api.Test;
 
+import io.example.Money;
+import kalix.javasdk.JsonSupport;
 import kalix.javasdk.testkit.EventSourcedTestKit;
 
 public class AccountRedTreeEntityTest {
@@ -21,7 +30,7 @@ public class AccountRedTreeEntityTest {
     var subbranchId = AccountRedTreeEntity.BranchId.fromEntityId("accountId_1_0");
 
     {
-      var command = new AccountRedTreeEntity.UpdateSubbranchCommand(branchId, subbranchId, BigDecimal.TEN);
+      var command = new AccountRedTreeEntity.UpdateSubbranchCommand(branchId, subbranchId, Money.of(10), null);
       var result = testKit.call(e -> e.updateSubbranch(command));
       assertTrue(result.isReply());
       assertEquals("OK", result.getReply());
@@ -31,7 +40,7 @@ public class AccountRedTreeEntityTest {
       var event1 = result.getNextEventOfType(AccountRedTreeEntity.UpdatedSubbranchEvent.class);
       assertEquals(branchId, event1.branchId());
       assertEquals(subbranchId, event1.subbranchId());
-      assertEquals(0, event1.amount().compareTo(BigDecimal.TEN));
+      assertEquals(0, event1.amount().compareTo(Money.of(10)));
 
       var event2 = result.getNextEventOfType(AccountRedTreeEntity.UpdatedBranchEvent.class);
       assertEquals(branchId, event2.branchId());
@@ -54,7 +63,7 @@ public class AccountRedTreeEntityTest {
     var subbranchId2 = AccountRedTreeEntity.BranchId.fromEntityId("accountId_1_1");
 
     {
-      var command = new AccountRedTreeEntity.UpdateSubbranchCommand(branchId, subbranchId1, BigDecimal.ONE);
+      var command = new AccountRedTreeEntity.UpdateSubbranchCommand(branchId, subbranchId1, Money.of(1), null);
       var result = testKit.call(e -> e.updateSubbranch(command));
       assertTrue(result.isReply());
       assertEquals("OK", result.getReply());
@@ -65,7 +74,7 @@ public class AccountRedTreeEntityTest {
       assertEquals(branchId, event1.branchId());
 
       assertEquals(subbranchId1, event1.subbranchId());
-      assertEquals(0, event1.amount().compareTo(BigDecimal.ONE));
+      assertEquals(0, event1.amount().compareTo(Money.of(1)));
 
       var event2 = result.getNextEventOfType(AccountRedTreeEntity.UpdatedBranchEvent.class);
       assertEquals(branchId.levelUp(), event2.branchId());
@@ -73,13 +82,13 @@ public class AccountRedTreeEntityTest {
       var state = testKit.getState();
       assertEquals(branchId, state.branchId());
       assertEquals(1, state.subbranches().size());
-      assertEquals(new AccountRedTreeEntity.Subbranch(subbranchId1, BigDecimal.ONE), state.subbranches().get(0));
+      assertEquals(new AccountRedTreeEntity.Subbranch(subbranchId1, Money.of(1)), state.subbranches().get(subbranchId1).get());
       assertTrue(startTime.isBefore(state.lastUpdated()));
       assertTrue(state.hasChanged());
     }
 
     {
-      var command = new AccountRedTreeEntity.UpdateSubbranchCommand(branchId, subbranchId2, BigDecimal.TEN);
+      var command = new AccountRedTreeEntity.UpdateSubbranchCommand(branchId, subbranchId2, Money.of(10), null);
       var result = testKit.call(e -> e.updateSubbranch(command));
       assertTrue(result.isReply());
       assertEquals("OK", result.getReply());
@@ -89,13 +98,13 @@ public class AccountRedTreeEntityTest {
       var event = result.getNextEventOfType(AccountRedTreeEntity.UpdatedSubbranchEvent.class);
       assertEquals(branchId, event.branchId());
       assertEquals(subbranchId2, event.subbranchId());
-      assertEquals(0, event.amount().compareTo(BigDecimal.TEN));
+      assertEquals(0, event.amount().compareTo(Money.of(10)));
 
       var state = testKit.getState();
       assertEquals(branchId, state.branchId());
       assertEquals(2, state.subbranches().size());
-      assertEquals(new AccountRedTreeEntity.Subbranch(subbranchId1, BigDecimal.ONE), state.subbranches().get(0));
-      assertEquals(new AccountRedTreeEntity.Subbranch(subbranchId2, BigDecimal.TEN), state.subbranches().get(1));
+      assertEquals(new AccountRedTreeEntity.Subbranch(subbranchId1, Money.of(1)), state.subbranches().get(subbranchId1).get());
+      assertEquals(new AccountRedTreeEntity.Subbranch(subbranchId2, Money.of(10)), state.subbranches().get(subbranchId2).get());
       assertTrue(startTime.isBefore(state.lastUpdated()));
       assertTrue(state.hasChanged());
     }
@@ -111,14 +120,14 @@ public class AccountRedTreeEntityTest {
     var subbranchId2 = AccountRedTreeEntity.BranchId.fromEntityId("accountId_1_1");
 
     {
-      var command = new AccountRedTreeEntity.UpdateSubbranchCommand(branchId, subbranchId1, BigDecimal.TEN);
+      var command = new AccountRedTreeEntity.UpdateSubbranchCommand(branchId, subbranchId1, Money.of(10), null);
       var result = testKit.call(e -> e.updateSubbranch(command));
       assertTrue(result.isReply());
       assertEquals("OK", result.getReply());
     }
 
     {
-      var command = new AccountRedTreeEntity.UpdateSubbranchCommand(branchId, subbranchId2, BigDecimal.TEN);
+      var command = new AccountRedTreeEntity.UpdateSubbranchCommand(branchId, subbranchId2, Money.of(10), null);
       var result = testKit.call(e -> e.updateSubbranch(command));
       assertTrue(result.isReply());
       assertEquals("OK", result.getReply());
@@ -132,15 +141,255 @@ public class AccountRedTreeEntityTest {
 
       var event = result.getNextEventOfType(AccountRedTreeEntity.ReleasedBranchEvent.class);
       assertEquals(branchId, event.branchId());
-      assertEquals((BigDecimal.TEN).add(BigDecimal.TEN), event.subbranch().amount());
+      assertEquals(Money.of(20), event.subbranch().amount());
 
       var state = testKit.getState();
       assertEquals(branchId, state.branchId());
       assertEquals(2, state.subbranches().size());
-      assertEquals(new AccountRedTreeEntity.Subbranch(subbranchId1, BigDecimal.TEN), state.subbranches().get(0));
-      assertEquals(new AccountRedTreeEntity.Subbranch(subbranchId2, BigDecimal.TEN), state.subbranches().get(1));
+      assertEquals(new AccountRedTreeEntity.Subbranch(subbranchId1, Money.of(10)), state.subbranches().get(subbranchId1).get());
+      assertEquals(new AccountRedTreeEntity.Subbranch(subbranchId2, Money.of(10)), state.subbranches().get(subbranchId2).get());
       assertTrue(startTime.isBefore(state.lastUpdated()));
       assertFalse(state.hasChanged());
     }
   }
+
+  @Test
+  public void releaseUnchangedBranchTest() {
+    var testKit = EventSourcedTestKit.of(AccountRedTreeEntity::new);
+
+    var branchId = AccountRedTreeEntity.BranchId.fromEntityId("accountId_0_0");
+    var subbranchId = AccountRedTreeEntity.BranchId.fromEntityId("accountId_1_0");
+
+    {
+      var command = new AccountRedTreeEntity.UpdateSubbranchCommand(branchId, subbranchId, Money.of(10), null);
+      testKit.call(e -> e.updateSubbranch(command));
+    }
+
+    {
+      var command = new AccountRedTreeEntity.ReleaseBranchCommand(branchId);
+      var result = testKit.call(e -> e.releaseBranch(command));
+      assertEquals(1, result.getAllEvents().size());
+    }
+
+    {
+      var command = new AccountRedTreeEntity.ReleaseBranchCommand(branchId);
+      var result = testKit.call(e -> e.releaseBranch(command));
+      assertTrue(result.isReply());
+      assertEquals("OK", result.getReply());
+      assertEquals(0, result.getAllEvents().size());
+    }
+  }
+
+  @Test
+  public void releaseDueAtMaxUpdatesTest() {
+    var testKit = EventSourcedTestKit.of(AccountRedTreeEntity::new);
+
+    var branchId = AccountRedTreeEntity.BranchId.fromEntityId("accountId_0_0");
+
+    for (var i = 0; i < AccountRedTreeEntity.releaseMaxUpdates - 1; i++) {
+      var subbranchId = AccountRedTreeEntity.BranchId.fromEntityId("accountId_1_" + i);
+      var command = new AccountRedTreeEntity.UpdateSubbranchCommand(branchId, subbranchId, Money.of(1), null);
+      var result = testKit.call(e -> e.updateSubbranch(command));
+      assertEquals(i == 0 ? 2 : 1, result.getAllEvents().size());
+    }
+
+    {
+      var subbranchId = AccountRedTreeEntity.BranchId.fromEntityId("accountId_1_0");
+      var command = new AccountRedTreeEntity.UpdateSubbranchCommand(branchId, subbranchId, Money.of(2), null);
+      var result = testKit.call(e -> e.updateSubbranch(command));
+      assertEquals(2, result.getAllEvents().size());
+
+      result.getNextEventOfType(AccountRedTreeEntity.UpdatedSubbranchEvent.class);
+      var event = result.getNextEventOfType(AccountRedTreeEntity.BranchReleaseDueEvent.class);
+      assertEquals(branchId, event.branchId());
+      assertEquals(AccountRedTreeEntity.releaseMaxUpdates, testKit.getState().updatesSinceRelease());
+    }
+
+    {
+      var command = new AccountRedTreeEntity.ReleaseBranchCommand(branchId);
+      var result = testKit.call(e -> e.releaseBranch(command));
+
+      var event = result.getNextEventOfType(AccountRedTreeEntity.ReleasedBranchEvent.class);
+      assertEquals(Money.of(AccountRedTreeEntity.releaseMaxUpdates), event.subbranch().amount());
+      assertEquals(0, testKit.getState().updatesSinceRelease());
+      assertFalse(testKit.getState().hasChanged());
+    }
+  }
+
+  @Test
+  public void transactionUpdatesAddToLeafSlotTest() {
+    var testKit = EventSourcedTestKit.of(AccountRedTreeEntity::new);
+
+    var shape = new AccountRedTreeEntity.TreeShape(1, 1);
+    var leafId = AccountRedTreeEntity.BranchId.forLeaf("accountId", "deposit-1", shape);
+    var branchId = leafId.levelUp();
+
+    {
+      var command = AccountRedTreeEntity.UpdateSubbranchCommand.forTransaction(leafId, "deposit-1", Money.of(10));
+      var result = testKit.call(e -> e.updateSubbranch(command));
+      assertEquals(2, result.getAllEvents().size());
+    }
+
+    {
+      var command = AccountRedTreeEntity.UpdateSubbranchCommand.forTransaction(leafId, "deposit-2", Money.of(5));
+      var result = testKit.call(e -> e.updateSubbranch(command));
+      assertEquals(1, result.getAllEvents().size());
+    }
+
+    {
+      var command = AccountRedTreeEntity.UpdateSubbranchCommand.forTransaction(leafId, "deposit-1", Money.of(10));
+      var result = testKit.call(e -> e.updateSubbranch(command));
+      assertTrue(result.isReply());
+      assertEquals("OK", result.getReply());
+      assertEquals(0, result.getAllEvents().size());
+    }
+
+    {
+      var command = new AccountRedTreeEntity.ReleaseBranchCommand(branchId);
+      var result = testKit.call(e -> e.releaseBranch(command));
+
+      var event = result.getNextEventOfType(AccountRedTreeEntity.ReleasedBranchEvent.class);
+      assertEquals(Money.of(15), event.subbranch().amount());
+      assertEquals(1, testKit.getState().subbranches().size());
+    }
+  }
+
+  @Test
+  public void transactionUpdateRedeliveredAfterManyTransactionsTest() {
+    var shape = new AccountRedTreeEntity.TreeShape(1, 1);
+    var leafId = AccountRedTreeEntity.BranchId.forLeaf("accountId", "deposit-0", shape);
+    var state = AccountRedTreeEntity.State.emptyState();
+    for (var i = 0; i <= 1_000; i++) {
+      var command = AccountRedTreeEntity.UpdateSubbranchCommand.forTransaction(leafId, "deposit-" + i, Money.of(1));
+      for (var event : state.eventsFor(command)) {
+        state = event instanceof AccountRedTreeEntity.UpdatedSubbranchEvent updated ? state.on(updated) : state;
+      }
+    }
+
+    // the first deposit is redelivered after a thousand newer transactions
+    var command = AccountRedTreeEntity.UpdateSubbranchCommand.forTransaction(leafId, "deposit-0", Money.of(1));
+    assertTrue(state.eventsFor(command).isEmpty());
+    assertEquals(Money.of(1_001), state.subbranches().total());
+  }
+
+  @Test
+  public void leafSlotOfRecordedLeafHashTest() {
+    var shape = new AccountRedTreeEntity.TreeShape(2, 100, AccountRedTreeEntity.LeafHash.STRING);
+    var leafId = AccountRedTreeEntity.BranchId.forLeaf("accountId", "deposit-1", shape);
+    assertEquals(AccountRedTreeEntity.BranchId.forLeaf("accountId", "deposit-1", shape, AccountRedTreeEntity.LeafHash.STRING), leafId);
+    assertEquals("accountId_2_" + Math.floorMod("deposit-1".hashCode(), 10_000) + "_2x100", leafId.toEntityId());
+
+    // shapes recorded without a hash used murmur3
+    var unrecorded = new AccountRedTreeEntity.TreeShape(2, 100);
+    assertEquals(
+        AccountRedTreeEntity.BranchId.forLeaf("accountId", "deposit-1", unrecorded, AccountRedTreeEntity.LeafHash.MURMUR3),
+        AccountRedTreeEntity.BranchId.forLeaf("accountId", "deposit-1", unrecorded));
+  }
+
+  @Test
+  public void branchIdOfTreeShapeTest() {
+    var legacyId = AccountRedTreeEntity.BranchId.fromEntityId("accountId_4_123");
+    assertTrue(legacyId.isLegacy());
+    assertEquals(AccountRedTreeEntity.TreeShape.legacy, legacyId.treeShape());
+    assertEquals("accountId_4_123", legacyId.toEntityId());
+    assertEquals("accountId_3_1", legacyId.levelUp().toEntityId());
+
+    var shape = new AccountRedTreeEntity.TreeShape(2, 10);
+    var leafId = AccountRedTreeEntity.BranchId.forLeaf("accountId", "deposit-1", shape);
+    assertEquals(2, leafId.level());
+    assertTrue(leafId.branch() < 100);
+    assertEquals(leafId, AccountRedTreeEntity.BranchId.fromEntityId(leafId.toEntityId()));
+
+    var trunkId = leafId.levelUp().levelUp();
+    assertEquals(0, trunkId.level());
+    assertEquals("accountId_0_0_2x10", trunkId.toEntityId());
+  }
+
+  @Test
+  public void legacyLeafSlotOfMinValueHashTest() {
+    // "polygenelubricants".hashCode() is Integer.MIN_VALUE
+    var leafId = AccountRedTreeEntity.BranchId.forLeaf("accountId", "polygenelubricants");
+    assertEquals(52_516_352, leafId.branch());
+    assertEquals("accountId_4_52516352", leafId.toEntityId());
+
+    // other slots stay where they were
+    var depositId = AccountRedTreeEntity.BranchId.forLeaf("accountId", "deposit-1");
+    assertEquals(Math.abs("deposit-1".hashCode()) % 100_000_000, depositId.branch());
+  }
+
+  @Test
+  public void shapedTreeOfLegacyShapeTest() {
+    // a hot account tree has the levels and branch factor of the legacy tree, its transaction updates add to a slot
+    // where legacy updates replace it, so the two trees share neither entities nor account balances
+    var shape = new AccountRedTreeEntity.TreeShape(4, 100);
+    var legacyId = AccountRedTreeEntity.BranchId.forLeaf("accountId", "deposit-1");
+    var shapedId = AccountRedTreeEntity.BranchId.forLeaf("accountId", "deposit-1", shape, AccountRedTreeEntity.LeafHash.STRING);
+    assertFalse(shapedId.isLegacy());
+    assertEquals("accountId_4_" + legacyId.branch(), legacyId.toEntityId());
+    assertEquals("accountId_4_" + shapedId.branch() + "_4x100", shapedId.toEntityId());
+    assertEquals(shapedId, AccountRedTreeEntity.BranchId.fromEntityId(shapedId.toEntityId()));
+
+    var legacyTrunkId = legacyId.levelUp().levelUp().levelUp().levelUp();
+    var shapedTrunkId = shapedId.levelUp().levelUp().levelUp().levelUp();
+    assertEquals("accountId_0_0", legacyTrunkId.toEntityId());
+    assertEquals("accountId_0_0_4x100", shapedTrunkId.toEntityId());
+    assertEquals(AccountEntity.legacyTreeId, legacyTrunkId.treeId());
+    assertEquals("4x100-shaped", shapedTrunkId.treeId());
+    assertEquals("2x10", new AccountRedTreeEntity.BranchId("accountId", 0, 0, new AccountRedTreeEntity.TreeShape(2, 10)).treeId());
+  }
+
+  @Test
+  public void branchIdCompactJsonTest() throws Exception {
+    var objectMapper = JsonSupport.getObjectMapper();
+    var branchId = new AccountRedTreeEntity.BranchId("accountId", 1, 7, new AccountRedTreeEntity.TreeShape(2, 10));
+
+    var json = objectMapper.writeValueAsString(branchId);
+    assertEquals("[\"accountId\",1,7,[2,10]]", json);
+    assertEquals(branchId, objectMapper.readValue(json, AccountRedTreeEntity.BranchId.class));
+
+    // ids written with named fields, and without a shape before trees were shaped per account
+    var legacyJson = "{\"accountId\":\"accountId\",\"level\":1,\"branch\":7,\"shape\":{\"levels\":2,\"branchFactor\":10}}";
+    assertEquals(branchId, objectMapper.readValue(legacyJson, AccountRedTreeEntity.BranchId.class));
+    var legacyShapeJson = "{\"accountId\":\"accountId\",\"level\":4,\"branch\":123}";
+    assertEquals(AccountRedTreeEntity.BranchId.fromEntityId("accountId_4_123"), objectMapper.readValue(legacyShapeJson, AccountRedTreeEntity.BranchId.class));
+  }
+
+  // The spread of 10,000 deposits and withdrawals over the branches of each level of a 4x100 tree.
+  // The max load is the number of updates of the busiest branch of the level.
+  @Test
+  public void leafSlotDistributionTest() {
+    var shape = AccountRedTreeEntity.TreeShape.legacy;
+    var patterns = Map.<String, IntFunction<String>>of(
+        "withdrawals", i -> "account-1_withdrawal-" + i,
+        "deposits", i -> "deposit-" + i,
+        "uuids", i -> UUID.nameUUIDFromBytes(("deposit-" + i).getBytes(StandardCharsets.UTF_8)).toString());
+
+    for (var pattern : patterns.values()) {
+      var string = maxLoadByLevel(shape, AccountRedTreeEntity.LeafHash.STRING, pattern);
+      var murmur3 = maxLoadByLevel(shape, AccountRedTreeEntity.LeafHash.MURMUR3, pattern);
+
+      // at most twice the mean load of the 100 level 1 branches
+      assertTrue(murmur3.get(1) <= 2 * 10_000 / shape.branchFactor());
+      assertTrue(murmur3.get(3) <= 5);
+      assertTrue(murmur3.get(3) <= string.get(3));
+    }
+  }
+
+  private static List<Integer> maxLoadByLevel(AccountRedTreeEntity.TreeShape shape, AccountRedTreeEntity.LeafHash leafHash, IntFunction<String> leafEntityId) {
+    var loads = new ArrayList<Map<AccountRedTreeEntity.BranchId, Integer>>();
+    IntStream.rangeClosed(0, shape.levels()).forEach(level -> loads.add(new HashMap<>()));
+    for (var i = 0; i < 10_000; i++) {
+      var branchId = AccountRedTreeEntity.BranchId.forLeaf("account-1", leafEntityId.apply(i), shape, leafHash);
+      while (true) {
+        loads.get(branchId.level()).merge(branchId, 1, Integer::sum);
+        if (branchId.level() == 0) {
+          break;
+        }
+        branchId = branchId.levelUp();
+      }
+    }
+    return loads.stream()
+        .map(load -> load.values().stream().mapToInt(Integer::intValue).max().orElse(0))
+        .toList();
+  }
 }
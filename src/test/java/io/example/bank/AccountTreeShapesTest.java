@@ -0,0 +1,77 @@
+package io.example.bank;
+
+import static org.junit.Assert.assertEquals;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import io.example.bank.AccountRedTreeEntity.TreeShape;
+
+public class AccountTreeShapesTest {
+  static final TreeShape quiet = new TreeShape(1, 100);
+  static final TreeShape busy = new TreeShape(2, 100);
+  static final TreeShape hot = new TreeShape(4, 100);
+
+  @Test
+  public void quietAccountUsesShallowTreeTest() {
+    var now = new AtomicLong();
+    var shapes = shapes(now);
+
+    for (var i = 0; i < 10; i++) {
+      now.addAndGet(Duration.ofSeconds(10).toNanos());
+      assertEquals(quiet, shapes.shapeFor("account-1"));
+    }
+  }
+
+  @Test
+  public void deeperTreeAsRateIncreasesTest() {
+    var now = new AtomicLong();
+    var shapes = shapes(now);
+
+    var shape = quiet;
+    for (var i = 0; i < 600; i++) {
+      now.addAndGet(Duration.ofMillis(100).toNanos());
+      shape = shapes.shapeFor("account-1");
+    }
+    assertEquals(busy, shape);
+
+    for (var i = 0; i < 6000; i++) {
+      now.addAndGet(Duration.ofMillis(10).toNanos());
+      shape = shapes.shapeFor("account-1");
+    }
+    assertEquals(hot, shape);
+
+    assertEquals(quiet, shapes.shapeFor("account-2"));
+  }
+
+  @Test
+  public void shallowerTreeOnlyWellBelowLimitTest() {
+    var now = new AtomicLong();
+    var shapes = shapes(now);
+
+    for (var i = 0; i < 600; i++) {
+      now.addAndGet(Duration.ofMillis(100).toNanos());
+      shapes.shapeFor("account-1");
+    }
+
+    // 0.8 updates per second is below the limit of 1 of the quiet shape, but not below half of it
+    for (var i = 0; i < 100; i++) {
+      now.addAndGet(Duration.ofMillis(1250).toNanos());
+      assertEquals(busy, shapes.shapeFor("account-1"));
+    }
+
+    now.addAndGet(Duration.ofMinutes(5).toNanos());
+    assertEquals(quiet, shapes.shapeFor("account-1"));
+  }
+
+  private static AccountTreeShapes shapes(AtomicLong now) {
+    var limits = List.of(
+        new AccountTreeShapes.Limit(1, quiet),
+        new AccountTreeShapes.Limit(50, busy),
+        new AccountTreeShapes.Limit(Double.MAX_VALUE, hot));
+    return new AccountTreeShapes(100, Duration.ofSeconds(10), limits, now::get);
+  }
+}
@@ -3,10 +3,9 @@ package io.example.bank;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
-import java.math.BigDecimal;
-
 import org.junit.jupiter.api.Test;
 
+import io.example.Money;
 import kalix.javasdk.testkit.EventSourcedTestKit;
 
 public class DepositEntityTest {
@@ -16,7 +15,7 @@ public class DepositEntityTest {
 
     {
       var depositId = new DepositEntity.DepositId("accountId", "depositId");
-      var amount = BigDecimal.valueOf(123.45);
+      var amount = Money.of(123.45);
       var command = new DepositEntity.DepositCommand(depositId, amount);
       var result = testKit.call(e -> e.create(command));
       assertTrue(result.isReply());
@@ -38,7 +37,7 @@ public class DepositEntityTest {
 
     var depositId = new DepositEntity.DepositId("accountId", "depositId");
     {
-      var amount = BigDecimal.valueOf(123.45);
+      var amount = Money.of(123.45);
       var command = new DepositEntity.DepositCommand(depositId, amount);
       var result = testKit.call(e -> e.create(command));
       assertTrue(result.isReply());
@@ -51,7 +50,27 @@ public class DepositEntityTest {
 
       var reply = result.getReply();
       assertEquals(depositId, reply.depositId());
-      assertEquals(0, reply.amount().compareTo(BigDecimal.valueOf(123.45)));
+      assertEquals(0, reply.amount().compareTo(Money.of(123.45)));
+    }
+  }
+
+  @Test
+  public void createDepositIdempotentTest() {
+    var testKit = EventSourcedTestKit.of(DepositEntity::new);
+
+    var depositId = new DepositEntity.DepositId("accountId", "depositId");
+    {
+      var command = new DepositEntity.DepositCommand(depositId, Money.of(123.45));
+      var result = testKit.call(e -> e.create(command));
+      var event = result.getNextEventOfType(DepositEntity.DepositedEvent.class);
+      assertTrue(event.accountTreeShape() != null);
+    }
+
+    {
+      var command = new DepositEntity.DepositCommand(depositId, Money.of(123.45));
+      var result = testKit.call(e -> e.create(command));
+      assertEquals("OK", result.getReply());
+      assertEquals(0, result.getAllEvents().size());
     }
   }
 }
@@ -0,0 +1,194 @@
+package io.example.bank;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+
+import io.example.Money;
+import io.example.bank.DepositUnitsAvailableView.DepositUnitRow;
+import io.example.bank.WithdrawalRedLeafEntity.WithdrawalRedLeafId;
+
+public class DepositUnitAssignmentTest {
+  @Test
+  public void assignUnitThatCoversAmountNeededTest() {
+    var leafId = new WithdrawalRedLeafId("account-1", "withdrawal-1", "leaf-1");
+    var depositUnits = List.of(row("unit-1", 1.00), row("unit-2", 20.00), row("unit-3", 2.00));
+
+    var assigned = DepositUnitAssignment.assign(depositUnits, leafId, Money.of(15.00));
+    assertEquals("unit-2", assigned.get().unitId());
+
+    var largest = DepositUnitAssignment.assign(depositUnits, leafId, Money.of(25.00));
+    assertEquals("unit-2", largest.get().unitId());
+
+    assertTrue(DepositUnitAssignment.assign(List.of(), leafId, Money.of(1.00)).isEmpty());
+  }
+
+  @Test
+  public void planUnitsThatTogetherCoverAmountNeededTest() {
+    var leafId = new WithdrawalRedLeafId("account-1", "withdrawal-1", "leaf-1");
+    var depositUnits = List.of(row("unit-1", 10.00), row("unit-2", 4.00), row("unit-3", 8.00), row("unit-4", 1.00));
+
+    var withdrawals = DepositUnitAssignment.plan(depositUnits, leafId, Money.of(20.00), 4);
+    assertEquals(List.of("unit-1", "unit-3", "unit-2"), withdrawals.stream().map(withdrawal -> withdrawal.depositUnit().unitId()).toList());
+    assertEquals(List.of(Money.of(10.00), Money.of(8.00), Money.of(2.00)), withdrawals.stream().map(DepositUnitAssignment.Withdrawal::amount).toList());
+    assertTrue(DepositUnitAssignment.covers(withdrawals));
+
+    // the last unit is asked for all that is left
+    var short2 = DepositUnitAssignment.plan(depositUnits, leafId, Money.of(20.00), 2);
+    assertEquals(List.of(Money.of(10.00), Money.of(10.00)), short2.stream().map(DepositUnitAssignment.Withdrawal::amount).toList());
+    assertFalse(DepositUnitAssignment.covers(short2));
+
+    var all = DepositUnitAssignment.plan(depositUnits, leafId, Money.of(30.00), 4);
+    assertEquals(4, all.size());
+    assertEquals(Money.of(30.00), all.stream().map(DepositUnitAssignment.Withdrawal::amount).reduce(Money.zero, Money::plus));
+    assertFalse(DepositUnitAssignment.covers(all));
+
+    assertTrue(DepositUnitAssignment.plan(List.of(), leafId, Money.of(1.00), 4).isEmpty());
+  }
+
+  @Test
+  public void assignExactOrByCapacityTest() {
+    var depositUnits = List.of(row("unit-1", 512.00), row("unit-2", 128.00), row("unit-3", 25.00), row("unit-4", 16.00));
+
+    var counts = new HashMap<String, Integer>();
+    for (var i = 0; i < 2_000; i++) {
+      var leafId = new WithdrawalRedLeafId("account-1", "withdrawal-1", "leaf-" + i);
+      assertEquals("unit-3", DepositUnitAssignment.assign(depositUnits, leafId, Money.of(25.00)).get().unitId());
+      counts.merge(DepositUnitAssignment.assign(depositUnits, leafId, Money.of(20.00)).get().unitId(), 1, Integer::sum);
+    }
+
+    // 25 slots of $20 in unit-1, 6 in unit-2 and 1 in unit-3, unit-4 does not cover $20
+    assertEquals(Set.of("unit-1", "unit-2", "unit-3"), counts.keySet());
+    assertTrue(counts.get("unit-1") > 3 * counts.get("unit-2"));
+    assertTrue(counts.get("unit-2") > counts.get("unit-3"));
+  }
+
+  @Test
+  public void assignmentIsStableAcrossPoolOrderTest() {
+    var leafId = new WithdrawalRedLeafId("account-1", "withdrawal-1", "leaf-1");
+    var depositUnits = IntStream.range(0, 100).mapToObj(i -> row("unit-" + i, 25.00)).toList();
+    var reversed = new ArrayList<>(depositUnits);
+    Collections.reverse(reversed);
+
+    assertEquals(
+        DepositUnitAssignment.assign(depositUnits, leafId, Money.of(10.00)),
+        DepositUnitAssignment.assign(reversed, leafId, Money.of(10.00)));
+  }
+
+  // A $2,500 withdrawal, 100 leaves of $25, funded from an account with 400 units of $25 of which the
+  // view returns 100. Each round every unfunded leaf seeks concurrently against the units available at the start of
+  // the round, with the leaves spread over the given number of service instances.
+  @Test
+  public void fewerCollisionsThanRandomAssignmentTest() {
+    for (var instances : List.of(1, 4)) {
+      var random = simulate(instances, false);
+      var partitioned = simulate(instances, true);
+
+      assertEquals(100, partitioned.fundedLeaves());
+      assertTrue(partitioned.collisions() < random.collisions());
+      assertTrue(partitioned.withdrawCallsPerFundedLeaf() < random.withdrawCallsPerFundedLeaf());
+    }
+  }
+
+  private static SimulationResult simulate(int instances, boolean partitioned) {
+    var random = new Random(42);
+    var balances = new HashMap<String, BigDecimal>();
+    IntStream.range(0, 400).forEach(i -> balances.put("unit-" + i, BigDecimal.valueOf(25.00)));
+
+    var leavesNeeded = new HashMap<WithdrawalRedLeafId, BigDecimal>();
+    IntStream.range(0, 100).forEach(i -> leavesNeeded.put(leafId(i), BigDecimal.valueOf(25.00)));
+
+    var withdrawCalls = 0;
+    var zeroWithdrawals = 0;
+    var collisions = 0;
+    for (var round = 0; round < 100 && !leavesNeeded.isEmpty(); round++) {
+      // the view returns up to 100 available units
+      var available = balances.entrySet().stream()
+          .filter(e -> e.getValue().signum() > 0)
+          .sorted(Map.Entry.comparingByKey())
+          .limit(100)
+          .map(e -> row(e.getKey(), e.getValue().doubleValue()))
+          .toList();
+      if (available.isEmpty()) {
+        break;
+      }
+
+      var indexes = IntStream.range(0, instances)
+          .mapToObj(i -> new DepositUnitsAvailableIndex(1, 100, Duration.ofMinutes(1), () -> 0L))
+          .toList();
+      indexes.forEach(index -> index.rebuild("account-1", available));
+
+      var picks = new ArrayList<Map.Entry<WithdrawalRedLeafId, String>>();
+      var leaves = leavesNeeded.keySet().stream().sorted(Comparator.comparing(WithdrawalRedLeafId::leafId)).toList();
+      for (var l = 0; l < leaves.size(); l++) {
+        var leafId = leaves.get(l);
+        var amountNeeded = leavesNeeded.get(leafId);
+        String unitId;
+        if (partitioned) {
+          var index = indexes.get(l % instances);
+          var depositUnits = index.depositUnitsAvailable("account-1").orElse(available);
+          var row = DepositUnitAssignment.assign(depositUnits, leafId, Money.of(amountNeeded)).get();
+          index.reserve(row, Money.of(amountNeeded));
+          unitId = row.unitId();
+        } else {
+          unitId = available.get(random.nextInt(available.size())).unitId();
+        }
+        picks.add(Map.entry(leafId, unitId));
+      }
+
+      var picked = new HashSet<String>();
+      for (var pick : picks) {
+        withdrawCalls++;
+        if (!picked.add(pick.getValue())) {
+          collisions++;
+        }
+        var balance = balances.get(pick.getValue());
+        var amountNeeded = leavesNeeded.get(pick.getKey());
+        var amountWithdrawn = amountNeeded.min(balance);
+        if (amountWithdrawn.signum() == 0) {
+          zeroWithdrawals++;
+        }
+        balances.put(pick.getValue(), balance.subtract(amountWithdrawn));
+        var remaining = amountNeeded.subtract(amountWithdrawn);
+        if (remaining.signum() == 0) {
+          leavesNeeded.remove(pick.getKey());
+        } else {
+          leavesNeeded.put(pick.getKey(), remaining);
+        }
+      }
+    }
+    return new SimulationResult(100 - leavesNeeded.size(), withdrawCalls, zeroWithdrawals, collisions);
+  }
+
+  record SimulationResult(int fundedLeaves, int withdrawCalls, int zeroWithdrawals, int collisions) {
+    double withdrawCallsPerFundedLeaf() {
+      return fundedLeaves == 0 ? Double.MAX_VALUE : (double) withdrawCalls / fundedLeaves;
+    }
+  }
+
+  private static WithdrawalRedLeafId leafId(int i) {
+    var leafId = UUID.nameUUIDFromBytes(("leaf-" + i).getBytes(StandardCharsets.UTF_8)).toString();
+    return new WithdrawalRedLeafId("account-1", "withdrawal-1", leafId);
+  }
+
+  private static DepositUnitRow row(String unitId, double balance) {
+    return new DepositUnitRow("account-1", "deposit-1", unitId, BigDecimal.valueOf(25.00), BigDecimal.valueOf(balance));
+  }
+}
@@ -1,13 +1,15 @@
 package io.example.bank;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
-import java.math.BigDecimal;
 import java.time.LocalDateTime;
+import java.util.List;
 
 import org.junit.jupiter.api.Test;
 
+import io.example.Money;
 import kalix.javasdk.testkit.EventSourcedTestKit;
 
 public class DepositUnitEntityTest {
@@ -19,23 +21,23 @@ public class DepositUnitEntityTest {
 
     {
       var depositUnitId = new DepositUnitEntity.DepositUnitId("deposit-account-1", "deposit-1", "unit-1");
-      var command = new DepositUnitEntity.ModifyAmountCommand(depositUnitId, BigDecimal.valueOf(543.21));
+      var command = new DepositUnitEntity.ModifyAmountCommand(depositUnitId, Money.of(543.21));
       var result = testKit.call(e -> e.modifyAmount(command));
       assertTrue(result.isReply());
       assertEquals("OK", result.getReply());
 
       var event = result.getNextEventOfType(DepositUnitEntity.ModifiedAmountEvent.class);
       assertEquals(depositUnitId, event.depositUnitId());
-      assertEquals(0, event.amount().compareTo(BigDecimal.valueOf(543.21)));
+      assertEquals(0, event.amount().compareTo(Money.of(543.21)));
 
       var modifyAmounts = event.modifyAmounts();
       assertTrue(modifyAmounts.size() > 1);
       assertEquals(depositUnitId, modifyAmounts.get(0).depositUnitId());
-      assertEquals(-1, modifyAmounts.get(0).amount().compareTo(BigDecimal.valueOf(543.21)));
+      assertEquals(-1, modifyAmounts.get(0).amount().compareTo(Money.of(543.21)));
 
       var state = testKit.getState();
       assertEquals(depositUnitId, state.depositUnitId());
-      assertEquals(0, state.amount().compareTo(BigDecimal.valueOf(543.21)));
+      assertEquals(0, state.amount().compareTo(Money.of(543.21)));
       assertTrue(startTime.isBefore(state.lastUpdated()));
     }
   }
@@ -45,7 +47,7 @@ public class DepositUnitEntityTest {
     var testKit = EventSourcedTestKit.of(DepositUnitEntity::new);
 
     var depositUnitId = new DepositUnitEntity.DepositUnitId("deposit-account-1", "deposit-1", "unit-1");
-    var command = new DepositUnitEntity.ModifyAmountCommand(depositUnitId, BigDecimal.valueOf(543.21));
+    var command = new DepositUnitEntity.ModifyAmountCommand(depositUnitId, Money.of(543.21));
 
     {
       var result = testKit.call(e -> e.modifyAmount(command));
@@ -68,21 +70,21 @@ public class DepositUnitEntityTest {
 
     {
       var depositUnitId = new DepositUnitEntity.DepositUnitId("accountId", "depositId", "unitId");
-      var command = new DepositUnitEntity.ModifyAmountCommand(depositUnitId, BigDecimal.valueOf(12.34));
+      var command = new DepositUnitEntity.ModifyAmountCommand(depositUnitId, Money.of(12.34));
       var result = testKit.call(e -> e.modifyAmount(command));
       assertTrue(result.isReply());
       assertEquals("OK", result.getReply());
 
       var event = result.getNextEventOfType(DepositUnitEntity.ModifiedAmountEvent.class);
       assertEquals(depositUnitId, event.depositUnitId());
-      assertEquals(0, event.amount().compareTo(BigDecimal.valueOf(12.34)));
+      assertEquals(0, event.amount().compareTo(Money.of(12.34)));
 
       var modifyAmounts = event.modifyAmounts();
       assertEquals(0, modifyAmounts.size());
 
       var state = testKit.getState();
       assertEquals(depositUnitId, state.depositUnitId());
-      assertEquals(0, state.amount().compareTo(BigDecimal.valueOf(12.34)));
+      assertEquals(0, state.amount().compareTo(Money.of(12.34)));
       assertTrue(startTime.isBefore(state.lastUpdated()));
     }
   }
@@ -92,10 +94,10 @@ public class DepositUnitEntityTest {
     var testKit = EventSourcedTestKit.of(DepositUnitEntity::new);
 
     var startTime = LocalDateTime.now();
-    var amount = BigDecimal.valueOf(12.34);
-    var withdrawalAmount1 = BigDecimal.valueOf(2.34);
-    var withdrawalAmount2 = BigDecimal.valueOf(15.00);
-    var withdrawalAmount3 = BigDecimal.valueOf(20.00);
+    var amount = Money.of(12.34);
+    var withdrawalAmount1 = Money.of(2.34);
+    var withdrawalAmount2 = Money.of(15.00);
+    var withdrawalAmount3 = Money.of(20.00);
 
     var depositUnitId = new DepositUnitEntity.DepositUnitId("deposit-account-1", "deposit-1", "unit-1");
     {
@@ -115,14 +117,14 @@ public class DepositUnitEntityTest {
       var event = result.getNextEventOfType(DepositUnitEntity.WithdrawnEvent.class);
       assertEquals(depositUnitId, event.depositUnit().depositUnitId());
       assertEquals(0, event.depositUnit().amount().compareTo(amount));
-      assertEquals(0, event.depositUnit().balance().compareTo(amount.subtract(withdrawalAmount1)));
+      assertEquals(0, event.depositUnit().balance().compareTo(amount.minus(withdrawalAmount1)));
       assertEquals(0, event.depositUnit().amountWithdrawn().compareTo(withdrawalAmount1));
       assertEquals(withdrawalRedLeafId, event.withdrawalRedLeafId());
 
       var state = testKit.getState();
       assertEquals(depositUnitId, state.depositUnitId());
       assertEquals(0, state.amount().compareTo(amount));
-      assertEquals(0, state.balance().compareTo(amount.subtract(withdrawalAmount1)));
+      assertEquals(0, state.balance().compareTo(amount.minus(withdrawalAmount1)));
       assertTrue(startTime.isBefore(state.lastUpdated()));
     }
 
@@ -136,41 +138,67 @@ public class DepositUnitEntityTest {
       var event = result.getNextEventOfType(DepositUnitEntity.WithdrawnEvent.class);
       assertEquals(depositUnitId, event.depositUnit().depositUnitId());
       assertEquals(0, event.depositUnit().amount().compareTo(amount));
-      assertEquals(0, event.depositUnit().balance().compareTo(BigDecimal.ZERO));
-      assertEquals(0, event.depositUnit().amountWithdrawn().compareTo(amount.subtract(withdrawalAmount1)));
+      assertEquals(0, event.depositUnit().balance().compareTo(Money.zero));
+      assertEquals(0, event.depositUnit().amountWithdrawn().compareTo(amount.minus(withdrawalAmount1)));
       assertEquals(withdrawalRedLeafId, event.withdrawalRedLeafId());
 
       var state = testKit.getState();
-      assertEquals(0, state.balance().compareTo(BigDecimal.ZERO));
+      assertEquals(0, state.balance().compareTo(Money.zero));
     }
 
-    { // try to withdraw more than the amount with two prior withdrawals have consumed the amount and get zero withdrawn
+    { // try to withdraw more than the amount with two prior withdrawals have consumed the amount and get a negative acknowledgement
       var withdrawalRedLeafId = new WithdrawalRedLeafEntity.WithdrawalRedLeafId("withdrawal-account-3", "withdrawal-3", "leaf-3");
       var command = new DepositUnitEntity.WithdrawCommand(withdrawalRedLeafId, withdrawalAmount3);
       var result = testKit.call(e -> e.withdraw(command));
       assertTrue(result.isReply());
-      assertEquals("OK", result.getReply());
-
-      var event = result.getNextEventOfType(DepositUnitEntity.WithdrawnEvent.class);
-      assertEquals(depositUnitId, event.depositUnit().depositUnitId());
-      assertEquals(0, event.depositUnit().amount().compareTo(amount));
-      assertEquals(0, event.depositUnit().balance().compareTo(BigDecimal.ZERO));
-      assertEquals(0, event.depositUnit().amountWithdrawn().compareTo(BigDecimal.ZERO));
-      assertEquals(withdrawalRedLeafId, event.withdrawalRedLeafId());
+      assertEquals(DepositUnitEntity.nack, result.getReply());
+      assertTrue(result.getAllEvents().isEmpty());
 
       var state = testKit.getState();
-      assertEquals(0, state.balance().compareTo(BigDecimal.ZERO));
+      assertEquals(0, state.balance().compareTo(Money.zero));
     }
   }
 
+  @Test
+  public void seekRevisitsUnitTheLeafHoldsTest() {
+    var depositUnitId = new DepositUnitEntity.DepositUnitId("account-1", "deposit-1", "unit-1");
+    var leaf1 = new WithdrawalRedLeafEntity.WithdrawalRedLeafId("account-1", "withdrawal-1", "leaf-1");
+    var leaf2 = new WithdrawalRedLeafEntity.WithdrawalRedLeafId("account-1", "withdrawal-1", "leaf-2");
+    var state = DepositUnitEntity.State.emptyState()
+        .on(new DepositUnitEntity.ModifiedAmountEvent(depositUnitId, Money.of(25.00), List.of()));
+
+    var first = (DepositUnitEntity.WithdrawnEvent) state.eventFor(new DepositUnitEntity.WithdrawCommand(leaf1, Money.of(10.00), "1.0"));
+    state = state.on(first);
+    state = state.on((DepositUnitEntity.WithdrawnEvent) state.eventFor(new DepositUnitEntity.WithdrawCommand(leaf2, Money.of(10.00), "1.0")));
+    assertEquals(Money.of(10.00), first.amountRequested());
+
+    // the second seek of leaf-1 asks the unit it holds $10 of for the $4 it still needs, it then holds $14
+    var second = new DepositUnitEntity.WithdrawCommand(leaf1, Money.of(4.00), "2.0");
+    assertFalse(state.isDuplicateCommand(second));
+    assertFalse(state.isNack(second));
+    var revisited = (DepositUnitEntity.WithdrawnEvent) state.eventFor(second);
+    assertEquals(Money.of(14.00), revisited.depositUnit().amountWithdrawn());
+    assertEquals(Money.of(4.00), revisited.amountRequested());
+    assertEquals(Money.of(1.00), revisited.depositUnit().balance());
+    state = state.on(revisited);
+
+    // a redelivered request is applied once, a larger one takes what is left and then the unit is drained
+    assertTrue(state.isDuplicateCommand(second));
+    var third = (DepositUnitEntity.WithdrawnEvent) state.eventFor(new DepositUnitEntity.WithdrawCommand(leaf1, Money.of(5.00), "3.0"));
+    assertEquals(Money.of(15.00), third.depositUnit().amountWithdrawn());
+    assertEquals(Money.zero, third.depositUnit().balance());
+    state = state.on(third);
+    assertTrue(state.isNack(new DepositUnitEntity.WithdrawCommand(leaf1, Money.of(5.00), "4.0")));
+  }
+
   @Test
   public void cancelWithdrawalTest() {
     var testKit = EventSourcedTestKit.of(DepositUnitEntity::new);
 
-    var amount = BigDecimal.valueOf(12.34);
-    var withdrawalAmount1 = BigDecimal.valueOf(2.34);
-    var withdrawalAmount2 = BigDecimal.valueOf(5.00);
-    var withdrawalAmount3 = BigDecimal.valueOf(5.00);
+    var amount = Money.of(12.34);
+    var withdrawalAmount1 = Money.of(2.34);
+    var withdrawalAmount2 = Money.of(5.00);
+    var withdrawalAmount3 = Money.of(5.00);
 
     var depositUnitId = new DepositUnitEntity.DepositUnitId("deposit-account-1", "deposit-1", "unit-1");
     var withdrawalRedLeafId1 = new WithdrawalRedLeafEntity.WithdrawalRedLeafId("withdrawal-account-1", "withdrawal-1", "leaf-1");
@@ -205,7 +233,7 @@ public class DepositUnitEntityTest {
       assertEquals("OK", result.getReply());
 
       var state = testKit.getState();
-      assertEquals(0, state.balance().compareTo(BigDecimal.ZERO));
+      assertEquals(0, state.balance().compareTo(Money.zero));
       assertEquals(3, state.withdrawals().size());
     }
 
@@ -223,4 +251,71 @@ public class DepositUnitEntityTest {
       assertEquals(2, state.withdrawals().size());
     }
   }
+
+  @Test
+  public void releaseKeepsAmountOfLeafTest() {
+    var depositUnitId = new DepositUnitEntity.DepositUnitId("accountId", "depositId", "unit-1");
+    var withdrawalRedLeafId = new WithdrawalRedLeafEntity.WithdrawalRedLeafId("accountId", "withdrawalId", "leafId");
+    var state = DepositUnitEntity.State.emptyState()
+        .on(new DepositUnitEntity.ModifiedAmountEvent(depositUnitId, Money.of(25.00), List.of()));
+    state = state.on((DepositUnitEntity.WithdrawnEvent) state.eventFor(new DepositUnitEntity.WithdrawCommand(withdrawalRedLeafId, Money.of(10.00), "1.0")));
+
+    // the release keeps $4 of the $10 the leaf holds, a redelivered release keeps the same $4
+    var command = new DepositUnitEntity.WithdrawalCancelCommand(depositUnitId, withdrawalRedLeafId, Money.of(4.00));
+    for (var i = 0; i < 2; i++) {
+      var event = (DepositUnitEntity.WithdrawalCancelledEvent) state.eventFor(command);
+      assertEquals(Money.of(21.00), event.balance());
+      state = state.on(event);
+      assertEquals(Money.of(4.00), state.withdrawals().get(withdrawalRedLeafId).orElseThrow().amount());
+    }
+  }
+
+  @Test
+  public void unitsForTest() {
+    var depositId = new DepositEntity.DepositId("account-1", "deposit-1");
+    var units25 = List.of(Money.of(25.00));
+
+    var units = DepositUnitEntity.unitsFor(depositId, Money.of(60.01), units25);
+    assertEquals(3, units.size());
+    assertEquals(new DepositUnitEntity.DepositUnitId("account-1", "deposit-1", "0"), units.get(0).depositUnitId());
+    assertEquals(new DepositUnitEntity.DepositUnitId("account-1", "deposit-1", "2"), units.get(2).depositUnitId());
+    assertEquals(List.of(Money.of(25.00), Money.of(25.00), Money.of(10.01)), amounts(units));
+
+    assertEquals(1, DepositUnitEntity.unitsFor(depositId, Money.of(0.01), units25).size());
+    assertEquals(40_000, DepositUnitEntity.unitsFor(depositId, Money.of(1_000_000.00), units25).size());
+  }
+
+  @Test
+  public void unitsForDenominationsTest() {
+    var depositId = new DepositEntity.DepositId("account-1", "deposit-1");
+
+    // paid out in the largest denominations first, the cents are one more unit
+    assertEquals(List.of(Money.of(500.00), Money.of(500.00), Money.of(100.00), Money.of(25.00), Money.of(5.00), Money.of(1.00), Money.of(1.00), Money.of(0.50)),
+        amounts(DepositUnitEntity.unitsFor(depositId, Money.of(1_132.50))));
+    assertEquals(20, DepositUnitEntity.unitsFor(depositId, Money.of(10_000.00)).size());
+    assertEquals(2_000, DepositUnitEntity.unitsFor(depositId, Money.of(1_000_000.00)).size());
+
+    var powersOfTwo = List.of(Money.of(512.00), Money.of(256.00), Money.of(128.00), Money.of(64.00), Money.of(32.00), Money.of(16.00),
+        Money.of(8.00), Money.of(4.00), Money.of(2.00), Money.of(1.00));
+    assertEquals(List.of(Money.of(64.00), Money.of(32.00), Money.of(4.00)), amounts(DepositUnitEntity.unitsFor(depositId, Money.of(100.00), powersOfTwo)));
+    assertTrue(DepositUnitEntity.unitsFor(depositId, Money.of(1_000_000.00)).stream()
+        .allMatch(command -> DepositUnitEntity.isAmountAdjustmentCompleted(command.amount(), command.maxAmount())));
+  }
+
+  @Test
+  public void legacySplitThresholdTest() {
+    var depositUnitId = new DepositUnitEntity.DepositUnitId("account-1", "deposit-1", "unit-1");
+
+    // units of legacy splits are split down to the $25 the journal was written with
+    var legacy = DepositUnitEntity.State.emptyState().eventFor(new DepositUnitEntity.ModifyAmountCommand(depositUnitId, Money.of(100.00)));
+    assertEquals(25, ((DepositUnitEntity.ModifiedAmountEvent) legacy).modifyAmounts().size());
+
+    // planned units hold up to the largest denomination
+    var planned = DepositUnitEntity.unitsFor(new DepositEntity.DepositId("account-1", "deposit-1"), Money.of(500.00)).get(0);
+    assertTrue(((DepositUnitEntity.ModifiedAmountEvent) DepositUnitEntity.State.emptyState().eventFor(planned)).modifyAmounts().isEmpty());
+  }
+
+  private static List<Money> amounts(List<DepositUnitEntity.ModifyAmountCommand> commands) {
+    return commands.stream().map(DepositUnitEntity.ModifyAmountCommand::amount).toList();
+  }
 }
@@ -0,0 +1,120 @@
+package io.example.bank;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import io.example.Money;
+import io.example.bank.DepositUnitsAvailableView.DepositUnitRow;
+
+public class DepositUnitsAvailableIndexTest {
+  @Test
+  public void missUntilRebuiltTest() {
+    var index = new DepositUnitsAvailableIndex(10, 100, Duration.ofSeconds(5), new AtomicLong()::get);
+
+    assertFalse(index.depositUnitsAvailable("account-1").isPresent());
+
+    index.rebuild("account-1", List.of(row("unit-1", 10.00), row("unit-2", 0.00)));
+
+    var depositUnits = index.depositUnitsAvailable("account-1");
+    assertTrue(depositUnits.isPresent());
+    assertEquals(1, depositUnits.get().size());
+    assertEquals("unit-1", depositUnits.get().get(0).unitId());
+  }
+
+  @Test
+  public void expiredAccountIsMissTest() {
+    var now = new AtomicLong();
+    var index = new DepositUnitsAvailableIndex(10, 100, Duration.ofSeconds(5), now::get);
+
+    index.rebuild("account-1", List.of(row("unit-1", 10.00)));
+    assertTrue(index.depositUnitsAvailable("account-1").isPresent());
+
+    now.addAndGet(Duration.ofSeconds(6).toNanos());
+    assertFalse(index.depositUnitsAvailable("account-1").isPresent());
+  }
+
+  @Test
+  public void evictLeastRecentlyUsedAccountTest() {
+    var index = new DepositUnitsAvailableIndex(2, 100, Duration.ofSeconds(5), new AtomicLong()::get);
+
+    index.rebuild("account-1", List.of(row("account-1", "unit-1", 10.00)));
+    index.rebuild("account-2", List.of(row("account-2", "unit-1", 10.00)));
+    index.depositUnitsAvailable("account-1");
+    index.rebuild("account-3", List.of(row("account-3", "unit-1", 10.00)));
+
+    assertTrue(index.depositUnitsAvailable("account-1").isPresent());
+    assertFalse(index.depositUnitsAvailable("account-2").isPresent());
+    assertTrue(index.depositUnitsAvailable("account-3").isPresent());
+  }
+
+  @Test
+  public void keptCurrentFromEventsTest() {
+    var index = new DepositUnitsAvailableIndex(10, 100, Duration.ofSeconds(5), new AtomicLong()::get);
+    var depositUnitId1 = new DepositUnitEntity.DepositUnitId("account-1", "deposit-1", "unit-1");
+    var depositUnitId2 = new DepositUnitEntity.DepositUnitId("account-1", "deposit-1", "unit-2");
+    var withdrawalRedLeafId = new WithdrawalRedLeafEntity.WithdrawalRedLeafId("account-1", "withdrawal-1", "leaf-1");
+
+    index.rebuild("account-1", List.of(row("unit-1", 10.00)));
+
+    index.on(new DepositUnitEntity.ModifiedAmountEvent(depositUnitId2, Money.of(20.00), List.of()));
+    assertEquals(2, index.depositUnitsAvailable("account-1").get().size());
+
+    var depositUnit = new DepositUnitEntity.DepositUnit(depositUnitId1, Money.of(10.00), Money.zero, Money.of(10.00));
+    index.on(new DepositUnitEntity.WithdrawnEvent(withdrawalRedLeafId, depositUnit, Money.of(10.00)));
+    assertEquals(1, index.depositUnitsAvailable("account-1").get().size());
+    assertEquals("unit-2", index.depositUnitsAvailable("account-1").get().get(0).unitId());
+
+    index.on(new DepositUnitEntity.WithdrawalCancelledEvent(depositUnitId1, withdrawalRedLeafId, Money.of(10.00), Money.of(10.00)));
+    assertEquals(2, index.depositUnitsAvailable("account-1").get().size());
+  }
+
+  @Test
+  public void reserveReducesBalanceTest() {
+    var index = new DepositUnitsAvailableIndex(10, 100, Duration.ofSeconds(5), new AtomicLong()::get);
+    var unit1 = row("unit-1", 10.00);
+    var unit2 = row("unit-2", 10.00);
+
+    index.rebuild("account-1", List.of(unit1, unit2));
+
+    index.reserve(unit1, Money.of(4.00));
+    var depositUnits = index.depositUnitsAvailable("account-1").get();
+    assertEquals(2, depositUnits.size());
+    assertEquals(0, depositUnits.get(0).balance().compareTo(BigDecimal.valueOf(6.00)));
+
+    index.reserve(unit1, Money.of(25.00));
+    depositUnits = index.depositUnitsAvailable("account-1").get();
+    assertEquals(1, depositUnits.size());
+    assertEquals("unit-2", depositUnits.get(0).unitId());
+  }
+
+  @Test
+  public void currentRowTest() {
+    var index = new DepositUnitsAvailableIndex(10, 100, Duration.ofSeconds(5), new AtomicLong()::get);
+    var unit1 = row("unit-1", 10.00);
+    var unit2 = row("unit-2", 10.00);
+
+    assertEquals(unit1, index.current(unit1));
+
+    index.rebuild("account-1", List.of(unit1));
+    index.reserve(unit1, Money.of(4.00));
+
+    assertEquals(0, index.current(unit1).balance().compareTo(BigDecimal.valueOf(6.00)));
+    assertEquals(unit2, index.current(unit2));
+  }
+
+  private static DepositUnitRow row(String unitId, double balance) {
+    return row("account-1", unitId, balance);
+  }
+
+  private static DepositUnitRow row(String accountId, String unitId, double balance) {
+    return new DepositUnitRow(accountId, "deposit-1", unitId, BigDecimal.valueOf(25.00), BigDecimal.valueOf(balance));
+  }
+}
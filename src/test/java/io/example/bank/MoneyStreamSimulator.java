@@ -0,0 +1,769 @@
+package io.example.bank;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.example.Money;
+import io.example.bank.AccountRedTreeEntity.BranchId;
+import io.example.bank.AccountRedTreeEntity.TreeShape;
+import io.example.bank.DepositUnitAssignment.Withdrawal;
+import io.example.bank.DepositUnitEntity.DepositUnitId;
+import io.example.bank.DepositUnitsAvailableView.DepositUnitRow;
+import io.example.bank.WithdrawalEntity.WithdrawalId;
+import io.example.bank.WithdrawalRedLeafEntity.WithdrawalRedLeafId;
+import io.example.bank.WithdrawalRedTreeEntity.Subbranch;
+import io.example.bank.WithdrawalRedTreeEntity.WithdrawalRedTreeId;
+
+// Deterministic, single threaded simulation of deposits and withdrawals through all the entities. Commands are
+// handled by the eventFor and on methods of the entity states, and events are routed to commands as the actions do,
+// on an event loop with simulated latencies. Entity ids come from a counter and the latencies from a seeded Random,
+// so a run with the same seed is repeatable. The leaf and unit amounts, the withdrawal tree branch factor and the
+// account tree shape are set per run to compare tree shapes offline. Seeks query the simulated view, the
+// DepositUnitsAvailableIndex cache in front of it is not simulated.
+class MoneyStreamSimulator {
+  static final long maxMessages = 10_000_000;
+
+  // The shape of the trees of a run. The service uses the maxLeafAmount, deposit denominations and
+  // max-branch-factor settings, and picks the account tree shape from the update rate of the account.
+  record Shape(Money leafAmount, List<Money> denominations, int branchFactor, TreeShape accountTree) {
+    @Override
+    public String toString() {
+      return "leaf %s, units %s, branch factor %d, account tree %s"
+          .formatted(leafAmount.toBigDecimal(), denominations.stream().map(Money::toBigDecimal).toList(), branchFactor, accountTree.toTreeId());
+    }
+  }
+
+  // Deposits arrive in the first second, withdrawals in the third second, after the deposits are available.
+  record Workload(int accounts, int depositsPerAccount, Money depositAmount, int withdrawalsPerAccount, Money withdrawalAmount) {}
+
+  // Mean latencies of a component call, of an event delivery to an action and of the extra lag of a view update.
+  // Each hop takes its mean plus an exponentially distributed jitter with half the mean.
+  record Latency(long callMicros, long eventMicros, long viewMicros) {
+    static final Latency typical = new Latency(2_000, 10_000, 50_000);
+  }
+
+  record Percentiles(long p50, long p99, long max) {
+    static Percentiles of(List<Long> micros) {
+      if (micros.isEmpty()) {
+        return new Percentiles(0, 0, 0);
+      }
+      var sorted = micros.stream().sorted().toList();
+      return new Percentiles(
+          sorted.get((sorted.size() - 1) / 2),
+          sorted.get((int) Math.ceil(sorted.size() * 0.99) - 1),
+          sorted.get(sorted.size() - 1));
+    }
+
+    @Override
+    public String toString() {
+      return "p50 %.1fms p99 %.1fms max %.1fms".formatted(p50 / 1000.0, p99 / 1000.0, max / 1000.0);
+    }
+  }
+
+  record Report(
+      int withdrawals,
+      int approved,
+      int rejected,
+      long messages,
+      Map<String, Long> messagesByCall,
+      Map<String, Integer> entities,
+      long events,
+      Map<String, Long> eventsByEntity,
+      long eventBytes,
+      Map<String, Long> eventBytesByEntity,
+      Percentiles withdrawalLatency,
+      Percentiles depositLatency,
+      int overdrawnUnits,
+      int fragmentedUnits,
+      long nacks,
+      Map<String, Money> balances,
+      boolean completed) {
+
+    int entityCount() {
+      return entities.values().stream().mapToInt(Integer::intValue).sum();
+    }
+
+    @Override
+    public String toString() {
+      return ("approved %d/%d, rejected %d, messages %d, entities %d, events %d, event bytes %d, overdrawn units %d, fragmented units %d, nacks %d%s%n"
+          + "  withdrawal latency %s, deposit latency %s")
+          .formatted(approved, withdrawals, rejected, messages, entityCount(), events, eventBytes, overdrawnUnits, fragmentedUnits, nacks,
+              completed ? "" : ", stopped at the message limit", withdrawalLatency, depositLatency);
+    }
+  }
+
+  private record Scheduled(long at, long seq, Runnable task) {}
+
+  private final Shape shape;
+  private final Latency latency;
+  private final Random random;
+  private final ObjectMapper mapper = new ObjectMapper();
+  private int maxUnitsPerSeek = WithdrawalRedLeafToDepositUnitAction.maxUnitsPerSeek;
+  private final PriorityQueue<Scheduled> queue = new PriorityQueue<>(
+      Comparator.comparingLong(Scheduled::at).thenComparingLong(Scheduled::seq));
+  private final Map<String, Long> streams = new HashMap<>();
+  private long now;
+  private long seq;
+  private long ids;
+
+  private final Map<String, AccountEntity.State> accounts = new HashMap<>();
+  private final Map<String, DepositEntity.State> deposits = new HashMap<>();
+  private final Map<String, DepositUnitEntity.State> depositUnits = new HashMap<>();
+  private final Map<String, WithdrawalEntity.State> withdrawals = new HashMap<>();
+  private final Map<String, WithdrawalRedTreeEntity.State> withdrawalRedTrees = new HashMap<>();
+  private final Map<String, WithdrawalRedLeafEntity.State> withdrawalRedLeaves = new HashMap<>();
+  private final Map<String, AccountRedTreeEntity.State> accountRedTrees = new HashMap<>();
+  private final Map<String, Map<String, DepositUnitRow>> depositUnitsAvailable = new HashMap<>();
+
+  private long messages;
+  private long nacks;
+  private final Set<String> drainedUnits = new HashSet<>();
+  private long events;
+  private long eventBytes;
+  private final Map<String, Long> messagesByCall = new TreeMap<>();
+  private final Map<String, Long> eventsByEntity = new TreeMap<>();
+  private final Map<String, Long> eventBytesByEntity = new TreeMap<>();
+  private final Map<String, Long> withdrawalStarts = new HashMap<>();
+  private final List<Long> withdrawalLatencies = new ArrayList<>();
+  private final Map<String, Long> depositStarts = new HashMap<>();
+  private final Map<String, Integer> depositUnitsPending = new HashMap<>();
+  private final List<Long> depositLatencies = new ArrayList<>();
+
+  MoneyStreamSimulator(Shape shape, Latency latency, long seed) {
+    this.shape = shape;
+    this.latency = latency;
+    this.random = new Random(seed);
+  }
+
+  // One deposit unit per seek is how seeks worked before they withdrew from several units concurrently.
+  MoneyStreamSimulator maxUnitsPerSeek(int maxUnitsPerSeek) {
+    this.maxUnitsPerSeek = maxUnitsPerSeek;
+    return this;
+  }
+
+  Report run(Workload workload) {
+    for (var a = 0; a < workload.accounts(); a++) {
+      var accountId = "account-" + a;
+      at(0, () -> createAccount(accountId));
+      for (var d = 0; d < workload.depositsPerAccount(); d++) {
+        var depositId = new DepositEntity.DepositId(accountId, "deposit-" + d);
+        at(random.nextLong(1_000_000), () -> createDeposit(depositId, workload.depositAmount()));
+      }
+      for (var w = 0; w < workload.withdrawalsPerAccount(); w++) {
+        var withdrawalId = new WithdrawalId(accountId, "withdrawal-" + w);
+        at(2_000_000 + random.nextLong(1_000_000), () -> createWithdrawal(withdrawalId, workload.withdrawalAmount()));
+      }
+    }
+
+    while (!queue.isEmpty() && messages < maxMessages) {
+      var next = queue.poll();
+      now = next.at();
+      next.task().run();
+    }
+
+    return report(workload);
+  }
+
+  private Report report(Workload workload) {
+    var entities = new TreeMap<String, Integer>();
+    entities.put("AccountEntity", accounts.size());
+    entities.put("AccountRedTreeEntity", accountRedTrees.size());
+    entities.put("DepositEntity", deposits.size());
+    entities.put("DepositUnitEntity", depositUnits.size());
+    entities.put("WithdrawalEntity", withdrawals.size());
+    entities.put("WithdrawalRedTreeEntity", withdrawalRedTrees.size());
+    entities.put("WithdrawalRedLeafEntity", withdrawalRedLeaves.size());
+
+    var approved = (int) withdrawals.values().stream().filter(WithdrawalEntity.State::approved).count();
+    var rejected = (int) withdrawals.values().stream().filter(WithdrawalEntity.State::insufficientFunds).count();
+    var overdrawnUnits = (int) depositUnits.values().stream()
+        .filter(unit -> unit.amount().minus(unit.withdrawals().total()).cents() < 0)
+        .count();
+    // Units left with a balance too small to fund a leaf on their own.
+    var fragmentedUnits = (int) depositUnits.values().stream()
+        .map(unit -> unit.amount().minus(unit.withdrawals().total()))
+        .filter(balance -> balance.isPositive() && balance.compareTo(shape.leafAmount()) < 0)
+        .count();
+    var balances = new TreeMap<String, Money>();
+    accounts.forEach((accountId, account) -> balances.put(accountId, account.balance()));
+
+    return new Report(
+        workload.accounts() * workload.withdrawalsPerAccount(),
+        approved,
+        rejected,
+        messages,
+        messagesByCall,
+        entities,
+        events,
+        eventsByEntity,
+        eventBytes,
+        eventBytesByEntity,
+        Percentiles.of(withdrawalLatencies),
+        Percentiles.of(depositLatencies),
+        overdrawnUnits,
+        fragmentedUnits,
+        nacks,
+        balances,
+        queue.isEmpty());
+  }
+
+  // AccountEntity
+
+  private void createAccount(String accountId) {
+    var command = new AccountEntity.CreateAccountCommand(accountId, "name-" + accountId, "address-" + accountId);
+    handle(accounts, accountId, AccountEntity.State.emptyState(),
+        state -> state.accountId() != null ? List.of() : List.of(state.eventFor(command)),
+        MoneyStreamSimulator::on, event -> {});
+  }
+
+  private void updateBalance(AccountEntity.UpdateAccountBalanceCommand command) {
+    handle(accounts, command.accountId(), AccountEntity.State.emptyState(),
+        state -> List.of(state.eventFor(command)),
+        MoneyStreamSimulator::on, event -> {});
+  }
+
+  private void applyBalanceDelta(AccountEntity.ApplyBalanceDeltaCommand command) {
+    handle(accounts, command.accountId(), AccountEntity.State.emptyState(),
+        state -> state.transactions().contains(command.transactionId()) ? List.of() : List.of(state.eventFor(command)),
+        MoneyStreamSimulator::on, event -> {});
+  }
+
+  private static AccountEntity.State on(AccountEntity.State state, AccountEntity.Event event) {
+    if (event instanceof AccountEntity.CreatedAccountEvent created) {
+      return state.on(created);
+    }
+    if (event instanceof AccountEntity.UpdatedAccountBalanceEvent updated) {
+      return state.on(updated);
+    }
+    return state.on((AccountEntity.AppliedBalanceDeltaEvent) event);
+  }
+
+  // DepositEntity and the DepositToDepositUnitAction
+
+  private void createDeposit(DepositEntity.DepositId depositId, Money amount) {
+    count("DepositEntity", "create");
+    depositStarts.put(depositId.toEntityId(), now);
+    var command = new DepositEntity.DepositCommand(depositId, amount);
+    handle(deposits, depositId.toEntityId(), DepositEntity.State.emptyState(),
+        state -> state.isEmpty() ? List.of(state.eventFor(command, shape.accountTree())) : List.of(),
+        (state, event) -> state.on((DepositEntity.DepositedEvent) event),
+        event -> {
+          var deposited = (DepositEntity.DepositedEvent) event;
+          depositToDepositUnit(deposited);
+          depositToAccountRedTree(deposited);
+        });
+  }
+
+  private void depositToDepositUnit(DepositEntity.DepositedEvent event) {
+    var commands = DepositUnitEntity.unitsFor(event.depositId(), event.amount(), shape.denominations());
+    depositUnitsPending.put(event.depositId().toEntityId(), commands.size());
+    var next = new int[1];
+    for (var lane = 0; lane < Math.min(DepositToDepositUnitAction.maxConcurrentUnitCalls, commands.size()); lane++) {
+      nextDepositUnit(commands, next);
+    }
+  }
+
+  // As in Calls.bounded, a lane starts its next unit call when the reply to its previous call arrives.
+  private void nextDepositUnit(List<DepositUnitEntity.ModifyAmountCommand> commands, int[] next) {
+    if (next[0] < commands.size()) {
+      var command = commands.get(next[0]++);
+      call("DepositUnitEntity", "modifyAmount", () -> {
+        modifyAmount(command);
+        schedule(latency.callMicros(), () -> nextDepositUnit(commands, next));
+      });
+    }
+  }
+
+  private void depositToAccountRedTree(DepositEntity.DepositedEvent event) {
+    var accountId = event.depositId().accountId();
+    var transactionId = "deposit_" + event.depositId().toEntityId();
+    updateAccountTree(accountId, event.depositId().depositId(), transactionId, event.amount(), event.accountTreeShape());
+  }
+
+  // DepositUnitEntity, the DepositUnitToWithdrawalRedLeafAction and the DepositUnitsAvailableView
+
+  private void modifyAmount(DepositUnitEntity.ModifyAmountCommand command) {
+    var depositUnitId = command.depositUnitId();
+    var emitted = handle(depositUnits, depositUnitId.toEntityId(), DepositUnitEntity.State.emptyState(),
+        state -> state.isDuplicateCommand(command) ? List.of() : List.of(state.eventFor(command, shape.denominations().get(0), this::nextId)),
+        MoneyStreamSimulator::on,
+        event -> {
+          var modified = (DepositUnitEntity.ModifiedAmountEvent) event;
+          modified.modifyAmounts().forEach(modifyAmount -> {
+            var modifyCommand = new DepositUnitEntity.ModifyAmountCommand(modifyAmount.depositUnitId(), modifyAmount.amount());
+            call("DepositUnitEntity", "modifyAmount", () -> modifyAmount(modifyCommand));
+          });
+          view(depositUnitId, row -> row.on(modified));
+        });
+
+    // The units of a deposit have their final amounts when every split command has been handled.
+    var splits = emitted.stream().mapToInt(event -> ((DepositUnitEntity.ModifiedAmountEvent) event).modifyAmounts().size()).sum();
+    var depositEntityId = new DepositEntity.DepositId(depositUnitId.accountId(), depositUnitId.depositId()).toEntityId();
+    if (depositUnitsPending.merge(depositEntityId, splits - 1, Integer::sum) == 0) {
+      depositLatencies.add(now - depositStarts.get(depositEntityId));
+    }
+  }
+
+  // A withdrawal that gives the leaf nothing more writes no event and replies false, its part of the seek is retried.
+  private boolean withdraw(DepositUnitRow row, DepositUnitEntity.WithdrawCommand command) {
+    var depositUnitId = new DepositUnitId(row.accountId(), row.depositId(), row.unitId());
+    var unit = depositUnits.getOrDefault(depositUnitId.toEntityId(), DepositUnitEntity.State.emptyState());
+    if (unit.isDuplicateCommand(command)) {
+      return true;
+    }
+    if (unit.isNack(command)) {
+      return false;
+    }
+    handle(depositUnits, depositUnitId.toEntityId(), DepositUnitEntity.State.emptyState(),
+        state -> List.of(state.eventFor(command)),
+        MoneyStreamSimulator::on,
+        event -> {
+          var withdrawn = (DepositUnitEntity.WithdrawnEvent) event;
+          var depositUnit = new WithdrawalRedLeafEntity.DepositUnit(depositUnitId, withdrawn.depositUnit().amountWithdrawn(), withdrawn.requestId());
+          var depositFound = new WithdrawalRedLeafEntity.DepositFoundCommand(withdrawn.withdrawalRedLeafId(), depositUnit, withdrawn.amountRequested());
+          call("WithdrawalRedLeafEntity", "depositFound", () -> depositFound(depositFound));
+          view(depositUnitId, current -> current.on(withdrawn));
+        });
+    return true;
+  }
+
+  private void cancelWithdrawal(DepositUnitEntity.WithdrawalCancelCommand command) {
+    var depositUnitId = command.depositUnitId();
+    handle(depositUnits, depositUnitId.toEntityId(), DepositUnitEntity.State.emptyState(),
+        state -> List.of(state.eventFor(command)),
+        MoneyStreamSimulator::on,
+        event -> {
+          drainedUnits.remove(depositUnitId.toEntityId());
+          view(depositUnitId, row -> row.on((DepositUnitEntity.WithdrawalCancelledEvent) event));
+        });
+  }
+
+  private static DepositUnitEntity.State on(DepositUnitEntity.State state, DepositUnitEntity.Event event) {
+    if (event instanceof DepositUnitEntity.ModifiedAmountEvent modified) {
+      return state.on(modified);
+    }
+    if (event instanceof DepositUnitEntity.WithdrawnEvent withdrawn) {
+      return state.on(withdrawn);
+    }
+    return state.on((DepositUnitEntity.WithdrawalCancelledEvent) event);
+  }
+
+  // The view is updated after the extra view lag, seeks see the rows of the units as they were then.
+  private void view(DepositUnitId depositUnitId, Function<DepositUnitRow, DepositUnitRow> update) {
+    inOrder("view " + depositUnitId.toEntityId(), latency.viewMicros(), () -> depositUnitsAvailable
+        .computeIfAbsent(depositUnitId.accountId(), __ -> new LinkedHashMap<>())
+        .compute(depositUnitId.toEntityId(), (__, row) -> update.apply(row == null ? DepositUnitRow.emptyState() : row)));
+  }
+
+  // The view query returns up to 100 rows with a positive balance, the largest first. Without the index the largest
+  // unit covers the amount needed whenever any unit does, so seeks never need the best fit query.
+  private List<DepositUnitRow> depositUnitsAvailable(String accountId) {
+    return depositUnitsAvailable.getOrDefault(accountId, Map.of()).values().stream()
+        .filter(row -> row.balance().signum() > 0)
+        .sorted(Comparator.comparing(DepositUnitRow::balance).reversed())
+        .limit(DepositUnitsAvailableView.maxDepositUnitsAvailable)
+        .toList();
+  }
+
+  // WithdrawalEntity and the WithdrawalToWithdrawalRedTreeAction
+
+  private void createWithdrawal(WithdrawalId withdrawalId, Money amount) {
+    count("WithdrawalEntity", "create");
+    withdrawalStarts.put(withdrawalId.toEntityId(), now);
+    var command = new WithdrawalEntity.WithdrawalCreateCommand(withdrawalId, amount);
+    handle(withdrawals, withdrawalId.toEntityId(), WithdrawalEntity.State.emptyState(),
+        state -> state.isEmpty() ? List.of(state.eventFor(command)) : List.of(),
+        MoneyStreamSimulator::on,
+        event -> withdrawalToWithdrawalRedTree((WithdrawalEntity.WithdrawalCreatedEvent) event));
+  }
+
+  private void withdrawalToWithdrawalRedTree(WithdrawalEntity.WithdrawalCreatedEvent event) {
+    var withdrawalId = event.withdrawalId();
+    if (WithdrawalToWithdrawalRedTreeAction.isDirectAmount(event.amount(), shape.leafAmount(), maxUnitsPerSeek)) {
+      var withdrawalRedLeafId = new WithdrawalRedLeafId(withdrawalId.accountId(), withdrawalId.withdrawalId(), withdrawalId.withdrawalId());
+      var command = new WithdrawalRedLeafEntity.LeafCreateCommand(withdrawalRedLeafId, null, event.amount());
+      call("WithdrawalRedLeafEntity", "create", () -> createLeaf(command));
+      return;
+    }
+
+    var withdrawalRedTreeId = new WithdrawalRedTreeId(withdrawalId.accountId(), withdrawalId.withdrawalId(), nextId());
+    var command = new WithdrawalRedTreeEntity.TrunkCreateCommand(withdrawalRedTreeId, event.amount());
+    call("WithdrawalRedTreeEntity", "createTrunk", () -> handleBranch(withdrawalRedTreeId,
+        state -> List.of(state.eventFor(command, shape.leafAmount(), shape.branchFactor(), this::nextId))));
+  }
+
+  private void approve(WithdrawalId withdrawalId) {
+    handle(withdrawals, withdrawalId.toEntityId(), WithdrawalEntity.State.emptyState(),
+        state -> state.approved() ? List.of() : List.of(state.eventFor(new WithdrawalEntity.WithdrawalApproveCommand(withdrawalId), shape.accountTree())),
+        MoneyStreamSimulator::on,
+        event -> {
+          var approved = (WithdrawalEntity.WithdrawalApprovedEvent) event;
+          var transactionId = "withdrawal_" + withdrawalId.toEntityId();
+          updateAccountTree(withdrawalId.accountId(), withdrawalId.toEntityId(), transactionId, approved.amount().negate(), approved.accountTreeShape());
+        });
+    var start = withdrawalStarts.remove(withdrawalId.toEntityId());
+    if (start != null && withdrawals.get(withdrawalId.toEntityId()).approved()) {
+      withdrawalLatencies.add(now - start);
+    }
+  }
+
+  private void reject(WithdrawalId withdrawalId) {
+    handle(withdrawals, withdrawalId.toEntityId(), WithdrawalEntity.State.emptyState(),
+        state -> List.of(state.eventFor(new WithdrawalEntity.WithdrawalInsufficientFundsCommand(withdrawalId))),
+        MoneyStreamSimulator::on, event -> {});
+  }
+
+  private static WithdrawalEntity.State on(WithdrawalEntity.State state, WithdrawalEntity.Event event) {
+    if (event instanceof WithdrawalEntity.WithdrawalCreatedEvent created) {
+      return state.on(created);
+    }
+    if (event instanceof WithdrawalEntity.WithdrawalApprovedEvent approved) {
+      return state.on(approved);
+    }
+    return state.on((WithdrawalEntity.WithdrawalInsufficientFundsEvent) event);
+  }
+
+  // WithdrawalRedTreeEntity and the WithdrawalRedTreeAction
+
+  private void handleBranch(WithdrawalRedTreeId withdrawalRedTreeId, Function<WithdrawalRedTreeEntity.State, List<? extends WithdrawalRedTreeEntity.Event>> eventsFor) {
+    handle(withdrawalRedTrees, withdrawalRedTreeId.toEntityId(), WithdrawalRedTreeEntity.State.emptyState(),
+        eventsFor, MoneyStreamSimulator::on, this::withdrawalRedTreeActions);
+  }
+
+  private void withdrawalRedTreeActions(WithdrawalRedTreeEntity.Event event) {
+    if (event instanceof WithdrawalRedTreeEntity.BranchCreatedEvent created) {
+      created.subbranches().forEach(subbranch -> {
+        if (subbranch.amountToWithdraw().compareTo(shape.leafAmount()) > 0) {
+          var command = new WithdrawalRedTreeEntity.BranchCreateCommand(subbranch.withdrawalRedTreeId(), created.withdrawalRedTreeId(), subbranch.amountToWithdraw());
+          call("WithdrawalRedTreeEntity", "createBranch", () -> handleBranch(command.withdrawalRedTreeId(),
+              state -> List.of(state.eventFor(command, shape.leafAmount(), shape.branchFactor(), this::nextId))));
+        } else {
+          var command = new WithdrawalRedLeafEntity.LeafCreateCommand(WithdrawalRedLeafId.from(subbranch.withdrawalRedTreeId()), created.withdrawalRedTreeId(), subbranch.amountToWithdraw());
+          call("WithdrawalRedLeafEntity", "create", () -> createLeaf(command));
+        }
+      });
+    } else if (event instanceof WithdrawalRedTreeEntity.FullyFundedEvent funded) {
+      var subbranch = new Subbranch(funded.withdrawalRedTreeId(), funded.amount(), funded.amount());
+      updateAmountWithdrawn(new WithdrawalRedTreeEntity.UpdateAmountWithdrawnCommand(funded.withdrawalRedTreeParentId(), subbranch));
+    } else if (event instanceof WithdrawalRedTreeEntity.WithdrawalApprovedEvent approved) {
+      var withdrawalRedTreeId = approved.withdrawalRedTreeId();
+      var withdrawalId = new WithdrawalId(withdrawalRedTreeId.accountId(), withdrawalRedTreeId.withdrawalId());
+      call("WithdrawalEntity", "approve", () -> approve(withdrawalId));
+    } else if (event instanceof WithdrawalRedTreeEntity.InsufficientFundsEvent insufficientFunds) {
+      insufficientFunds(insufficientFunds.withdrawalRedTreeParentId());
+    } else if (event instanceof WithdrawalRedTreeEntity.CanceledWithdrawalEvent canceled) {
+      var withdrawalRedTreeId = canceled.withdrawalRedTreeId();
+      var withdrawalId = new WithdrawalId(withdrawalRedTreeId.accountId(), withdrawalRedTreeId.withdrawalId());
+      call("WithdrawalEntity", "insufficientFunds", () -> reject(withdrawalId));
+      canceled.subbranches().forEach(subbranch -> {
+        if (subbranch.amountToWithdraw().compareTo(shape.leafAmount()) > 0) {
+          var command = new WithdrawalRedTreeEntity.CancelWithdrawalCommand(subbranch.withdrawalRedTreeId());
+          call("WithdrawalRedTreeEntity", "cancelWithdrawal", () -> handleBranch(command.withdrawalRedTreeId(),
+              state -> state.insufficientFunds() ? List.of() : List.of(state.eventFor(command))));
+        } else {
+          var command = new WithdrawalRedLeafEntity.CancelWithdrawalCommand(WithdrawalRedLeafId.from(subbranch.withdrawalRedTreeId()));
+          call("WithdrawalRedLeafEntity", "cancelWithdrawal", () -> cancelLeaf(command));
+        }
+      });
+    }
+  }
+
+  private void updateAmountWithdrawn(WithdrawalRedTreeEntity.UpdateAmountWithdrawnCommand command) {
+    call("WithdrawalRedTreeEntity", "updateAmountWithdrawn", () -> handleBranch(command.withdrawalRedTreeId(),
+        state -> state.eventsFor(command)));
+  }
+
+  private void insufficientFunds(WithdrawalRedTreeId withdrawalRedTreeId) {
+    var command = new WithdrawalRedTreeEntity.InsufficientFundsCommand(withdrawalRedTreeId);
+    call("WithdrawalRedTreeEntity", "insufficientFunds", () -> handleBranch(withdrawalRedTreeId,
+        state -> state.insufficientFunds() ? List.of() : List.of(state.eventFor(command))));
+  }
+
+  private static WithdrawalRedTreeEntity.State on(WithdrawalRedTreeEntity.State state, WithdrawalRedTreeEntity.Event event) {
+    if (event instanceof WithdrawalRedTreeEntity.BranchCreatedEvent created) {
+      return state.on(created);
+    }
+    if (event instanceof WithdrawalRedTreeEntity.UpdatedAmountWithdrawnEvent updated) {
+      return state.on(updated);
+    }
+    if (event instanceof WithdrawalRedTreeEntity.FullyFundedEvent funded) {
+      return state.on(funded);
+    }
+    if (event instanceof WithdrawalRedTreeEntity.WithdrawalApprovedEvent approved) {
+      return state.on(approved);
+    }
+    if (event instanceof WithdrawalRedTreeEntity.InsufficientFundsEvent insufficientFunds) {
+      return state.on(insufficientFunds);
+    }
+    return state.on((WithdrawalRedTreeEntity.CanceledWithdrawalEvent) event);
+  }
+
+  // WithdrawalRedLeafEntity and the WithdrawalRedLeafToDepositUnitAction
+
+  private void createLeaf(WithdrawalRedLeafEntity.LeafCreateCommand command) {
+    handleLeaf(command.withdrawalRedLeafId(), state -> state.isEmpty() ? state.eventsFor(command) : List.of());
+  }
+
+  private void depositFound(WithdrawalRedLeafEntity.DepositFoundCommand command) {
+    handleLeaf(command.withdrawalRedLeafId(), state -> state.eventsFor(command));
+  }
+
+  private void cancelLeaf(WithdrawalRedLeafEntity.CancelWithdrawalCommand command) {
+    handleLeaf(command.withdrawalRedLeafId(), state -> List.of(state.eventFor(command)));
+  }
+
+  private void handleLeaf(WithdrawalRedLeafId withdrawalRedLeafId, Function<WithdrawalRedLeafEntity.State, List<? extends WithdrawalRedLeafEntity.Event>> eventsFor) {
+    handle(withdrawalRedLeaves, withdrawalRedLeafId.toEntityId(), WithdrawalRedLeafEntity.State.emptyState(),
+        eventsFor, MoneyStreamSimulator::on, this::withdrawalRedLeafActions);
+  }
+
+  private void withdrawalRedLeafActions(WithdrawalRedLeafEntity.Event event) {
+    if (event instanceof WithdrawalRedLeafEntity.DepositSeekEvent seek) {
+      var leafId = seek.withdrawalRedLeafId();
+      seek(leafId, seek.amountNeeded(), 0, Integer.toString(seek.seek()), withdrawn -> {
+        if (!withdrawn) {
+          noDepositsAvailable(leafId);
+        }
+      });
+    } else if (event instanceof WithdrawalRedLeafEntity.FullyFundedEvent funded) {
+      var leafId = funded.withdrawalRedLeafId();
+      if (funded.parentBranchId() == null) {
+        var withdrawalId = new WithdrawalId(leafId.accountId(), leafId.withdrawalId());
+        call("WithdrawalEntity", "approve", () -> approve(withdrawalId));
+        return;
+      }
+      var subbranchId = new WithdrawalRedTreeId(leafId.accountId(), leafId.withdrawalId(), leafId.leafId());
+      var subbranch = new Subbranch(subbranchId, funded.amount(), funded.amount());
+      updateAmountWithdrawn(new WithdrawalRedTreeEntity.UpdateAmountWithdrawnCommand(funded.parentBranchId(), subbranch));
+    } else if (event instanceof WithdrawalRedLeafEntity.InsufficientFundsEvent insufficientFunds) {
+      var leafId = insufficientFunds.withdrawalRedLeafId();
+      if (insufficientFunds.parentBranchId() == null) {
+        var withdrawalId = new WithdrawalId(leafId.accountId(), leafId.withdrawalId());
+        var command = new WithdrawalRedLeafEntity.CancelWithdrawalCommand(leafId);
+        call("WithdrawalEntity", "insufficientFunds", () -> reject(withdrawalId));
+        call("WithdrawalRedLeafEntity", "cancelWithdrawal", () -> cancelLeaf(command));
+        return;
+      }
+      insufficientFunds(insufficientFunds.parentBranchId());
+    } else if (event instanceof WithdrawalRedLeafEntity.DepositReleasedEvent released) {
+      var command = new DepositUnitEntity.WithdrawalCancelCommand(released.depositUnit().depositUnitId(), released.withdrawalRedLeafId(), released.amountKept());
+      call("DepositUnitEntity", "cancelWithdrawal", () -> cancelWithdrawal(command));
+    } else if (event instanceof WithdrawalRedLeafEntity.CanceledWithdrawalEvent canceled) {
+      canceled.depositUnits().forEach(depositUnit -> {
+        var command = new DepositUnitEntity.WithdrawalCancelCommand(depositUnit.depositUnitId(), canceled.withdrawalRedLeafId());
+        call("DepositUnitEntity", "cancelWithdrawal", () -> cancelWithdrawal(command));
+      });
+    }
+  }
+
+  // The units that replied NACK are left out of later seeks until a withdrawal from them is cancelled, as the action
+  // marks them drained in its index. The request ids are numbered as the action numbers them. The seek reports
+  // whether all of it was withdrawn once all its withdrawals and their retries have replied.
+  private void seek(WithdrawalRedLeafId leafId, Money amountNeeded, int attempt, String requestId, Consumer<Boolean> done) {
+    var rows = depositUnitsAvailable(leafId.accountId()).stream()
+        .filter(row -> !drainedUnits.contains(entityId(row)))
+        .toList();
+    var withdrawals = DepositUnitAssignment.plan(rows, leafId, amountNeeded, maxUnitsPerSeek);
+    if (withdrawals.isEmpty()) {
+      done.accept(false);
+      return;
+    }
+    var pending = new int[] { withdrawals.size() };
+    var allWithdrawn = new boolean[] { true };
+    Consumer<Boolean> replied = withdrawn -> {
+      allWithdrawn[0] &= withdrawn;
+      if (--pending[0] == 0) {
+        done.accept(allWithdrawn[0]);
+      }
+    };
+    for (var i = 0; i < withdrawals.size(); i++) {
+      var withdrawal = withdrawals.get(i);
+      var command = new DepositUnitEntity.WithdrawCommand(leafId, withdrawal.amount(), requestId + "." + i);
+      call("DepositUnitEntity", "withdraw", () -> {
+        if (withdraw(withdrawal.depositUnit(), command)) {
+          replied.accept(true);
+        } else {
+          retry(leafId, withdrawal, attempt, command.requestId(), replied);
+        }
+      });
+    }
+  }
+
+  private void retry(WithdrawalRedLeafId leafId, Withdrawal withdrawal, int attempt, String requestId, Consumer<Boolean> done) {
+    nacks++;
+    drainedUnits.add(entityId(withdrawal.depositUnit()));
+    if (attempt >= WithdrawalRedLeafToDepositUnitAction.nackRetries) {
+      done.accept(false);
+      return;
+    }
+    var backoffMicros = Math.min(WithdrawalRedLeafToDepositUnitAction.backoffMin.toNanos() / 1_000 << attempt, WithdrawalRedLeafToDepositUnitAction.backoffMax.toNanos() / 1_000);
+    schedule(backoffMicros / 2, () -> seek(leafId, withdrawal.amount(), attempt + 1, requestId, done));
+  }
+
+  private static String entityId(DepositUnitRow row) {
+    return new DepositUnitId(row.accountId(), row.depositId(), row.unitId()).toEntityId();
+  }
+
+  private void noDepositsAvailable(WithdrawalRedLeafId leafId) {
+    var command = new WithdrawalRedLeafEntity.NoDepositsAvailableCommand(leafId);
+    call("WithdrawalRedLeafEntity", "noDepositsAvailable", () -> handleLeaf(leafId, state -> state.eventsFor(command)));
+  }
+
+  private static WithdrawalRedLeafEntity.State on(WithdrawalRedLeafEntity.State state, WithdrawalRedLeafEntity.Event event) {
+    if (event instanceof WithdrawalRedLeafEntity.LeafCreatedEvent created) {
+      return state.on(created);
+    }
+    if (event instanceof WithdrawalRedLeafEntity.DepositSeekEvent seek) {
+      return state.on(seek);
+    }
+    if (event instanceof WithdrawalRedLeafEntity.DepositFoundEvent found) {
+      return state.on(found);
+    }
+    if (event instanceof WithdrawalRedLeafEntity.DepositReleasedEvent released) {
+      return state.on(released);
+    }
+    if (event instanceof WithdrawalRedLeafEntity.FullyFundedEvent funded) {
+      return state.on(funded);
+    }
+    if (event instanceof WithdrawalRedLeafEntity.InsufficientFundsEvent insufficientFunds) {
+      return state.on(insufficientFunds);
+    }
+    return state.on((WithdrawalRedLeafEntity.CanceledWithdrawalEvent) event);
+  }
+
+  // AccountRedTreeEntity and the AccountRedTreeAction
+
+  private void updateAccountTree(String accountId, String leafEntityId, String transactionId, Money amount, TreeShape treeShape) {
+    if (treeShape.isDirect()) {
+      var command = new AccountEntity.ApplyBalanceDeltaCommand(accountId, transactionId, amount);
+      call("AccountEntity", "applyBalanceDelta", () -> applyBalanceDelta(command));
+      return;
+    }
+    var command = AccountRedTreeEntity.UpdateSubbranchCommand.forTransaction(BranchId.forLeaf(accountId, leafEntityId, treeShape), transactionId, amount);
+    updateSubbranch(command);
+  }
+
+  private void updateSubbranch(AccountRedTreeEntity.UpdateSubbranchCommand command) {
+    call("AccountRedTreeEntity", "updateSubbranch", () -> handle(accountRedTrees, command.branchId().toEntityId(), AccountRedTreeEntity.State.emptyState(),
+        state -> state.eventsFor(command),
+        MoneyStreamSimulator::on, this::accountRedTreeActions));
+  }
+
+  private void releaseBranch(BranchId branchId) {
+    var command = new AccountRedTreeEntity.ReleaseBranchCommand(branchId);
+    call("AccountRedTreeEntity", "releaseBranch", () -> handle(accountRedTrees, branchId.toEntityId(), AccountRedTreeEntity.State.emptyState(),
+        state -> state.hasChanged() ? List.of(state.eventFor(command)) : List.of(),
+        MoneyStreamSimulator::on, this::accountRedTreeActions));
+  }
+
+  private void accountRedTreeActions(AccountRedTreeEntity.Event event) {
+    if (event instanceof AccountRedTreeEntity.UpdatedBranchEvent updated) {
+      var releaseWindow = AccountRedTreeAction.releaseWindow.toNanos() / 1_000;
+      if (releaseWindow == 0) {
+        releaseBranch(updated.branchId());
+      } else {
+        at(now + releaseWindow, () -> releaseBranch(updated.branchId()));
+      }
+    } else if (event instanceof AccountRedTreeEntity.BranchReleaseDueEvent due) {
+      releaseBranch(due.branchId());
+    } else if (event instanceof AccountRedTreeEntity.ReleasedBranchEvent released) {
+      var branchId = released.branchId();
+      if (branchId.level() == 0) {
+        var command = new AccountEntity.UpdateAccountBalanceCommand(branchId.accountId(), released.subbranch().amount(), branchId.treeId());
+        call("AccountEntity", "updateBalance", () -> updateBalance(command));
+        return;
+      }
+      updateSubbranch(new AccountRedTreeEntity.UpdateSubbranchCommand(branchId.levelUp(), released.subbranch().subbranchId(), released.subbranch().amount(), null));
+    }
+  }
+
+  private static AccountRedTreeEntity.State on(AccountRedTreeEntity.State state, AccountRedTreeEntity.Event event) {
+    if (event instanceof AccountRedTreeEntity.UpdatedSubbranchEvent updated) {
+      return state.on(updated);
+    }
+    if (event instanceof AccountRedTreeEntity.UpdatedBranchEvent updated) {
+      return state.on(updated);
+    }
+    if (event instanceof AccountRedTreeEntity.BranchReleaseDueEvent due) {
+      return state.on(due);
+    }
+    return state.on((AccountRedTreeEntity.ReleasedBranchEvent) event);
+  }
+
+  // Event loop
+
+  // Persists the events of a command, then delivers each event to the actions after the event latency. The events of
+  // an entity are delivered in the order they were persisted.
+  private <S, E> List<? extends E> handle(Map<String, S> states, String entityId, S emptyState, Function<S, List<? extends E>> eventsFor,
+      BiFunction<S, E, S> on, Consumer<E> actions) {
+    var state = states.getOrDefault(entityId, emptyState);
+    var events = eventsFor.apply(state);
+    for (E event : events) {
+      state = on.apply(state, event);
+      persisted(event);
+      inOrder(entityId, latency.eventMicros(), () -> actions.accept(event));
+    }
+    states.put(entityId, state);
+    return events;
+  }
+
+  private void persisted(Object event) {
+    try {
+      var bytes = mapper.writeValueAsBytes(event).length;
+      events++;
+      eventBytes += bytes;
+      var entity = event.getClass().getEnclosingClass().getSimpleName();
+      eventsByEntity.merge(entity, 1L, Long::sum);
+      eventBytesByEntity.merge(entity, (long) bytes, Long::sum);
+    } catch (JsonProcessingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private void call(String component, String call, Runnable command) {
+    count(component, call);
+    schedule(latency.callMicros(), command);
+  }
+
+  private void count(String component, String call) {
+    messages++;
+    messagesByCall.merge(component + "." + call, 1L, Long::sum);
+  }
+
+  private void schedule(long meanMicros, Runnable task) {
+    at(now + delay(meanMicros), task);
+  }
+
+  private void inOrder(String stream, long meanMicros, Runnable task) {
+    var at = Math.max(now + delay(meanMicros), streams.getOrDefault(stream, 0L));
+    streams.put(stream, at);
+    at(at, task);
+  }
+
+  private long delay(long meanMicros) {
+    return meanMicros + (long) (-Math.log(1 - random.nextDouble()) * meanMicros / 2);
+  }
+
+  private void at(long micros, Runnable task) {
+    queue.add(new Scheduled(micros, seq++, task));
+  }
+
+  private String nextId() {
+    return Long.toString(++ids);
+  }
+}
@@ -0,0 +1,167 @@
+package io.example.bank;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import io.example.Money;
+import io.example.bank.AccountRedTreeEntity.TreeShape;
+import io.example.bank.MoneyStreamSimulator.Latency;
+import io.example.bank.MoneyStreamSimulator.Shape;
+import io.example.bank.MoneyStreamSimulator.Workload;
+
+public class MoneyStreamSimulatorTest {
+  static final Shape current = new Shape(Money.of(25.00), DepositUnitEntity.denominations, 25, new TreeShape(2, 100));
+
+  @Test
+  public void withdrawalTreesApproveAndBalancesAddUpTest() {
+    // $1,500 withdrawals with $25 leaves and a branch factor of 5 have two levels of branches below the trunk.
+    var shape = new Shape(Money.of(25.00), List.of(Money.of(100.00)), 5, new TreeShape(2, 10));
+    var report = new MoneyStreamSimulator(shape, Latency.typical, 42)
+        .run(new Workload(2, 2, Money.of(1_000.00), 1, Money.of(1_500.00)));
+
+    assertTrue(report.completed());
+    assertEquals(2, report.approved());
+    assertEquals(0, report.rejected());
+    assertEquals(0, report.overdrawnUnits());
+    assertEquals(30L, (long) report.messagesByCall().get("WithdrawalRedTreeEntity.createBranch"));
+    assertEquals(120L, (long) report.messagesByCall().get("WithdrawalRedLeafEntity.create"));
+    report.balances().values().forEach(balance -> assertEquals(Money.of(500.00), balance));
+  }
+
+  @Test
+  public void directWithdrawalsAndAccountsApproveTest() {
+    var shape = new Shape(Money.of(25.00), List.of(Money.of(25.00)), 25, new TreeShape(0, 1));
+    var report = new MoneyStreamSimulator(shape, Latency.typical, 42)
+        .run(new Workload(2, 2, Money.of(100.00), 3, Money.of(60.00)));
+
+    assertTrue(report.completed());
+    assertEquals(6, report.approved());
+    assertEquals(0L, (long) report.messagesByCall().getOrDefault("WithdrawalRedTreeEntity.createTrunk", 0L));
+    report.balances().values().forEach(balance -> assertEquals(Money.of(20.00), balance));
+  }
+
+  @Test
+  public void directAmountBoundedByUnitsPerSeekTest() {
+    // with a single unit per seek, $60 would take three serial seeks of a direct leaf, it is funded by a tree
+    var shape = new Shape(Money.of(25.00), List.of(Money.of(25.00)), 25, new TreeShape(0, 1));
+    var report = new MoneyStreamSimulator(shape, Latency.typical, 42)
+        .maxUnitsPerSeek(1)
+        .run(new Workload(2, 2, Money.of(100.00), 3, Money.of(60.00)));
+
+    assertTrue(report.completed());
+    assertEquals(6, report.approved());
+    assertEquals(6L, (long) report.messagesByCall().get("WithdrawalRedTreeEntity.createTrunk"));
+    report.balances().values().forEach(balance -> assertEquals(Money.of(20.00), balance));
+  }
+
+  @Test
+  public void insufficientFundsRejectedTest() {
+    var report = new MoneyStreamSimulator(current, Latency.typical, 42)
+        .run(new Workload(1, 1, Money.of(500.00), 1, Money.of(600.00)));
+
+    assertTrue(report.completed());
+    assertEquals(0, report.approved());
+    assertEquals(1, report.rejected());
+    assertEquals(Money.of(500.00), report.balances().get("account-0"));
+  }
+
+  @Test
+  public void denominationsFundLeavesWithFewerUnitsTest() {
+    var workload = new Workload(2, 5, Money.of(1_000.00), 10, Money.of(250.00));
+    var units25 = new MoneyStreamSimulator(new Shape(Money.of(25.00), List.of(Money.of(25.00)), 25, new TreeShape(2, 100)), Latency.typical, 42)
+        .run(workload);
+    var denominations = new MoneyStreamSimulator(current, Latency.typical, 42).run(workload);
+
+    assertEquals(20, denominations.approved());
+    assertEquals(0, denominations.fragmentedUnits());
+    assertEquals(400, (int) units25.entities().get("DepositUnitEntity"));
+    assertEquals(20, (int) denominations.entities().get("DepositUnitEntity"));
+    assertTrue(denominations.messagesByCall().get("DepositUnitEntity.withdraw") < units25.messagesByCall().get("DepositUnitEntity.withdraw"));
+  }
+
+  @Test
+  public void largestUnitsFundLeavesInOneRoundTest() {
+    // 60 deposits of $137.45 make 420 units per account, most of them with balances below a $25 leaf.
+    var report = new MoneyStreamSimulator(current, Latency.typical, 42)
+        .run(new Workload(2, 60, Money.of(137.45), 60, Money.of(60.00)));
+
+    var withdraws = report.messagesByCall().get("DepositUnitEntity.withdraw");
+    var leaves = report.messagesByCall().get("WithdrawalRedLeafEntity.create");
+    assertEquals(120, report.approved());
+    assertTrue(withdraws < 2 * leaves);
+  }
+
+  @Test
+  public void severalUnitsPerSeekShortenWithdrawalsTest() {
+    // $3.40 deposits make units of $1 and less, a $20 leaf needs many of them.
+    var workload = new Workload(2, 200, Money.of(3.40), 20, Money.of(20.00));
+    var oneUnit = new MoneyStreamSimulator(current, Latency.typical, 42).maxUnitsPerSeek(1).run(workload);
+    var severalUnits = new MoneyStreamSimulator(current, Latency.typical, 42).run(workload);
+
+    assertEquals(40, oneUnit.approved());
+    assertEquals(40, severalUnits.approved());
+    assertEquals(oneUnit.balances(), severalUnits.balances());
+    assertTrue(severalUnits.withdrawalLatency().p99() * 2 < oneUnit.withdrawalLatency().p99());
+  }
+
+  @Test
+  public void drainedUnitsReplyNackWithoutLeafEventsTest() {
+    // Concurrent leaves drain the units of $3.40 deposits before the view shows it, those withdrawals are NACKed.
+    var report = new MoneyStreamSimulator(current, Latency.typical, 42)
+        .run(new Workload(2, 200, Money.of(3.40), 20, Money.of(20.00)));
+
+    assertEquals(40, report.approved());
+    assertTrue(report.nacks() > 0);
+    assertEquals(report.messagesByCall().get("DepositUnitEntity.withdraw") - report.nacks(),
+        (long) report.messagesByCall().get("WithdrawalRedLeafEntity.depositFound"));
+  }
+
+  @Test
+  public void sameSeedSameRunTest() {
+    var workload = new Workload(1, 2, Money.of(1_000.00), 2, Money.of(700.00));
+    var first = new MoneyStreamSimulator(current, Latency.typical, 7).run(workload);
+    var second = new MoneyStreamSimulator(current, Latency.typical, 7).run(workload);
+
+    assertEquals(first.toString(), second.toString());
+    assertEquals(first.messagesByCall(), second.messagesByCall());
+    assertEquals(first.eventBytesByEntity(), second.eventBytesByEntity());
+  }
+
+  // Compares tree shapes on the same workload, run with -Dsimulator.sweep=true and -Dsimulator.accounts for more
+  // accounts, the report of each shape is written to target/simulator-sweep.txt. Withdrawals may be rejected while
+  // the view lags behind the units drained by concurrent withdrawals, the balances still add up.
+  @Test
+  @EnabledIfSystemProperty(named = "simulator.sweep", matches = "true")
+  public void shapeSweepTest() throws IOException {
+    var reports = new ArrayList<String>();
+    var accounts = Integer.getInteger("simulator.accounts", 1);
+    var workload = new Workload(accounts, 2, Money.of(1_000.00), 2, Money.of(500.00));
+
+    for (var leafAmount : List.of(10.00, 25.00, 100.00)) {
+      for (var denominations : List.of(List.of(Money.of(25.00)), List.of(Money.of(100.00)), DepositUnitEntity.denominations)) {
+        for (var branchFactor : List.of(5, 25)) {
+          for (var accountTree : List.of(new TreeShape(0, 1), new TreeShape(2, 100), new TreeShape(4, 100))) {
+            var shape = new Shape(Money.of(leafAmount), denominations, branchFactor, accountTree);
+            var report = new MoneyStreamSimulator(shape, Latency.typical, 42).run(workload);
+            reports.add("%s: %s".formatted(shape, report));
+
+            var balance = report.balances().values().stream().reduce(Money.zero, Money::plus);
+            var withdrawn = Money.ofCents(workload.withdrawalAmount().cents() * report.approved());
+            assertTrue(report.completed());
+            assertEquals(Money.ofCents(workload.depositAmount().cents() * workload.depositsPerAccount() * accounts).minus(withdrawn), balance);
+          }
+        }
+      }
+    }
+    Files.write(Path.of("target", "simulator-sweep.txt"), reports);
+  }
+}
@@ -4,10 +4,9 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
-import java.math.BigDecimal;
-
-import org.junit.Test;
+import org.junit.jupiter.api.Test;
 
+import io.example.Money;
 import kalix.javasdk.testkit.EventSourcedTestKit;
 
 public class WithdrawalEntityTest {
@@ -17,7 +16,7 @@ public class WithdrawalEntityTest {
 
     var withdrawalId = new WithdrawalEntity.WithdrawalId("accountId", "withdrawalId");
     {
-      var command = new WithdrawalEntity.WithdrawalCreateCommand(withdrawalId, BigDecimal.valueOf(123.45));
+      var command = new WithdrawalEntity.WithdrawalCreateCommand(withdrawalId, Money.of(123.45));
       var result = testKit.call(e -> e.create(command));
       assertTrue(result.isReply());
       assertEquals("OK", result.getReply());
@@ -25,12 +24,12 @@ public class WithdrawalEntityTest {
       var event = result.getNextEventOfType(WithdrawalEntity.WithdrawalCreatedEvent.class);
       assertEquals(withdrawalId.accountId(), event.withdrawalId().accountId());
       assertEquals(withdrawalId.withdrawalId(), event.withdrawalId().withdrawalId());
-      assertEquals(0, event.amount().compareTo(BigDecimal.valueOf(123.45)));
+      assertEquals(0, event.amount().compareTo(Money.of(123.45)));
 
       var state = testKit.getState();
       assertEquals(withdrawalId.accountId(), state.withdrawalId().accountId());
       assertEquals(withdrawalId.withdrawalId(), state.withdrawalId().withdrawalId());
-      assertEquals(0, state.amount().compareTo(BigDecimal.valueOf(123.45)));
+      assertEquals(0, state.amount().compareTo(Money.of(123.45)));
     }
   }
 
@@ -40,7 +39,7 @@ public class WithdrawalEntityTest {
 
     var withdrawalId = new WithdrawalEntity.WithdrawalId("accountId", "withdrawalId");
     {
-      var command = new WithdrawalEntity.WithdrawalCreateCommand(withdrawalId, BigDecimal.valueOf(123.45));
+      var command = new WithdrawalEntity.WithdrawalCreateCommand(withdrawalId, Money.of(123.45));
       var result = testKit.call(e -> e.create(command));
       assertTrue(result.isReply());
       assertEquals("OK", result.getReply());
@@ -59,10 +58,17 @@ public class WithdrawalEntityTest {
       var state = testKit.getState();
       assertEquals(withdrawalId.accountId(), state.withdrawalId().accountId());
       assertEquals(withdrawalId.withdrawalId(), state.withdrawalId().withdrawalId());
-      assertEquals(0, state.amount().compareTo(BigDecimal.valueOf(123.45)));
+      assertEquals(0, state.amount().compareTo(Money.of(123.45)));
       assertTrue(state.approved());
       assertFalse(state.insufficientFunds());
     }
+
+    {
+      var command = new WithdrawalEntity.WithdrawalApproveCommand(withdrawalId);
+      var result = testKit.call(e -> e.approve(command));
+      assertEquals("OK", result.getReply());
+      assertEquals(0, result.getAllEvents().size());
+    }
   }
 
   @Test
@@ -71,7 +77,7 @@ public class WithdrawalEntityTest {
 
     var withdrawalId = new WithdrawalEntity.WithdrawalId("accountId", "withdrawalId");
     {
-      var command = new WithdrawalEntity.WithdrawalCreateCommand(withdrawalId, BigDecimal.valueOf(123.45));
+      var command = new WithdrawalEntity.WithdrawalCreateCommand(withdrawalId, Money.of(123.45));
       var result = testKit.call(e -> e.create(command));
       assertTrue(result.isReply());
       assertEquals("OK", result.getReply());
@@ -90,7 +96,7 @@ public class WithdrawalEntityTest {
       var state = testKit.getState();
       assertEquals(withdrawalId.accountId(), state.withdrawalId().accountId());
       assertEquals(withdrawalId.withdrawalId(), state.withdrawalId().withdrawalId());
-      assertEquals(0, state.amount().compareTo(BigDecimal.valueOf(123.45)));
+      assertEquals(0, state.amount().compareTo(Money.of(123.45)));
       assertFalse(state.approved());
       assertTrue(state.insufficientFunds());
     }
@@ -102,7 +108,7 @@ public class WithdrawalEntityTest {
 
     var withdrawalId = new WithdrawalEntity.WithdrawalId("accountId", "withdrawalId");
     {
-      var command = new WithdrawalEntity.WithdrawalCreateCommand(withdrawalId, BigDecimal.valueOf(123.45));
+      var command = new WithdrawalEntity.WithdrawalCreateCommand(withdrawalId, Money.of(123.45));
       var result = testKit.call(e -> e.create(command));
       assertTrue(result.isReply());
       assertEquals("OK", result.getReply());
@@ -117,7 +123,7 @@ public class WithdrawalEntityTest {
       assertEquals(withdrawalId.withdrawalId(), reply.withdrawalId().withdrawalId());
       assertFalse(reply.approved());
       assertFalse(reply.insufficientFunds());
-      assertEquals(0, reply.amount().compareTo(BigDecimal.valueOf(123.45)));
+      assertEquals(0, reply.amount().compareTo(Money.of(123.45)));
     }
   }
 }
@@ -1,14 +1,18 @@
 package io.example.bank;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
-import java.math.BigDecimal;
+import java.util.List;
 
 import org.junit.jupiter.api.Test;
 
+import io.example.Money;
 import io.example.bank.WithdrawalRedLeafEntity.Event;
 import io.example.bank.WithdrawalRedLeafEntity.State;
+import kalix.javasdk.JsonSupport;
 import kalix.javasdk.testkit.EventSourcedTestKit;
 
 public class WithdrawalRedLeafEntityTest {
@@ -18,7 +22,7 @@ public class WithdrawalRedLeafEntityTest {
 
     var withdrawalRedLeafId = new WithdrawalRedLeafEntity.WithdrawalRedLeafId("accountId", "withdrawalId", "leafId");
     var parentBranchId = new WithdrawalRedTreeEntity.WithdrawalRedTreeId("accountId", "withdrawalId", "parentId");
-    var amount = BigDecimal.valueOf(10.00);
+    var amount = Money.of(10.00);
     var command = new WithdrawalRedLeafEntity.LeafCreateCommand(withdrawalRedLeafId, parentBranchId, amount);
     {
       var result = testKit.call(e -> e.create(command));
@@ -41,7 +45,7 @@ public class WithdrawalRedLeafEntityTest {
         var state = testKit.getState();
         assertEquals(withdrawalRedLeafId, state.withdrawalRedLeafId());
         assertEquals(amount, state.amountToWithdraw());
-        assertEquals(BigDecimal.ZERO, state.amountWithdrawn());
+        assertEquals(Money.zero, state.amountWithdrawn());
       }
     }
 
@@ -62,14 +66,14 @@ public class WithdrawalRedLeafEntityTest {
     var parentBranchId = new WithdrawalRedTreeEntity.WithdrawalRedTreeId("accountId", "withdrawalId", "parentId");
     var depositUnitId = new DepositUnitEntity.DepositUnitId("accountId", "depositId", "unitId");
     {
-      var command = new WithdrawalRedLeafEntity.LeafCreateCommand(withdrawalRedLeafId, parentBranchId, BigDecimal.valueOf(10.00));
+      var command = new WithdrawalRedLeafEntity.LeafCreateCommand(withdrawalRedLeafId, parentBranchId, Money.of(10.00));
       var result = testKit.call(e -> e.create(command));
       assertTrue(result.isReply());
       assertEquals("OK", result.getReply());
     }
 
     {
-      var depositUnit = new WithdrawalRedLeafEntity.DepositUnit(depositUnitId, BigDecimal.valueOf(10.00));
+      var depositUnit = new WithdrawalRedLeafEntity.DepositUnit(depositUnitId, Money.of(10.00));
       var command = new WithdrawalRedLeafEntity.DepositFoundCommand(withdrawalRedLeafId, depositUnit);
       var result = testKit.call(e -> e.depositFound(command));
       assertTrue(result.isReply());
@@ -84,13 +88,54 @@ public class WithdrawalRedLeafEntityTest {
       {
         var event = result.getNextEventOfType(WithdrawalRedLeafEntity.FullyFundedEvent.class);
         assertEquals(withdrawalRedLeafId, event.withdrawalRedLeafId());
-        assertEquals(BigDecimal.valueOf(10.00), event.amount());
+        assertEquals(Money.of(10.00), event.amount());
       }
 
       var state = testKit.getState();
       assertEquals(withdrawalRedLeafId, state.withdrawalRedLeafId());
-      assertEquals(BigDecimal.valueOf(10.00), state.amountToWithdraw());
-      assertEquals(BigDecimal.valueOf(10.00), state.amountWithdrawn());
+      assertEquals(Money.of(10.00), state.amountToWithdraw());
+      assertEquals(Money.of(10.00), state.amountWithdrawn());
+    }
+  }
+
+  @Test
+  public void directLeafWithoutParentBranchTest() {
+    var testKit = EventSourcedTestKit.of(WithdrawalRedLeafEntity::new);
+
+    var withdrawalRedLeafId = new WithdrawalRedLeafEntity.WithdrawalRedLeafId("accountId", "withdrawalId", "withdrawalId");
+    var depositUnitId1 = new DepositUnitEntity.DepositUnitId("accountId", "depositId", "unitId1");
+    var depositUnitId2 = new DepositUnitEntity.DepositUnitId("accountId", "depositId", "unitId2");
+    {
+      var command = new WithdrawalRedLeafEntity.LeafCreateCommand(withdrawalRedLeafId, null, Money.of(40.00));
+      var result = testKit.call(e -> e.create(command));
+      assertTrue(result.isReply());
+      assertEquals("OK", result.getReply());
+
+      var event = result.getNextEventOfType(WithdrawalRedLeafEntity.LeafCreatedEvent.class);
+      assertNull(event.parentBranchId());
+    }
+
+    {
+      var depositUnit = new WithdrawalRedLeafEntity.DepositUnit(depositUnitId1, Money.of(25.00));
+      var command = new WithdrawalRedLeafEntity.DepositFoundCommand(withdrawalRedLeafId, depositUnit);
+      var result = testKit.call(e -> e.depositFound(command));
+      assertTrue(result.isReply());
+
+      result.getNextEventOfType(WithdrawalRedLeafEntity.DepositFoundEvent.class);
+      var event = result.getNextEventOfType(WithdrawalRedLeafEntity.DepositSeekEvent.class);
+      assertEquals(0, event.amountNeeded().compareTo(Money.of(15.00)));
+    }
+
+    {
+      var depositUnit = new WithdrawalRedLeafEntity.DepositUnit(depositUnitId2, Money.of(15.00));
+      var command = new WithdrawalRedLeafEntity.DepositFoundCommand(withdrawalRedLeafId, depositUnit);
+      var result = testKit.call(e -> e.depositFound(command));
+      assertTrue(result.isReply());
+
+      result.getNextEventOfType(WithdrawalRedLeafEntity.DepositFoundEvent.class);
+      var event = result.getNextEventOfType(WithdrawalRedLeafEntity.FullyFundedEvent.class);
+      assertNull(event.parentBranchId());
+      assertEquals(0, event.amount().compareTo(Money.of(40.00)));
     }
   }
 
@@ -101,7 +146,7 @@ public class WithdrawalRedLeafEntityTest {
     {
       var withdrawalRedLeafId = new WithdrawalRedLeafEntity.WithdrawalRedLeafId("accountId", "withdrawalId", "leafId");
       var parentBranchId = new WithdrawalRedTreeEntity.WithdrawalRedTreeId("accountId", "withdrawalId", "parentId");
-      var command = new WithdrawalRedLeafEntity.LeafCreateCommand(withdrawalRedLeafId, parentBranchId, BigDecimal.valueOf(10.00));
+      var command = new WithdrawalRedLeafEntity.LeafCreateCommand(withdrawalRedLeafId, parentBranchId, Money.of(10.00));
       var result = testKit.call(e -> e.create(command));
       assertTrue(result.isReply());
       assertEquals("OK", result.getReply());
@@ -121,7 +166,7 @@ public class WithdrawalRedLeafEntityTest {
     var withdrawalRedLeafId = new WithdrawalRedLeafEntity.WithdrawalRedLeafId("accountId", "withdrawalId", "leafId");
     var parentBranchId = new WithdrawalRedTreeEntity.WithdrawalRedTreeId("accountId", "withdrawalId", "parentId");
     {
-      var command = new WithdrawalRedLeafEntity.LeafCreateCommand(withdrawalRedLeafId, parentBranchId, BigDecimal.valueOf(10.00));
+      var command = new WithdrawalRedLeafEntity.LeafCreateCommand(withdrawalRedLeafId, parentBranchId, Money.of(10.00));
       var result = testKit.call(e -> e.create(command));
       assertTrue(result.isReply());
       assertEquals("OK", result.getReply());
@@ -139,8 +184,8 @@ public class WithdrawalRedLeafEntityTest {
 
       var state = testKit.getState();
       assertEquals(withdrawalRedLeafId, state.withdrawalRedLeafId());
-      assertEquals(BigDecimal.valueOf(10.00), state.amountToWithdraw());
-      assertEquals(BigDecimal.ZERO, state.amountWithdrawn());
+      assertEquals(Money.of(10.00), state.amountToWithdraw());
+      assertEquals(Money.zero, state.amountWithdrawn());
       assertEquals(0, state.depositUnits().size());
     }
   }
@@ -152,7 +197,7 @@ public class WithdrawalRedLeafEntityTest {
     var withdrawalRedLeafId = new WithdrawalRedLeafEntity.WithdrawalRedLeafId("accountId", "withdrawalId", "leafId");
     var parentBranchId = new WithdrawalRedTreeEntity.WithdrawalRedTreeId("accountId", "withdrawalId", "parentId");
     {
-      var command = new WithdrawalRedLeafEntity.LeafCreateCommand(withdrawalRedLeafId, parentBranchId, BigDecimal.valueOf(10.00));
+      var command = new WithdrawalRedLeafEntity.LeafCreateCommand(withdrawalRedLeafId, parentBranchId, Money.of(10.00));
       var result = testKit.call(e -> e.create(command));
       assertTrue(result.isReply());
       assertEquals("OK", result.getReply());
@@ -173,16 +218,91 @@ public class WithdrawalRedLeafEntityTest {
 
       var state = testKit.getState();
       assertEquals(withdrawalRedLeafId, state.withdrawalRedLeafId());
-      assertEquals(BigDecimal.valueOf(10.00), state.amountToWithdraw());
-      assertEquals(BigDecimal.ZERO, state.amountWithdrawn());
+      assertEquals(Money.of(10.00), state.amountToWithdraw());
+      assertEquals(Money.zero, state.amountWithdrawn());
       assertEquals(0, state.depositUnits().size());
     }
   }
 
+  @Test
+  public void depositFoundAfterInsufficientFundsTest() {
+    var testKit = EventSourcedTestKit.of(WithdrawalRedLeafEntity::new);
+
+    var withdrawalRedLeafId = new WithdrawalRedLeafEntity.WithdrawalRedLeafId("accountId", "withdrawalId", "leafId");
+    var unit1 = new WithdrawalRedLeafEntity.DepositUnit(new DepositUnitEntity.DepositUnitId("accountId", "depositId", "unit-1"), Money.of(5.00));
+    var unit2 = new WithdrawalRedLeafEntity.DepositUnit(new DepositUnitEntity.DepositUnitId("accountId", "depositId", "unit-2"), Money.of(5.00));
+    testKit.call(e -> e.create(new WithdrawalRedLeafEntity.LeafCreateCommand(withdrawalRedLeafId, null, Money.of(10.00))));
+    testKit.call(e -> e.depositFound(new WithdrawalRedLeafEntity.DepositFoundCommand(withdrawalRedLeafId, unit1, Money.of(5.00))));
+    testKit.call(e -> e.noDepositsAvailable(new WithdrawalRedLeafEntity.NoDepositsAvailableCommand(withdrawalRedLeafId)));
+    assertTrue(testKit.getState().insufficientFunds());
+
+    // the other withdrawal of the seek funds the leaf after it has insufficient funds, the unit is released
+    {
+      var result = testKit.call(e -> e.depositFound(new WithdrawalRedLeafEntity.DepositFoundCommand(withdrawalRedLeafId, unit2, Money.of(5.00))));
+      assertEquals(1, result.getAllEvents().size());
+      assertEquals(unit2, result.getNextEventOfType(WithdrawalRedLeafEntity.DepositReleasedEvent.class).depositUnit());
+      assertFalse(testKit.getState().isFunded());
+      assertEquals(1, testKit.getState().depositUnits().size());
+    }
+  }
+
+  @Test
+  public void noDepositsAvailableAfterFundedOrInsufficientFundsTest() {
+    var withdrawalRedLeafId = new WithdrawalRedLeafEntity.WithdrawalRedLeafId("accountId", "withdrawalId", "leafId");
+    var unit1 = new WithdrawalRedLeafEntity.DepositUnit(new DepositUnitEntity.DepositUnitId("accountId", "depositId", "unit-1"), Money.of(10.00));
+    var command = new WithdrawalRedLeafEntity.NoDepositsAvailableCommand(withdrawalRedLeafId);
+
+    // a sibling withdrawal funded the leaf before the seek gave up on another part
+    {
+      var testKit = EventSourcedTestKit.of(WithdrawalRedLeafEntity::new);
+      testKit.call(e -> e.create(new WithdrawalRedLeafEntity.LeafCreateCommand(withdrawalRedLeafId, null, Money.of(10.00))));
+      testKit.call(e -> e.depositFound(new WithdrawalRedLeafEntity.DepositFoundCommand(withdrawalRedLeafId, unit1, Money.of(5.00))));
+      assertTrue(testKit.getState().isFunded());
+
+      var result = testKit.call(e -> e.noDepositsAvailable(command));
+      assertEquals("OK", result.getReply());
+      assertTrue(result.getAllEvents().isEmpty());
+    }
+
+    // a second seek that gives up does not reject the withdrawal again
+    {
+      var testKit = EventSourcedTestKit.of(WithdrawalRedLeafEntity::new);
+      testKit.call(e -> e.create(new WithdrawalRedLeafEntity.LeafCreateCommand(withdrawalRedLeafId, null, Money.of(10.00))));
+      assertEquals(1, testKit.call(e -> e.noDepositsAvailable(command)).getAllEvents().size());
+
+      var result = testKit.call(e -> e.noDepositsAvailable(command));
+      assertEquals("OK", result.getReply());
+      assertTrue(result.getAllEvents().isEmpty());
+    }
+  }
+
+  @Test
+  public void depositFoundAfterCancelTest() {
+    var testKit = EventSourcedTestKit.of(WithdrawalRedLeafEntity::new);
+
+    var withdrawalRedLeafId = new WithdrawalRedLeafEntity.WithdrawalRedLeafId("accountId", "withdrawalId", "leafId");
+    var parentBranchId = new WithdrawalRedTreeEntity.WithdrawalRedTreeId("accountId", "withdrawalId", "parentId");
+    var unit1 = new WithdrawalRedLeafEntity.DepositUnit(new DepositUnitEntity.DepositUnitId("accountId", "depositId", "unit-1"), Money.of(5.00));
+    var unit2 = new WithdrawalRedLeafEntity.DepositUnit(new DepositUnitEntity.DepositUnitId("accountId", "depositId", "unit-2"), Money.of(5.00));
+    testKit.call(e -> e.create(new WithdrawalRedLeafEntity.LeafCreateCommand(withdrawalRedLeafId, parentBranchId, Money.of(10.00))));
+    testKit.call(e -> e.depositFound(new WithdrawalRedLeafEntity.DepositFoundCommand(withdrawalRedLeafId, unit1, Money.of(5.00))));
+    testKit.call(e -> e.cancelWithdrawal(new WithdrawalRedLeafEntity.CancelWithdrawalCommand(withdrawalRedLeafId)));
+    assertTrue(testKit.getState().canceled());
+
+    // a unit found after the cancel, again or for the first time, is released and the leaf neither seeks nor is funded
+    for (var depositUnit : List.of(unit1, unit2)) {
+      var result = testKit.call(e -> e.depositFound(new WithdrawalRedLeafEntity.DepositFoundCommand(withdrawalRedLeafId, depositUnit, Money.of(5.00))));
+      assertEquals(1, result.getAllEvents().size());
+      assertEquals(depositUnit, result.getNextEventOfType(WithdrawalRedLeafEntity.DepositReleasedEvent.class).depositUnit());
+      assertEquals(Money.zero, testKit.getState().amountWithdrawn());
+      assertEquals(0, testKit.getState().depositUnits().size());
+    }
+  }
+
   private void partiallyFundedSeekResult(EventSourcedTestKit<State, Event, WithdrawalRedLeafEntity> testKit) {
     var withdrawalRedLeafId = new WithdrawalRedLeafEntity.WithdrawalRedLeafId("accountId", "withdrawalId", "leafId");
     var depositUnitId = new DepositUnitEntity.DepositUnitId("accountId", "depositId", "unit-1");
-    var depositUnit = new WithdrawalRedLeafEntity.DepositUnit(depositUnitId, BigDecimal.valueOf(5.00));
+    var depositUnit = new WithdrawalRedLeafEntity.DepositUnit(depositUnitId, Money.of(5.00));
     var command = new WithdrawalRedLeafEntity.DepositFoundCommand(withdrawalRedLeafId, depositUnit);
     var result = testKit.call(e -> e.depositFound(command));
     assertTrue(result.isReply());
@@ -192,25 +312,27 @@ public class WithdrawalRedLeafEntityTest {
       var event = result.getNextEventOfType(WithdrawalRedLeafEntity.DepositFoundEvent.class);
       assertEquals(withdrawalRedLeafId, event.withdrawalRedLeafId());
       assertEquals(depositUnit, event.depositUnit());
+      assertEquals(Money.of(5.00), event.amountWithdrawn());
+      assertNull(event.depositUnits());
     }
 
     {
       var event = result.getNextEventOfType(WithdrawalRedLeafEntity.DepositSeekEvent.class);
       assertEquals(withdrawalRedLeafId, event.withdrawalRedLeafId());
-      assertEquals(BigDecimal.valueOf(5.00), event.amountNeeded());
+      assertEquals(Money.of(5.00), event.amountNeeded());
     }
 
     var state = testKit.getState();
     assertEquals(withdrawalRedLeafId, state.withdrawalRedLeafId());
-    assertEquals(BigDecimal.valueOf(10.00), state.amountToWithdraw());
-    assertEquals(BigDecimal.valueOf(5.00), state.amountWithdrawn());
+    assertEquals(Money.of(10.00), state.amountToWithdraw());
+    assertEquals(Money.of(5.00), state.amountWithdrawn());
     assertEquals(1, state.depositUnits().size());
   }
 
   private void fullyFundedSeekResult(EventSourcedTestKit<State, Event, WithdrawalRedLeafEntity> testKit) {
     var withdrawalRedLeafId = new WithdrawalRedLeafEntity.WithdrawalRedLeafId("accountId", "withdrawalId", "leafId");
     var depositUnitId = new DepositUnitEntity.DepositUnitId("accountId", "depositId", "unit-2");
-    var depositUnit = new WithdrawalRedLeafEntity.DepositUnit(depositUnitId, BigDecimal.valueOf(5.00));
+    var depositUnit = new WithdrawalRedLeafEntity.DepositUnit(depositUnitId, Money.of(5.00));
     var command = new WithdrawalRedLeafEntity.DepositFoundCommand(withdrawalRedLeafId, depositUnit);
     var result = testKit.call(e -> e.depositFound(command));
     assertTrue(result.isReply());
@@ -220,21 +342,71 @@ public class WithdrawalRedLeafEntityTest {
       var event = result.getNextEventOfType(WithdrawalRedLeafEntity.DepositFoundEvent.class);
       assertEquals(withdrawalRedLeafId, event.withdrawalRedLeafId());
       assertEquals(depositUnit, event.depositUnit());
+      assertEquals(Money.of(10.00), event.amountWithdrawn());
+      assertNull(event.depositUnits());
     }
 
     {
       var event = result.getNextEventOfType(WithdrawalRedLeafEntity.FullyFundedEvent.class);
       assertEquals(withdrawalRedLeafId, event.withdrawalRedLeafId());
-      assertEquals(BigDecimal.valueOf(10.00), event.amount());
+      assertEquals(Money.of(10.00), event.amount());
     }
 
     var state = testKit.getState();
     assertEquals(withdrawalRedLeafId, state.withdrawalRedLeafId());
-    assertEquals(BigDecimal.valueOf(10.00), state.amountToWithdraw());
-    assertEquals(BigDecimal.valueOf(10.00), state.amountWithdrawn());
+    assertEquals(Money.of(10.00), state.amountToWithdraw());
+    assertEquals(Money.of(10.00), state.amountWithdrawn());
     assertEquals(2, state.depositUnits().size());
   }
 
+  @Test
+  public void legacyDepositFoundEventsTest() throws Exception {
+    var objectMapper = JsonSupport.getObjectMapper();
+    var withdrawalRedLeafId = new WithdrawalRedLeafEntity.WithdrawalRedLeafId("accountId", "withdrawalId", "leafId");
+    var parentBranchId = new WithdrawalRedTreeEntity.WithdrawalRedTreeId("accountId", "withdrawalId", "parentId");
+    var unit1 = new WithdrawalRedLeafEntity.DepositUnit(new DepositUnitEntity.DepositUnitId("accountId", "depositId", "unit-1"), Money.of(4.00));
+    var unit2 = new WithdrawalRedLeafEntity.DepositUnit(new DepositUnitEntity.DepositUnitId("accountId", "depositId", "unit-2"), Money.of(6.00));
+
+    // found events written with the full list of deposit units of the leaf and without its running total
+    var legacyJson1 = """
+        {"withdrawalRedLeafId":["accountId","withdrawalId","leafId"],"depositUnit":[["accountId","depositId","unit-1"],4.00],
+         "amountToWithdraw":10.00,"depositUnits":[[["accountId","depositId","unit-1"],4.00]]}
+        """;
+    var legacyJson2 = """
+        {"withdrawalRedLeafId":["accountId","withdrawalId","leafId"],"depositUnit":[["accountId","depositId","unit-2"],6.00],
+         "amountToWithdraw":10.00,"depositUnits":[[["accountId","depositId","unit-1"],4.00],[["accountId","depositId","unit-2"],6.00]]}
+        """;
+    var legacyEvent1 = objectMapper.readValue(legacyJson1, WithdrawalRedLeafEntity.DepositFoundEvent.class);
+    var legacyEvent2 = objectMapper.readValue(legacyJson2, WithdrawalRedLeafEntity.DepositFoundEvent.class);
+    assertNull(legacyEvent2.amountWithdrawn());
+    assertEquals(Money.of(10.00), legacyEvent2.leafAmountWithdrawn());
+
+    var state = State.emptyState()
+        .on(new WithdrawalRedLeafEntity.LeafCreatedEvent(withdrawalRedLeafId, parentBranchId, Money.of(10.00)))
+        .on(legacyEvent1)
+        .on(legacyEvent2);
+    assertEquals(Money.of(10.00), state.amountWithdrawn());
+    assertEquals(List.of(unit1, unit2), state.depositUnits().entries());
+
+    var row = WithdrawalRedLeafView.LeafRow.emptyState()
+        .on(new WithdrawalRedLeafEntity.LeafCreatedEvent(withdrawalRedLeafId, parentBranchId, Money.of(10.00)))
+        .on(legacyEvent1);
+    assertEquals(0, row.amountWithdrawn().compareTo(Money.of(4.00).toBigDecimal()));
+    row = row.on(legacyEvent2);
+    assertEquals(0, row.amountWithdrawn().compareTo(Money.of(10.00).toBigDecimal()));
+
+    // the delta events written now, with the running total and without the list
+    var event = (WithdrawalRedLeafEntity.DepositFoundEvent) State.emptyState()
+        .on(new WithdrawalRedLeafEntity.LeafCreatedEvent(withdrawalRedLeafId, parentBranchId, Money.of(10.00)))
+        .on(legacyEvent1)
+        .eventsFor(new WithdrawalRedLeafEntity.DepositFoundCommand(withdrawalRedLeafId, unit2)).get(0);
+    var json = objectMapper.writeValueAsString(event);
+    assertFalse(json.contains("depositUnits"));
+    assertEquals(event, objectMapper.readValue(json, WithdrawalRedLeafEntity.DepositFoundEvent.class));
+    assertEquals(Money.of(10.00), event.amountWithdrawn());
+    assertEquals(0, row.amountWithdrawn().compareTo(WithdrawalRedLeafView.LeafRow.emptyState().on(event).amountWithdrawn()));
+  }
+
   @Test
   public void onePartialDepositThenSecondDepositToComplete() {
     var testKit = EventSourcedTestKit.of(WithdrawalRedLeafEntity::new);
@@ -243,14 +415,14 @@ public class WithdrawalRedLeafEntityTest {
     var parentBranchId = new WithdrawalRedTreeEntity.WithdrawalRedTreeId("accountId", "withdrawalId", "parentId");
     var depositUnitId = new DepositUnitEntity.DepositUnitId("accountId", "depositId", "unitId");
     {
-      var command = new WithdrawalRedLeafEntity.LeafCreateCommand(withdrawalRedLeafId, parentBranchId, BigDecimal.valueOf(4.94));
+      var command = new WithdrawalRedLeafEntity.LeafCreateCommand(withdrawalRedLeafId, parentBranchId, Money.of(4.94));
       var result = testKit.call(e -> e.create(command));
       assertTrue(result.isReply());
       assertEquals("OK", result.getReply());
     }
 
     {
-      var depositUnit = new WithdrawalRedLeafEntity.DepositUnit(depositUnitId, BigDecimal.valueOf(4.93));
+      var depositUnit = new WithdrawalRedLeafEntity.DepositUnit(depositUnitId, Money.of(4.93));
       var command = new WithdrawalRedLeafEntity.DepositFoundCommand(withdrawalRedLeafId, depositUnit);
       var result = testKit.call(e -> e.depositFound(command));
       assertTrue(result.isReply());
@@ -265,21 +437,21 @@ public class WithdrawalRedLeafEntityTest {
       {
         var event = result.getNextEventOfType(WithdrawalRedLeafEntity.DepositSeekEvent.class);
         assertEquals(withdrawalRedLeafId, event.withdrawalRedLeafId());
-        assertEquals(BigDecimal.valueOf(0.01), event.amountNeeded());
+        assertEquals(Money.of(0.01), event.amountNeeded());
       }
 
       {
         var state = testKit.getState();
         assertEquals(withdrawalRedLeafId, state.withdrawalRedLeafId());
-        assertEquals(BigDecimal.valueOf(4.94), state.amountToWithdraw());
-        assertEquals(BigDecimal.valueOf(4.93), state.amountWithdrawn());
+        assertEquals(Money.of(4.94), state.amountToWithdraw());
+        assertEquals(Money.of(4.93), state.amountWithdrawn());
         assertEquals(1, state.depositUnits().size());
       }
     }
 
     {
       var depositUnitId2 = new DepositUnitEntity.DepositUnitId("account-1", "deposit-1", "unit-2");
-      var depositUnit = new WithdrawalRedLeafEntity.DepositUnit(depositUnitId2, BigDecimal.valueOf(0.01));
+      var depositUnit = new WithdrawalRedLeafEntity.DepositUnit(depositUnitId2, Money.of(0.01));
       var command = new WithdrawalRedLeafEntity.DepositFoundCommand(withdrawalRedLeafId, depositUnit);
       var result = testKit.call(e -> e.depositFound(command));
       assertTrue(result.isReply());
@@ -294,16 +466,146 @@ public class WithdrawalRedLeafEntityTest {
       {
         var event = result.getNextEventOfType(WithdrawalRedLeafEntity.FullyFundedEvent.class);
         assertEquals(withdrawalRedLeafId, event.withdrawalRedLeafId());
-        assertEquals(BigDecimal.valueOf(4.94), event.amount());
+        assertEquals(Money.of(4.94), event.amount());
       }
 
       {
         var state = testKit.getState();
         assertEquals(withdrawalRedLeafId, state.withdrawalRedLeafId());
-        assertEquals(BigDecimal.valueOf(4.94), state.amountToWithdraw());
-        assertEquals(BigDecimal.valueOf(4.94), state.amountWithdrawn());
+        assertEquals(Money.of(4.94), state.amountToWithdraw());
+        assertEquals(Money.of(4.94), state.amountWithdrawn());
         assertEquals(2, state.depositUnits().size());
       }
     }
   }
+
+  @Test
+  public void seekFundedByConcurrentDepositUnitsTest() {
+    var testKit = EventSourcedTestKit.of(WithdrawalRedLeafEntity::new);
+
+    var withdrawalRedLeafId = new WithdrawalRedLeafEntity.WithdrawalRedLeafId("accountId", "withdrawalId", "leafId");
+    var parentBranchId = new WithdrawalRedTreeEntity.WithdrawalRedTreeId("accountId", "withdrawalId", "parentId");
+    var unit1 = new WithdrawalRedLeafEntity.DepositUnit(new DepositUnitEntity.DepositUnitId("accountId", "depositId", "unit-1"), Money.of(10.00));
+    var unit2 = new WithdrawalRedLeafEntity.DepositUnit(new DepositUnitEntity.DepositUnitId("accountId", "depositId", "unit-2"), Money.of(5.00));
+    var unit3 = new WithdrawalRedLeafEntity.DepositUnit(new DepositUnitEntity.DepositUnitId("accountId", "depositId", "unit-3"), Money.of(10.00));
+    var unit4 = new WithdrawalRedLeafEntity.DepositUnit(new DepositUnitEntity.DepositUnitId("accountId", "depositId", "unit-4"), Money.of(5.00));
+    testKit.call(e -> e.create(new WithdrawalRedLeafEntity.LeafCreateCommand(withdrawalRedLeafId, parentBranchId, Money.of(25.00))));
+    assertEquals(Money.of(25.00), testKit.getState().amountSeeking());
+
+    // the seek asked unit-1 for $10, unit-2 for $5 and unit-3 for the $10 left, unit-2 falls short
+    {
+      var result = testKit.call(e -> e.depositFound(new WithdrawalRedLeafEntity.DepositFoundCommand(withdrawalRedLeafId, unit1, Money.of(10.00))));
+      assertEquals(1, result.getAllEvents().size());
+      assertEquals(Money.of(15.00), testKit.getState().amountSeeking());
+    }
+    {
+      var partial = new WithdrawalRedLeafEntity.DepositUnit(unit2.depositUnitId(), Money.of(2.00));
+      var result = testKit.call(e -> e.depositFound(new WithdrawalRedLeafEntity.DepositFoundCommand(withdrawalRedLeafId, partial, Money.of(5.00))));
+      assertEquals(1, result.getAllEvents().size());
+    }
+    {
+      var result = testKit.call(e -> e.depositFound(new WithdrawalRedLeafEntity.DepositFoundCommand(withdrawalRedLeafId, unit3, Money.of(10.00))));
+      result.getNextEventOfType(WithdrawalRedLeafEntity.DepositFoundEvent.class);
+      var event = result.getNextEventOfType(WithdrawalRedLeafEntity.DepositSeekEvent.class);
+      assertEquals(Money.of(3.00), event.amountNeeded());
+      assertEquals(Money.of(3.00), testKit.getState().amountSeeking());
+    }
+
+    // the second seek is funded, then a unit found after the leaf is funded is released
+    {
+      var result = testKit.call(e -> e.depositFound(new WithdrawalRedLeafEntity.DepositFoundCommand(withdrawalRedLeafId, unit2, Money.of(3.00))));
+      result.getNextEventOfType(WithdrawalRedLeafEntity.DepositFoundEvent.class);
+      assertEquals(Money.of(25.00), result.getNextEventOfType(WithdrawalRedLeafEntity.FullyFundedEvent.class).amount());
+    }
+    {
+      var result = testKit.call(e -> e.depositFound(new WithdrawalRedLeafEntity.DepositFoundCommand(withdrawalRedLeafId, unit4, Money.of(5.00))));
+      assertEquals(1, result.getAllEvents().size());
+      assertEquals(unit4, result.getNextEventOfType(WithdrawalRedLeafEntity.DepositReleasedEvent.class).depositUnit());
+      assertEquals(Money.of(25.00), testKit.getState().amountWithdrawn());
+      assertEquals(3, testKit.getState().depositUnits().size());
+    }
+  }
+
+  @Test
+  public void seekBudgetExhaustedTest() {
+    var testKit = EventSourcedTestKit.of(WithdrawalRedLeafEntity::new);
+
+    var withdrawalRedLeafId = new WithdrawalRedLeafEntity.WithdrawalRedLeafId("accountId", "withdrawalId", "leafId");
+    var parentBranchId = new WithdrawalRedTreeEntity.WithdrawalRedTreeId("accountId", "withdrawalId", "parentId");
+    var unit1 = new WithdrawalRedLeafEntity.DepositUnit(new DepositUnitEntity.DepositUnitId("accountId", "depositId", "unit-1"), Money.of(10.00));
+    var unit2 = new WithdrawalRedLeafEntity.DepositUnit(new DepositUnitEntity.DepositUnitId("accountId", "depositId", "unit-2"), Money.of(10.00));
+    testKit.call(e -> e.create(new WithdrawalRedLeafEntity.LeafCreateCommand(withdrawalRedLeafId, parentBranchId, Money.of(25.00))));
+    testKit.call(e -> e.depositFound(new WithdrawalRedLeafEntity.DepositFoundCommand(withdrawalRedLeafId, unit1, Money.of(25.00))));
+    assertEquals(2, testKit.getState().seeks());
+
+    // the second seek falls short too, a third seek is within a budget of 3 seeks and over a budget of 2
+    var command = new WithdrawalRedLeafEntity.DepositFoundCommand(withdrawalRedLeafId, unit2, Money.of(15.00));
+    {
+      var events = testKit.getState().eventsFor(command, 3);
+      assertEquals(2, events.size());
+      assertEquals(Money.of(5.00), ((WithdrawalRedLeafEntity.DepositSeekEvent) events.get(1)).amountNeeded());
+    }
+    {
+      var events = testKit.getState().eventsFor(command, 2);
+      assertEquals(2, events.size());
+      var insufficientFunds = (WithdrawalRedLeafEntity.InsufficientFundsEvent) events.get(1);
+      assertEquals(withdrawalRedLeafId, insufficientFunds.withdrawalRedLeafId());
+      assertEquals(parentBranchId, insufficientFunds.parentBranchId());
+    }
+  }
+
+  @Test
+  public void duplicateDepositFoundTest() {
+    var testKit = EventSourcedTestKit.of(WithdrawalRedLeafEntity::new);
+
+    var withdrawalRedLeafId = new WithdrawalRedLeafEntity.WithdrawalRedLeafId("accountId", "withdrawalId", "leafId");
+    var parentBranchId = new WithdrawalRedTreeEntity.WithdrawalRedTreeId("accountId", "withdrawalId", "parentId");
+    var unitA = new WithdrawalRedLeafEntity.DepositUnit(new DepositUnitEntity.DepositUnitId("accountId", "depositId", "unit-a"), Money.of(20.00), "1.0");
+    var unitB = new WithdrawalRedLeafEntity.DepositUnit(new DepositUnitEntity.DepositUnitId("accountId", "depositId", "unit-b"), Money.of(5.00), "1.1");
+    testKit.call(e -> e.create(new WithdrawalRedLeafEntity.LeafCreateCommand(withdrawalRedLeafId, parentBranchId, Money.of(25.00))));
+
+    var foundA = new WithdrawalRedLeafEntity.DepositFoundCommand(withdrawalRedLeafId, unitA, Money.of(20.00));
+    testKit.call(e -> e.depositFound(foundA));
+
+    // the redelivered found of unit-a neither counts against the seek nor seeks again while unit-b is in flight
+    {
+      var result = testKit.call(e -> e.depositFound(foundA));
+      assertTrue(result.getAllEvents().isEmpty());
+      assertEquals(Money.of(5.00), testKit.getState().amountSeeking());
+      assertEquals(1, testKit.getState().seeks());
+    }
+    {
+      var result = testKit.call(e -> e.depositFound(new WithdrawalRedLeafEntity.DepositFoundCommand(withdrawalRedLeafId, unitB, Money.of(5.00))));
+      result.getNextEventOfType(WithdrawalRedLeafEntity.DepositFoundEvent.class);
+      assertEquals(Money.of(25.00), result.getNextEventOfType(WithdrawalRedLeafEntity.FullyFundedEvent.class).amount());
+      assertEquals(Money.of(25.00), testKit.getState().amountWithdrawn());
+    }
+  }
+
+  @Test
+  public void topUpOfHeldDepositUnitCappedTest() {
+    var testKit = EventSourcedTestKit.of(WithdrawalRedLeafEntity::new);
+
+    var withdrawalRedLeafId = new WithdrawalRedLeafEntity.WithdrawalRedLeafId("accountId", "withdrawalId", "leafId");
+    var parentBranchId = new WithdrawalRedTreeEntity.WithdrawalRedTreeId("accountId", "withdrawalId", "parentId");
+    var unitAId = new DepositUnitEntity.DepositUnitId("accountId", "depositId", "unit-a");
+    var unitBId = new DepositUnitEntity.DepositUnitId("accountId", "depositId", "unit-b");
+    testKit.call(e -> e.create(new WithdrawalRedLeafEntity.LeafCreateCommand(withdrawalRedLeafId, parentBranchId, Money.of(25.00))));
+    testKit.call(e -> e.depositFound(new WithdrawalRedLeafEntity.DepositFoundCommand(withdrawalRedLeafId,
+        new WithdrawalRedLeafEntity.DepositUnit(unitAId, Money.of(20.00), "1.0"), Money.of(20.00))));
+    testKit.call(e -> e.depositFound(new WithdrawalRedLeafEntity.DepositFoundCommand(withdrawalRedLeafId,
+        new WithdrawalRedLeafEntity.DepositUnit(unitBId, Money.of(5.00), "1.1"), Money.of(5.00))));
+
+    // a later withdrawal from unit-b brings what the leaf holds of it to $10, the leaf keeps $5 and releases the rest
+    var result = testKit.call(e -> e.depositFound(new WithdrawalRedLeafEntity.DepositFoundCommand(withdrawalRedLeafId,
+        new WithdrawalRedLeafEntity.DepositUnit(unitBId, Money.of(10.00), "2.0"), Money.of(5.00))));
+    var found = result.getNextEventOfType(WithdrawalRedLeafEntity.DepositFoundEvent.class);
+    assertEquals(Money.of(5.00), found.depositUnit().amount());
+    assertEquals(Money.of(25.00), found.amountWithdrawn());
+    var released = result.getNextEventOfType(WithdrawalRedLeafEntity.DepositReleasedEvent.class);
+    assertEquals(unitBId, released.depositUnit().depositUnitId());
+    assertEquals(Money.of(5.00), released.amountKept());
+    assertEquals(Money.of(25.00), result.getNextEventOfType(WithdrawalRedLeafEntity.FullyFundedEvent.class).amount());
+    assertEquals(Money.of(25.00), testKit.getState().amountWithdrawn());
+  }
 }
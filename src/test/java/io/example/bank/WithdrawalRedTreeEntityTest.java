@@ -6,10 +6,14 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
-import java.math.BigDecimal;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.IntStream;
 
 import org.junit.jupiter.api.Test;
 
+import io.example.Money;
+import kalix.javasdk.JsonSupport;
 import kalix.javasdk.testkit.EventSourcedTestKit;
 
 public class WithdrawalRedTreeEntityTest {
@@ -19,7 +23,7 @@ public class WithdrawalRedTreeEntityTest {
 
     var withdrawalRedTreeId = new WithdrawalRedTreeEntity.WithdrawalRedTreeId("accountId", "withdrawalId", "trunkId");
     {
-      var command = new WithdrawalRedTreeEntity.TrunkCreateCommand(withdrawalRedTreeId, BigDecimal.valueOf(123.45));
+      var command = new WithdrawalRedTreeEntity.TrunkCreateCommand(withdrawalRedTreeId, Money.of(123.45));
       var result = testKit.call(e -> e.createTrunk(command));
       assertTrue(result.isReply());
       assertEquals("OK", result.getReply());
@@ -27,14 +31,14 @@ public class WithdrawalRedTreeEntityTest {
       var event = result.getNextEventOfType(WithdrawalRedTreeEntity.BranchCreatedEvent.class);
       assertEquals(withdrawalRedTreeId, event.withdrawalRedTreeId());
       assertNull(event.withdrawalRedTreeParentId());
-      assertEquals(0, event.amount().compareTo(BigDecimal.valueOf(123.45)));
+      assertEquals(0, event.amount().compareTo(Money.of(123.45)));
       assertTrue(event.subbranches().size() > 0);
 
       var state = testKit.getState();
       assertEquals(withdrawalRedTreeId, state.withdrawalRedTreeId());
       assertNull(state.withdrawalRedTreeParentId());
-      assertEquals(0, state.amountToWithdraw().compareTo(BigDecimal.valueOf(123.45)));
-      assertEquals(0, state.amountWithdrawn().compareTo(BigDecimal.ZERO));
+      assertEquals(0, state.amountToWithdraw().compareTo(Money.of(123.45)));
+      assertEquals(0, state.amountWithdrawn().compareTo(Money.zero));
       assertTrue(state.subbranches().size() > 0);
     }
   }
@@ -46,21 +50,22 @@ public class WithdrawalRedTreeEntityTest {
     var withdrawalRedTreeId = new WithdrawalRedTreeEntity.WithdrawalRedTreeId("accountId", "withdrawalId", "branchId");
     var parentBranchId = new WithdrawalRedTreeEntity.WithdrawalRedTreeId("accountId", "withdrawalId", "parentBranchId");
     {
-      var command = new WithdrawalRedTreeEntity.BranchCreateCommand(withdrawalRedTreeId, parentBranchId, BigDecimal.valueOf(123.45));
+      var command = new WithdrawalRedTreeEntity.BranchCreateCommand(withdrawalRedTreeId, parentBranchId, Money.of(123.45));
       var result = testKit.call(e -> e.createBranch(command));
       assertTrue(result.isReply());
       assertEquals("OK", result.getReply());
 
       var event = result.getNextEventOfType(WithdrawalRedTreeEntity.BranchCreatedEvent.class);
+      assertEquals(withdrawalRedTreeId, event.withdrawalRedTreeId());
       assertEquals(parentBranchId, event.withdrawalRedTreeParentId());
-      assertEquals(0, event.amount().compareTo(BigDecimal.valueOf(123.45)));
+      assertEquals(0, event.amount().compareTo(Money.of(123.45)));
       assertTrue(event.subbranches().size() > 0);
 
       var state = testKit.getState();
-      assertNotNull(state.withdrawalRedTreeId());
+      assertEquals(withdrawalRedTreeId, state.withdrawalRedTreeId());
       assertNotNull(state.withdrawalRedTreeParentId());
-      assertEquals(0, state.amountToWithdraw().compareTo(BigDecimal.valueOf(123.45)));
-      assertEquals(0, state.amountWithdrawn().compareTo(BigDecimal.ZERO));
+      assertEquals(0, state.amountToWithdraw().compareTo(Money.of(123.45)));
+      assertEquals(0, state.amountWithdrawn().compareTo(Money.zero));
       assertTrue(state.subbranches().size() > 0);
     }
   }
@@ -72,7 +77,7 @@ public class WithdrawalRedTreeEntityTest {
     var withdrawalRedTreeId = new WithdrawalRedTreeEntity.WithdrawalRedTreeId("accountId", "withdrawalId", "branchId");
     var parentBranchId = new WithdrawalRedTreeEntity.WithdrawalRedTreeId("accountId", "withdrawalId", "parentBranchId");
     {
-      var command = new WithdrawalRedTreeEntity.BranchCreateCommand(withdrawalRedTreeId, parentBranchId, BigDecimal.valueOf(123.45));
+      var command = new WithdrawalRedTreeEntity.BranchCreateCommand(withdrawalRedTreeId, parentBranchId, Money.of(123.45));
       var result = testKit.call(e -> e.createBranch(command));
       assertTrue(result.isReply());
       assertEquals("OK", result.getReply());
@@ -80,11 +85,11 @@ public class WithdrawalRedTreeEntityTest {
 
     {
       var reply = testKit.call(e -> e.get()).getReply();
-      var subbranches = reply.subbranches();
+      var subbranches = reply.subbranches().entries();
       var branchId = subbranches.get(0).withdrawalRedTreeId();
 
       var subbranchId = new WithdrawalRedTreeEntity.WithdrawalRedTreeId("accountId", "withdrawalId", branchId.branchId());
-      var subbranch = new WithdrawalRedTreeEntity.Subbranch(subbranchId, BigDecimal.valueOf(123.45), BigDecimal.valueOf(123.45));
+      var subbranch = new WithdrawalRedTreeEntity.Subbranch(subbranchId, Money.of(123.45), Money.of(123.45));
       var command = new WithdrawalRedTreeEntity.UpdateAmountWithdrawnCommand(withdrawalRedTreeId, subbranch);
       var result = testKit.call(e -> e.updateAmountWithdrawn(command));
       assertTrue(result.isReply());
@@ -92,10 +97,15 @@ public class WithdrawalRedTreeEntityTest {
 
       var event = result.getNextEventOfType(WithdrawalRedTreeEntity.UpdatedAmountWithdrawnEvent.class);
       // assertEquals(withdrawalRedTreeId, event.withdrawalRedTreeId());
-      assertEquals(0, event.subbranch().amountWithdrawn().compareTo(BigDecimal.valueOf(123.45)));
+      assertEquals(0, event.subbranch().amountWithdrawn().compareTo(Money.of(123.45)));
+
+      var fundedEvent = result.getNextEventOfType(WithdrawalRedTreeEntity.FullyFundedEvent.class);
+      assertEquals(withdrawalRedTreeId, fundedEvent.withdrawalRedTreeId());
+      assertEquals(parentBranchId, fundedEvent.withdrawalRedTreeParentId());
+      assertEquals(0, fundedEvent.amount().compareTo(Money.of(123.45)));
 
       var state = testKit.getState();
-      assertEquals(0, state.amountWithdrawn().compareTo(BigDecimal.valueOf(123.45)));
+      assertEquals(0, state.amountWithdrawn().compareTo(Money.of(123.45)));
       assertTrue(state.approved());
     }
   }
@@ -107,7 +117,7 @@ public class WithdrawalRedTreeEntityTest {
     var withdrawalRedTreeId = new WithdrawalRedTreeEntity.WithdrawalRedTreeId("accountId", "withdrawalId", "branchId");
     var parentBranchId = new WithdrawalRedTreeEntity.WithdrawalRedTreeId("accountId", "withdrawalId", "parentBranchId");
     {
-      var command = new WithdrawalRedTreeEntity.BranchCreateCommand(withdrawalRedTreeId, parentBranchId, BigDecimal.valueOf(123.45));
+      var command = new WithdrawalRedTreeEntity.BranchCreateCommand(withdrawalRedTreeId, parentBranchId, Money.of(123.45));
       var result = testKit.call(e -> e.createBranch(command));
       assertTrue(result.isReply());
       assertEquals("OK", result.getReply());
@@ -115,11 +125,11 @@ public class WithdrawalRedTreeEntityTest {
 
     {
       var reply = testKit.call(e -> e.get()).getReply();
-      var subbranches = reply.subbranches();
+      var subbranches = reply.subbranches().entries();
       var branchId = subbranches.get(0).withdrawalRedTreeId(); // 1st subbranch
 
       var subbranchId = new WithdrawalRedTreeEntity.WithdrawalRedTreeId("accountId", "withdrawalId", branchId.branchId());
-      var subbranch = new WithdrawalRedTreeEntity.Subbranch(subbranchId, BigDecimal.valueOf(123.45), BigDecimal.valueOf(100.00));
+      var subbranch = new WithdrawalRedTreeEntity.Subbranch(subbranchId, Money.of(123.45), Money.of(100.00));
       var command = new WithdrawalRedTreeEntity.UpdateAmountWithdrawnCommand(withdrawalRedTreeId, subbranch);
       var result = testKit.call(e -> e.updateAmountWithdrawn(command));
       assertTrue(result.isReply());
@@ -127,20 +137,20 @@ public class WithdrawalRedTreeEntityTest {
 
       var event = result.getNextEventOfType(WithdrawalRedTreeEntity.UpdatedAmountWithdrawnEvent.class);
       // assertEquals(withdrawalRedTreeId, event.withdrawalRedTreeId());
-      assertEquals(0, event.subbranch().amountWithdrawn().compareTo(BigDecimal.valueOf(100.00)));
+      assertEquals(0, event.subbranch().amountWithdrawn().compareTo(Money.of(100.00)));
 
       var state = testKit.getState();
-      assertEquals(0, state.amountWithdrawn().compareTo(BigDecimal.valueOf(100.00)));
+      assertEquals(0, state.amountWithdrawn().compareTo(Money.of(100.00)));
       assertFalse(state.approved());
     }
 
     {
       var reply = testKit.call(e -> e.get()).getReply();
-      var subbranches = reply.subbranches();
+      var subbranches = reply.subbranches().entries();
       var branchId = subbranches.get(1).withdrawalRedTreeId(); // 2nd subbranch
 
       var subbranchId = new WithdrawalRedTreeEntity.WithdrawalRedTreeId("accountId", "withdrawalId", branchId.branchId());
-      var subbranch = new WithdrawalRedTreeEntity.Subbranch(subbranchId, BigDecimal.valueOf(123.45), BigDecimal.valueOf(23.45));
+      var subbranch = new WithdrawalRedTreeEntity.Subbranch(subbranchId, Money.of(123.45), Money.of(23.45));
       var command = new WithdrawalRedTreeEntity.UpdateAmountWithdrawnCommand(withdrawalRedTreeId, subbranch);
       var result = testKit.call(e -> e.updateAmountWithdrawn(command));
       assertTrue(result.isReply());
@@ -148,10 +158,10 @@ public class WithdrawalRedTreeEntityTest {
 
       var event = result.getNextEventOfType(WithdrawalRedTreeEntity.UpdatedAmountWithdrawnEvent.class);
       // assertEquals(withdrawalRedTreeId, event.withdrawalRedTreeId());
-      assertEquals(0, event.subbranch().amountWithdrawn().compareTo(BigDecimal.valueOf(23.45)));
+      assertEquals(0, event.subbranch().amountWithdrawn().compareTo(Money.of(23.45)));
 
       var state = testKit.getState();
-      assertEquals(0, state.amountWithdrawn().compareTo(BigDecimal.valueOf(123.45)));
+      assertEquals(0, state.amountWithdrawn().compareTo(Money.of(123.45)));
       assertTrue(state.approved());
     }
   }
@@ -163,7 +173,7 @@ public class WithdrawalRedTreeEntityTest {
     var withdrawalRedTreeId = new WithdrawalRedTreeEntity.WithdrawalRedTreeId("accountId", "withdrawalId", "branchId");
     var parentBranchId = new WithdrawalRedTreeEntity.WithdrawalRedTreeId("accountId", "withdrawalId", "parentBranchId");
     {
-      var command = new WithdrawalRedTreeEntity.BranchCreateCommand(withdrawalRedTreeId, parentBranchId, BigDecimal.valueOf(123.45));
+      var command = new WithdrawalRedTreeEntity.BranchCreateCommand(withdrawalRedTreeId, parentBranchId, Money.of(123.45));
       var result = testKit.call(e -> e.createBranch(command));
       assertTrue(result.isReply());
       assertEquals("OK", result.getReply());
@@ -190,7 +200,7 @@ public class WithdrawalRedTreeEntityTest {
 
     var trunkId = new WithdrawalRedTreeEntity.WithdrawalRedTreeId("accountId", "withdrawalId", "trunkId");
     {
-      var command = new WithdrawalRedTreeEntity.TrunkCreateCommand(trunkId, BigDecimal.valueOf(123.45));
+      var command = new WithdrawalRedTreeEntity.TrunkCreateCommand(trunkId, Money.of(123.45));
       var result = testKit.call(e -> e.createTrunk(command));
       assertTrue(result.isReply());
       assertEquals("OK", result.getReply());
@@ -218,7 +228,7 @@ public class WithdrawalRedTreeEntityTest {
 
     var withdrawalRedTreeId = new WithdrawalRedTreeEntity.WithdrawalRedTreeId("accountId", "withdrawalId", "trunkId");
     {
-      var command = new WithdrawalRedTreeEntity.TrunkCreateCommand(withdrawalRedTreeId, BigDecimal.valueOf(123.45));
+      var command = new WithdrawalRedTreeEntity.TrunkCreateCommand(withdrawalRedTreeId, Money.of(123.45));
       var result = testKit.call(e -> e.createTrunk(command));
       assertTrue(result.isReply());
       assertEquals("OK", result.getReply());
@@ -231,9 +241,85 @@ public class WithdrawalRedTreeEntityTest {
       var reply = result.getReply();
       assertEquals(withdrawalRedTreeId, reply.withdrawalRedTreeId());
       assertNull(reply.withdrawalRedTreeParentId());
-      assertEquals(0, reply.amountToWithdraw().compareTo(BigDecimal.valueOf(123.45)));
-      assertEquals(0, reply.amountWithdrawn().compareTo(BigDecimal.ZERO));
+      assertEquals(0, reply.amountToWithdraw().compareTo(Money.of(123.45)));
+      assertEquals(0, reply.amountWithdrawn().compareTo(Money.zero));
       assertTrue(reply.subbranches().size() > 0);
     }
   }
+
+  @Test
+  public void compactJsonTest() throws Exception {
+    var objectMapper = JsonSupport.getObjectMapper();
+    var trunkId = new WithdrawalRedTreeEntity.WithdrawalRedTreeId("accountId", "withdrawalId", "trunkId");
+    var subbranch = new WithdrawalRedTreeEntity.Subbranch(trunkId.childId("branchId"), Money.of(25.00), Money.zero);
+    var event = new WithdrawalRedTreeEntity.BranchCreatedEvent(trunkId, null, Money.of(25.00), List.of(subbranch));
+
+    var json = objectMapper.writeValueAsString(event);
+    assertEquals("{\"withdrawalRedTreeId\":[\"accountId\",\"withdrawalId\",\"trunkId\"],\"withdrawalRedTreeParentId\":null,"
+        + "\"amount\":25.00,\"subbranches\":[[[\"accountId\",\"withdrawalId\",\"branchId\"],25.00,0.00]]}", json);
+    assertEquals(event, objectMapper.readValue(json, WithdrawalRedTreeEntity.BranchCreatedEvent.class));
+
+    // events written with named fields before the ids and subbranches were compacted
+    var legacyJson = """
+        {"withdrawalRedTreeId":{"accountId":"accountId","withdrawalId":"withdrawalId","branchId":"trunkId"},
+         "withdrawalRedTreeParentId":null,"amount":25.00,
+         "subbranches":[{"withdrawalRedTreeId":{"accountId":"accountId","withdrawalId":"withdrawalId","branchId":"branchId"},
+                         "amountToWithdraw":25.00,"amountWithdrawn":0}]}
+        """;
+    assertEquals(event, objectMapper.readValue(legacyJson, WithdrawalRedTreeEntity.BranchCreatedEvent.class));
+  }
+
+  @Test
+  public void distributeAmountTest() {
+    var amounts = WithdrawalRedTreeEntity.distributeAmount(Money.of(30.00));
+    assertEquals(2, amounts.size());
+    assertEquals(0, amounts.get(0).compareTo(Money.of(15.00)));
+    assertEquals(0, amounts.get(1).compareTo(Money.of(15.00)));
+
+    amounts = WithdrawalRedTreeEntity.distributeAmount(Money.of(10.00));
+    assertEquals(1, amounts.size());
+    assertEquals(0, amounts.get(0).compareTo(Money.of(10.00)));
+
+    // 4001 leaves of up to $25, covered by subtrees of 625 leaves
+    amounts = WithdrawalRedTreeEntity.distributeAmount(Money.of(100_000.01));
+    assertEquals(7, amounts.size());
+    assertEquals(0, amounts.stream().reduce(Money.zero, Money::plus).compareTo(Money.of(100_000.01)));
+    assertTrue(amounts.stream().allMatch(amount -> amount.compareTo(Money.of(625 * 25)) <= 0));
+  }
+
+  // Compares the entities created and the tree levels of the adaptive fan-out against the fixed split of
+  // every branch into 25 subbranches.
+  @Test
+  public void fewerEntitiesThanFixedSplitTest() {
+    for (var amount : List.of(1.00, 30.00, 123.45, 1_000.00, 10_000.00, 100_000.00)) {
+      var total = Money.of(amount);
+      var fixed = treeShape(total, WithdrawalRedTreeEntityTest::distributeAmountFixed);
+      var adaptive = treeShape(total, WithdrawalRedTreeEntity::distributeAmount);
+
+      assertTrue(adaptive.entities() <= fixed.entities());
+      assertTrue(adaptive.levels() <= fixed.levels());
+    }
+  }
+
+  // The trunk is always a branch, subbranches of up to $25 are leaves.
+  private static TreeShape treeShape(Money amount, Function<Money, List<Money>> distributeAmount) {
+    return distributeAmount.apply(amount).stream()
+        .map(subbranch -> WithdrawalRedTreeEntity.isTopBranch(subbranch)
+            ? new TreeShape(1, 1, 1)
+            : treeShape(subbranch, distributeAmount))
+        .reduce(new TreeShape(1, 0, 1), (shape, subbranch) -> new TreeShape(
+            shape.entities() + subbranch.entities(),
+            shape.leaves() + subbranch.leaves(),
+            Math.max(shape.levels(), subbranch.levels() + 1)));
+  }
+
+  record TreeShape(int entities, int leaves, int levels) {}
+
+  // The split used before the adaptive fan-out, every branch into 25 subbranches.
+  private static List<Money> distributeAmountFixed(Money total) {
+    var cents = total.cents();
+    return IntStream.range(0, 25)
+        .mapToObj(i -> Money.ofCents(cents / 25 + (i < cents % 25 ? 1 : 0)))
+        .toList();
+  }
 }